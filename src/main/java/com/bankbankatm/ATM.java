@@ -1,18 +1,67 @@
 package com.bankbankatm;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class ATM {
 
+	public static final int MAX_TERMINAL_ID = 0xFFFF;
+
+	private static final int SEQUENCE_BITS = 48;
+	private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+	private static final AtomicLong REFERENCES = new AtomicLong(System.currentTimeMillis() << 4);
+
 	private int minimumAmount;
 	private int maximumAmount;
 	private int limitTimeForOperation;
+	private final DatabaseProxy database;
+	private CashDispenser cashDispenser;
+	private PinVerifier pinVerifier;
+	private NetworkToBank network;
+	private int accountNum;
+	private int terminalId;
+	private Executor executor;
+
+	public ATM() {
+		this(new DatabaseProxy(), null);
+	}
 
 	/**
 	 * 
+	 * @param database
+	 * @param cashDispenser
+	 */
+	public ATM(DatabaseProxy database, CashDispenser cashDispenser) {
+		this.database = database;
+		this.cashDispenser = cashDispenser;
+	}
+
+	/**
+	 * Checks the password against the account read from the card.
 	 * @param password
 	 */
 	public String verify(String password) {
-		// TODO - implement ATM.verify
-		throw new UnsupportedOperationException();
+		String stored = database.getCredentials().selectPasswordByAccountNum(accountNum);
+		if (PasswordHash.matches(password, stored)) {
+			return "Login Successful";
+		}
+		return "Invalid PIN, please try again";
+	}
+
+	/**
+	 * Checks the password on the PIN verification pool, when one is set,
+	 * instead of the calling thread. The future fails with
+	 * RejectedExecutionException when the pool is saturated.
+	 * @param password
+	 */
+	public CompletableFuture<String> verifyAsync(String password) {
+		if (pinVerifier == null) {
+			return CompletableFuture.completedFuture(verify(password));
+		}
+		return pinVerifier.verify(accountNum, password)
+				.thenApply(matches -> matches ? "Login Successful" : "Invalid PIN, please try again");
 	}
 
 	/**
@@ -20,8 +69,23 @@ public class ATM {
 	 * @param accountNum
 	 */
 	public void readAccountNum(int accountNum) {
-		// TODO - implement ATM.readAccountNum
-		throw new UnsupportedOperationException();
+		this.accountNum = accountNum;
+	}
+
+	/**
+	 * Changes the password of the account read from the card.
+	 * @param oldPassword
+	 * @param newPassword
+	 * @param confirmation
+	 */
+	public String changePassword(String oldPassword, String newPassword, String confirmation) {
+		if (!newPassword.equals(confirmation)) {
+			return "PINs do not match";
+		}
+		if (!database.changePassword(accountNum, oldPassword, newPassword)) {
+			return "Incorrect old PIN";
+		}
+		return "Password Changed Successfully";
 	}
 
 	public Message checkAvailabilityOfCashInATM() {
@@ -39,4 +103,96 @@ public class ATM {
 		throw new UnsupportedOperationException();
 	}
 
+	public DatabaseProxy getDatabase() {
+		return this.database;
+	}
+
+	public CredentialCache getCredentials() {
+		return database.getCredentials();
+	}
+
+	public PinVerifier getPinVerifier() {
+		return this.pinVerifier;
+	}
+
+	/**
+	 * 
+	 * @param pinVerifier pool shared by the ATMs of a bank, or null to verify on the calling thread
+	 */
+	public void setPinVerifier(PinVerifier pinVerifier) {
+		this.pinVerifier = pinVerifier;
+	}
+
+	public CashDispenser getCashDispenser() {
+		return this.cashDispenser;
+	}
+
+	/**
+	 * 
+	 * @param cashDispenser
+	 */
+	public void setCashDispenser(CashDispenser cashDispenser) {
+		this.cashDispenser = cashDispenser;
+	}
+
+	public int getTerminalId() {
+		return this.terminalId;
+	}
+
+	/**
+	 * 
+	 * @param terminalId ID of this ATM at the bank, unique among the ATMs of a bank
+	 */
+	public void setTerminalId(int terminalId) {
+		if (terminalId < 0 || terminalId > MAX_TERMINAL_ID) {
+			throw new IllegalArgumentException("Terminal ID out of range: " + terminalId);
+		}
+		this.terminalId = terminalId;
+	}
+
+	/**
+	 * A reference for a request to the bank, unique among the bank's ATMs
+	 * and across restarts: the terminal ID in the top 16 bits and a
+	 * sequence started from the clock below it. Never 0.
+	 */
+	long nextReference() {
+		return (long) terminalId << SEQUENCE_BITS | REFERENCES.incrementAndGet() & SEQUENCE_MASK;
+	}
+
+	/**
+	 * Where the steps that follow a bank answer run, such as dispensing,
+	 * so they hold neither the connection's I/O thread nor the timer
+	 * thread. Unless one is set, a single daemon thread of this ATM's own.
+	 */
+	public synchronized Executor getExecutor() {
+		if (executor == null) {
+			executor = Executors.newSingleThreadExecutor(task -> {
+				Thread thread = new Thread(task, "atm-" + terminalId);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return this.executor;
+	}
+
+	/**
+	 * 
+	 * @param executor
+	 */
+	public synchronized void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	public NetworkToBank getNetworkToBank() {
+		return this.network;
+	}
+
+	/**
+	 * 
+	 * @param network link to the bank that decides transactions, or null to apply them to the local database
+	 */
+	public void setNetworkToBank(NetworkToBank network) {
+		this.network = network;
+	}
+
 }
\ No newline at end of file
@@ -4,7 +4,7 @@ public class Account {
 
 	private int account_number;
 	private String password;
-	private double balance;
+	private Money balance;
 	private int accountType;
 
 }
\ No newline at end of file
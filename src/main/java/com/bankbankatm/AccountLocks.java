@@ -0,0 +1,63 @@
+package com.bankbankatm;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of locks striped by account number. Updates to one account
+ * always take the same stripe, so they run one at a time, while accounts
+ * on different stripes never contend. Striping keeps the lock count
+ * independent of the number of accounts.
+ */
+public class AccountLocks {
+
+	private final ReentrantLock[] stripes;
+	private final int mask;
+
+	/**
+	 *
+	 * @param stripeCount rounded up to a power of two
+	 */
+	public AccountLocks(int stripeCount) {
+		if (stripeCount <= 0) {
+			throw new IllegalArgumentException("stripeCount must be positive: " + stripeCount);
+		}
+		int size = Integer.highestOneBit(stripeCount);
+		if (size < stripeCount) {
+			size <<= 1;
+		}
+		this.stripes = new ReentrantLock[size];
+		for (int i = 0; i < size; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+		this.mask = size - 1;
+	}
+
+	/**
+	 *
+	 * @param accountNum
+	 */
+	public int stripeOf(int accountNum) {
+		return AccountTable.mix(accountNum) & mask;
+	}
+
+	/**
+	 *
+	 * @param accountNum
+	 */
+	public ReentrantLock lockFor(int accountNum) {
+		return stripes[stripeOf(accountNum)];
+	}
+
+	/**
+	 *
+	 * @param stripe
+	 */
+	public ReentrantLock lockAt(int stripe) {
+		return stripes[stripe];
+	}
+
+	public int stripeCount() {
+		return stripes.length;
+	}
+
+}
@@ -0,0 +1,165 @@
+package com.bankbankatm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out account numbers in per-thread blocks. A thread takes numbers
+ * from its own block without any shared state and only touches the shared
+ * counter, with a single atomic add, when its block runs out.
+ *
+ * Before any number of a block is handed out, the block lies below a high
+ * water mark that has been written to disk. After a crash the sequence
+ * restarts at the persisted mark, so no number is ever issued twice; the
+ * unused rest of the blocks in flight is skipped. The mark is raised in
+ * large steps, so the file is rarely written.
+ *
+ * A sequence may hand out only every {@code stride}-th number, those equal
+ * to {@code offset} modulo the stride, so that several sequences issue
+ * disjoint numbers; blocks and the mark then count in steps of the stride.
+ */
+public class AccountNumberSequence {
+
+	private static final int BLOCK_SIZE = 256;
+	private static final long RESERVE_STEP = 1L << 20;
+
+	private final Path markFile;
+	private final int stride;
+	private final int offset;
+	private final AtomicLong nextBlock;
+	private final ThreadLocal<long[]> blocks = ThreadLocal.withInitial(() -> new long[2]);
+	private volatile long reservedUpTo;
+
+	/**
+	 * In-memory sequence, nothing is persisted.
+	 * @param floor lowest number to hand out
+	 */
+	public AccountNumberSequence(long floor) {
+		this(floor, 1, 0);
+	}
+
+	/**
+	 * In-memory sequence of the numbers equal to offset modulo stride.
+	 * @param floor lowest number to hand out
+	 * @param stride
+	 * @param offset
+	 */
+	public AccountNumberSequence(long floor, int stride, int offset) {
+		checkStride(stride, offset);
+		this.markFile = null;
+		this.stride = stride;
+		this.offset = offset;
+		this.nextBlock = new AtomicLong(indexOf(floor, stride, offset));
+		this.reservedUpTo = Long.MAX_VALUE;
+	}
+
+	/**
+	 *
+	 * @param markFile where the high water mark is kept
+	 * @param floor lowest number to hand out
+	 */
+	public AccountNumberSequence(Path markFile, long floor) throws IOException {
+		this(markFile, floor, 1, 0);
+	}
+
+	/**
+	 * Persistent sequence of the numbers equal to offset modulo stride. The
+	 * stride and offset must not change between runs on the same mark file.
+	 * @param markFile where the high water mark is kept
+	 * @param floor lowest number to hand out
+	 * @param stride
+	 * @param offset
+	 */
+	public AccountNumberSequence(Path markFile, long floor, int stride, int offset) throws IOException {
+		checkStride(stride, offset);
+		this.markFile = markFile;
+		this.stride = stride;
+		this.offset = offset;
+		long start = Math.max(indexOf(floor, stride, offset), readMark(markFile));
+		this.nextBlock = new AtomicLong(start);
+		this.reservedUpTo = start;
+	}
+
+	public int next() {
+		long[] block = blocks.get();
+		if (block[0] == block[1]) {
+			long start = nextBlock.getAndAdd(BLOCK_SIZE);
+			long end = start + BLOCK_SIZE;
+			if ((end - 1) * stride + offset > Integer.MAX_VALUE) {
+				throw new IllegalStateException("Account numbers exhausted");
+			}
+			reserve(end);
+			block[0] = start;
+			block[1] = end;
+		}
+		return (int) (block[0]++ * stride + offset);
+	}
+
+	/**
+	 * Position in the sequence of the lowest number at or above the floor.
+	 */
+	private static long indexOf(long floor, int stride, int offset) {
+		return Math.max(0, Math.floorDiv(floor - offset + stride - 1, stride));
+	}
+
+	private static void checkStride(int stride, int offset) {
+		if (stride <= 0 || offset < 0 || offset >= stride) {
+			throw new IllegalArgumentException("Invalid stride " + stride + " and offset " + offset);
+		}
+	}
+
+	private void reserve(long end) {
+		if (end <= reservedUpTo) {
+			return;
+		}
+		synchronized (this) {
+			if (end <= reservedUpTo) {
+				return;
+			}
+			long mark = Math.max(end, reservedUpTo + RESERVE_STEP);
+			try {
+				writeMark(markFile, mark);
+			} catch (IOException e) {
+				throw new UncheckedIOException("Cannot persist account number high water mark", e);
+			}
+			reservedUpTo = mark;
+		}
+	}
+
+	private static long readMark(Path file) throws IOException {
+		if (!Files.exists(file)) {
+			return 0;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+				// keep reading
+			}
+		}
+		if (buffer.hasRemaining()) {
+			throw new IOException("Account number mark file is truncated: " + file);
+		}
+		return buffer.flip().getLong();
+	}
+
+	private static void writeMark(Path file, long mark) throws IOException {
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES).putLong(mark).flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+}
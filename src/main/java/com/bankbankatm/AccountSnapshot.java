@@ -0,0 +1,58 @@
+package com.bankbankatm;
+
+/**
+ * Reusable holder for a consistent view of one account, filled by
+ * {@link DatabaseProxy#readSnapshot}. Owned by one reader at a time.
+ */
+public final class AccountSnapshot {
+
+	final long[] recent = new long[TransactionHistory.DEPTH * TransactionHistory.ENTRY_WORDS];
+	private int accountNum;
+	private long balance;
+	private long withdrawnToday;
+	private int recentCount;
+
+	void set(int accountNum, long balance, long withdrawnToday, int recentCount) {
+		this.accountNum = accountNum;
+		this.balance = balance;
+		this.withdrawnToday = withdrawnToday;
+		this.recentCount = recentCount;
+	}
+
+	public int getAccountNum() {
+		return accountNum;
+	}
+
+	public long getBalance() {
+		return balance;
+	}
+
+	public long getWithdrawnToday() {
+		return withdrawnToday;
+	}
+
+	public int getRecentCount() {
+		return recentCount;
+	}
+
+	/**
+	 * Kind of the i-th most recent transaction, a {@link JournalRecord} kind.
+	 * @param i
+	 */
+	public int recentKind(int i) {
+		return (int) recent[i * TransactionHistory.ENTRY_WORDS];
+	}
+
+	public long recentTimestamp(int i) {
+		return recent[i * TransactionHistory.ENTRY_WORDS + 1];
+	}
+
+	/**
+	 * Signed amount of the i-th most recent transaction, in minor units.
+	 * @param i
+	 */
+	public long recentAmount(int i) {
+		return recent[i * TransactionHistory.ENTRY_WORDS + 2];
+	}
+
+}
@@ -0,0 +1,325 @@
+package com.bankbankatm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Open-addressing account table keyed by account number.
+ * Every column lives in its own primitive array indexed by slot, so there
+ * are no boxed keys and no per-account objects. Account number 0 marks an
+ * empty slot.
+ *
+ * Lookups and inserts are lock-free: an insert claims an empty slot with a
+ * compare-and-set, fills its columns and then publishes the key with
+ * release semantics. Concurrent inserts of the same account number are not
+ * detected; callers hand out unique numbers. The table does not resize,
+ * size it for the expected load.
+ */
+public class AccountTable {
+
+	static final int EMPTY = 0;
+	private static final int RESERVED = -1;
+
+	private static final float LOAD_FACTOR = 0.75f;
+	private static final int MAX_CAPACITY = 1 << 30;
+	private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+	private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+
+	private final int mask;
+	private final int maxSize;
+	private final int[] keys;
+	private final long[] balances;
+	private final long[] passwordHashes;
+	private final long[] passwordSalts;
+	private final int[] accountTypes;
+	private final int[] customerIds;
+	private final long[] dailyWithdrawals;
+	private final long[] writesBegun;
+	private final long[] writesEnded;
+	private final long[] lastLsns;
+	private final AtomicInteger size = new AtomicInteger();
+
+	/**
+	 *
+	 * @param expectedAccounts
+	 */
+	public AccountTable(int expectedAccounts) {
+		if (expectedAccounts <= 0) {
+			throw new IllegalArgumentException("expectedAccounts must be positive: " + expectedAccounts);
+		}
+		int capacity = tableSizeFor((int) Math.min(MAX_CAPACITY, (long) Math.ceil(expectedAccounts / LOAD_FACTOR)));
+		this.mask = capacity - 1;
+		this.maxSize = (int) (capacity * LOAD_FACTOR);
+		this.keys = new int[capacity];
+		this.balances = new long[capacity];
+		this.passwordHashes = new long[capacity];
+		this.passwordSalts = new long[capacity];
+		this.accountTypes = new int[capacity];
+		this.customerIds = new int[capacity];
+		this.dailyWithdrawals = new long[capacity];
+		this.writesBegun = new long[capacity];
+		this.writesEnded = new long[capacity];
+		this.lastLsns = new long[capacity];
+	}
+
+	/**
+	 * Returns the slot holding the account, or -1 when it does not exist.
+	 * @param accountNum
+	 */
+	public int slotOf(int accountNum) {
+		if (accountNum == EMPTY) {
+			return -1;
+		}
+		int slot = mix(accountNum) & mask;
+		while (true) {
+			int key = (int) INTS.getAcquire(keys, slot);
+			if (key == accountNum) {
+				return slot;
+			}
+			if (key == EMPTY) {
+				return -1;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 *
+	 * @param accountNum
+	 * @param balance
+	 * @param passwordHash
+	 * @param accountType
+	 */
+	public int insert(int accountNum, long balance, long passwordHash, int accountType) {
+		return insert(accountNum, 0, balance, passwordHash, 0, accountType, 0, 0);
+	}
+
+	/**
+	 *
+	 * @param accountNum
+	 * @param customerId owning customer, or 0 when there is none
+	 * @param balance
+	 * @param passwordHash
+	 * @param passwordSalt salt word of the password, see {@link PasswordHash}
+	 * @param accountType
+	 * @param dailyWithdrawals
+	 * @param lastLsn sequence number of the account's last journal record
+	 */
+	public int insert(int accountNum, int customerId, long balance, long passwordHash, long passwordSalt,
+			int accountType, long dailyWithdrawals, long lastLsn) {
+		return insert(accountNum, customerId, balance, passwordHash, passwordSalt, accountType, dailyWithdrawals,
+				lastLsn, null);
+	}
+
+	/**
+	 * Inserts an account, running the initializer on its slot before the
+	 * account can be found, so that state other structures keep by slot is
+	 * in place before anyone else sees the account. The account is inserted
+	 * even if the initializer throws.
+	 * @param accountNum
+	 * @param customerId owning customer, or 0 when there is none
+	 * @param balance
+	 * @param passwordHash
+	 * @param passwordSalt salt word of the password, see {@link PasswordHash}
+	 * @param accountType
+	 * @param dailyWithdrawals
+	 * @param lastLsn sequence number of the account's last journal record
+	 * @param initializer may be null
+	 */
+	public int insert(int accountNum, int customerId, long balance, long passwordHash, long passwordSalt,
+			int accountType, long dailyWithdrawals, long lastLsn, IntConsumer initializer) {
+		if (accountNum <= EMPTY) {
+			throw new IllegalArgumentException("Invalid account number: " + accountNum);
+		}
+		if (size.getAndIncrement() >= maxSize) {
+			size.decrementAndGet();
+			throw new IllegalStateException("Account table is full (" + size.get() + " accounts)");
+		}
+		int slot = mix(accountNum) & mask;
+		while (true) {
+			int key = (int) INTS.getAcquire(keys, slot);
+			if (key == accountNum) {
+				size.decrementAndGet();
+				throw new IllegalArgumentException("Account already exists: " + accountNum);
+			}
+			if (key == EMPTY && INTS.compareAndSet(keys, slot, EMPTY, RESERVED)) {
+				break;
+			}
+			slot = (slot + 1) & mask;
+		}
+		LONGS.setVolatile(balances, slot, balance);
+		passwordHashes[slot] = passwordHash;
+		passwordSalts[slot] = passwordSalt;
+		accountTypes[slot] = accountType;
+		customerIds[slot] = customerId;
+		this.dailyWithdrawals[slot] = dailyWithdrawals;
+		lastLsns[slot] = lastLsn;
+		try {
+			if (initializer != null) {
+				initializer.accept(slot);
+			}
+		} finally {
+			INTS.setRelease(keys, slot, accountNum);
+		}
+		return slot;
+	}
+
+	/**
+	 * Account number in the slot, or {@link #EMPTY}.
+	 * @param slot
+	 */
+	public int accountNumAt(int slot) {
+		int key = (int) INTS.getAcquire(keys, slot);
+		return key == RESERVED ? EMPTY : key;
+	}
+
+	public long balanceAt(int slot) {
+		return (long) LONGS.getVolatile(balances, slot);
+	}
+
+	/**
+	 *
+	 * @param slot
+	 * @param balance
+	 */
+	public void setBalanceAt(int slot, long balance) {
+		LONGS.setVolatile(balances, slot, balance);
+	}
+
+	/**
+	 *
+	 * @param slot
+	 * @param expected
+	 * @param balance
+	 */
+	public boolean compareAndSetBalanceAt(int slot, long expected, long balance) {
+		return LONGS.compareAndSet(balances, slot, expected, balance);
+	}
+
+	/**
+	 * Today's withdrawal total, packed as described in {@link DailyWithdrawals}.
+	 * @param slot
+	 */
+	public long dailyWithdrawalsAt(int slot) {
+		return (long) LONGS.getVolatile(dailyWithdrawals, slot);
+	}
+
+	/**
+	 *
+	 * @param slot
+	 * @param packed
+	 */
+	public void setDailyWithdrawalsAt(int slot, long packed) {
+		LONGS.setVolatile(dailyWithdrawals, slot, packed);
+	}
+
+	/**
+	 *
+	 * @param slot
+	 * @param expected
+	 * @param packed
+	 */
+	public boolean compareAndSetDailyWithdrawalsAt(int slot, long expected, long packed) {
+		return LONGS.compareAndSet(dailyWithdrawals, slot, expected, packed);
+	}
+
+	/**
+	 * Marks the start of an update to the slot. Updates may overlap; a
+	 * reader's copy of the slot is consistent when no update began before
+	 * it finished and every earlier update had ended, that is when
+	 * {@link #writesBegunAt} read after the copy equals {@link #writesEndedAt}
+	 * read before it.
+	 * @param slot
+	 */
+	public void beginWrite(int slot) {
+		LONGS.getAndAdd(writesBegun, slot, 1L);
+	}
+
+	/**
+	 *
+	 * @param slot
+	 */
+	public void endWrite(int slot) {
+		LONGS.getAndAddRelease(writesEnded, slot, 1L);
+	}
+
+	public long writesBegunAt(int slot) {
+		return (long) LONGS.getVolatile(writesBegun, slot);
+	}
+
+	public long writesEndedAt(int slot) {
+		return (long) LONGS.getVolatile(writesEnded, slot);
+	}
+
+	public long passwordHashAt(int slot) {
+		return (long) LONGS.getVolatile(passwordHashes, slot);
+	}
+
+	public long passwordSaltAt(int slot) {
+		return (long) LONGS.getVolatile(passwordSalts, slot);
+	}
+
+	/**
+	 * Replaces the password. The salt and hash are two writes, so callers
+	 * that read or write them together serialize on the account.
+	 * @param slot
+	 * @param passwordSalt
+	 * @param passwordHash
+	 */
+	public void setPasswordAt(int slot, long passwordSalt, long passwordHash) {
+		LONGS.setVolatile(passwordSalts, slot, passwordSalt);
+		LONGS.setVolatile(passwordHashes, slot, passwordHash);
+	}
+
+	public int accountTypeAt(int slot) {
+		return accountTypes[slot];
+	}
+
+	public int customerIdAt(int slot) {
+		return customerIds[slot];
+	}
+
+	/**
+	 * Sequence number of the account's last journal record, 0 for none.
+	 * @param slot
+	 */
+	public long lastLsnAt(int slot) {
+		return (long) LONGS.getVolatile(lastLsns, slot);
+	}
+
+	public void setLastLsnAt(int slot, long lsn) {
+		LONGS.setVolatile(lastLsns, slot, lsn);
+	}
+
+	public long getAndSetLastLsnAt(int slot, long lsn) {
+		return (long) LONGS.getAndSet(lastLsns, slot, lsn);
+	}
+
+	public boolean hasRoom() {
+		return size.get() < maxSize;
+	}
+
+	public int size() {
+		return size.get();
+	}
+
+	public int capacity() {
+		return keys.length;
+	}
+
+	static int mix(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	static int tableSizeFor(int n) {
+		int capacity = 1;
+		while (capacity < n) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+}
@@ -0,0 +1,311 @@
+package com.bankbankatm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * The withdrawals a {@link BankServer} authorized, keyed by reference. A
+ * reference carries the terminal ID of the ATM that made it in its top
+ * bits (see {@link ATM#nextReference}), so the key is the pair of ATM and
+ * reference. An authorization is open from the moment the account is
+ * debited until its dispense confirmation or failure settles it; a
+ * failure is credited back only while the authorization is open, so it
+ * is credited once however often the ATM sends it. A confirmation for a
+ * reference the bank never authorized settles the reference all the
+ * same, so an authorization that turns up after it is refused. A transfer
+ * is recorded settled under its reference, so a transfer sent again is
+ * applied once.
+ *
+ * Every change is appended to a log file and forced before the request is
+ * answered, and the log is replayed when it is opened again; a torn record
+ * at its end is cut off. The log is written after the account, so a crash
+ * between the two can leave an account change without its entry. Entries
+ * are kept for {@link #RETENTION_MILLIS}, and at most {@code capacity} at
+ * once: a new authorization is refused while the table is full of entries
+ * younger than that. Once the log holds twice as many records as there
+ * are entries it is rewritten with only the entries, and replaced
+ * atomically.
+ */
+public class Authorizations implements Closeable {
+
+	static final long RETENTION_MILLIS = TimeUnit.DAYS.toMillis(7);
+	static final int OPEN = 1;
+	static final int SETTLED = 2;
+	static final int RECORD_BYTES = 40;
+
+	private static final int MIN_COMPACT_RECORDS = 1024;
+
+	private final Path file;
+	private final int capacity;
+	private final Map<Long, Entry> entries = new LinkedHashMap<>();
+	private final ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES);
+	private final CRC32C crc = new CRC32C();
+	private FileChannel log;
+	private long records;
+
+	/**
+	 * In-memory table, nothing is persisted.
+	 * @param capacity most entries kept at once
+	 */
+	public Authorizations(int capacity) {
+		checkCapacity(capacity);
+		this.file = null;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Opens the log, replaying the entries it holds.
+	 * @param file
+	 * @param capacity most entries kept at once
+	 */
+	public Authorizations(Path file, int capacity) throws IOException {
+		checkCapacity(capacity);
+		this.file = file;
+		this.capacity = capacity;
+		this.log = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			replay();
+		} catch (IOException | RuntimeException e) {
+			log.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * The entry of the reference, or null if it has none.
+	 * @param reference
+	 */
+	public synchronized Entry find(long reference) {
+		return entries.get(reference);
+	}
+
+	/**
+	 * Whether an authorization under the reference may be opened: the
+	 * reference is not 0, has no entry yet and there is room for one.
+	 * @param reference
+	 */
+	public synchronized boolean canOpen(long reference) {
+		return reference != 0 && !entries.containsKey(reference) && hasRoom();
+	}
+
+	/**
+	 * Records an authorization the account was debited for.
+	 * @param reference
+	 * @param accountNum
+	 * @param amount
+	 */
+	public synchronized void open(long reference, int accountNum, long amount) {
+		if (!canOpen(reference)) {
+			throw new IllegalStateException("Cannot open an authorization under reference " + reference);
+		}
+		append(reference, new Entry(accountNum, amount, OPEN, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Marks the reference settled, keeping the account and amount of its
+	 * entry if it has one. A reference without an entry is recorded only
+	 * while there is room.
+	 * @param reference
+	 * @param accountNum
+	 * @param amount
+	 */
+	public synchronized void settle(long reference, int accountNum, long amount) {
+		if (reference == 0) {
+			throw new IllegalArgumentException("Reference 0 cannot be settled");
+		}
+		Entry entry = entries.get(reference);
+		if (entry != null) {
+			append(reference, new Entry(entry.accountNum, entry.amount, SETTLED, entry.time));
+		} else if (hasRoom()) {
+			append(reference, new Entry(accountNum, amount, SETTLED, System.currentTimeMillis()));
+		}
+	}
+
+	/**
+	 * Number of entries kept.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (log != null) {
+			log.close();
+		}
+	}
+
+	/**
+	 * Reads the log into the table, cuts off a torn or damaged record at
+	 * its end and drops entries past their retention.
+	 */
+	private void replay() throws IOException {
+		long size = log.size();
+		long position = 0;
+		while (position + RECORD_BYTES <= size) {
+			record.clear();
+			while (record.hasRemaining()) {
+				if (log.read(record, position + record.position()) < 0) {
+					throw new IOException("Authorization log ended early at " + (position + record.position()));
+				}
+			}
+			crc.reset();
+			crc.update(record.array(), 0, RECORD_BYTES - Integer.BYTES);
+			if ((int) crc.getValue() != record.getInt(RECORD_BYTES - Integer.BYTES)) {
+				break;
+			}
+			record.flip();
+			long reference = record.getLong();
+			int accountNum = record.getInt();
+			int state = record.getInt();
+			long amount = record.getLong();
+			long time = record.getLong();
+			entries.put(reference, new Entry(accountNum, amount, state, time));
+			position += RECORD_BYTES;
+			records++;
+		}
+		if (position < size) {
+			log.truncate(position);
+			log.force(true);
+		}
+		expire(System.currentTimeMillis());
+	}
+
+	/**
+	 * Drops entries past their retention, oldest first; entries keep the
+	 * order they were first recorded in.
+	 */
+	private void expire(long now) {
+		Iterator<Entry> oldest = entries.values().iterator();
+		while (oldest.hasNext()) {
+			if (now - oldest.next().time < RETENTION_MILLIS) {
+				return;
+			}
+			oldest.remove();
+		}
+	}
+
+	private boolean hasRoom() {
+		if (entries.size() >= capacity) {
+			expire(System.currentTimeMillis());
+		}
+		return entries.size() < capacity;
+	}
+
+	private void append(long reference, Entry entry) {
+		if (log != null) {
+			try {
+				encode(reference, entry);
+				while (record.hasRemaining()) {
+					log.write(record, records * RECORD_BYTES + record.position());
+				}
+				log.force(false);
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot write the authorization log " + file, e);
+			}
+			records++;
+		}
+		entries.put(reference, entry);
+		if (log != null && records > MIN_COMPACT_RECORDS && records > 2L * entries.size()) {
+			compact();
+		}
+	}
+
+	/**
+	 * Rewrites the log with only the entries kept, replacing it once the
+	 * new one is complete. The old log stays in use if that fails.
+	 */
+	private void compact() {
+		expire(System.currentTimeMillis());
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			for (Map.Entry<Long, Entry> entry : entries.entrySet()) {
+				encode(entry.getKey(), entry.getValue());
+				while (record.hasRemaining()) {
+					channel.write(record);
+				}
+			}
+			channel.force(true);
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			closeQuietly(channel);
+			return;
+		}
+		closeQuietly(log);
+		log = channel;
+		records = entries.size();
+	}
+
+	private void encode(long reference, Entry entry) {
+		record.clear();
+		record.putLong(reference).putInt(entry.accountNum).putInt(entry.state).putLong(entry.amount)
+				.putLong(entry.time).putInt(0);
+		crc.reset();
+		crc.update(record.array(), 0, RECORD_BYTES - Integer.BYTES);
+		record.putInt((int) crc.getValue()).flip();
+	}
+
+	private static void closeQuietly(FileChannel channel) {
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+	}
+
+	private static void checkCapacity(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		}
+	}
+
+	/**
+	 * What the bank recorded under one reference: the account, the amount,
+	 * whether it is open or settled and when it was first recorded.
+	 */
+	public static final class Entry {
+
+		final int accountNum;
+		final long amount;
+		final int state;
+		final long time;
+
+		Entry(int accountNum, long amount, int state, long time) {
+			this.accountNum = accountNum;
+			this.amount = amount;
+			this.state = state;
+			this.time = time;
+		}
+
+		public int getAccountNum() {
+			return accountNum;
+		}
+
+		public long getAmount() {
+			return amount;
+		}
+
+		public boolean isOpen() {
+			return state == OPEN;
+		}
+	}
+
+}
@@ -0,0 +1,414 @@
+package com.bankbankatm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * Sparse time index over the journal for point-in-time balance queries.
+ * Each account's journal records are chained backwards through their
+ * prev0/prev1 links. The index keeps, for every account, one entry (time,
+ * sequence number, balance after) per {@code interval} records of that
+ * account, plus the account's last record and balance, so a query
+ * binary-searches the entries for the first one after the requested time
+ * and walks back at most {@code interval} records from it, undoing each
+ * one.
+ *
+ * The index follows the journal in order and sees each record once: it is
+ * fed the records replayed at startup and then every batch the journal
+ * makes durable, and reads the journal itself only to close a gap, such
+ * as the records between an older saved index and the checkpoint. It is
+ * written next to the checkpoint, with the sequence number it covers, and
+ * a restart loads it and continues from there; without a saved index it
+ * starts from the beginning of the journal. Record times never step back,
+ * since the journal assigns them in order.
+ *
+ * Accounts sit in an open-addressing table with the same hashing and
+ * probing as {@link AccountTable}, in parallel primitive arrays, and the
+ * table doubles when it fills up. Queries and saves hold the
+ * index's lock only to copy what they need; journal reads and file
+ * writes happen outside it.
+ */
+public class BalanceIndex {
+
+	static final long MAGIC = 0x42424154_4D424958L;
+
+	private static final int ENTRY_WORDS = 3;
+	private static final int HEADER_BYTES = 24;
+	private static final int ACCOUNT_BYTES = 32;
+	private static final int READ_RECORDS = 1024;
+	private static final int INITIAL_CAPACITY = 64;
+	private static final float LOAD_FACTOR = 0.75f;
+
+	private final int interval;
+	private int mask = INITIAL_CAPACITY - 1;
+	private int accounts;
+	private int[] accountNums = new int[INITIAL_CAPACITY];
+	private int[] sizes = new int[INITIAL_CAPACITY];
+	private long[] counts = new long[INITIAL_CAPACITY];
+	private long[] balances = new long[INITIAL_CAPACITY];
+	private long[] lastLsns = new long[INITIAL_CAPACITY];
+	private long[][] entries = new long[INITIAL_CAPACITY][];
+	private long indexedLsn;
+
+	/**
+	 * Empty index, starting from the beginning of the journal.
+	 * @param interval records of an account per index entry
+	 */
+	public BalanceIndex(int interval) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("interval must be positive: " + interval);
+		}
+		this.interval = interval;
+	}
+
+	/**
+	 * Where the index of the given checkpoint is saved.
+	 * @param checkpointFile
+	 */
+	public static Path fileFor(Path checkpointFile) {
+		return checkpointFile.resolveSibling(checkpointFile.getFileName() + ".index");
+	}
+
+	/**
+	 * Loads a saved index, or returns an empty one when the file is
+	 * missing, was written with another interval or does not check out.
+	 * @param file
+	 * @param interval
+	 */
+	public static BalanceIndex load(Path file, int interval) throws IOException {
+		BalanceIndex index = new BalanceIndex(interval);
+		if (!Files.exists(file)) {
+			return index;
+		}
+		ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+		if (data.remaining() < HEADER_BYTES + Integer.BYTES) {
+			return index;
+		}
+		CRC32C checksum = new CRC32C();
+		checksum.update(data.array(), 0, data.limit() - Integer.BYTES);
+		if ((int) checksum.getValue() != data.getInt(data.limit() - Integer.BYTES)
+				|| data.getLong() != MAGIC || data.getInt(HEADER_BYTES - Integer.BYTES * 2) != interval) {
+			return index;
+		}
+		long lsn = data.getLong();
+		data.getInt();
+		int accounts = data.getInt();
+		index.resize(AccountTable.tableSizeFor((int) Math.ceil(accounts / LOAD_FACTOR) + 1));
+		for (int i = 0; i < accounts; i++) {
+			int slot = index.claim(data.getInt());
+			int size = data.getInt();
+			index.counts[slot] = data.getLong();
+			index.balances[slot] = data.getLong();
+			index.lastLsns[slot] = data.getLong();
+			for (int entry = 0; entry < size; entry++) {
+				index.addEntry(slot, data.getLong(), data.getLong(), data.getLong());
+			}
+		}
+		index.indexedLsn = lsn;
+		return index;
+	}
+
+	/**
+	 * Writes the index, replacing the file only once the new one is
+	 * complete.
+	 * @param file
+	 */
+	public void write(Path file) throws IOException {
+		long lsn;
+		int count;
+		int[] accountNums;
+		int[] sizes;
+		long[] counts;
+		long[] balances;
+		long[] lastLsns;
+		long[][] entries;
+		synchronized (this) {
+			lsn = indexedLsn;
+			count = this.accounts;
+			accountNums = this.accountNums.clone();
+			sizes = this.sizes.clone();
+			counts = this.counts.clone();
+			balances = this.balances.clone();
+			lastLsns = this.lastLsns.clone();
+			// shares the entry arrays, whose first sizes[slot] entries never change
+			entries = this.entries.clone();
+		}
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		CRC32C checksum = new CRC32C();
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+			out.putLong(MAGIC).putLong(lsn).putInt(interval).putInt(count);
+			for (int slot = 0; slot < accountNums.length; slot++) {
+				if (accountNums[slot] == AccountTable.EMPTY) {
+					continue;
+				}
+				if (out.remaining() < ACCOUNT_BYTES) {
+					drain(channel, out, checksum);
+				}
+				out.putInt(accountNums[slot]).putInt(sizes[slot]).putLong(counts[slot]).putLong(balances[slot])
+						.putLong(lastLsns[slot]);
+				for (int i = 0; i < sizes[slot] * ENTRY_WORDS; i++) {
+					if (out.remaining() < Long.BYTES) {
+						drain(channel, out, checksum);
+					}
+					out.putLong(entries[slot][i]);
+				}
+			}
+			drain(channel, out, checksum);
+			out.putInt((int) checksum.getValue()).flip();
+			while (out.hasRemaining()) {
+				channel.write(out);
+			}
+			channel.force(true);
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Adds the record to the index if it is the next one the index has not
+	 * seen; records from before a gap are left to {@link #catchUp}.
+	 * @param record
+	 */
+	public synchronized void apply(JournalRecord record) {
+		if (record.lsn() != indexedLsn + JournalRecord.SIZE) {
+			return;
+		}
+		add(record);
+	}
+
+	/**
+	 * Reads the durable journal the index has not seen yet, taking the lock
+	 * only to add each record.
+	 * @param journal
+	 */
+	public void catchUp(Journal journal) throws IOException {
+		long from = indexedLsn();
+		if (from < journal.durableLsn()) {
+			journal.readDurable(from, ByteBuffer.allocate(JournalRecord.SIZE * READ_RECORDS), this::apply);
+		}
+	}
+
+	/**
+	 * Sequence number of the last journal record in the index.
+	 */
+	public synchronized long indexedLsn() {
+		return indexedLsn;
+	}
+
+	/**
+	 * Balance of the account just after its last record at or before the
+	 * given time. The account's records must be durable.
+	 * @param journal
+	 * @param accountNum
+	 * @param timestamp epoch milliseconds
+	 */
+	public long balanceAt(Journal journal, int accountNum, long timestamp) throws IOException {
+		catchUp(journal);
+		long lsn;
+		long balance;
+		synchronized (this) {
+			int slot = slotOf(accountNum);
+			if (slot < 0) {
+				throw new IllegalArgumentException("Account " + accountNum + " did not exist at " + timestamp);
+			}
+			int after = firstAfter(entries[slot], sizes[slot], timestamp);
+			lsn = after == sizes[slot] ? lastLsns[slot] : entries[slot][after * ENTRY_WORDS + 1];
+			balance = after == sizes[slot] ? balances[slot] : entries[slot][after * ENTRY_WORDS + 2];
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(JournalRecord.SIZE);
+		CRC32C crc = new CRC32C();
+		JournalRecord record = new JournalRecord();
+		while (lsn != 0) {
+			journal.readDurable(lsn, buffer, crc, record);
+			if (record.timestamp() <= timestamp) {
+				return balance;
+			}
+			balance = Money.subtract(balance, delta(record, accountNum));
+			lsn = previous(record, accountNum);
+		}
+		throw new IllegalArgumentException("Account " + accountNum + " did not exist at " + timestamp);
+	}
+
+	/**
+	 * Number of accounts with index entries.
+	 */
+	public synchronized int indexedAccounts() {
+		return accounts;
+	}
+
+	private void add(JournalRecord record) {
+		step(record, record.account());
+		if (record.kind() == JournalRecord.TRANSFER
+				|| record.kind() == JournalRecord.REVERSAL && record.arg1() == JournalRecord.TRANSFER) {
+			step(record, record.arg0());
+		}
+		indexedLsn = record.lsn();
+	}
+
+	/**
+	 * Moves one account forward over the record, adding an entry every
+	 * {@code interval} records.
+	 */
+	private void step(JournalRecord record, int accountNum) {
+		int slot = claim(accountNum);
+		balances[slot] = Money.add(balances[slot], delta(record, accountNum));
+		lastLsns[slot] = record.lsn();
+		if (++counts[slot] % interval == 0) {
+			addEntry(slot, record.timestamp(), record.lsn(), balances[slot]);
+		}
+	}
+
+	private void addEntry(int slot, long timestamp, long lsn, long balance) {
+		long[] data = entries[slot];
+		int size = sizes[slot];
+		if (data == null) {
+			data = new long[ENTRY_WORDS * 4];
+		} else if ((size + 1) * ENTRY_WORDS > data.length) {
+			data = Arrays.copyOf(data, data.length * 2);
+		}
+		data[size * ENTRY_WORDS] = timestamp;
+		data[size * ENTRY_WORDS + 1] = lsn;
+		data[size * ENTRY_WORDS + 2] = balance;
+		entries[slot] = data;
+		sizes[slot] = size + 1;
+	}
+
+	/**
+	 * Index of the first of the account's entries later than the time, or
+	 * size.
+	 */
+	private static int firstAfter(long[] data, int size, long timestamp) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (data[mid * ENTRY_WORDS] <= timestamp) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private int slotOf(int accountNum) {
+		int slot = AccountTable.mix(accountNum) & mask;
+		while (true) {
+			int key = accountNums[slot];
+			if (key == accountNum) {
+				return slot;
+			}
+			if (key == AccountTable.EMPTY) {
+				return -1;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * Slot of the account, adding it, and doubling the table first if it is
+	 * full, when it is new.
+	 */
+	private int claim(int accountNum) {
+		int slot = slotOf(accountNum);
+		if (slot >= 0) {
+			return slot;
+		}
+		if (accounts + 1 > accountNums.length * LOAD_FACTOR) {
+			resize(accountNums.length * 2);
+		}
+		slot = AccountTable.mix(accountNum) & mask;
+		while (accountNums[slot] != AccountTable.EMPTY) {
+			slot = (slot + 1) & mask;
+		}
+		accountNums[slot] = accountNum;
+		accounts++;
+		return slot;
+	}
+
+	/**
+	 * Moves the accounts into a table of the given capacity, a power of two,
+	 * if that is larger. A saved index is loaded into a table presized this
+	 * way: it lists accounts in slot order, and inserting them in that order
+	 * while the table doubles piles them up at its start.
+	 */
+	private void resize(int capacity) {
+		if (capacity <= accountNums.length) {
+			return;
+		}
+		int[] oldAccountNums = accountNums;
+		int[] oldSizes = sizes;
+		long[] oldCounts = counts;
+		long[] oldBalances = balances;
+		long[] oldLastLsns = lastLsns;
+		long[][] oldEntries = entries;
+		mask = capacity - 1;
+		accountNums = new int[capacity];
+		sizes = new int[capacity];
+		counts = new long[capacity];
+		balances = new long[capacity];
+		lastLsns = new long[capacity];
+		entries = new long[capacity][];
+		for (int old = 0; old < oldAccountNums.length; old++) {
+			if (oldAccountNums[old] == AccountTable.EMPTY) {
+				continue;
+			}
+			int slot = AccountTable.mix(oldAccountNums[old]) & mask;
+			while (accountNums[slot] != AccountTable.EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			accountNums[slot] = oldAccountNums[old];
+			sizes[slot] = oldSizes[old];
+			counts[slot] = oldCounts[old];
+			balances[slot] = oldBalances[old];
+			lastLsns[slot] = oldLastLsns[old];
+			entries[slot] = oldEntries[old];
+		}
+	}
+
+	/**
+	 * Signed effect of a record on the account's balance.
+	 */
+	static long delta(JournalRecord record, int accountNum) {
+		switch (record.kind()) {
+		case JournalRecord.CREATE:
+		case JournalRecord.CREDIT:
+		case JournalRecord.REFUND:
+			return record.amount();
+		case JournalRecord.DEBIT:
+		case JournalRecord.WITHDRAWAL:
+			return -record.amount();
+		case JournalRecord.TRANSFER:
+			return record.account() == accountNum ? -record.amount() : record.amount();
+		case JournalRecord.REVERSAL:
+			if (record.arg1() == JournalRecord.TRANSFER) {
+				return record.account() == accountNum ? record.amount() : -record.amount();
+			}
+			return record.arg1() == JournalRecord.CREDIT ? -record.amount() : record.amount();
+		default:
+			return 0;
+		}
+	}
+
+	private static long previous(JournalRecord record, int accountNum) {
+		return record.account() == accountNum ? record.prev0() : record.prev1();
+	}
+
+	private static void drain(FileChannel channel, ByteBuffer out, CRC32C checksum) throws IOException {
+		out.flip();
+		checksum.update(out.array(), 0, out.limit());
+		while (out.hasRemaining()) {
+			channel.write(out);
+		}
+		out.clear();
+	}
+
+}
@@ -1,7 +1,32 @@
 package com.bankbankatm;
 
+/**
+ * Balances of an account as reported by the bank, in minor units.
+ */
 public class Balances {
+
+    private long total;
+    private long available;
+
     public Balances(){
         //for running test.
     }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public long getAvailable() {
+        return available;
+    }
+
+    /**
+     *
+     * @param total
+     * @param available
+     */
+    void set(long total, long available) {
+        this.total = total;
+        this.available = available;
+    }
 }
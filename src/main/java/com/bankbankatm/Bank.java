@@ -1,4 +1,338 @@
 package com.bankbankatm;
 
-public class Bank {
-}
\ No newline at end of file
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Accounts partitioned into branches, each a {@link Branch} with its own
+ * store and journal. The branch of an account is its number
+ * modulo the number of branches: branch i only opens accounts whose numbers
+ * are equal to i modulo the branch count, so every operation is routed
+ * without a lookup. Accounts of the same customer are opened in the same
+ * branch.
+ *
+ * A transfer within a branch is one journaled operation. A transfer across
+ * branches is a debit in the sending branch that journals the receiving
+ * account, then a credit in the receiving branch that journals the
+ * debit's sequence number, then a record closing the transfer in the
+ * sending branch. A persistent bank finishes, on opening, every transfer
+ * its journals show as not closed, crediting those the receiving branch
+ * never did.
+ *
+ * A persistent bank records its branch count in its directory and refuses
+ * to open it with another count, since that would route accounts to the
+ * wrong branches.
+ */
+public class Bank implements StorageEngine {
+
+	static final String BRANCH_COUNT_FILE = "bank.branches";
+
+	/** How far a receiving branch's clock may lag the sending branch's. */
+	private static final long TRANSFER_CLOCK_SLACK_MILLIS = 60_000;
+
+	private final Branch[] branches;
+	private final AtomicInteger nextBranch = new AtomicInteger();
+	private volatile CredentialCache credentials;
+
+	/**
+	 * Bank whose branches keep their accounts in memory only.
+	 * @param branchCount
+	 * @param expectedAccountsPerBranch
+	 * @param mode
+	 */
+	public Bank(int branchCount, int expectedAccountsPerBranch, ConcurrencyMode mode) {
+		checkBranchCount(branchCount);
+		this.branches = new Branch[branchCount];
+		for (int i = 0; i < branchCount; i++) {
+			branches[i] = new Branch(i, new DatabaseProxy(expectedAccountsPerBranch, mode, branchCount, i));
+		}
+	}
+
+	/**
+	 * Opens a persistent bank. Branch i keeps its journal and checkpoint in
+	 * the directory as {@code branch-i.journal} and {@code branch-i.checkpoint}.
+	 * The branch count is recorded in the directory as {@value #BRANCH_COUNT_FILE}
+	 * and must not change between runs on it.
+	 * @param branchCount
+	 * @param expectedAccountsPerBranch
+	 * @param mode
+	 * @param directory
+	 */
+	public Bank(int branchCount, int expectedAccountsPerBranch, ConcurrencyMode mode, Path directory)
+			throws IOException {
+		checkBranchCount(branchCount);
+		checkLayout(directory, branchCount);
+		this.branches = new Branch[branchCount];
+		try {
+			for (int i = 0; i < branchCount; i++) {
+				branches[i] = new Branch(i, new DatabaseProxy(expectedAccountsPerBranch, mode, journalOf(directory, i),
+						directory.resolve("branch-" + i + ".checkpoint"), branchCount, i));
+			}
+			finishTransfers();
+		} catch (IOException | RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	public int getBranchCount() {
+		return branches.length;
+	}
+
+	/**
+	 *
+	 * @param accountNum
+	 */
+	public Branch branchOf(int accountNum) {
+		return branches[Math.floorMod(accountNum, branches.length)];
+	}
+
+	public String selectPasswordByAccountNum(int accountNum) {
+		return branchOf(accountNum).call(store -> store.selectPasswordByAccountNum(accountNum));
+	}
+
+	public boolean minusBalance(int accountNum, long amount) {
+		return branchOf(accountNum).call(store -> store.minusBalance(accountNum, amount));
+	}
+
+	public boolean withdraw(int accountNum, long amount) {
+		return branchOf(accountNum).call(store -> store.withdraw(accountNum, amount));
+	}
+
+	public int tryWithdraw(int accountNum, long amount) {
+		return branchOf(accountNum).call(store -> store.tryWithdraw(accountNum, amount));
+	}
+
+	public void returnWithdrawal(int accountNum, long amount) {
+		branchOf(accountNum).call(store -> {
+			store.returnWithdrawal(accountNum, amount);
+			return null;
+		});
+	}
+
+	/**
+	 * Sets the daily withdrawal limit of every branch.
+	 * @param limit
+	 */
+	public void setDailyWithdrawalLimit(long limit) {
+		for (Branch branch : branches) {
+			branch.call(store -> {
+				store.setDailyWithdrawalLimit(limit);
+				return null;
+			});
+		}
+	}
+
+	public void plusBalance(int accountNum, long amount) {
+		branchOf(accountNum).call(store -> {
+			store.plusBalance(accountNum, amount);
+			return null;
+		});
+	}
+
+	public long checkTheBalance(int accountNum) {
+		return branchOf(accountNum).call(store -> store.checkTheBalance(accountNum));
+	}
+
+	/**
+	 * Opens an account in the next branch in turn.
+	 * @param password
+	 * @param accountType
+	 * @param openingBalance
+	 */
+	public int createNewAccount(String password, int accountType, long openingBalance) {
+		Branch branch = branches[Math.floorMod(nextBranch.getAndIncrement(), branches.length)];
+		return branch.call(store -> store.createNewAccount(password, accountType, openingBalance));
+	}
+
+	/**
+	 * Opens an account in the customer's branch.
+	 * @param customerId
+	 * @param password
+	 * @param accountType
+	 * @param openingBalance
+	 */
+	public int createNewAccount(int customerId, String password, int accountType, long openingBalance) {
+		return branchOf(customerId).call(store -> store.createNewAccount(customerId, password, accountType,
+				openingBalance));
+	}
+
+	/**
+	 * Copies up to {@code out.length} account numbers of the customer into
+	 * {@code out}, in no particular order, and returns how many it copied.
+	 * @param customerId
+	 * @param out
+	 */
+	public int accountsOfCustomer(int customerId, int[] out) {
+		return branchOf(customerId).call(store -> store.accountsOfCustomer(customerId, out));
+	}
+
+	public boolean changePassword(int accountNum, String oldPassword, String newPassword) {
+		boolean changed = branchOf(accountNum).call(store -> store.changePassword(accountNum, oldPassword, newPassword));
+		if (changed) {
+			invalidateCredentials(accountNum);
+		}
+		return changed;
+	}
+
+	/**
+	 * The cache of password hashes in front of this engine, created on
+	 * first use and shared by everyone who asks for it.
+	 */
+	public CredentialCache getCredentials() {
+		CredentialCache cache = credentials;
+		if (cache == null) {
+			synchronized (this) {
+				cache = credentials;
+				if (cache == null) {
+					cache = new CredentialCache(this);
+					credentials = cache;
+				}
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * Moves money between two accounts, in one operation when they are in
+	 * the same branch and as a journaled debit, credit and close otherwise.
+	 * @param from
+	 * @param to
+	 * @param amount amount in minor units
+	 */
+	public boolean transfer(int from, int to, long amount) {
+		Branch source = branchOf(from);
+		Branch target = branchOf(to);
+		if (source == target) {
+			return source.call(store -> store.transfer(from, to, amount));
+		}
+		target.call(store -> store.checkTheBalance(to));
+		long debit = source.call(store -> store.transferOut(from, to, amount));
+		if (debit < 0) {
+			return false;
+		}
+		target.call(store -> {
+			store.transferIn(from, to, amount, debit);
+			return null;
+		});
+		source.call(store -> {
+			store.settleTransfer(from, debit);
+			return null;
+		});
+		return true;
+	}
+
+	/**
+	 * Credits the cross-branch transfers left open by a crash whose credit
+	 * the receiving branch does not have, and closes them all.
+	 */
+	private void finishTransfers() {
+		for (Branch source : branches) {
+			for (long debit : source.call(DatabaseProxy::openTransfers)) {
+				JournalRecord record = source.call(store -> store.recordAt(debit));
+				int from = record.account();
+				int to = record.arg1();
+				long amount = record.amount();
+				long since = record.timestamp() - TRANSFER_CLOCK_SLACK_MILLIS;
+				Branch target = branchOf(to);
+				if (!target.call(store -> store.hasTransferIn(from, to, debit, since))) {
+					target.call(store -> {
+						store.transferIn(from, to, amount, debit);
+						return null;
+					});
+				}
+				source.call(store -> {
+					store.settleTransfer(from, debit);
+					return null;
+				});
+			}
+		}
+	}
+
+	/**
+	 * Closes every branch.
+	 */
+	@Override
+	public void close() throws IOException {
+		IOException failure = null;
+		for (Branch branch : branches) {
+			if (branch == null) {
+				continue;
+			}
+			try {
+				branch.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private void invalidateCredentials(int accountNum) {
+		CredentialCache cache = credentials;
+		if (cache != null) {
+			cache.invalidate(accountNum);
+		}
+	}
+
+	/**
+	 * Checks the branch count against the one recorded in the directory,
+	 * or against the branch journals of a directory that predates the
+	 * record, and records it.
+	 */
+	private static void checkLayout(Path directory, int branchCount) throws IOException {
+		Path file = directory.resolve(BRANCH_COUNT_FILE);
+		int recorded = 0;
+		if (Files.exists(file)) {
+			ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+					// keep reading
+				}
+			}
+			if (buffer.hasRemaining()) {
+				throw new IOException("Branch count file is truncated: " + file);
+			}
+			recorded = buffer.flip().getInt();
+		} else {
+			while (Files.exists(journalOf(directory, recorded))) {
+				recorded++;
+			}
+		}
+		if (recorded != 0 && recorded != branchCount) {
+			throw new IllegalStateException("Directory " + directory + " holds " + recorded + " branches, not "
+					+ branchCount);
+		}
+		if (!Files.exists(file)) {
+			Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES).putInt(branchCount).flip();
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				channel.force(true);
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	private static Path journalOf(Path directory, int branch) {
+		return directory.resolve("branch-" + branch + ".journal");
+	}
+
+	private static void checkBranchCount(int branchCount) {
+		if (branchCount <= 0) {
+			throw new IllegalArgumentException("branchCount must be positive: " + branchCount);
+		}
+	}
+
+}
@@ -0,0 +1,359 @@
+package com.bankbankatm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bank end of the {@link NetworkToBank} protocol, serving ATM requests from
+ * a {@link StorageEngine} on a single selector thread. Requests are read
+ * in place through a {@link WireMessage} flyweight. Requests of a
+ * connection are answered in the order they arrive. An authorization
+ * debits the account at once, within the daily withdrawal limit, and is
+ * recorded open in the server's {@link Authorizations} under its
+ * reference. A dispense failure credits the authorized amount back and
+ * returns it to the daily allowance only while the authorization is open,
+ * and a dispense confirmation changes nothing; either settles it, so a
+ * confirmation the ATM sends again is harmless. A transfer debits and
+ * credits its two accounts together, once per reference. Requests that
+ * need a reference are refused without one.
+ * Every response reports the account's balance after the request, as
+ * both its total and available balance; a batch of confirmations is
+ * answered with a status for each.
+ */
+public class BankServer implements Closeable {
+
+	public static final int DEFAULT_AUTHORIZATIONS = 1 << 20;
+
+	private static final int BUFFER_BYTES = 1 << 16;
+
+	private final StorageEngine accounts;
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private final Thread thread;
+	private final LongAdder requests = new LongAdder();
+	private final Authorizations authorizations;
+	private volatile boolean open = true;
+
+	/**
+	 * Server whose authorizations are kept in memory only.
+	 * @param accounts
+	 * @param address port 0 picks a free port
+	 */
+	public BankServer(StorageEngine accounts, InetSocketAddress address) throws IOException {
+		this(accounts, address, new Authorizations(DEFAULT_AUTHORIZATIONS));
+	}
+
+	/**
+	 *
+	 * @param accounts
+	 * @param address port 0 picks a free port
+	 * @param authorizationsFile log of the authorizations, kept across restarts
+	 */
+	public BankServer(StorageEngine accounts, InetSocketAddress address, Path authorizationsFile)
+			throws IOException {
+		this(accounts, address, new Authorizations(authorizationsFile, DEFAULT_AUTHORIZATIONS));
+	}
+
+	private BankServer(StorageEngine accounts, InetSocketAddress address, Authorizations authorizations)
+			throws IOException {
+		this.accounts = accounts;
+		this.authorizations = authorizations;
+		try {
+			this.selector = Selector.open();
+		} catch (IOException e) {
+			authorizations.close();
+			throw e;
+		}
+		try {
+			this.server = ServerSocketChannel.open();
+		} catch (IOException e) {
+			selector.close();
+			authorizations.close();
+			throw e;
+		}
+		try {
+			server.bind(address);
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			selector.close();
+			server.close();
+			authorizations.close();
+			throw e;
+		}
+		this.thread = new Thread(this::run, "bank-server");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	public long getRequestCount() {
+		return requests.sum();
+	}
+
+	@Override
+	public void close() throws IOException {
+		open = false;
+		selector.wakeup();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		authorizations.close();
+	}
+
+	private void run() {
+		try {
+			while (open) {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid() && key.isAcceptable()) {
+						accept();
+					} else if (key.isValid()) {
+						serve(key);
+					}
+				}
+			}
+		} catch (IOException e) {
+			open = false;
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				closeQuietly(key);
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel client;
+		while ((client = server.accept()) != null) {
+			client.configureBlocking(false);
+			client.register(selector, SelectionKey.OP_READ, new Client());
+		}
+	}
+
+	/**
+	 * Reads what the client sent, answers every whole request as long as
+	 * there is room for the response, and writes the responses.
+	 */
+	private void serve(SelectionKey key) {
+		SocketChannel channel = (SocketChannel) key.channel();
+		Client client = (Client) key.attachment();
+		try {
+			if (key.isReadable() && channel.read(client.in) < 0) {
+				closeQuietly(key);
+				return;
+			}
+			client.in.flip();
+			boolean blocked = false;
+			while (client.in.remaining() >= Integer.BYTES) {
+				int length = client.in.getInt(client.in.position());
+				int count = (length - Long.BYTES) / WireMessage.SIZE;
+				if (count < 1 || count > NetworkToBank.MAX_BATCH || length != Long.BYTES + count * WireMessage.SIZE) {
+					throw new IOException("Invalid request frame of " + length + " bytes");
+				}
+				int answerBytes = count == 1 ? NetworkToBank.RESPONSE_BYTES : Integer.BYTES + Long.BYTES + count;
+				if (client.in.remaining() < Integer.BYTES + length) {
+					break;
+				}
+				if (client.out.remaining() < answerBytes) {
+					blocked = true;
+					break;
+				}
+				client.in.getInt();
+				long id = client.in.getLong();
+				if (count == 1) {
+					answer(id, read(client), client.out);
+				} else {
+					client.out.putInt(answerBytes - Integer.BYTES).putLong(id);
+					for (int i = 0; i < count; i++) {
+						client.out.put(settle(read(client)) ? NetworkToBank.SUCCESS : NetworkToBank.FAILURE);
+					}
+				}
+			}
+			client.in.compact();
+			client.out.flip();
+			channel.write(client.out);
+			client.out.compact();
+			boolean pending = client.out.position() > 0 || blocked;
+			key.interestOps(SelectionKey.OP_READ | (pending ? SelectionKey.OP_WRITE : 0));
+		} catch (IOException | RuntimeException e) {
+			closeQuietly(key);
+		}
+	}
+
+	/**
+	 * Points the client's flyweight at the next message and steps past it.
+	 */
+	private static WireMessage read(Client client) throws IOException {
+		WireMessage message = client.message.wrap(client.in, client.in.position());
+		if (!message.isValid()) {
+			throw new IOException("Not a version " + WireMessage.VERSION + " message");
+		}
+		client.in.position(client.in.position() + WireMessage.SIZE);
+		return message;
+	}
+
+	/**
+	 * Settles one confirmation of a batch; anything else in a batch fails.
+	 */
+	private boolean settle(WireMessage message) {
+		requests.increment();
+		if (message.type() != Message.DISPENSED && message.type() != Message.DISPENSE_FAILED) {
+			return false;
+		}
+		try {
+			return apply(message) == NetworkToBank.SUCCESS;
+		} catch (IllegalArgumentException | IllegalStateException e) {
+			return false;
+		}
+	}
+
+	private void answer(long id, WireMessage message, ByteBuffer out) {
+		requests.increment();
+		int accountNum = message.account();
+		byte status;
+		long balance = 0;
+		try {
+			status = apply(message);
+			balance = accounts.checkTheBalance(accountNum);
+		} catch (IllegalArgumentException | IllegalStateException e) {
+			status = NetworkToBank.FAILURE;
+		}
+		out.putInt(NetworkToBank.RESPONSE_BYTES - Integer.BYTES).putLong(id).put(status).putLong(balance)
+				.putLong(balance);
+	}
+
+	/**
+	 * Applies the request and returns the status byte to answer with.
+	 */
+	private byte apply(WireMessage message) {
+		int accountNum = message.account();
+		long amount = message.amount();
+		long reference = message.reference();
+		switch (message.type()) {
+		case Message.BALANCE:
+			accounts.checkTheBalance(accountNum);
+			return NetworkToBank.SUCCESS;
+		case Message.AUTHORIZE:
+			return authorize(accountNum, amount, reference);
+		case Message.DISPENSED:
+		case Message.DISPENSE_FAILED:
+			return status(settleDispense(message.type(), accountNum, amount, reference));
+		case Message.DEBIT:
+			return status(accounts.minusBalance(accountNum, amount));
+		case Message.CREDIT:
+			accounts.plusBalance(accountNum, amount);
+			return NetworkToBank.SUCCESS;
+		case Message.TRANSFER:
+			return status(transfer(accountNum, message.target(), amount, reference));
+		default:
+			return NetworkToBank.FAILURE;
+		}
+	}
+
+	private static byte status(boolean succeeded) {
+		return succeeded ? NetworkToBank.SUCCESS : NetworkToBank.FAILURE;
+	}
+
+	/**
+	 * Debits the withdrawal and opens its authorization, answering a
+	 * refusal over the daily limit with its own status.
+	 */
+	private byte authorize(int accountNum, long amount, long reference) {
+		if (!authorizations.canOpen(reference)) {
+			return NetworkToBank.FAILURE;
+		}
+		int withdrawal = accounts.tryWithdraw(accountNum, amount);
+		if (withdrawal != StorageEngine.WITHDRAWN) {
+			return withdrawal == StorageEngine.DAILY_LIMIT_EXCEEDED ? NetworkToBank.DAILY_LIMIT_EXCEEDED
+					: NetworkToBank.FAILURE;
+		}
+		authorizations.open(reference, accountNum, amount);
+		return NetworkToBank.SUCCESS;
+	}
+
+	/**
+	 * Settles the authorization of a dispense confirmation or failure,
+	 * crediting a failure back if the authorization is still open. A
+	 * reference the bank has no entry for is settled without a credit.
+	 */
+	private boolean settleDispense(int type, int accountNum, long amount, long reference) {
+		if (reference == 0) {
+			return false;
+		}
+		Authorizations.Entry entry = authorizations.find(reference);
+		if (entry != null && entry.getAccountNum() != accountNum) {
+			return false;
+		}
+		if (type == Message.DISPENSE_FAILED && entry != null && entry.isOpen()) {
+			accounts.returnWithdrawal(accountNum, entry.getAmount());
+		} else {
+			accounts.checkTheBalance(accountNum);
+		}
+		if (entry == null || entry.isOpen()) {
+			authorizations.settle(reference, accountNum, amount);
+		}
+		return true;
+	}
+
+	/**
+	 * Moves the amount unless a transfer under the reference was made
+	 * already.
+	 */
+	private boolean transfer(int from, int to, long amount, long reference) {
+		if (reference == 0) {
+			return false;
+		}
+		Authorizations.Entry entry = authorizations.find(reference);
+		if (entry != null) {
+			accounts.checkTheBalance(from);
+			return entry.getAccountNum() == from;
+		}
+		if (!authorizations.canOpen(reference) || !accounts.transfer(from, to, amount)) {
+			return false;
+		}
+		authorizations.settle(reference, from, amount);
+		return true;
+	}
+
+	private static void closeQuietly(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			// already gone
+		}
+	}
+
+	/**
+	 * Buffers of one connection.
+	 */
+	private static final class Client {
+
+		final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_BYTES);
+		final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_BYTES);
+		final WireMessage message = new WireMessage();
+	}
+
+}
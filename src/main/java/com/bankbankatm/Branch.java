@@ -1,4 +1,49 @@
 package com.bankbankatm;
 
-public class Branch {
-}
\ No newline at end of file
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.function.Function;
+
+/**
+ * One shard of the bank's accounts: its own store, with its own journal
+ * when persistent. Operations run on the caller's thread under the
+ * store's lock stripes, so operations on different accounts of a branch
+ * run in parallel and their journal appends share group commits, and
+ * branches share nothing.
+ */
+public class Branch implements Closeable {
+
+	private final int id;
+	private final DatabaseProxy store;
+
+	/**
+	 *
+	 * @param id
+	 * @param store accounts of this branch only
+	 */
+	public Branch(int id, DatabaseProxy store) {
+		this.id = id;
+		this.store = store;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Runs the operation on the branch's store, rethrowing what it throws.
+	 * @param operation
+	 */
+	public <T> T call(Function<DatabaseProxy, T> operation) {
+		return operation.apply(store);
+	}
+
+	/**
+	 * Closes the store; operations still running on it fail.
+	 */
+	@Override
+	public void close() throws IOException {
+		store.close();
+	}
+
+}
@@ -1,26 +1,26 @@
 package com.bankbankatm;
 
+import java.util.Objects;
+
 public class CashDispenser {
 
 	private Log log;
-	private Money cashOnHand;
+	private final MutableMoney cashOnHand = new MutableMoney();
 
 	/**
 	 * 
 	 * @param log
 	 */
 	public CashDispenser(Log log) {
-		// TODO - implement CashDispenser.CashDispenser
-		throw new UnsupportedOperationException();
+		this.log = log;
 	}
 
 	/**
 	 * 
 	 * @param initialCash
 	 */
-	public void setInitialCash(Money initialCash) {
-		// TODO - implement CashDispenser.setInitialCash
-		throw new UnsupportedOperationException();
+	public synchronized void setInitialCash(Money initialCash) {
+		cashOnHand.set(initialCash);
 	}
 
 	/**
@@ -28,8 +28,15 @@ public class CashDispenser {
 	 * @param amount
 	 */
 	public boolean checkCashOnHand(Money amount) {
-		// TODO - implement CashDispenser.checkCashOnHand
-		throw new UnsupportedOperationException();
+		return checkCashOnHand(Objects.requireNonNull(amount, "amount is required").getMinorUnits());
+	}
+
+	/**
+	 *
+	 * @param amount amount in minor units
+	 */
+	public synchronized boolean checkCashOnHand(long amount) {
+		return !cashOnHand.isLessThan(amount);
 	}
 
 	/**
@@ -37,8 +44,21 @@ public class CashDispenser {
 	 * @param amount
 	 */
 	public void dispenseCash(Money amount) {
-		// TODO - implement CashDispenser.dispenseCash
-		throw new UnsupportedOperationException();
+		dispenseCash(Objects.requireNonNull(amount, "amount is required").getMinorUnits());
+	}
+
+	/**
+	 *
+	 * @param amount amount in minor units
+	 */
+	public synchronized void dispenseCash(long amount) {
+		if (cashOnHand.isLessThan(amount)) {
+			throw new IllegalStateException("Not enough cash on hand to dispense " + Money.format(amount));
+		}
+		cashOnHand.subtract(amount);
+		if (log != null) {
+			log.logCashDispensed(amount);
+		}
 	}
 
 	public void putCash() {
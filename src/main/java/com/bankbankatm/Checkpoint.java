@@ -0,0 +1,107 @@
+package com.bankbankatm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Checkpoint file of the account table: the state of every account as of a
+ * journal sequence number. Recovery loads the checkpoint and replays only
+ * the journal after that sequence number. The file uses the fixed layout
+ * described in {@link MappedSnapshot}, so it can also be served directly
+ * from mapped pages.
+ *
+ * A new checkpoint is written next to the old one and moved over it, so a
+ * crash while checkpointing leaves the previous checkpoint intact.
+ */
+public final class Checkpoint {
+
+	private static final int BUFFER_BYTES = MappedSnapshot.SLOT_BYTES * 65536;
+
+	private Checkpoint() {
+	}
+
+	/**
+	 * Writes all slots of the table as of the given journal sequence number.
+	 * @param file
+	 * @param table
+	 * @param lsn
+	 */
+	public static void write(Path file, AccountTable table, long lsn) throws IOException {
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+			buffer.position(MappedSnapshot.HEADER_BYTES);
+			int maxAccountNum = 0;
+			for (int slot = 0; slot < table.capacity(); slot++) {
+				if (buffer.remaining() < MappedSnapshot.SLOT_BYTES) {
+					drain(channel, buffer);
+				}
+				int accountNum = table.accountNumAt(slot);
+				if (accountNum == AccountTable.EMPTY) {
+					buffer.putInt(0).putInt(0).putLong(0).putLong(0).putLong(0).putInt(0).putInt(0).putLong(0).putLong(0);
+					continue;
+				}
+				maxAccountNum = Math.max(maxAccountNum, accountNum);
+				buffer.putInt(accountNum)
+						.putInt(table.accountTypeAt(slot))
+						.putLong(table.balanceAt(slot))
+						.putLong(table.passwordHashAt(slot))
+						.putLong(table.dailyWithdrawalsAt(slot))
+						.putInt(table.customerIdAt(slot))
+						.putInt(0)
+						.putLong(table.lastLsnAt(slot))
+						.putLong(table.passwordSaltAt(slot));
+			}
+			drain(channel, buffer);
+			buffer.putLong(MappedSnapshot.MAGIC)
+					.putLong(lsn)
+					.putInt(table.capacity())
+					.putInt(table.size())
+					.putInt(maxAccountNum)
+					.putInt(0)
+					.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer, buffer.position());
+			}
+			channel.force(true);
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Loads every account of the checkpoint into an empty table and returns
+	 * its journal sequence number, or 0 when there is no checkpoint yet.
+	 * @param file
+	 * @param table
+	 */
+	public static long load(Path file, AccountTable table) throws IOException {
+		if (!Files.exists(file)) {
+			return 0;
+		}
+		MappedSnapshot snapshot = MappedSnapshot.open(file);
+		for (int slot = 0; slot < snapshot.capacity(); slot++) {
+			int accountNum = snapshot.accountNumAt(slot);
+			if (accountNum != AccountTable.EMPTY) {
+				table.insert(accountNum, snapshot.customerIdAt(slot), snapshot.balanceAt(slot),
+						snapshot.passwordHashAt(slot), snapshot.passwordSaltAt(slot), snapshot.accountTypeAt(slot),
+						snapshot.dailyWithdrawalsAt(slot), snapshot.lastLsnAt(slot));
+			}
+		}
+		return snapshot.lsn();
+	}
+
+	private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+}
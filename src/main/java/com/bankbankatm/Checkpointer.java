@@ -0,0 +1,146 @@
+package com.bankbankatm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Writes periodic checkpoints without stopping writers. The checkpointer
+ * keeps its own copy of the account table and brings it forward by reading
+ * the durable part of the journal, then writes that copy. Each checkpoint
+ * is therefore exactly the state at one journal sequence number, whatever
+ * the live table is doing meanwhile. The copy is first built with a
+ * parallel {@link LedgerProjection} rebuild. When given a
+ * {@link BalanceIndex}, the checkpointer saves it alongside each
+ * checkpoint.
+ */
+public class Checkpointer implements Closeable {
+
+	private final Journal journal;
+	private final Path journalFile;
+	private final Path checkpointFile;
+	private final FileChannel reader;
+	private final int expectedAccounts;
+	private final BalanceIndex index;
+	private final LongSupplier horizon;
+	private final ScheduledExecutorService scheduler;
+	private AccountTable shadow;
+	private long lsn;
+	private long written;
+	private volatile IOException lastFailure;
+
+	/**
+	 *
+	 * @param journal
+	 * @param journalFile
+	 * @param checkpointFile
+	 * @param expectedAccounts
+	 */
+	public Checkpointer(Journal journal, Path journalFile, Path checkpointFile, int expectedAccounts) throws IOException {
+		this(journal, journalFile, checkpointFile, expectedAccounts, null);
+	}
+
+	/**
+	 *
+	 * @param journal
+	 * @param journalFile
+	 * @param checkpointFile
+	 * @param expectedAccounts
+	 * @param index saved to {@link BalanceIndex#fileFor} with each checkpoint, may be null
+	 */
+	public Checkpointer(Journal journal, Path journalFile, Path checkpointFile, int expectedAccounts,
+			BalanceIndex index) throws IOException {
+		this(journal, journalFile, checkpointFile, expectedAccounts, index, journal::durableLsn);
+	}
+
+	/**
+	 *
+	 * @param journal
+	 * @param journalFile
+	 * @param checkpointFile
+	 * @param expectedAccounts
+	 * @param index saved to {@link BalanceIndex#fileFor} with each checkpoint, may be null
+	 * @param horizon sequence number no checkpoint may pass, at most the durable one
+	 */
+	public Checkpointer(Journal journal, Path journalFile, Path checkpointFile, int expectedAccounts,
+			BalanceIndex index, LongSupplier horizon) throws IOException {
+		this.journal = journal;
+		this.journalFile = journalFile;
+		this.checkpointFile = checkpointFile;
+		this.reader = FileChannel.open(journalFile, StandardOpenOption.READ);
+		this.expectedAccounts = expectedAccounts;
+		this.index = index;
+		this.horizon = horizon;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "checkpointer");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 *
+	 * @param interval
+	 * @param unit
+	 */
+	public void start(long interval, TimeUnit unit) {
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				checkpoint();
+				lastFailure = null;
+			} catch (IOException e) {
+				lastFailure = e;
+			}
+		}, interval, interval, unit);
+	}
+
+	/**
+	 * Writes a checkpoint of everything durable so far, up to the horizon,
+	 * and returns its journal sequence number.
+	 */
+	public synchronized long checkpoint() throws IOException {
+		long durable = horizon.getAsLong();
+		if (shadow == null) {
+			LedgerProjection projection = LedgerProjection.rebuild(journalFile, checkpointFile, expectedAccounts,
+					Runtime.getRuntime().availableProcessors(), durable);
+			shadow = projection.accounts();
+			lsn = projection.lsn();
+		} else if (durable > lsn) {
+			lsn = Journal.read(reader, lsn, durable, record -> DatabaseProxy.apply(shadow, record));
+		}
+		if (lsn > written) {
+			Checkpoint.write(checkpointFile, shadow, lsn);
+			written = lsn;
+			if (index != null) {
+				index.catchUp(journal);
+				index.write(BalanceIndex.fileFor(checkpointFile));
+			}
+		}
+		return lsn;
+	}
+
+	/**
+	 * The error of the last scheduled checkpoint, or null if it succeeded.
+	 */
+	public IOException getLastFailure() {
+		return lastFailure;
+	}
+
+	@Override
+	public void close() throws IOException {
+		scheduler.shutdownNow();
+		try {
+			scheduler.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		reader.close();
+	}
+
+}
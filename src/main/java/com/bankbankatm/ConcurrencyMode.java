@@ -0,0 +1,24 @@
+package com.bankbankatm;
+
+/**
+ * How DatabaseProxy serializes balance updates on the same account.
+ */
+public enum ConcurrencyMode {
+	/** Read-check-write under the account's lock stripe. */
+	STRIPED_LOCK,
+	/** Compare-and-set retry loop on the balance, no locks. */
+	OPTIMISTIC;
+
+	public static final String PROPERTY = "bankbankatm.concurrency";
+
+	/**
+	 * Reads the mode from the {@value #PROPERTY} system property, defaulting to STRIPED_LOCK.
+	 */
+	public static ConcurrencyMode fromSystemProperty() {
+		String value = System.getProperty(PROPERTY);
+		if (value == null || value.isEmpty()) {
+			return STRIPED_LOCK;
+		}
+		return valueOf(value.trim().toUpperCase());
+	}
+}
@@ -0,0 +1,398 @@
+package com.bankbankatm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Groups the dispense confirmations and failures of a {@link NetworkToBank}
+ * into batch frames, so a busy ATM sends one small round trip per batch
+ * rather than one per withdrawal. A batch goes out once it holds the
+ * batch size or once its oldest confirmation has waited the batch window,
+ * whichever comes first, and the bank acknowledges each confirmation in it.
+ *
+ * Confirmations are written to an outbox file and forced before they are
+ * sent, and an entry the bank acknowledges with SUCCESS has its version
+ * byte cleared. The confirmations of a batch the bank does not answer,
+ * and those it answers with FAILURE, are sent again after a pause, and
+ * the entries left in the outbox are sent again when the batcher is reopened,
+ * so every confirmation reaches the bank at least once; the bank settles
+ * a confirmation only once per reference. The outbox is emptied whenever
+ * every entry in it is acknowledged.
+ *
+ * A single daemon thread owns the outbox: it cuts batches, writes them and
+ * settles the acknowledgements the connection hands back to it, so the
+ * outbox and its counts need no lock.
+ */
+public class ConfirmationBatcher implements Closeable {
+
+	static final long RETRY_MILLIS = 1000;
+
+	private static final byte[] CLEARED = new byte[1];
+
+	private final NetworkToBank network;
+	private final FileChannel outbox;
+	private final int maxBatch;
+	private final long windowNanos;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition ready = lock.newCondition();
+	private final Deque<Item> queue = new ArrayDeque<>();
+	private final Queue<Settlement> settlements = new ConcurrentLinkedQueue<>();
+	private final LongAdder batches = new LongAdder();
+	private final Thread thread;
+	private long end;
+	private int outstanding;
+	private int inFlight;
+	private volatile boolean closed;
+	private volatile Exception lastFailure;
+
+	/**
+	 * Opens the outbox, queueing the confirmations it still holds.
+	 * @param network
+	 * @param outboxFile
+	 * @param maxBatch most confirmations in one frame
+	 * @param window how long a confirmation may wait for others
+	 * @param unit
+	 */
+	public ConfirmationBatcher(NetworkToBank network, Path outboxFile, int maxBatch, long window, TimeUnit unit)
+			throws IOException {
+		if (maxBatch <= 0 || maxBatch > NetworkToBank.MAX_BATCH) {
+			throw new IllegalArgumentException("maxBatch out of range: " + maxBatch);
+		}
+		if (window < 0) {
+			throw new IllegalArgumentException("window must not be negative: " + window);
+		}
+		this.network = network;
+		this.maxBatch = maxBatch;
+		this.windowNanos = unit.toNanos(window);
+		this.outbox = FileChannel.open(outboxFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			recover();
+		} catch (IOException | RuntimeException e) {
+			outbox.close();
+			throw e;
+		}
+		this.thread = new Thread(this::run, "confirmations");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queues a confirmation. The future completes with SUCCESS once the
+	 * bank has acknowledged it, however many attempts that takes.
+	 * @param message a DISPENSED or DISPENSE_FAILED message
+	 */
+	public CompletableFuture<Status> add(Message message) {
+		if (message.getType() != Message.DISPENSED && message.getType() != Message.DISPENSE_FAILED) {
+			throw new IllegalArgumentException("Not a dispense confirmation: " + message.getType());
+		}
+		Item item = new Item(message, -1);
+		lock.lock();
+		try {
+			if (closed) {
+				throw new IllegalStateException("Confirmation batcher is closed");
+			}
+			queue.addLast(item);
+			if (queue.size() == 1 || queue.size() >= maxBatch) {
+				ready.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+		return item.acknowledged;
+	}
+
+	/**
+	 * Number of confirmations queued or waiting for the bank's acknowledgement.
+	 */
+	public int getPendingCount() {
+		lock.lock();
+		try {
+			return queue.size() + inFlight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Number of frames sent, retries included.
+	 */
+	public long getBatchCount() {
+		return batches.sum();
+	}
+
+	/**
+	 * The error that last failed a batch or the outbox, or null if none did.
+	 */
+	public Exception getLastFailure() {
+		return lastFailure;
+	}
+
+	/**
+	 * Stops sending; confirmations not yet acknowledged stay in the outbox
+	 * for the next batcher opened on it.
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			closed = true;
+			ready.signal();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		outbox.close();
+	}
+
+	/**
+	 * Queues the entries of the outbox that were never acknowledged and
+	 * cuts off a torn entry at its end.
+	 */
+	private void recover() throws IOException {
+		long size = outbox.size() - outbox.size() % WireMessage.SIZE;
+		ByteBuffer buffer = ByteBuffer.allocate(WireMessage.SIZE * 1024);
+		WireMessage entry = new WireMessage();
+		for (long position = 0; position < size; ) {
+			buffer.clear().limit((int) Math.min(buffer.capacity(), size - position));
+			while (buffer.hasRemaining()) {
+				if (outbox.read(buffer, position + buffer.position()) < 0) {
+					throw new IOException("Outbox ended early at " + (position + buffer.position()));
+				}
+			}
+			for (int offset = 0; offset < buffer.limit(); offset += WireMessage.SIZE) {
+				if (entry.wrap(buffer, offset).isValid()) {
+					queue.addLast(new Item(entry.toMessage(), position + offset));
+					outstanding++;
+				}
+			}
+			position += buffer.limit();
+		}
+		end = outstanding == 0 ? 0 : size;
+		if (end < outbox.size()) {
+			outbox.truncate(end);
+			outbox.force(true);
+		}
+	}
+
+	private void run() {
+		while (true) {
+			settle();
+			List<Item> batch;
+			try {
+				batch = nextBatch();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (batch == null) {
+				return;
+			}
+			if (!batch.isEmpty()) {
+				send(batch);
+			}
+		}
+	}
+
+	/**
+	 * Waits until a batch is due, or acknowledgements are waiting to be
+	 * settled, and takes the batch; returns an empty batch for the latter
+	 * and null once closed.
+	 */
+	private List<Item> nextBatch() throws InterruptedException {
+		lock.lock();
+		try {
+			while (!closed) {
+				if (!settlements.isEmpty()) {
+					return List.of();
+				}
+				if (queue.isEmpty()) {
+					ready.await();
+					continue;
+				}
+				long wait = queue.peekFirst().queuedAt + windowNanos - System.nanoTime();
+				if (queue.size() >= maxBatch || wait <= 0) {
+					List<Item> batch = new ArrayList<>(Math.min(queue.size(), maxBatch));
+					while (batch.size() < maxBatch && !queue.isEmpty()) {
+						batch.add(queue.pollFirst());
+					}
+					inFlight += batch.size();
+					return batch;
+				}
+				ready.awaitNanos(wait);
+			}
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes the batch's new entries to the outbox, forces them, and hands
+	 * the batch to the connection. When the outbox cannot be written the
+	 * batch is still sent, without the guarantee.
+	 */
+	private void send(List<Item> batch) {
+		List<Message> messages = new ArrayList<>(batch.size());
+		List<Item> unwritten = new ArrayList<>();
+		for (Item item : batch) {
+			messages.add(item.message);
+			if (item.position < 0) {
+				unwritten.add(item);
+			}
+		}
+		if (!unwritten.isEmpty()) {
+			write(unwritten);
+		}
+		batches.increment();
+		network.sendBatch(messages).whenComplete((statuses, error) -> {
+			settlements.add(new Settlement(batch, statuses));
+			if (error != null) {
+				lastFailure = error instanceof Exception ? (Exception) error : new IOException(error);
+			}
+			lock.lock();
+			try {
+				ready.signal();
+			} finally {
+				lock.unlock();
+			}
+		});
+	}
+
+	private void write(List<Item> items) {
+		ByteBuffer buffer = ByteBuffer.allocate(WireMessage.SIZE * items.size());
+		for (Item item : items) {
+			item.message.encode(buffer);
+		}
+		buffer.flip();
+		try {
+			while (buffer.hasRemaining()) {
+				outbox.write(buffer, end + buffer.position());
+			}
+			outbox.force(false);
+		} catch (IOException e) {
+			lastFailure = e;
+			return;
+		}
+		for (int i = 0; i < items.size(); i++) {
+			items.get(i).position = end + (long) i * WireMessage.SIZE;
+		}
+		end += buffer.limit();
+		outstanding += items.size();
+	}
+
+	/**
+	 * Marks acknowledged confirmations in the outbox and completes their
+	 * futures; queues the confirmations of a failed batch, and those the
+	 * bank refused, to be sent again after a pause. A confirmation waiting
+	 * for that counts as in flight until it is queued again.
+	 */
+	private void settle() {
+		Settlement settlement;
+		while ((settlement = settlements.poll()) != null) {
+			List<Item> retry = settlement.statuses == null ? settlement.batch : new ArrayList<>();
+			if (settlement.statuses != null) {
+				for (int i = 0; i < settlement.batch.size(); i++) {
+					Item item = settlement.batch.get(i);
+					if (settlement.statuses[i] != NetworkToBank.SUCCESS) {
+						retry.add(item);
+						continue;
+					}
+					if (item.position >= 0) {
+						try {
+							outbox.write(ByteBuffer.wrap(CLEARED), item.position);
+						} catch (IOException e) {
+							lastFailure = e;
+						}
+						outstanding--;
+					}
+					item.acknowledged.complete(Status.SUCCESS);
+				}
+			}
+			if (!retry.isEmpty()) {
+				TimerWheel.shared().schedule(() -> requeue(retry), RETRY_MILLIS, TimeUnit.MILLISECONDS);
+			}
+			lock.lock();
+			try {
+				inFlight -= settlement.batch.size() - retry.size();
+			} finally {
+				lock.unlock();
+			}
+			if (outstanding == 0 && end > 0) {
+				try {
+					outbox.truncate(0);
+					end = 0;
+				} catch (IOException e) {
+					lastFailure = e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Puts confirmations to be sent again back at the head of the queue,
+	 * where they are due at once.
+	 */
+	private void requeue(List<Item> batch) {
+		lock.lock();
+		try {
+			inFlight -= batch.size();
+			for (int i = batch.size() - 1; i >= 0; i--) {
+				queue.addFirst(batch.get(i));
+			}
+			ready.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * A confirmation and where it sits in the outbox, -1 until it is written.
+	 */
+	private static final class Item {
+
+		final Message message;
+		final long queuedAt = System.nanoTime();
+		final CompletableFuture<Status> acknowledged = new CompletableFuture<>();
+		long position;
+
+		Item(Message message, long position) {
+			this.message = message;
+			this.position = position;
+		}
+	}
+
+	/**
+	 * The bank's answer to a batch: one status per confirmation, or null
+	 * when the batch failed.
+	 */
+	private static final class Settlement {
+
+		final List<Item> batch;
+		final byte[] statuses;
+
+		Settlement(List<Item> batch, byte[] statuses) {
+			this.batch = batch;
+			this.statuses = statuses;
+		}
+	}
+
+}
@@ -0,0 +1,249 @@
+package com.bankbankatm;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Bounded read-through cache of password hashes in front of a
+ * {@link StorageEngine}. Entries live in sets of {@value #WAYS} ways chosen
+ * by hashing the account number, in parallel arrays, and expire a fixed
+ * time after they were loaded. A full set evicts the entry closest to
+ * expiry, which with a fixed time to live is the oldest one.
+ *
+ * Hits take no lock: a set is read under an optimistic stamp that is
+ * validated afterwards, and only a read that raced a writer retries under
+ * the read lock. Misses load from the engine outside any lock.
+ *
+ * Each engine owns one cache, returned by
+ * {@link StorageEngine#getCredentials}, and invalidates it itself after
+ * every password change, whichever path the change takes; the ATMs and
+ * PIN verifiers of a bank all read through that one cache.
+ */
+public class CredentialCache {
+
+	static final int DEFAULT_ENTRIES = 1 << 16;
+	static final long DEFAULT_TTL_SECONDS = 300;
+
+	private static final int WAYS = 4;
+	private static final int MAX_LOCKS = 1024;
+
+	private final StorageEngine source;
+	private final long ttlNanos;
+	private final int setMask;
+	private final int[] accountNums;
+	private final String[] passwords;
+	private final long[] expiresAt;
+	private final long[] generations;
+	private final StampedLock[] locks;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder expirations = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	/**
+	 * Cache of the default size and time to live.
+	 * @param source
+	 */
+	public CredentialCache(StorageEngine source) {
+		this(source, DEFAULT_ENTRIES, DEFAULT_TTL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 *
+	 * @param source
+	 * @param maxEntries rounded up to a power of two
+	 * @param ttl
+	 * @param unit
+	 */
+	public CredentialCache(StorageEngine source, int maxEntries, long ttl, TimeUnit unit) {
+		if (maxEntries <= 0 || ttl <= 0) {
+			throw new IllegalArgumentException("maxEntries and ttl must be positive");
+		}
+		int sets = AccountTable.tableSizeFor(Math.max(1, (maxEntries + WAYS - 1) / WAYS));
+		this.source = source;
+		this.ttlNanos = unit.toNanos(ttl);
+		this.setMask = sets - 1;
+		this.accountNums = new int[sets * WAYS];
+		this.passwords = new String[sets * WAYS];
+		this.expiresAt = new long[sets * WAYS];
+		this.generations = new long[sets];
+		this.locks = new StampedLock[Math.min(sets, MAX_LOCKS)];
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new StampedLock();
+		}
+	}
+
+	/**
+	 * Returns the stored password hash of the account as a hex string,
+	 * loading it from the engine on a miss.
+	 * @param accountNum
+	 */
+	public String selectPasswordByAccountNum(int accountNum) {
+		int set = AccountTable.mix(accountNum) & setMask;
+		long now = System.nanoTime();
+		String password = lookup(set, accountNum, now);
+		if (password != null) {
+			hits.increment();
+			return password;
+		}
+		misses.increment();
+		long generation = generationOf(set);
+		password = source.selectPasswordByAccountNum(accountNum);
+		store(set, generation, accountNum, password, now);
+		return password;
+	}
+
+	/**
+	 * Drops the cached hash of the account.
+	 * @param accountNum
+	 */
+	public void invalidate(int accountNum) {
+		int set = AccountTable.mix(accountNum) & setMask;
+		StampedLock lock = lockOf(set);
+		long stamp = lock.writeLock();
+		try {
+			generations[set]++;
+			int way = find(set, accountNum);
+			if (way >= 0) {
+				clear(way);
+				invalidations.increment();
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * Entries dropped to make room in a full set.
+	 */
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	/**
+	 * Entries found past their time to live.
+	 */
+	public long getExpirationCount() {
+		return expirations.sum();
+	}
+
+	public long getInvalidationCount() {
+		return invalidations.sum();
+	}
+
+	/**
+	 * Fraction of lookups served from the cache, 0 before the first lookup.
+	 */
+	public double getHitRate() {
+		long hit = hits.sum();
+		long total = hit + misses.sum();
+		return total == 0 ? 0 : (double) hit / total;
+	}
+
+	private String lookup(int set, int accountNum, long now) {
+		StampedLock lock = lockOf(set);
+		long stamp = lock.tryOptimisticRead();
+		int way = find(set, accountNum);
+		String password = way < 0 ? null : passwords[way];
+		long expiry = way < 0 ? 0 : expiresAt[way];
+		if (!lock.validate(stamp)) {
+			stamp = lock.readLock();
+			try {
+				way = find(set, accountNum);
+				password = way < 0 ? null : passwords[way];
+				expiry = way < 0 ? 0 : expiresAt[way];
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+		if (password != null && expiry - now <= 0) {
+			expirations.increment();
+			return null;
+		}
+		return password;
+	}
+
+	private long generationOf(int set) {
+		StampedLock lock = lockOf(set);
+		long stamp = lock.readLock();
+		try {
+			return generations[set];
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Caches a hash loaded from the engine, unless the set saw an
+	 * invalidation since the load started: the loaded hash may then be the
+	 * one that was just replaced.
+	 */
+	private void store(int set, long generation, int accountNum, String password, long now) {
+		StampedLock lock = lockOf(set);
+		long stamp = lock.writeLock();
+		try {
+			if (generations[set] != generation) {
+				return;
+			}
+			int way = find(set, accountNum);
+			if (way < 0) {
+				way = victim(set, now);
+			}
+			accountNums[way] = accountNum;
+			passwords[way] = password;
+			expiresAt[way] = now + ttlNanos;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	private int find(int set, int accountNum) {
+		for (int i = set * WAYS; i < set * WAYS + WAYS; i++) {
+			if (accountNums[i] == accountNum && passwords[i] != null) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * An empty way of the set, or else the one closest to expiry. Dropping
+	 * an entry that has not expired yet counts as an eviction.
+	 */
+	private int victim(int set, long now) {
+		int victim = set * WAYS;
+		for (int i = set * WAYS; i < set * WAYS + WAYS; i++) {
+			if (passwords[i] == null) {
+				return i;
+			}
+			if (expiresAt[i] - expiresAt[victim] < 0) {
+				victim = i;
+			}
+		}
+		if (expiresAt[victim] - now > 0) {
+			evictions.increment();
+		}
+		return victim;
+	}
+
+	private void clear(int way) {
+		accountNums[way] = AccountTable.EMPTY;
+		passwords[way] = null;
+		expiresAt[way] = 0;
+	}
+
+	private StampedLock lockOf(int set) {
+		return locks[set & (locks.length - 1)];
+	}
+
+}
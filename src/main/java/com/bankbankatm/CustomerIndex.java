@@ -0,0 +1,150 @@
+package com.bankbankatm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Secondary index from customer ID to the customer's account numbers.
+ * Customers sit in an open-addressing table with the same hashing and
+ * probing as {@link AccountTable}; each customer slot holds the head of a
+ * chain of entries, and an entry is an account number plus the index of
+ * the next entry. Everything is kept in int arrays, so a lookup is one
+ * probe sequence followed by a walk over the customer's own accounts.
+ *
+ * Adds are lock-free: an entry is filled before it is linked in front of
+ * the chain with a compare-and-set, so readers never see a partial entry.
+ * Customer ID 0 means no customer and is never indexed. The index does not
+ * resize, size it for the expected load.
+ */
+public class CustomerIndex {
+
+	private static final int NONE = 0;
+	private static final float LOAD_FACTOR = 0.75f;
+	private static final int MAX_CAPACITY = 1 << 30;
+	private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+
+	private final int mask;
+	private final int[] customerIds;
+	private final int[] heads;
+	private final int[] accountNums;
+	private final int[] next;
+	private final AtomicInteger entries = new AtomicInteger();
+
+	/**
+	 *
+	 * @param expectedAccounts
+	 */
+	public CustomerIndex(int expectedAccounts) {
+		if (expectedAccounts <= 0) {
+			throw new IllegalArgumentException("expectedAccounts must be positive: " + expectedAccounts);
+		}
+		int capacity = AccountTable.tableSizeFor(
+				(int) Math.min(MAX_CAPACITY, (long) Math.ceil(expectedAccounts / LOAD_FACTOR)));
+		this.mask = capacity - 1;
+		this.customerIds = new int[capacity];
+		this.heads = new int[capacity];
+		this.accountNums = new int[(int) (capacity * LOAD_FACTOR)];
+		this.next = new int[accountNums.length];
+	}
+
+	/**
+	 * Adds an account to the customer's accounts.
+	 * @param customerId
+	 * @param accountNum
+	 */
+	public void add(int customerId, int accountNum) {
+		if (customerId <= NONE) {
+			throw new IllegalArgumentException("Invalid customer ID: " + customerId);
+		}
+		int entry = entries.getAndIncrement();
+		if (entry >= accountNums.length) {
+			entries.decrementAndGet();
+			throw new IllegalStateException("Customer index is full (" + accountNums.length + " accounts)");
+		}
+		accountNums[entry] = accountNum;
+		int slot = claim(customerId);
+		int head;
+		do {
+			head = (int) INTS.getAcquire(heads, slot);
+			next[entry] = head;
+		} while (!INTS.compareAndSet(heads, slot, head, entry + 1));
+	}
+
+	/**
+	 * Copies up to {@code out.length} account numbers of the customer into
+	 * {@code out}, newest first, and returns how many it copied.
+	 * @param customerId
+	 * @param out
+	 */
+	public int accountsOf(int customerId, int[] out) {
+		int slot = slotOf(customerId);
+		if (slot < 0) {
+			return 0;
+		}
+		int count = 0;
+		for (int entry = (int) INTS.getAcquire(heads, slot); entry != NONE && count < out.length;
+				entry = next[entry - 1]) {
+			out[count++] = accountNums[entry - 1];
+		}
+		return count;
+	}
+
+	/**
+	 * Number of accounts of the customer.
+	 * @param customerId
+	 */
+	public int countOf(int customerId) {
+		int slot = slotOf(customerId);
+		if (slot < 0) {
+			return 0;
+		}
+		int count = 0;
+		for (int entry = (int) INTS.getAcquire(heads, slot); entry != NONE; entry = next[entry - 1]) {
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Number of accounts in the index.
+	 */
+	public int size() {
+		return entries.get();
+	}
+
+	private int slotOf(int customerId) {
+		if (customerId <= NONE) {
+			return -1;
+		}
+		int slot = AccountTable.mix(customerId) & mask;
+		while (true) {
+			int key = (int) INTS.getAcquire(customerIds, slot);
+			if (key == customerId) {
+				return slot;
+			}
+			if (key == NONE) {
+				return -1;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private int claim(int customerId) {
+		int slot = AccountTable.mix(customerId) & mask;
+		while (true) {
+			int key = (int) INTS.getAcquire(customerIds, slot);
+			if (key == NONE) {
+				key = (int) INTS.compareAndExchange(customerIds, slot, NONE, customerId);
+				if (key == NONE) {
+					return slot;
+				}
+			}
+			if (key == customerId) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+}
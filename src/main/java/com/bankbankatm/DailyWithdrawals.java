@@ -0,0 +1,75 @@
+package com.bankbankatm;
+
+/**
+ * Packs an account's running withdrawal total for one day into a single
+ * long: the day number (days since the epoch, UTC) in the high bits and the
+ * total in minor units in the low {@value #TOTAL_BITS} bits. A total whose
+ * day is not today reads as zero, so the window resets without any sweep,
+ * and checking or updating it is one array access or compare-and-set.
+ */
+final class DailyWithdrawals {
+
+	static final long MILLIS_PER_DAY = 86_400_000L;
+
+	private static final int TOTAL_BITS = 44;
+	private static final long TOTAL_MASK = (1L << TOTAL_BITS) - 1;
+
+	/** Largest total one day can hold. */
+	static final long MAX_TOTAL = TOTAL_MASK;
+
+	private DailyWithdrawals() {
+	}
+
+	static int dayOf(long epochMillis) {
+		return (int) Math.floorDiv(epochMillis, MILLIS_PER_DAY);
+	}
+
+	static long pack(int day, long total) {
+		if (total < 0 || total > TOTAL_MASK) {
+			throw new ArithmeticException("Daily withdrawal total out of range: " + total);
+		}
+		return ((long) day << TOTAL_BITS) | total;
+	}
+
+	static int day(long packed) {
+		return (int) (packed >>> TOTAL_BITS);
+	}
+
+	/**
+	 * Total withdrawn on the given day.
+	 */
+	static long totalOn(long packed, int day) {
+		return day(packed) == day ? packed & TOTAL_MASK : 0;
+	}
+
+	/**
+	 * Whether the amount can be added to the total without exceeding the
+	 * limit or what one day can hold; never overflows.
+	 */
+	static boolean fits(long total, long amount, long limit) {
+		return amount >= 0 && amount <= Math.min(limit, MAX_TOTAL) - total;
+	}
+
+	/**
+	 * Adds an amount withdrawn on the given day. Amounts from a day older
+	 * than the stored one no longer count and leave the value unchanged.
+	 */
+	static long add(long packed, int day, long amount) {
+		if (day < day(packed)) {
+			return packed;
+		}
+		return pack(day, totalOn(packed, day) + amount);
+	}
+
+	/**
+	 * Takes a refunded amount off the given day's total, never below zero.
+	 * A total kept for another day is left unchanged.
+	 */
+	static long subtract(long packed, int day, long amount) {
+		if (day != day(packed)) {
+			return packed;
+		}
+		return pack(day, Math.max(0, totalOn(packed, day) - amount));
+	}
+
+}
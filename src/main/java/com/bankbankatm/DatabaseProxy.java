@@ -1,14 +1,188 @@
 package com.bankbankatm;
 
-public class DatabaseProxy {
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+public class DatabaseProxy implements StorageEngine {
+
+	private static final int DEFAULT_EXPECTED_ACCOUNTS = 1 << 16;
+	private static final int LOCK_STRIPES_PER_CPU = 256;
+	private static final long CHECKPOINT_INTERVAL_SECONDS = 60;
+	private static final int BALANCE_INDEX_INTERVAL = 64;
+	private static final int OPTIMISTIC_READS = 64;
+	private static final long OVER_ALLOWANCE = -2;
+
+	private final AccountTable accounts;
+	private final AccountLocks locks;
+	private final ConcurrencyMode mode;
+	private final Journal journal;
+	private final Checkpointer checkpointer;
+	private final MappedSnapshot snapshot;
+	private final BalanceIndex balanceIndex;
+	private volatile JournalShipper shipper;
+	private final TransactionHistory history;
+	private final CustomerIndex customers;
+	private volatile boolean snapshotCustomersIndexed;
+	private volatile long dailyWithdrawalLimit = Long.MAX_VALUE / 2;
+	private volatile CredentialCache credentials;
+	private final AccountNumberSequence sequence;
+	private final Object reversals = new Object();
+	private final Map<Long, Long> openTransfers = new HashMap<>();
+	private final TreeMap<Long, Integer> transferFloors = new TreeMap<>();
+	private int maxAccountNum;
+
+	public DatabaseProxy() {
+		this(DEFAULT_EXPECTED_ACCOUNTS);
+	}
+
+	/**
+	 *
+	 * @param expectedAccounts
+	 */
+	public DatabaseProxy(int expectedAccounts) {
+		this(expectedAccounts, ConcurrencyMode.fromSystemProperty());
+	}
+
+	/**
+	 *
+	 * @param expectedAccounts
+	 * @param mode
+	 */
+	public DatabaseProxy(int expectedAccounts, ConcurrencyMode mode) {
+		this(expectedAccounts, mode, 1, 0);
+	}
+
+	/**
+	 * In-memory proxy that opens only accounts whose numbers are equal to
+	 * offset modulo stride, so that several proxies can share one number
+	 * space.
+	 * @param expectedAccounts
+	 * @param mode
+	 * @param stride
+	 * @param offset
+	 */
+	public DatabaseProxy(int expectedAccounts, ConcurrencyMode mode, int stride, int offset) {
+		this.accounts = new AccountTable(expectedAccounts);
+		this.history = new TransactionHistory(accounts.capacity());
+		this.customers = new CustomerIndex(expectedAccounts);
+		this.mode = mode;
+		this.locks = new AccountLocks(Runtime.getRuntime().availableProcessors() * LOCK_STRIPES_PER_CPU);
+		this.journal = null;
+		this.checkpointer = null;
+		this.snapshot = null;
+		this.balanceIndex = null;
+		this.sequence = new AccountNumberSequence(1, stride, offset);
+	}
 
 	/**
-	 * 
+	 * Opens a persistent proxy. The journal is replayed into the account
+	 * table, and every later mutation is journaled and durable before the
+	 * call returns.
+	 * @param expectedAccounts
+	 * @param mode
+	 * @param journalFile
+	 */
+	public DatabaseProxy(int expectedAccounts, ConcurrencyMode mode, Path journalFile) throws IOException {
+		this(expectedAccounts, mode, journalFile, null);
+	}
+
+	/**
+	 * Opens a persistent proxy that also checkpoints in the background.
+	 * Recovery maps the latest checkpoint and replays only the journal
+	 * written after it. Accounts are not loaded from the checkpoint up
+	 * front: balances of untouched accounts are read from the mapped file,
+	 * and an account is copied into the live table the first time it is
+	 * updated.
+	 * @param expectedAccounts
+	 * @param mode
+	 * @param journalFile
+	 * @param checkpointFile may be null to replay the whole journal
+	 */
+	public DatabaseProxy(int expectedAccounts, ConcurrencyMode mode, Path journalFile, Path checkpointFile)
+			throws IOException {
+		this(expectedAccounts, mode, journalFile, checkpointFile, 1, 0);
+	}
+
+	/**
+	 * Opens a persistent proxy that opens only accounts whose numbers are
+	 * equal to offset modulo stride. The stride and offset must not change
+	 * between runs on the same journal.
+	 * @param expectedAccounts
+	 * @param mode
+	 * @param journalFile
+	 * @param checkpointFile may be null to replay the whole journal
+	 * @param stride
+	 * @param offset
+	 */
+	public DatabaseProxy(int expectedAccounts, ConcurrencyMode mode, Path journalFile, Path checkpointFile,
+			int stride, int offset) throws IOException {
+		this.accounts = new AccountTable(expectedAccounts);
+		this.history = new TransactionHistory(accounts.capacity());
+		this.customers = new CustomerIndex(expectedAccounts);
+		this.mode = mode;
+		this.locks = new AccountLocks(Runtime.getRuntime().availableProcessors() * LOCK_STRIPES_PER_CPU);
+		if (checkpointFile != null && Files.exists(checkpointFile)) {
+			this.snapshot = MappedSnapshot.open(checkpointFile);
+			this.maxAccountNum = snapshot.maxAccountNum();
+		} else {
+			this.snapshot = null;
+		}
+		BalanceIndex index = checkpointFile == null ? new BalanceIndex(BALANCE_INDEX_INTERVAL)
+				: BalanceIndex.load(BalanceIndex.fileFor(checkpointFile), BALANCE_INDEX_INTERVAL);
+		Set<Long> reversed = new HashSet<>();
+		this.journal = Journal.open(journalFile, snapshot == null ? 0 : snapshot.lsn(), record -> {
+			replay(record, reversed);
+			index.apply(record);
+		});
+		for (int slot = 0; slot < accounts.capacity(); slot++) {
+			int accountNum = accounts.accountNumAt(slot);
+			if (accountNum > AccountTable.EMPTY) {
+				seedHistory(slot, accountNum, accounts.lastLsnAt(slot));
+			}
+		}
+		this.balanceIndex = index.indexedLsn() > journal.durableLsn() ? new BalanceIndex(BALANCE_INDEX_INTERVAL)
+				: index;
+		balanceIndex.catchUp(journal);
+		journal.follow(balanceIndex::apply);
+		this.sequence = new AccountNumberSequence(journalFile.resolveSibling(journalFile.getFileName() + ".seq"),
+				maxAccountNum + 1L, stride, offset);
+		if (checkpointFile != null) {
+			this.checkpointer = new Checkpointer(journal, journalFile, checkpointFile, expectedAccounts,
+					balanceIndex, this::checkpointHorizon);
+			checkpointer.start(CHECKPOINT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+		} else {
+			this.checkpointer = null;
+		}
+	}
+
+	/**
+	 * Returns the stored password credential of the account, encoded by
+	 * {@link PasswordHash#encode}. Salt and hash are read under the
+	 * account's lock stripe, which every password change holds.
 	 * @param accountNum
 	 */
 	public String selectPasswordByAccountNum(int accountNum) {
-		// TODO - implement DatabaseProxy.selectPasswordByAccountNum
-		throw new UnsupportedOperationException();
+		int slot = slotOf(accountNum);
+		ReentrantLock lock = locks.lockFor(accountNum);
+		lock.lock();
+		try {
+			return PasswordHash.encode(accounts.passwordSaltAt(slot), accounts.passwordHashAt(slot));
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	public void minusBalance() {
@@ -16,19 +190,1208 @@ public class DatabaseProxy {
 		throw new UnsupportedOperationException();
 	}
 
+	/**
+	 * Debits the account if the balance covers the amount.
+	 * @param accountNum
+	 * @param amount amount in minor units
+	 */
+	public boolean minusBalance(int accountNum, long amount) {
+		checkAmount(amount);
+		return debit(accountNum, slotOf(accountNum), amount, JournalRecord.DEBIT, 0, 0);
+	}
+
+	/**
+	 * Cash withdrawal: debits the account if the balance covers the amount
+	 * and the amount fits in what is left of today's withdrawal limit.
+	 * @param accountNum
+	 * @param amount amount in minor units
+	 */
+	public boolean withdraw(int accountNum, long amount) {
+		return tryWithdraw(accountNum, amount) == WITHDRAWN;
+	}
+
+	/**
+	 * Like {@link #withdraw}, telling apart why a withdrawal was refused.
+	 * @param accountNum
+	 * @param amount amount in minor units
+	 * @return WITHDRAWN, INSUFFICIENT_FUNDS or DAILY_LIMIT_EXCEEDED
+	 */
+	public int tryWithdraw(int accountNum, long amount) {
+		checkAmount(amount);
+		long lsn = debitAt(accountNum, slotOf(accountNum), amount, JournalRecord.WITHDRAWAL, 0, 0, amount);
+		return lsn >= 0 ? WITHDRAWN : lsn == OVER_ALLOWANCE ? DAILY_LIMIT_EXCEEDED : INSUFFICIENT_FUNDS;
+	}
+
+	/**
+	 * Credits back a withdrawal whose cash was not dispensed and returns the
+	 * amount to today's withdrawal allowance.
+	 * @param accountNum
+	 * @param amount amount in minor units
+	 */
+	public void returnWithdrawal(int accountNum, long amount) {
+		checkAmount(amount);
+		credit(accountNum, slotOf(accountNum), amount, JournalRecord.REFUND, 0, 0, amount);
+	}
+
+	/**
+	 * Adds the amount to today's withdrawals if it fits in the limit.
+	 */
+	private boolean reserveAllowance(int slot, long amount) {
+		int today = DailyWithdrawals.dayOf(System.currentTimeMillis());
+		long limit = dailyWithdrawalLimit;
+		while (true) {
+			long packed = accounts.dailyWithdrawalsAt(slot);
+			long total = DailyWithdrawals.totalOn(packed, today);
+			if (!DailyWithdrawals.fits(total, amount, limit)) {
+				return false;
+			}
+			if (accounts.compareAndSetDailyWithdrawalsAt(slot, packed, DailyWithdrawals.pack(today, total + amount))) {
+				return true;
+			}
+		}
+	}
+
+	private void releaseAllowance(int slot, long amount) {
+		int today = DailyWithdrawals.dayOf(System.currentTimeMillis());
+		while (true) {
+			long packed = accounts.dailyWithdrawalsAt(slot);
+			long released = DailyWithdrawals.subtract(packed, today, amount);
+			if (released == packed || accounts.compareAndSetDailyWithdrawalsAt(slot, packed, released)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * What the account may still withdraw today, in minor units.
+	 * @param accountNum
+	 */
+	public long remainingDailyAllowance(int accountNum) {
+		int today = DailyWithdrawals.dayOf(System.currentTimeMillis());
+		long total = DailyWithdrawals.totalOn(accounts.dailyWithdrawalsAt(slotOf(accountNum)), today);
+		return Math.max(0, dailyWithdrawalLimit - total);
+	}
+
+	/**
+	 * Copies the account's most recent transactions into {@code out}, newest
+	 * first, as {@link TransactionHistory#ENTRY_WORDS} words each (kind, time,
+	 * signed amount), and returns how many were copied. Lock-free and
+	 * allocation-free.
+	 * @param accountNum
+	 * @param out
+	 */
+	public int recentTransactions(int accountNum, long[] out) {
+		int slot = accounts.slotOf(accountNum);
+		if (slot < 0 && snapshot != null) {
+			slot = hydrate(accountNum);
+		}
+		return slot < 0 ? 0 : history.recent(slot, out);
+	}
+
+	/**
+	 * Reads a consistent committed view of the account: balance, today's
+	 * withdrawals and recent transactions all reflect the same set of
+	 * completed writes. Takes no locks as long as the copy succeeds within
+	 * {@value #OPTIMISTIC_READS} attempts; a copy that overlaps a write is
+	 * simply taken again. After that the reader takes the account's lock
+	 * stripe, which keeps STRIPED_LOCK writers out, so a reader cannot be
+	 * starved by a stream of writes. OPTIMISTIC writers take no locks, so
+	 * in that mode the reader keeps retrying but yields between attempts.
+	 * An account known only from the checkpoint is loaded first.
+	 * @param accountNum
+	 * @param into
+	 */
+	public void readSnapshot(int accountNum, AccountSnapshot into) {
+		int slot = slotOf(accountNum);
+		int today = DailyWithdrawals.dayOf(System.currentTimeMillis());
+		for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+			if (tryReadSnapshot(accountNum, slot, today, into)) {
+				return;
+			}
+			Thread.onSpinWait();
+		}
+		ReentrantLock lock = locks.lockFor(accountNum);
+		lock.lock();
+		try {
+			while (!tryReadSnapshot(accountNum, slot, today, into)) {
+				Thread.yield();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean tryReadSnapshot(int accountNum, int slot, int today, AccountSnapshot into) {
+		long ended = accounts.writesEndedAt(slot);
+		long balance = accounts.balanceAt(slot);
+		long daily = accounts.dailyWithdrawalsAt(slot);
+		int count = history.recent(slot, into.recent);
+		if (accounts.writesBegunAt(slot) != ended) {
+			return false;
+		}
+		into.set(accountNum, balance, DailyWithdrawals.totalOn(daily, today), count);
+		return true;
+	}
+
+	/**
+	 * Reads the balances of several accounts as of one consistent point:
+	 * no transfer between them is seen half applied. Takes no locks unless
+	 * {@value #OPTIMISTIC_READS} attempts overlap writes, after which it
+	 * takes the accounts' lock stripes in stripe order, as
+	 * {@link #readSnapshot} does.
+	 * @param accountNums
+	 * @param balances receives the balances in minor units
+	 */
+	public void checkTheBalances(int[] accountNums, long[] balances) {
+		int[] slots = new int[accountNums.length];
+		long[] ended = new long[accountNums.length];
+		for (int i = 0; i < accountNums.length; i++) {
+			slots[i] = slotOf(accountNums[i]);
+		}
+		for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+			if (tryReadBalances(slots, ended, balances)) {
+				return;
+			}
+			Thread.onSpinWait();
+		}
+		int[] stripes = new int[accountNums.length];
+		for (int i = 0; i < accountNums.length; i++) {
+			stripes[i] = locks.stripeOf(accountNums[i]);
+		}
+		Arrays.sort(stripes);
+		int locked = 0;
+		try {
+			for (int i = 0; i < stripes.length; i++) {
+				if (i == 0 || stripes[i] != stripes[i - 1]) {
+					locks.lockAt(stripes[i]).lock();
+				}
+				locked = i + 1;
+			}
+			while (!tryReadBalances(slots, ended, balances)) {
+				Thread.yield();
+			}
+		} finally {
+			for (int i = locked - 1; i >= 0; i--) {
+				if (i == 0 || stripes[i] != stripes[i - 1]) {
+					locks.lockAt(stripes[i]).unlock();
+				}
+			}
+		}
+	}
+
+	private boolean tryReadBalances(int[] slots, long[] ended, long[] balances) {
+		for (int i = 0; i < slots.length; i++) {
+			ended[i] = accounts.writesEndedAt(slots[i]);
+		}
+		for (int i = 0; i < slots.length; i++) {
+			balances[i] = accounts.balanceAt(slots[i]);
+		}
+		for (int i = 0; i < slots.length; i++) {
+			if (accounts.writesBegunAt(slots[i]) != ended[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Sets the per-account daily withdrawal limit k, in minor units.
+	 * @param limit
+	 */
+	public void setDailyWithdrawalLimit(long limit) {
+		checkAmount(limit);
+		this.dailyWithdrawalLimit = limit;
+	}
+
+	public long getDailyWithdrawalLimit() {
+		return dailyWithdrawalLimit;
+	}
+
+	private boolean debit(int accountNum, int slot, long amount, int kind, long aux, int arg1) {
+		return debit(accountNum, slot, amount, kind, aux, arg1, 0);
+	}
+
+	/**
+	 *
+	 * @param allowance amount to take from today's withdrawal allowance in
+	 * the same write, 0 for none
+	 */
+	private boolean debit(int accountNum, int slot, long amount, int kind, long aux, int arg1, long allowance) {
+		return debitAt(accountNum, slot, amount, kind, aux, arg1, allowance) >= 0;
+	}
+
+	/**
+	 * Like {@link #debit}, returning the debit's journal sequence number,
+	 * 0 without a journal, -1 when the balance did not cover the amount or
+	 * {@value #OVER_ALLOWANCE} when the allowance did not.
+	 */
+	private long debitAt(int accountNum, int slot, long amount, int kind, long aux, int arg1, long allowance) {
+		long lsn;
+		if (mode == ConcurrencyMode.OPTIMISTIC) {
+			accounts.beginWrite(slot);
+			try {
+				if (allowance > 0 && !reserveAllowance(slot, allowance)) {
+					return OVER_ALLOWANCE;
+				}
+				if (!debitOptimistic(slot, amount)) {
+					if (allowance > 0) {
+						releaseAllowance(slot, allowance);
+					}
+					return -1;
+				}
+				lsn = append(kind, accountNum, slot, amount, aux, arg1);
+				history.record(slot, kind, System.currentTimeMillis(), -amount);
+			} finally {
+				accounts.endWrite(slot);
+			}
+		} else {
+			ReentrantLock lock = locks.lockFor(accountNum);
+			lock.lock();
+			accounts.beginWrite(slot);
+			try {
+				long balance = accounts.balanceAt(slot);
+				if (balance < amount) {
+					return -1;
+				}
+				if (allowance > 0 && !reserveAllowance(slot, allowance)) {
+					return OVER_ALLOWANCE;
+				}
+				lsn = append(kind, accountNum, slot, amount, aux, arg1);
+				accounts.setBalanceAt(slot, balance - amount);
+				history.record(slot, kind, System.currentTimeMillis(), -amount);
+			} finally {
+				accounts.endWrite(slot);
+				lock.unlock();
+			}
+		}
+		awaitDurable(lsn);
+		return lsn;
+	}
+
 	public void plusBalance() {
 		// TODO - implement DatabaseProxy.plusBalance
 		throw new UnsupportedOperationException();
 	}
 
+	/**
+	 *
+	 * @param accountNum
+	 * @param amount amount in minor units
+	 */
+	public void plusBalance(int accountNum, long amount) {
+		checkAmount(amount);
+		credit(accountNum, slotOf(accountNum), amount, JournalRecord.CREDIT, 0, 0);
+	}
+
+	private void credit(int accountNum, int slot, long amount, int kind, long aux, int arg1) {
+		credit(accountNum, slot, amount, kind, aux, arg1, 0);
+	}
+
+	/**
+	 *
+	 * @param allowance amount to give back to today's withdrawal allowance
+	 * in the same write, 0 for none
+	 */
+	private void credit(int accountNum, int slot, long amount, int kind, long aux, int arg1, long allowance) {
+		long lsn;
+		if (mode == ConcurrencyMode.OPTIMISTIC) {
+			accounts.beginWrite(slot);
+			try {
+				creditOptimistic(slot, amount);
+				lsn = append(kind, accountNum, slot, amount, aux, arg1);
+				if (allowance > 0) {
+					releaseAllowance(slot, allowance);
+				}
+				history.record(slot, kind, System.currentTimeMillis(), amount);
+			} finally {
+				accounts.endWrite(slot);
+			}
+		} else {
+			ReentrantLock lock = locks.lockFor(accountNum);
+			lock.lock();
+			accounts.beginWrite(slot);
+			try {
+				long balance = Money.add(accounts.balanceAt(slot), amount);
+				lsn = append(kind, accountNum, slot, amount, aux, arg1);
+				accounts.setBalanceAt(slot, balance);
+				if (allowance > 0) {
+					releaseAllowance(slot, allowance);
+				}
+				history.record(slot, kind, System.currentTimeMillis(), amount);
+			} finally {
+				accounts.endWrite(slot);
+				lock.unlock();
+			}
+		}
+		awaitDurable(lsn);
+	}
+
+	/**
+	 * Moves money between two accounts; both legs are applied and journaled
+	 * together. The two lock stripes are always taken in stripe order, so
+	 * transfers in opposite directions cannot deadlock. In OPTIMISTIC mode
+	 * each leg is a compare-and-set. In both modes the two accounts are
+	 * marked as being written for the duration, so snapshot reads never
+	 * see one leg without the other, and the journal records the transfer
+	 * as one record.
+	 * @param from
+	 * @param to
+	 * @param amount amount in minor units
+	 */
+	public boolean transfer(int from, int to, long amount) {
+		checkAmount(amount);
+		if (from == to) {
+			throw new IllegalArgumentException("Cannot transfer to the same account: " + from);
+		}
+		return move(from, to, amount, JournalRecord.TRANSFER, 0, 0);
+	}
+
+	/**
+	 * Sending leg of a transfer to an account kept by another store: debits
+	 * the account, journaling the receiving account with the debit, and
+	 * returns the debit's journal sequence number, or -1 when the balance
+	 * does not cover the amount. The transfer stays open until
+	 * {@link #settleTransfer} and checkpoints stay behind it meanwhile, so
+	 * that recovery replays every transfer whose credit may be missing and
+	 * lists it in {@link #openTransfers()}.
+	 * @param from
+	 * @param to account in the other store
+	 * @param amount amount in minor units
+	 */
+	public long transferOut(int from, int to, long amount) {
+		checkAmount(amount);
+		if (to == 0) {
+			throw new IllegalArgumentException("Invalid receiving account: " + to);
+		}
+		int slot = slotOf(from);
+		if (journal == null) {
+			return debitAt(from, slot, amount, JournalRecord.DEBIT, 0, to, 0);
+		}
+		long floor = journal.durableLsn();
+		holdCheckpoint(floor);
+		long lsn = -1;
+		try {
+			lsn = debitAt(from, slot, amount, JournalRecord.DEBIT, 0, to, 0);
+		} finally {
+			synchronized (openTransfers) {
+				if (lsn < 0) {
+					releaseCheckpoint(floor);
+				} else {
+					openTransfers.put(lsn, floor);
+				}
+			}
+		}
+		return lsn;
+	}
+
+	/**
+	 * Receiving leg of a transfer from an account kept by another store:
+	 * credits the account, journaling the sending account and its debit.
+	 * @param from account in the other store
+	 * @param to
+	 * @param amount amount in minor units
+	 * @param debit what {@link #transferOut} returned in the other store
+	 */
+	public void transferIn(int from, int to, long amount, long debit) {
+		checkAmount(amount);
+		if (from == 0) {
+			throw new IllegalArgumentException("Invalid sending account: " + from);
+		}
+		credit(to, slotOf(to), amount, JournalRecord.CREDIT, debit, from);
+	}
+
+	/**
+	 * Whether the account received the transfer with the given debit, by
+	 * walking the account's journal back to the given time.
+	 * @param from account in the other store
+	 * @param to
+	 * @param debit the transfer's debit in the other store
+	 * @param since epoch milliseconds, no later than the debit
+	 */
+	public boolean hasTransferIn(int from, int to, long debit, long since) {
+		if (journal == null) {
+			return false;
+		}
+		long lsn = accounts.lastLsnAt(slotOf(to));
+		journal.awaitDurable(lsn);
+		ByteBuffer buffer = ByteBuffer.allocate(JournalRecord.SIZE);
+		CRC32C crc = new CRC32C();
+		JournalRecord record = new JournalRecord();
+		while (lsn != 0) {
+			journal.readDurable(lsn, buffer, crc, record);
+			if (record.timestamp() < since) {
+				return false;
+			}
+			if (record.kind() == JournalRecord.CREDIT && record.account() == to && record.arg1() == from
+					&& record.aux() == debit) {
+				return true;
+			}
+			lsn = record.account() == to ? record.prev0() : record.prev1();
+		}
+		return false;
+	}
+
+	/**
+	 * Closes a transfer whose credit is durable in the other store. The
+	 * closing record is not waited for: if it is lost, recovery lists the
+	 * transfer again and {@link #hasTransferIn} finds its credit.
+	 * @param from
+	 * @param debit what {@link #transferOut} returned
+	 */
+	public void settleTransfer(int from, long debit) {
+		if (journal == null) {
+			return;
+		}
+		synchronized (openTransfers) {
+			Long floor = openTransfers.remove(debit);
+			if (floor == null) {
+				throw new IllegalStateException("No open transfer at " + debit);
+			}
+			journal.append(JournalRecord.SETTLED, from, 0, debit, 0, 0, accounts, slotOf(from), -1);
+			releaseCheckpoint(floor);
+		}
+	}
+
+	/**
+	 * Journal sequence numbers of the debits of transfers not yet settled,
+	 * oldest first.
+	 */
+	public long[] openTransfers() {
+		synchronized (openTransfers) {
+			return openTransfers.keySet().stream().mapToLong(Long::longValue).sorted().toArray();
+		}
+	}
+
+	/**
+	 * Reads back the journal record with the given sequence number.
+	 * @param lsn
+	 */
+	public JournalRecord recordAt(long lsn) {
+		if (journal == null) {
+			throw new IllegalStateException("No journal configured");
+		}
+		return journal.recordAt(lsn);
+	}
+
+	/**
+	 * Keeps checkpoints at or before the given sequence number until
+	 * {@link #releaseCheckpoint} is called with it.
+	 */
+	private void holdCheckpoint(long floor) {
+		synchronized (openTransfers) {
+			transferFloors.merge(floor, 1, Integer::sum);
+		}
+	}
+
+	private void releaseCheckpoint(long floor) {
+		synchronized (openTransfers) {
+			transferFloors.computeIfPresent(floor, (key, count) -> count == 1 ? null : count - 1);
+		}
+	}
+
+	/**
+	 * How far a checkpoint may reach: everything durable, but not past the
+	 * debit of an open transfer.
+	 */
+	private long checkpointHorizon() {
+		long durable = journal.durableLsn();
+		synchronized (openTransfers) {
+			return transferFloors.isEmpty() ? durable : Math.min(durable, transferFloors.firstKey());
+		}
+	}
+
+	/**
+	 * Reverses a deposit, debit, withdrawal or transfer by moving its amount
+	 * back, and journals the reversal as its own event referring to the
+	 * original one. Returns false, changing nothing, when the account to be
+	 * debited no longer holds the amount. A withdrawal's reversal does not
+	 * restore the daily allowance. An event is reversed at most once:
+	 * reversals run one at a time, each after checking the journal for an
+	 * earlier reversal of the same event.
+	 * @param lsn journal sequence number of the event to reverse
+	 */
+	public boolean reverse(long lsn) {
+		if (journal == null) {
+			throw new IllegalStateException("No journal configured");
+		}
+		JournalRecord original = journal.recordAt(lsn);
+		int kind = original.kind();
+		int account = original.account();
+		long amount = original.amount();
+		if (kind == JournalRecord.REVERSAL) {
+			throw new IllegalArgumentException("Journal record at " + lsn + " is a reversal itself");
+		}
+		if (kind != JournalRecord.CREDIT && kind != JournalRecord.DEBIT && kind != JournalRecord.WITHDRAWAL
+				&& kind != JournalRecord.TRANSFER) {
+			throw new IllegalArgumentException("Journal record at " + lsn + " cannot be reversed");
+		}
+		synchronized (reversals) {
+			if (isReversed(account, lsn)) {
+				throw new IllegalStateException("Journal record at " + lsn + " is already reversed");
+			}
+			switch (kind) {
+			case JournalRecord.CREDIT:
+				return debit(account, slotOf(account), amount, JournalRecord.REVERSAL, lsn, kind);
+			case JournalRecord.TRANSFER:
+				return move(original.arg0(), account, amount, JournalRecord.REVERSAL, lsn, kind);
+			default:
+				credit(account, slotOf(account), amount, JournalRecord.REVERSAL, lsn, kind);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Whether the journal holds a reversal of the record, found by walking
+	 * the account's chain back from its last record to the record itself.
+	 * A reversal always names the account of the record it reverses, so it
+	 * is on that chain. Reversals are rare and mostly of recent records, so
+	 * the walk is short, and it needs no index that a checkpoint would have
+	 * to carry.
+	 * @param accountNum account of the record
+	 * @param lsn sequence number of the record
+	 */
+	private boolean isReversed(int accountNum, long lsn) {
+		long at = accounts.lastLsnAt(slotOf(accountNum));
+		journal.awaitDurable(at);
+		ByteBuffer buffer = ByteBuffer.allocate(JournalRecord.SIZE);
+		CRC32C crc = new CRC32C();
+		JournalRecord record = new JournalRecord();
+		while (at > lsn) {
+			journal.readDurable(at, buffer, crc, record);
+			if (record.kind() == JournalRecord.REVERSAL && record.aux() == lsn) {
+				return true;
+			}
+			at = record.account() == accountNum ? record.prev0() : record.prev1();
+		}
+		return false;
+	}
+
+	private boolean move(int from, int to, long amount, int kind, long aux, int arg1) {
+		int fromSlot = slotOf(from);
+		int toSlot = slotOf(to);
+		long lsn;
+		if (mode == ConcurrencyMode.OPTIMISTIC) {
+			accounts.beginWrite(fromSlot);
+			accounts.beginWrite(toSlot);
+			try {
+				if (!debitOptimistic(fromSlot, amount)) {
+					return false;
+				}
+				creditOptimistic(toSlot, amount);
+				lsn = appendMove(from, fromSlot, to, toSlot, amount, kind, aux, arg1);
+				recordMove(fromSlot, toSlot, kind, System.currentTimeMillis(), amount);
+			} finally {
+				accounts.endWrite(toSlot);
+				accounts.endWrite(fromSlot);
+			}
+		} else {
+			ReentrantLock first = locks.lockFor(from);
+			ReentrantLock second = locks.lockFor(to);
+			if (locks.stripeOf(from) > locks.stripeOf(to)) {
+				ReentrantLock swap = first;
+				first = second;
+				second = swap;
+			}
+			first.lock();
+			if (second != first) {
+				second.lock();
+			}
+			accounts.beginWrite(fromSlot);
+			accounts.beginWrite(toSlot);
+			try {
+				long fromBalance = accounts.balanceAt(fromSlot);
+				if (fromBalance < amount) {
+					return false;
+				}
+				long toBalance = Money.add(accounts.balanceAt(toSlot), amount);
+				lsn = appendMove(from, fromSlot, to, toSlot, amount, kind, aux, arg1);
+				accounts.setBalanceAt(fromSlot, fromBalance - amount);
+				accounts.setBalanceAt(toSlot, toBalance);
+				recordMove(fromSlot, toSlot, kind, System.currentTimeMillis(), amount);
+			} finally {
+				accounts.endWrite(toSlot);
+				accounts.endWrite(fromSlot);
+				if (second != first) {
+					second.unlock();
+				}
+				first.unlock();
+			}
+		}
+		awaitDurable(lsn);
+		return true;
+	}
+
 	public int createNewAccount() {
 		// TODO - implement DatabaseProxy.createNewAccount
 		throw new UnsupportedOperationException();
 	}
 
+	/**
+	 * Opens an account and returns its number. Numbers come from per-thread
+	 * blocks, so concurrent onboarding threads do not contend. The account
+	 * is journaled after it is inserted; nobody can refer to it before the
+	 * number is returned, so the CREATE record still precedes every other
+	 * record of the account.
+	 * @param password
+	 * @param accountType
+	 * @param openingBalance opening balance in minor units
+	 */
+	public int createNewAccount(String password, int accountType, long openingBalance) {
+		return createNewAccount(0, password, accountType, openingBalance);
+	}
+
+	/**
+	 * Opens an account owned by a customer; the account is added to the
+	 * customer's accounts in the customer index.
+	 * @param customerId owning customer, or 0 when there is none
+	 * @param password
+	 * @param accountType
+	 * @param openingBalance opening balance in minor units
+	 */
+	public int createNewAccount(int customerId, String password, int accountType, long openingBalance) {
+		checkAmount(openingBalance);
+		if (customerId < 0) {
+			throw new IllegalArgumentException("Invalid customer ID: " + customerId);
+		}
+		long passwordSalt = PasswordHash.newSalt();
+		long passwordHash = PasswordHash.hash(password, passwordSalt);
+		int accountNum = sequence.next();
+		int slot = accounts.insert(accountNum, customerId, openingBalance, passwordHash, passwordSalt, accountType,
+				0, 0);
+		if (customerId != 0) {
+			customers.add(customerId, accountNum);
+		}
+		if (journal != null) {
+			journal.append(JournalRecord.CREATE, accountNum, openingBalance, 0, accountType, customerId, accounts,
+					slot, -1);
+			awaitDurable(append(JournalRecord.PASSWORD, accountNum, slot, passwordSalt, passwordHash, 0));
+		}
+		return accountNum;
+	}
+
+	/**
+	 * Copies up to {@code out.length} account numbers of the customer into
+	 * {@code out}, in no particular order, and returns how many it copied.
+	 * @param customerId
+	 * @param out
+	 */
+	public int accountsOfCustomer(int customerId, int[] out) {
+		indexSnapshotCustomers();
+		return customers.accountsOf(customerId, out);
+	}
+
+	/**
+	 *
+	 * @param customerId
+	 */
+	public int accountCountOfCustomer(int customerId) {
+		indexSnapshotCustomers();
+		return customers.countOf(customerId);
+	}
+
+	/**
+	 * Replaces the account's password if the old one matches, with a fresh
+	 * salt. Password changes are rare, so they always run under the
+	 * account's lock stripe, whatever the concurrency mode, which keeps
+	 * them in journal order. The hashing is done outside the lock, and the
+	 * change is refused if the password changed in the meantime.
+	 * @param accountNum
+	 * @param oldPassword
+	 * @param newPassword
+	 */
+	public boolean changePassword(int accountNum, String oldPassword, String newPassword) {
+		int slot = slotOf(accountNum);
+		ReentrantLock lock = locks.lockFor(accountNum);
+		long oldSalt;
+		long oldHash;
+		lock.lock();
+		try {
+			oldSalt = accounts.passwordSaltAt(slot);
+			oldHash = accounts.passwordHashAt(slot);
+		} finally {
+			lock.unlock();
+		}
+		if (!PasswordHash.matches(oldPassword, oldSalt, oldHash)) {
+			return false;
+		}
+		long newSalt = PasswordHash.newSalt();
+		long newHash = PasswordHash.hash(newPassword, newSalt);
+		long lsn;
+		lock.lock();
+		try {
+			if (accounts.passwordSaltAt(slot) != oldSalt || accounts.passwordHashAt(slot) != oldHash) {
+				return false;
+			}
+			lsn = append(JournalRecord.PASSWORD, accountNum, slot, newSalt, newHash, 0);
+			accounts.setPasswordAt(slot, newSalt, newHash);
+			invalidateCredentials(accountNum);
+		} finally {
+			lock.unlock();
+		}
+		awaitDurable(lsn);
+		return true;
+	}
+
+	/**
+	 * The cache of password hashes in front of this engine, created on
+	 * first use and shared by everyone who asks for it.
+	 */
+	public CredentialCache getCredentials() {
+		CredentialCache cache = credentials;
+		if (cache == null) {
+			synchronized (this) {
+				cache = credentials;
+				if (cache == null) {
+					cache = new CredentialCache(this);
+					credentials = cache;
+				}
+			}
+		}
+		return cache;
+	}
+
+	private void invalidateCredentials(int accountNum) {
+		CredentialCache cache = credentials;
+		if (cache != null) {
+			cache.invalidate(accountNum);
+		}
+	}
+
 	public void checkTheBalance() {
 		// TODO - implement DatabaseProxy.checkTheBalance
 		throw new UnsupportedOperationException();
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Returns the balance of the account in minor units.
+	 * @param accountNum
+	 */
+	public long checkTheBalance(int accountNum) {
+		int slot = accounts.slotOf(accountNum);
+		if (slot >= 0) {
+			return accounts.balanceAt(slot);
+		}
+		if (snapshot != null) {
+			int snapshotSlot = snapshot.slotOf(accountNum);
+			if (snapshotSlot >= 0) {
+				return snapshot.balanceAt(snapshotSlot);
+			}
+		}
+		throw new IllegalArgumentException("Unknown account: " + accountNum);
+	}
+
+	/**
+	 * Returns the balance the account had at the given time, in minor
+	 * units: the balance after its last journal record at or before then.
+	 * @param accountNum
+	 * @param timestamp epoch milliseconds
+	 */
+	public long checkTheBalanceAt(int accountNum, long timestamp) {
+		if (journal == null) {
+			throw new IllegalStateException("No journal configured");
+		}
+		journal.awaitDurable(accounts.lastLsnAt(slotOf(accountNum)));
+		try {
+			return balanceIndex.balanceAt(journal, accountNum, timestamp);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Journal read failed", e);
+		}
+	}
+
+	/**
+	 * Starts shipping the journal to backups that connect to the address,
+	 * in the epoch after that of the journal's last record. In SYNC and
+	 * SEMI_SYNC modes every later mutation also waits for the backups that
+	 * have caught up before it returns.
+	 * @param address
+	 * @param mode
+	 * @param ackTimeoutMillis how long a mutation waits for a backup
+	 */
+	public JournalShipper replicate(InetSocketAddress address, ReplicationMode mode, long ackTimeoutMillis)
+			throws IOException {
+		if (journal == null) {
+			throw new IllegalStateException("No journal configured");
+		}
+		return replicate(address, mode, ackTimeoutMillis, journal.epoch() + 1);
+	}
+
+	/**
+	 * Like {@link #replicate(InetSocketAddress, ReplicationMode, long)}, in
+	 * the given epoch.
+	 * @param address
+	 * @param mode
+	 * @param ackTimeoutMillis how long a mutation waits for a backup
+	 * @param epoch later than that of every record in the journal
+	 */
+	public synchronized JournalShipper replicate(InetSocketAddress address, ReplicationMode mode,
+			long ackTimeoutMillis, int epoch) throws IOException {
+		if (journal == null) {
+			throw new IllegalStateException("No journal configured");
+		}
+		if (shipper != null) {
+			throw new IllegalStateException("Already replicating");
+		}
+		shipper = new JournalShipper(journal, address, mode, ackTimeoutMillis, epoch);
+		return shipper;
+	}
+
+	/**
+	 * Writes a checkpoint now and returns its journal sequence number.
+	 */
+	public long checkpoint() throws IOException {
+		if (checkpointer == null) {
+			throw new IllegalStateException("No checkpoint file configured");
+		}
+		return checkpointer.checkpoint();
+	}
+
+	public ConcurrencyMode getConcurrencyMode() {
+		return mode;
+	}
+
+	private boolean debitOptimistic(int slot, long amount) {
+		while (true) {
+			long balance = accounts.balanceAt(slot);
+			if (balance < amount) {
+				return false;
+			}
+			if (accounts.compareAndSetBalanceAt(slot, balance, balance - amount)) {
+				return true;
+			}
+		}
+	}
+
+	private void creditOptimistic(int slot, long amount) {
+		while (true) {
+			long balance = accounts.balanceAt(slot);
+			if (accounts.compareAndSetBalanceAt(slot, balance, Money.add(balance, amount))) {
+				return;
+			}
+		}
+	}
+
+	private void recordMove(int fromSlot, int toSlot, int kind, long timestamp, long amount) {
+		history.record(fromSlot, kind, timestamp, -amount);
+		history.record(toSlot, kind, timestamp, amount);
+	}
+
+	private long append(int kind, int accountNum, int slot, long amount, long aux, int arg1) {
+		return journal == null ? 0 : journal.append(kind, accountNum, amount, aux, 0, arg1, accounts, slot, -1);
+	}
+
+	/**
+	 * A reversal names the same accounts as the transfer it reverses, so
+	 * its record holds the accounts of the money moving back swapped.
+	 */
+	private long appendMove(int from, int fromSlot, int to, int toSlot, long amount, int kind, long aux, int arg1) {
+		if (journal == null) {
+			return 0;
+		}
+		if (kind == JournalRecord.REVERSAL) {
+			return journal.append(kind, to, amount, aux, from, arg1, accounts, toSlot, fromSlot);
+		}
+		return journal.append(kind, from, amount, aux, to, arg1, accounts, fromSlot, toSlot);
+	}
+
+	private void awaitDurable(long lsn) {
+		if (journal != null) {
+			journal.awaitDurable(lsn);
+			JournalShipper replication = shipper;
+			if (replication != null) {
+				replication.awaitReplicated(lsn);
+			}
+		}
+	}
+
+	/**
+	 * Applies a replayed record. A reversal of a reversal, or a second
+	 * reversal of the same record within the replayed journal, means the
+	 * journal is corrupt, and recovery stops.
+	 * @param record
+	 * @param reversed sequence numbers reversed so far in this replay
+	 */
+	private void replay(JournalRecord record, Set<Long> reversed) {
+		if (record.kind() == JournalRecord.REVERSAL
+				&& (record.arg1() == JournalRecord.REVERSAL || !reversed.add(record.aux()))) {
+			throw new IllegalStateException("Journal record at " + record.lsn() + " reverses record "
+					+ record.aux() + ", which is a reversal or already reversed");
+		}
+		if (record.kind() == JournalRecord.DEBIT && record.arg1() != 0) {
+			synchronized (openTransfers) {
+				holdCheckpoint(record.lsn() - JournalRecord.SIZE);
+				openTransfers.put(record.lsn(), record.lsn() - JournalRecord.SIZE);
+			}
+		} else if (record.kind() == JournalRecord.SETTLED) {
+			synchronized (openTransfers) {
+				Long floor = openTransfers.remove(record.aux());
+				if (floor != null) {
+					releaseCheckpoint(floor);
+				}
+			}
+		}
+		if (record.kind() == JournalRecord.CREATE) {
+			maxAccountNum = Math.max(maxAccountNum, record.account());
+			if (record.arg1() != 0) {
+				customers.add(record.arg1(), record.account());
+			}
+		} else {
+			slotOf(record.account());
+			if (isTransfer(record)) {
+				slotOf(record.arg0());
+			}
+		}
+		apply(accounts, record);
+	}
+
+	/**
+	 * Fills the history ring of a new or recovered slot from the journal,
+	 * walking the account's chain of records back from its last one, so
+	 * recent transactions survive a restart whether or not they fall in
+	 * the replayed tail. Does nothing while the journal is being replayed;
+	 * the accounts loaded by then are seeded once it has been.
+	 * @param slot
+	 * @param accountNum
+	 * @param lastLsn sequence number of the account's last record, 0 for none
+	 */
+	private void seedHistory(int slot, int accountNum, long lastLsn) {
+		if (journal == null || lastLsn == 0) {
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(JournalRecord.SIZE);
+		CRC32C crc = new CRC32C();
+		JournalRecord record = new JournalRecord();
+		long[] entries = new long[TransactionHistory.DEPTH * TransactionHistory.ENTRY_WORDS];
+		int count = 0;
+		long lsn = lastLsn;
+		while (lsn != 0 && count < TransactionHistory.DEPTH) {
+			journal.readDurable(lsn, buffer, crc, record);
+			if (record.kind() != JournalRecord.CREATE && record.kind() != JournalRecord.PASSWORD
+					&& record.kind() != JournalRecord.SETTLED) {
+				int entry = count++ * TransactionHistory.ENTRY_WORDS;
+				entries[entry] = record.kind();
+				entries[entry + 1] = record.timestamp();
+				entries[entry + 2] = historyAmount(record, accountNum);
+			}
+			lsn = record.account() == accountNum ? record.prev0() : record.prev1();
+		}
+		for (int i = count - 1; i >= 0; i--) {
+			int entry = i * TransactionHistory.ENTRY_WORDS;
+			history.record(slot, (int) entries[entry], entries[entry + 1], entries[entry + 2]);
+		}
+	}
+
+	/**
+	 * The signed amount a record moved into the account.
+	 * @param record
+	 * @param accountNum the record's account or, for a transfer, its arg0 account
+	 */
+	private static long historyAmount(JournalRecord record, int accountNum) {
+		long amount = record.amount();
+		switch (record.kind()) {
+		case JournalRecord.DEBIT:
+		case JournalRecord.WITHDRAWAL:
+			return -amount;
+		case JournalRecord.TRANSFER:
+			return record.account() == accountNum ? -amount : amount;
+		case JournalRecord.REVERSAL:
+			if (record.arg1() == JournalRecord.TRANSFER) {
+				return record.account() == accountNum ? amount : -amount;
+			}
+			return record.arg1() == JournalRecord.CREDIT ? -amount : amount;
+		default:
+			return amount;
+		}
+	}
+
+	private static boolean isTransfer(JournalRecord record) {
+		return record.kind() == JournalRecord.TRANSFER
+				|| record.kind() == JournalRecord.REVERSAL && record.arg1() == JournalRecord.TRANSFER;
+	}
+
+	/**
+	 * Applies one journal record to a table; shared by recovery and checkpointing.
+	 * @param table
+	 * @param record
+	 */
+	static void apply(AccountTable table, JournalRecord record) {
+		apply(table, record, 1, 0);
+	}
+
+	/**
+	 * Applies only the legs of a journal record that touch accounts of one
+	 * partition, for rebuilding a table with one thread per partition.
+	 * @param table
+	 * @param record
+	 * @param partitions
+	 * @param partition
+	 */
+	static void apply(AccountTable table, JournalRecord record, int partitions, int partition) {
+		int account = record.account();
+		boolean owned = ownedBy(account, partitions, partition);
+		switch (record.kind()) {
+		case JournalRecord.CREATE:
+			if (owned) {
+				table.insert(account, record.arg1(), record.amount(), record.aux(), 0, record.arg0(), 0, record.lsn());
+			}
+			break;
+		case JournalRecord.DEBIT:
+			if (owned) {
+				adjustBalance(table, record, account, -record.amount());
+			}
+			break;
+		case JournalRecord.WITHDRAWAL:
+			if (owned) {
+				int slot = adjustBalance(table, record, account, -record.amount());
+				table.setDailyWithdrawalsAt(slot, DailyWithdrawals.add(table.dailyWithdrawalsAt(slot),
+						DailyWithdrawals.dayOf(record.timestamp()), record.amount()));
+			}
+			break;
+		case JournalRecord.CREDIT:
+			if (owned) {
+				adjustBalance(table, record, account, record.amount());
+			}
+			break;
+		case JournalRecord.REFUND:
+			if (owned) {
+				int slot = adjustBalance(table, record, account, record.amount());
+				table.setDailyWithdrawalsAt(slot, DailyWithdrawals.subtract(table.dailyWithdrawalsAt(slot),
+						DailyWithdrawals.dayOf(record.timestamp()), record.amount()));
+			}
+			break;
+		case JournalRecord.TRANSFER:
+			if (owned) {
+				adjustBalance(table, record, account, -record.amount());
+			}
+			if (ownedBy(record.arg0(), partitions, partition)) {
+				adjustBalance(table, record, record.arg0(), record.amount());
+			}
+			break;
+		case JournalRecord.PASSWORD:
+			if (owned) {
+				table.setPasswordAt(journaledSlotOf(table, record, account), record.amount(), record.aux());
+			}
+			break;
+		case JournalRecord.SETTLED:
+			if (owned) {
+				journaledSlotOf(table, record, account);
+			}
+			break;
+		case JournalRecord.REVERSAL:
+			if (owned) {
+				adjustBalance(table, record, account,
+						record.arg1() == JournalRecord.CREDIT ? -record.amount() : record.amount());
+			}
+			if (record.arg1() == JournalRecord.TRANSFER && ownedBy(record.arg0(), partitions, partition)) {
+				adjustBalance(table, record, record.arg0(), -record.amount());
+			}
+			break;
+		default:
+			throw new IllegalStateException("Unknown journal record kind " + record.kind());
+		}
+	}
+
+	/**
+	 *
+	 * @param accountNum
+	 * @param partitions
+	 * @param partition
+	 */
+	static boolean ownedBy(int accountNum, int partitions, int partition) {
+		return partitions == 1 || Integer.remainderUnsigned(AccountTable.mix(accountNum), partitions) == partition;
+	}
+
+	private static int adjustBalance(AccountTable table, JournalRecord record, int accountNum, long delta) {
+		int slot = journaledSlotOf(table, record, accountNum);
+		table.setBalanceAt(slot, Money.add(table.balanceAt(slot), delta));
+		return slot;
+	}
+
+	/**
+	 * Slot of an account a replayed record touches; the record becomes the
+	 * account's last one.
+	 */
+	private static int journaledSlotOf(AccountTable table, JournalRecord record, int accountNum) {
+		int slot = table.slotOf(accountNum);
+		if (slot < 0) {
+			throw new IllegalStateException("Journal refers to unknown account " + accountNum);
+		}
+		table.setLastLsnAt(slot, record.lsn());
+		return slot;
+	}
+
+	/**
+	 * Returns the live slot of the account, copying it in from the mapped
+	 * snapshot on first use.
+	 */
+	private int slotOf(int accountNum) {
+		int slot = accounts.slotOf(accountNum);
+		if (slot < 0 && snapshot != null) {
+			slot = hydrate(accountNum);
+		}
+		if (slot < 0) {
+			throw new IllegalArgumentException("Unknown account: " + accountNum);
+		}
+		return slot;
+	}
+
+	private synchronized int hydrate(int accountNum) {
+		int slot = accounts.slotOf(accountNum);
+		if (slot >= 0) {
+			return slot;
+		}
+		int snapshotSlot = snapshot.slotOf(accountNum);
+		if (snapshotSlot < 0) {
+			return -1;
+		}
+		long lastLsn = snapshot.lastLsnAt(snapshotSlot);
+		return accounts.insert(accountNum, snapshot.customerIdAt(snapshotSlot), snapshot.balanceAt(snapshotSlot),
+				snapshot.passwordHashAt(snapshotSlot), snapshot.passwordSaltAt(snapshotSlot),
+				snapshot.accountTypeAt(snapshotSlot), snapshot.dailyWithdrawalsAt(snapshotSlot), lastLsn,
+				live -> seedHistory(live, accountNum, lastLsn));
+	}
+
+	/**
+	 * Adds the accounts of the mapped snapshot to the customer index. This
+	 * scans the whole snapshot, so it is done on the first customer lookup
+	 * rather than at startup; accounts created since the snapshot are
+	 * indexed as they are created or replayed.
+	 */
+	private void indexSnapshotCustomers() {
+		if (snapshot == null || snapshotCustomersIndexed) {
+			return;
+		}
+		synchronized (customers) {
+			if (snapshotCustomersIndexed) {
+				return;
+			}
+			for (int slot = 0; slot < snapshot.capacity(); slot++) {
+				int customerId = snapshot.customerIdAt(slot);
+				if (customerId != 0 && snapshot.accountNumAt(slot) != AccountTable.EMPTY) {
+					customers.add(customerId, snapshot.accountNumAt(slot));
+				}
+			}
+			snapshotCustomersIndexed = true;
+		}
+	}
+
+	private static void checkAmount(long amount) {
+		if (amount < 0) {
+			throw new IllegalArgumentException("Amount must not be negative: " + amount);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (shipper != null) {
+			shipper.close();
+		}
+		if (checkpointer != null) {
+			checkpointer.close();
+		}
+		if (journal != null) {
+			journal.close();
+		}
+	}
+
+}
@@ -1,9 +1,11 @@
 package com.bankbankatm;
 
+import java.util.concurrent.CompletableFuture;
+
 public class Deposit extends Transaction {
 
 	private int to;
-	private Money amount;
+	private final MutableMoney amount = new MutableMoney();
 
 	/**
 	 * 
@@ -13,8 +15,16 @@ public class Deposit extends Transaction {
 	 * @param pin
 	 */
 	public Deposit(ATM atm, Session session, Card card, int pin) {
-		// TODO - implement Deposit.Deposit
-		throw new UnsupportedOperationException();
+		super(atm, session, card, pin);
+		this.to = card.getNumber();
+	}
+
+	/**
+	 * 
+	 * @param amount
+	 */
+	public void setAmount(Money amount) {
+		this.amount.set(amount);
 	}
 
 	public Message getSpecificsFromCustomer() {
@@ -23,8 +33,24 @@ public class Deposit extends Transaction {
 	}
 
 	public Receipt completeTransaction() {
-		// TODO - implement Deposit.completeTransaction
-		throw new UnsupportedOperationException();
+		atm.getDatabase().plusBalance(to, amount.getMinorUnits());
+		return Receipt.of("Deposit", to, amount.getMinorUnits());
+	}
+
+	/**
+	 * Credits the account at the bank without holding a thread while the
+	 * bank answers; without a bank link the local database is credited.
+	 */
+	public CompletableFuture<Receipt> completeTransactionAsync() {
+		NetworkToBank network = atm.getNetworkToBank();
+		if (network == null) {
+			return CompletableFuture.completedFuture(completeTransaction());
+		}
+		return network.sendMessageAsync(new Message(Message.CREDIT, to, amount.getMinorUnits()), null)
+				.thenApply(status -> status == Status.SUCCESS
+						? Receipt.of("Deposit", to, amount.getMinorUnits())
+						: new Receipt(Status.FAILURE, "Deposit refused"))
+				.exceptionally(this::unavailable);
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,64 @@
+package com.bankbankatm;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct buffers of one size. Direct buffers are costly to
+ * allocate and free, so buffers that go back to the pool are handed out
+ * again; beyond the pool's capacity they are left to the collector.
+ */
+public class DirectBufferPool {
+
+	private final int bufferBytes;
+	private final int capacity;
+	private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	/**
+	 *
+	 * @param bufferBytes
+	 * @param capacity most buffers kept for reuse
+	 */
+	public DirectBufferPool(int bufferBytes, int capacity) {
+		if (bufferBytes <= 0 || capacity < 0) {
+			throw new IllegalArgumentException("Invalid buffer size " + bufferBytes + " or capacity " + capacity);
+		}
+		this.bufferBytes = bufferBytes;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns a cleared buffer.
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = free.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(bufferBytes);
+		}
+		pooled.decrementAndGet();
+		return buffer;
+	}
+
+	/**
+	 * Hands a buffer back; the caller must not use it afterwards.
+	 * @param buffer
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer.capacity() != bufferBytes || !buffer.isDirect()) {
+			throw new IllegalArgumentException("Buffer does not belong to this pool");
+		}
+		if (pooled.incrementAndGet() > capacity) {
+			pooled.decrementAndGet();
+			return;
+		}
+		free.add(buffer.clear());
+	}
+
+	public int getPooledCount() {
+		return pooled.get();
+	}
+
+}
@@ -0,0 +1,109 @@
+package com.bankbankatm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The replication epochs a group member has promised and led, kept next
+ * to its journal. A member promises every epoch it follows, and never
+ * follows a primary of an earlier epoch afterwards; a primary that meets
+ * a member with a later promise stops writing. The last epoch the member
+ * led marks the records it committed as primary, which it must not drop
+ * when it rejoins as a backup. The file is replaced atomically on every
+ * change.
+ */
+public class EpochFile {
+
+	private static final int BYTES = Integer.BYTES * 2;
+
+	private final Path file;
+	private int promised;
+	private int led;
+
+	/**
+	 * Reads the file, if it exists.
+	 * @param file
+	 */
+	public EpochFile(Path file) throws IOException {
+		this.file = file;
+		if (Files.exists(file)) {
+			ByteBuffer buffer = ByteBuffer.allocate(BYTES);
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+					// keep reading
+				}
+			}
+			if (buffer.hasRemaining()) {
+				throw new IOException("Epoch file is truncated: " + file);
+			}
+			buffer.flip();
+			this.promised = buffer.getInt();
+			this.led = buffer.getInt();
+		}
+	}
+
+	/**
+	 * Where the epochs of the member keeping the given journal are kept.
+	 * @param journalFile
+	 */
+	public static Path fileFor(Path journalFile) {
+		return journalFile.resolveSibling(journalFile.getFileName() + ".epoch");
+	}
+
+	/**
+	 * Highest epoch the member has promised to follow or led.
+	 */
+	public synchronized int promised() {
+		return promised;
+	}
+
+	/**
+	 * Last epoch the member led, 0 for none.
+	 */
+	public synchronized int led() {
+		return led;
+	}
+
+	/**
+	 * Promises to follow no primary of an epoch before the given one.
+	 * @param epoch
+	 */
+	public synchronized void promise(int epoch) throws IOException {
+		if (epoch > promised) {
+			write(epoch, led);
+		}
+	}
+
+	/**
+	 * Records that the member leads the given epoch, which must be later
+	 * than any it has promised.
+	 * @param epoch
+	 */
+	public synchronized void lead(int epoch) throws IOException {
+		if (epoch <= promised) {
+			throw new IllegalArgumentException("Epoch " + epoch + " is not after promised epoch " + promised);
+		}
+		write(epoch, epoch);
+	}
+
+	private void write(int promised, int led) throws IOException {
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer buffer = ByteBuffer.allocate(BYTES).putInt(promised).putInt(led).flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this.promised = promised;
+		this.led = led;
+	}
+
+}
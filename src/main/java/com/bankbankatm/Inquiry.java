@@ -1,8 +1,12 @@
 package com.bankbankatm;
 
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+
 public class Inquiry extends Transaction {
 
 	private int from;
+	private final AccountSnapshot snapshot = new AccountSnapshot();
 
 	/**
 	 * 
@@ -12,8 +16,8 @@ public class Inquiry extends Transaction {
 	 * @param pin
 	 */
 	public Inquiry(ATM atm, Session session, Card card, int pin) {
-		// TODO - implement Inquiry.Inquiry
-		throw new UnsupportedOperationException();
+		super(atm, session, card, pin);
+		this.from = card.getNumber();
 	}
 
 	public Message getSpecificsFromCustomer() {
@@ -22,8 +26,36 @@ public class Inquiry extends Transaction {
 	}
 
 	public Receipt completeTransaction() {
-		// TODO - implement Inquiry.completeTransaction
-		throw new UnsupportedOperationException();
+		atm.getDatabase().readSnapshot(from, snapshot);
+		int count = snapshot.getRecentCount();
+		String[] lines = new String[count + 2];
+		lines[0] = "Account " + from;
+		lines[1] = "Balance " + Money.of(snapshot.getBalance());
+		for (int i = 0; i < count; i++) {
+			long amount = snapshot.recentAmount(i);
+			lines[i + 2] = Instant.ofEpochMilli(snapshot.recentTimestamp(i)) + " "
+					+ TransactionHistory.describe(snapshot.recentKind(i), amount) + " " + Money.of(amount);
+		}
+		return new Receipt(Status.SUCCESS, lines);
+	}
+
+	/**
+	 * Asks the bank for the balance without holding a thread while it
+	 * answers; without a bank link the local database is read, recent
+	 * transactions included.
+	 */
+	public CompletableFuture<Receipt> completeTransactionAsync() {
+		NetworkToBank network = atm.getNetworkToBank();
+		if (network == null) {
+			return CompletableFuture.completedFuture(completeTransaction());
+		}
+		Balances balances = new Balances();
+		return network.sendMessageAsync(new Message(Message.BALANCE, from, 0), balances)
+				.thenApply(status -> status == Status.SUCCESS
+						? new Receipt(Status.SUCCESS, "Account " + from, "Balance " + Money.of(balances.getTotal()),
+								"Available " + Money.of(balances.getAvailable()))
+						: new Receipt(Status.FAILURE, "Unknown account"))
+				.exceptionally(this::unavailable);
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,510 @@
+package com.bankbankatm;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Storage engine backed by a relational database through JDBC, meant for an
+ * embedded database whose driver is on the class path. Every operation is
+ * a single statement in auto-commit mode, but for a transfer, whose debit
+ * and credit are one transaction; a debit is one conditional UPDATE, so
+ * the balance check and the update are atomic in the database.
+ * A withdrawal's daily total is kept in the row the same way as
+ * {@link DailyWithdrawals} keeps it: the day and that day's total, reset
+ * by the first withdrawal of a later day. Passwords are stored as a
+ * {@link PasswordHash} salt word and key.
+ *
+ * Connections are opened up front, each with its statements prepared once,
+ * and callers borrow one for the duration of a call.
+ */
+public class JdbcStorageEngine implements StorageEngine {
+
+	private static final String CREATE_TABLE = "CREATE TABLE accounts (account_num INT PRIMARY KEY,"
+			+ " password_hash BIGINT NOT NULL, account_type INT NOT NULL, balance BIGINT NOT NULL,"
+			+ " withdrawn_day INT DEFAULT 0 NOT NULL, withdrawn_total BIGINT DEFAULT 0 NOT NULL,"
+			+ " password_salt BIGINT DEFAULT 0 NOT NULL)";
+	private static final String[] ADD_DAILY_COLUMNS = {
+			"ALTER TABLE accounts ADD COLUMN withdrawn_day INT DEFAULT 0 NOT NULL",
+			"ALTER TABLE accounts ADD COLUMN withdrawn_total BIGINT DEFAULT 0 NOT NULL" };
+	private static final String ADD_SALT_COLUMN =
+			"ALTER TABLE accounts ADD COLUMN password_salt BIGINT DEFAULT 0 NOT NULL";
+	private static final String MAX_ACCOUNT_NUM = "SELECT MAX(account_num) FROM accounts";
+
+	private final BlockingQueue<PooledConnection> pool;
+	private final AccountNumberSequence sequence;
+	private volatile long dailyWithdrawalLimit = Long.MAX_VALUE / 2;
+	private volatile CredentialCache credentials;
+
+	/**
+	 *
+	 * @param url JDBC URL of the database
+	 * @param connections number of pooled connections
+	 */
+	public JdbcStorageEngine(String url, int connections) throws IOException {
+		if (connections <= 0) {
+			throw new IllegalArgumentException("connections must be positive: " + connections);
+		}
+		this.pool = new ArrayBlockingQueue<>(connections);
+		try {
+			long maxAccountNum;
+			try (Connection connection = DriverManager.getConnection(url)) {
+				maxAccountNum = prepareSchema(connection);
+			}
+			for (int i = 0; i < connections; i++) {
+				pool.add(PooledConnection.open(url));
+			}
+			this.sequence = new AccountNumberSequence(maxAccountNum + 1);
+		} catch (SQLException e) {
+			close();
+			throw new IOException("Cannot open JDBC storage at " + url, e);
+		}
+	}
+
+	public String selectPasswordByAccountNum(int accountNum) {
+		PooledConnection pooled = borrow();
+		try {
+			pooled.selectPassword.setInt(1, accountNum);
+			try (ResultSet result = pooled.selectPassword.executeQuery()) {
+				if (!result.next()) {
+					throw new IllegalArgumentException("Unknown account: " + accountNum);
+				}
+				return PasswordHash.encode(result.getLong(1), result.getLong(2));
+			}
+		} catch (SQLException e) {
+			throw failure(e);
+		} finally {
+			pool.add(pooled);
+		}
+	}
+
+	public boolean minusBalance(int accountNum, long amount) {
+		checkAmount(amount);
+		PooledConnection pooled = borrow();
+		try {
+			pooled.debit.setLong(1, amount);
+			pooled.debit.setInt(2, accountNum);
+			pooled.debit.setLong(3, amount);
+			if (pooled.debit.executeUpdate() == 1) {
+				return true;
+			}
+		} catch (SQLException e) {
+			throw failure(e);
+		} finally {
+			pool.add(pooled);
+		}
+		checkTheBalance(accountNum);
+		return false;
+	}
+
+	public boolean withdraw(int accountNum, long amount) {
+		return tryWithdraw(accountNum, amount) == WITHDRAWN;
+	}
+
+	/**
+	 * Withdraws in one statement; when it changes no row, the balance read
+	 * afterwards tells which condition refused it.
+	 * @param accountNum
+	 * @param amount
+	 */
+	public int tryWithdraw(int accountNum, long amount) {
+		checkAmount(amount);
+		long limit = dailyWithdrawalLimit;
+		if (!DailyWithdrawals.fits(0, amount, limit)) {
+			checkTheBalance(accountNum);
+			return DAILY_LIMIT_EXCEEDED;
+		}
+		int today = DailyWithdrawals.dayOf(System.currentTimeMillis());
+		PooledConnection pooled = borrow();
+		try {
+			PreparedStatement withdraw = pooled.withdraw;
+			withdraw.setLong(1, amount);
+			withdraw.setInt(2, today);
+			withdraw.setLong(3, amount);
+			withdraw.setLong(4, amount);
+			withdraw.setInt(5, today);
+			withdraw.setInt(6, accountNum);
+			withdraw.setLong(7, amount);
+			withdraw.setInt(8, today);
+			withdraw.setLong(9, Math.min(limit, DailyWithdrawals.MAX_TOTAL) - amount);
+			if (withdraw.executeUpdate() == 1) {
+				return WITHDRAWN;
+			}
+		} catch (SQLException e) {
+			throw failure(e);
+		} finally {
+			pool.add(pooled);
+		}
+		return checkTheBalance(accountNum) < amount ? INSUFFICIENT_FUNDS : DAILY_LIMIT_EXCEEDED;
+	}
+
+	/**
+	 * Credits back a withdrawal whose cash was not dispensed and takes the
+	 * amount off today's withdrawal total, in one statement.
+	 * @param accountNum
+	 * @param amount
+	 */
+	public void returnWithdrawal(int accountNum, long amount) {
+		checkAmount(amount);
+		int today = DailyWithdrawals.dayOf(System.currentTimeMillis());
+		PooledConnection pooled = borrow();
+		try {
+			PreparedStatement returnWithdrawal = pooled.returnWithdrawal;
+			returnWithdrawal.setLong(1, amount);
+			returnWithdrawal.setInt(2, today);
+			returnWithdrawal.setLong(3, amount);
+			returnWithdrawal.setLong(4, amount);
+			returnWithdrawal.setInt(5, accountNum);
+			if (returnWithdrawal.executeUpdate() != 1) {
+				throw new IllegalArgumentException("Unknown account: " + accountNum);
+			}
+		} catch (SQLException e) {
+			throw failure(e);
+		} finally {
+			pool.add(pooled);
+		}
+	}
+
+	/**
+	 * Sets the per-account daily withdrawal limit, in minor units.
+	 * @param limit
+	 */
+	public void setDailyWithdrawalLimit(long limit) {
+		checkAmount(limit);
+		this.dailyWithdrawalLimit = limit;
+	}
+
+	public void plusBalance(int accountNum, long amount) {
+		checkAmount(amount);
+		PooledConnection pooled = borrow();
+		try {
+			pooled.credit.setLong(1, amount);
+			pooled.credit.setInt(2, accountNum);
+			if (pooled.credit.executeUpdate() != 1) {
+				throw new IllegalArgumentException("Unknown account: " + accountNum);
+			}
+		} catch (SQLException e) {
+			throw failure(e);
+		} finally {
+			pool.add(pooled);
+		}
+	}
+
+	public boolean transfer(int from, int to, long amount) {
+		checkAmount(amount);
+		if (from == to) {
+			throw new IllegalArgumentException("Cannot transfer to the same account: " + from);
+		}
+		PooledConnection pooled = borrow();
+		try {
+			Connection connection = pooled.connection;
+			connection.setAutoCommit(false);
+			try {
+				pooled.debit.setLong(1, amount);
+				pooled.debit.setInt(2, from);
+				pooled.debit.setLong(3, amount);
+				if (pooled.debit.executeUpdate() == 1) {
+					pooled.credit.setLong(1, amount);
+					pooled.credit.setInt(2, to);
+					if (pooled.credit.executeUpdate() != 1) {
+						connection.rollback();
+						throw new IllegalArgumentException("Unknown account: " + to);
+					}
+					connection.commit();
+					return true;
+				}
+				connection.rollback();
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			throw failure(e);
+		} finally {
+			pool.add(pooled);
+		}
+		checkTheBalance(from);
+		return false;
+	}
+
+	public long checkTheBalance(int accountNum) {
+		PooledConnection pooled = borrow();
+		try {
+			pooled.selectBalance.setInt(1, accountNum);
+			try (ResultSet result = pooled.selectBalance.executeQuery()) {
+				if (!result.next()) {
+					throw new IllegalArgumentException("Unknown account: " + accountNum);
+				}
+				return result.getLong(1);
+			}
+		} catch (SQLException e) {
+			throw failure(e);
+		} finally {
+			pool.add(pooled);
+		}
+	}
+
+	public int createNewAccount(String password, int accountType, long openingBalance) {
+		checkAmount(openingBalance);
+		long passwordSalt = PasswordHash.newSalt();
+		long passwordHash = PasswordHash.hash(password, passwordSalt);
+		int accountNum = sequence.next();
+		PooledConnection pooled = borrow();
+		try {
+			pooled.insert.setInt(1, accountNum);
+			pooled.insert.setLong(2, passwordHash);
+			pooled.insert.setInt(3, accountType);
+			pooled.insert.setLong(4, openingBalance);
+			pooled.insert.setLong(5, passwordSalt);
+			pooled.insert.executeUpdate();
+			return accountNum;
+		} catch (SQLException e) {
+			throw failure(e);
+		} finally {
+			pool.add(pooled);
+		}
+	}
+
+	/**
+	 * Replaces the account's password if the old one matches. The new
+	 * password is written only if the stored one is still the one that was
+	 * checked, so a concurrent change makes this one fail.
+	 * @param accountNum
+	 * @param oldPassword
+	 * @param newPassword
+	 */
+	public boolean changePassword(int accountNum, String oldPassword, String newPassword) {
+		long oldSalt;
+		long oldHash;
+		PooledConnection pooled = borrow();
+		try {
+			pooled.selectPassword.setInt(1, accountNum);
+			try (ResultSet result = pooled.selectPassword.executeQuery()) {
+				if (!result.next()) {
+					throw new IllegalArgumentException("Unknown account: " + accountNum);
+				}
+				oldSalt = result.getLong(1);
+				oldHash = result.getLong(2);
+			}
+		} catch (SQLException e) {
+			throw failure(e);
+		} finally {
+			pool.add(pooled);
+		}
+		if (!PasswordHash.matches(oldPassword, oldSalt, oldHash)) {
+			return false;
+		}
+		long newSalt = PasswordHash.newSalt();
+		long newHash = PasswordHash.hash(newPassword, newSalt);
+		pooled = borrow();
+		try {
+			PreparedStatement changePassword = pooled.changePassword;
+			changePassword.setLong(1, newSalt);
+			changePassword.setLong(2, newHash);
+			changePassword.setInt(3, accountNum);
+			changePassword.setLong(4, oldSalt);
+			changePassword.setLong(5, oldHash);
+			if (changePassword.executeUpdate() != 1) {
+				return false;
+			}
+		} catch (SQLException e) {
+			throw failure(e);
+		} finally {
+			pool.add(pooled);
+		}
+		invalidateCredentials(accountNum);
+		return true;
+	}
+
+	/**
+	 * The cache of password hashes in front of this engine, created on
+	 * first use and shared by everyone who asks for it.
+	 */
+	public CredentialCache getCredentials() {
+		CredentialCache cache = credentials;
+		if (cache == null) {
+			synchronized (this) {
+				cache = credentials;
+				if (cache == null) {
+					cache = new CredentialCache(this);
+					credentials = cache;
+				}
+			}
+		}
+		return cache;
+	}
+
+	@Override
+	public void close() throws IOException {
+		SQLException failure = null;
+		PooledConnection pooled;
+		while ((pooled = pool.poll()) != null) {
+			try {
+				pooled.connection.close();
+			} catch (SQLException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw new IOException("Cannot close JDBC storage", failure);
+		}
+	}
+
+	/**
+	 * Creates the accounts table if it does not exist yet, adds the daily
+	 * withdrawal and password salt columns to a table made before they
+	 * existed, and returns the highest account number in it.
+	 */
+	private static long prepareSchema(Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			if (!hasTable(connection, "accounts")) {
+				statement.executeUpdate(CREATE_TABLE);
+			}
+			if (!hasColumn(connection, "accounts", "withdrawn_day")) {
+				for (String alter : ADD_DAILY_COLUMNS) {
+					statement.executeUpdate(alter);
+				}
+			}
+			if (!hasColumn(connection, "accounts", "password_salt")) {
+				statement.executeUpdate(ADD_SALT_COLUMN);
+			}
+			return maxAccountNum(statement);
+		}
+	}
+
+	/**
+	 * Looks the table up in the database's metadata, in the case the
+	 * database stores unquoted names in.
+	 */
+	private static boolean hasTable(Connection connection, String table) throws SQLException {
+		DatabaseMetaData metadata = connection.getMetaData();
+		try (ResultSet tables = metadata.getTables(null, null, storedName(metadata, table),
+				new String[] { "TABLE" })) {
+			return tables.next();
+		}
+	}
+
+	/**
+	 * Looks the column up in the database's metadata, in the case the
+	 * database stores unquoted names in.
+	 */
+	private static boolean hasColumn(Connection connection, String table, String column) throws SQLException {
+		DatabaseMetaData metadata = connection.getMetaData();
+		try (ResultSet columns = metadata.getColumns(null, null, storedName(metadata, table),
+				storedName(metadata, column))) {
+			return columns.next();
+		}
+	}
+
+	private static String storedName(DatabaseMetaData metadata, String name) throws SQLException {
+		if (metadata.storesUpperCaseIdentifiers()) {
+			return name.toUpperCase(Locale.ROOT);
+		}
+		if (metadata.storesLowerCaseIdentifiers()) {
+			return name.toLowerCase(Locale.ROOT);
+		}
+		return name;
+	}
+
+	private static long maxAccountNum(Statement statement) throws SQLException {
+		try (ResultSet result = statement.executeQuery(MAX_ACCOUNT_NUM)) {
+			return result.next() ? result.getLong(1) : 0;
+		}
+	}
+
+	private void invalidateCredentials(int accountNum) {
+		CredentialCache cache = credentials;
+		if (cache != null) {
+			cache.invalidate(accountNum);
+		}
+	}
+
+	private PooledConnection borrow() {
+		try {
+			return pool.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for a JDBC connection", e);
+		}
+	}
+
+	private static IllegalStateException failure(SQLException e) {
+		return new IllegalStateException("JDBC storage failed", e);
+	}
+
+	private static void checkAmount(long amount) {
+		if (amount < 0) {
+			throw new IllegalArgumentException("Amount must not be negative: " + amount);
+		}
+	}
+
+	/**
+	 * A pooled connection with its prepared statements.
+	 */
+	private static final class PooledConnection {
+
+		final Connection connection;
+		final PreparedStatement selectPassword;
+		final PreparedStatement selectBalance;
+		final PreparedStatement debit;
+		final PreparedStatement withdraw;
+		final PreparedStatement credit;
+		final PreparedStatement returnWithdrawal;
+		final PreparedStatement insert;
+		final PreparedStatement changePassword;
+
+		/**
+		 * Connects and prepares the statements, closing the connection again
+		 * if one of them cannot be prepared.
+		 */
+		static PooledConnection open(String url) throws SQLException {
+			Connection connection = DriverManager.getConnection(url);
+			try {
+				return new PooledConnection(connection);
+			} catch (SQLException | RuntimeException e) {
+				try {
+					connection.close();
+				} catch (SQLException suppressed) {
+					e.addSuppressed(suppressed);
+				}
+				throw e;
+			}
+		}
+
+		private PooledConnection(Connection connection) throws SQLException {
+			this.connection = connection;
+			connection.setAutoCommit(true);
+			this.selectPassword = connection.prepareStatement(
+					"SELECT password_salt, password_hash FROM accounts WHERE account_num = ?");
+			this.selectBalance = connection.prepareStatement("SELECT balance FROM accounts WHERE account_num = ?");
+			this.debit = connection.prepareStatement(
+					"UPDATE accounts SET balance = balance - ? WHERE account_num = ? AND balance >= ?");
+			this.withdraw = connection.prepareStatement("UPDATE accounts SET balance = balance - ?,"
+					+ " withdrawn_total = CASE WHEN withdrawn_day = ? THEN withdrawn_total + ? ELSE ? END,"
+					+ " withdrawn_day = ? WHERE account_num = ? AND balance >= ?"
+					+ " AND CASE WHEN withdrawn_day = ? THEN withdrawn_total ELSE 0 END <= ?");
+			this.credit = connection.prepareStatement(
+					"UPDATE accounts SET balance = balance + ? WHERE account_num = ?");
+			this.returnWithdrawal = connection.prepareStatement("UPDATE accounts SET balance = balance + ?,"
+					+ " withdrawn_total = CASE WHEN withdrawn_day <> ? THEN withdrawn_total"
+					+ " WHEN withdrawn_total > ? THEN withdrawn_total - ? ELSE 0 END WHERE account_num = ?");
+			this.insert = connection.prepareStatement(
+					"INSERT INTO accounts (account_num, password_hash, account_type, balance, password_salt)"
+							+ " VALUES (?, ?, ?, ?, ?)");
+			this.changePassword = connection.prepareStatement(
+					"UPDATE accounts SET password_salt = ?, password_hash = ? WHERE account_num = ?"
+							+ " AND password_salt = ? AND password_hash = ?");
+		}
+	}
+
+}
@@ -0,0 +1,511 @@
+package com.bankbankatm;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only write-ahead journal of account mutations with group commit.
+ *
+ * Writers append a record into an in-memory batch and get back its log
+ * sequence number (the file offset just past the record). Waiting for
+ * durability is a separate step: the first waiter becomes the leader,
+ * swaps the batch out, writes it and forces the file once, while records
+ * appended meanwhile collect in the other batch for the next leader. Every
+ * writer whose record made it into a batch is released by that one fsync.
+ */
+public class Journal implements Closeable {
+
+	private static final int BATCH_BYTES = JournalRecord.SIZE * 8192;
+	static final int READ_BYTES = JournalRecord.SIZE * 65536;
+	private static final long STOP_FOLLOWING = -1;
+
+	private final FileChannel channel;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition flushed = lock.newCondition();
+	private final CRC32C crc = new CRC32C();
+	private ByteBuffer active = ByteBuffer.allocateDirect(BATCH_BYTES);
+	private ByteBuffer standby = ByteBuffer.allocateDirect(BATCH_BYTES);
+	private long appendedLsn;
+	private long durableLsn;
+	private long lastTimestamp;
+	private int epoch;
+	private int fencedBy;
+	private boolean flushing;
+	private IOException failure;
+	private volatile Consumer<JournalRecord> follower;
+	private final LinkedBlockingQueue<Long> durableEnds = new LinkedBlockingQueue<>();
+	private Thread followerThread;
+
+	private Journal(FileChannel channel, long length, int epoch) {
+		this.channel = channel;
+		this.appendedLsn = length;
+		this.durableLsn = length;
+		this.epoch = epoch;
+	}
+
+	/**
+	 * Opens the journal, passes every intact record to the handler in order
+	 * and cuts off a torn tail left by a crash.
+	 * @param file
+	 * @param replay
+	 */
+	public static Journal open(Path file, Consumer<JournalRecord> replay) throws IOException {
+		return open(file, 0, replay);
+	}
+
+	/**
+	 * Like {@link #open(Path, Consumer)}, but replays only the records at or
+	 * after the given sequence number, typically that of a checkpoint.
+	 * @param file
+	 * @param from
+	 * @param replay
+	 */
+	public static Journal open(Path file, long from, Consumer<JournalRecord> replay) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			if (from > channel.size()) {
+				throw new IOException("Journal " + file + " ends at " + channel.size() + " before checkpoint " + from);
+			}
+			long valid = read(channel, from, Long.MAX_VALUE, replay);
+			if (valid < channel.size()) {
+				channel.truncate(valid);
+				channel.force(true);
+			}
+			channel.position(valid);
+			int[] epoch = new int[1];
+			if (valid > 0) {
+				read(channel, valid - JournalRecord.SIZE, valid, record -> epoch[0] = record.epoch());
+			}
+			return new Journal(channel, valid, epoch[0]);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads intact records in [from, to) and returns the offset just past
+	 * the last one.
+	 * @param channel
+	 * @param from
+	 * @param to
+	 * @param handler
+	 */
+	static long read(FileChannel channel, long from, long to, Consumer<JournalRecord> handler) throws IOException {
+		return read(channel, from, to, ByteBuffer.allocateDirect(READ_BYTES), handler);
+	}
+
+	/**
+	 * Like {@link #read(FileChannel, long, long, Consumer)}, reading through
+	 * the given buffer.
+	 * @param channel
+	 * @param from
+	 * @param to
+	 * @param buffer a whole number of records long
+	 * @param handler
+	 */
+	static long read(FileChannel channel, long from, long to, ByteBuffer buffer, Consumer<JournalRecord> handler)
+			throws IOException {
+		JournalRecord record = new JournalRecord();
+		CRC32C scratch = new CRC32C();
+		long position = from;
+		while (position < to) {
+			int requested = (int) Math.min(buffer.capacity(), to - position);
+			int valid = readChunk(channel, position, requested, buffer, scratch, record);
+			for (int offset = 0; offset < valid; offset += JournalRecord.SIZE) {
+				handler.accept(record.wrap(buffer, offset, position + offset + JournalRecord.SIZE));
+			}
+			position += valid;
+			if (valid < requested) {
+				break;
+			}
+		}
+		return position;
+	}
+
+	/**
+	 * Reads up to the given number of bytes of records starting at the
+	 * position into the buffer and checks them, returning the length of
+	 * the intact records at its start; fewer bytes than requested means
+	 * the journal ends, or is torn, there.
+	 * @param channel
+	 * @param position
+	 * @param length at most the buffer's capacity
+	 * @param buffer
+	 * @param crc scratch checksum
+	 * @param record scratch record
+	 */
+	static int readChunk(FileChannel channel, long position, int length, ByteBuffer buffer, CRC32C crc,
+			JournalRecord record) throws IOException {
+		buffer.clear().limit(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				break;
+			}
+		}
+		int read = buffer.position() - buffer.position() % JournalRecord.SIZE;
+		int valid = 0;
+		while (valid < read && record.wrap(buffer, valid, position + valid + JournalRecord.SIZE).isValid(crc)) {
+			valid += JournalRecord.SIZE;
+		}
+		buffer.clear();
+		return valid;
+	}
+
+	/**
+	 * Adds a record that is not linked to earlier records of its accounts.
+	 */
+	public long append(int kind, int account, long amount, long aux, int arg0, int arg1) {
+		return append(kind, account, amount, aux, arg0, arg1, null, -1, -1);
+	}
+
+	/**
+	 * Adds a record to the current batch and returns its sequence number.
+	 * The record is not durable until {@link #awaitDurable(long)} returns.
+	 * The record is linked to the previous records of its accounts, whose
+	 * sequence numbers the table keeps in the given slots; the table is
+	 * updated in the same step, so the links follow journal order.
+	 * @param links table holding the last sequence number of each account
+	 * @param slot0 slot of the account, -1 for none
+	 * @param slot1 slot of the arg0 account, -1 for none
+	 */
+	public long append(int kind, int account, long amount, long aux, int arg0, int arg1, AccountTable links,
+			int slot0, int slot1) {
+		lock.lock();
+		try {
+			while (active.remaining() < JournalRecord.SIZE) {
+				if (flushing) {
+					flushed.awaitUninterruptibly();
+				} else {
+					flushBatch();
+				}
+			}
+			checkFailure();
+			if (fencedBy != 0) {
+				throw new IllegalStateException("Journal of epoch " + epoch + " is fenced by epoch " + fencedBy);
+			}
+			long lsn = appendedLsn + JournalRecord.SIZE;
+			long prev0 = slot0 < 0 ? 0 : links.getAndSetLastLsnAt(slot0, lsn);
+			long prev1 = slot1 < 0 ? 0 : links.getAndSetLastLsnAt(slot1, lsn);
+			lastTimestamp = Math.max(lastTimestamp, System.currentTimeMillis());
+			JournalRecord.write(active, crc, kind, account, amount, aux, lastTimestamp, arg0, arg1, epoch, prev0,
+					prev1);
+			appendedLsn = lsn;
+			return lsn;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Blocks until the record with the given sequence number is on disk.
+	 * @param lsn
+	 */
+	public void awaitDurable(long lsn) {
+		lock.lock();
+		try {
+			while (durableLsn < lsn) {
+				checkFailure();
+				if (flushing) {
+					flushed.awaitUninterruptibly();
+				} else {
+					flushBatch();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reads back the record with the given sequence number, waiting for it
+	 * to be durable first.
+	 * @param lsn
+	 */
+	public JournalRecord recordAt(long lsn) {
+		if (lsn < JournalRecord.SIZE || lsn % JournalRecord.SIZE != 0) {
+			throw new IllegalArgumentException("Not a journal sequence number: " + lsn);
+		}
+		lock.lock();
+		try {
+			if (lsn > appendedLsn) {
+				throw new IllegalArgumentException("Journal sequence number " + lsn + " is past the end");
+			}
+		} finally {
+			lock.unlock();
+		}
+		awaitDurable(lsn);
+		JournalRecord record = new JournalRecord();
+		readDurable(lsn, ByteBuffer.allocate(JournalRecord.SIZE), new CRC32C(), record);
+		return record;
+	}
+
+	/**
+	 * Reads a record that is known to be durable into the given buffer and
+	 * points the record at it.
+	 * @param lsn
+	 * @param buffer scratch buffer of at least {@link JournalRecord#SIZE} bytes
+	 * @param crc scratch checksum
+	 * @param record
+	 */
+	void readDurable(long lsn, ByteBuffer buffer, CRC32C crc, JournalRecord record) {
+		buffer.clear().limit(JournalRecord.SIZE);
+		try {
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, lsn - JournalRecord.SIZE + buffer.position()) < 0) {
+					throw new EOFException("Journal ends before " + lsn);
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Journal read failed", e);
+		}
+		record.wrap(buffer, 0, lsn);
+		if (!record.isValid(crc)) {
+			throw new IllegalStateException("Journal record at " + lsn + " is corrupt");
+		}
+	}
+
+	/**
+	 * Reads the durable records from the given sequence number on, in
+	 * order, and returns the sequence number of the last one read.
+	 * @param from
+	 * @param buffer scratch buffer, a whole number of records long
+	 * @param handler
+	 */
+	long readDurable(long from, ByteBuffer buffer, Consumer<JournalRecord> handler) throws IOException {
+		return read(channel, from, durableLsn(), buffer, handler);
+	}
+
+	/**
+	 * Copies durable journal bytes starting at the given offset into the
+	 * buffer, up to its limit, which must not reach past the durable end.
+	 * @param position
+	 * @param buffer
+	 */
+	void readDurableBytes(long position, ByteBuffer buffer) {
+		long start = position - buffer.position();
+		try {
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, start + buffer.position()) < 0) {
+					throw new EOFException("Journal ends before " + (start + buffer.limit()));
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Journal read failed", e);
+		}
+	}
+
+	/**
+	 * Waits, without starting a flush, until the journal is durable past the
+	 * given sequence number or the timeout elapses, and returns the durable
+	 * sequence number.
+	 * @param lsn
+	 * @param timeout
+	 * @param unit
+	 */
+	public long awaitDurableBeyond(long lsn, long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			while (durableLsn <= lsn && nanos > 0) {
+				checkFailure();
+				nanos = flushed.awaitNanos(nanos);
+			}
+			return durableLsn;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Replication epoch written into new records: that of the last record
+	 * until {@link #beginEpoch} is called.
+	 */
+	public int epoch() {
+		lock.lock();
+		try {
+			return epoch;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Starts writing records of a later replication epoch, when this
+	 * journal's owner becomes primary.
+	 * @param epoch
+	 */
+	public void beginEpoch(int epoch) {
+		lock.lock();
+		try {
+			if (epoch <= this.epoch) {
+				throw new IllegalArgumentException("Epoch " + epoch + " does not follow epoch " + this.epoch);
+			}
+			this.epoch = epoch;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Refuses every later append, once a primary of a later epoch exists.
+	 * @param by the later epoch
+	 */
+	public void fence(int by) {
+		lock.lock();
+		try {
+			if (by <= epoch) {
+				throw new IllegalArgumentException("Epoch " + by + " cannot fence epoch " + epoch);
+			}
+			fencedBy = Math.max(fencedBy, by);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Passes every record made durable from now on to the follower, in
+	 * order. Each flush only queues the durable end of its batch; a daemon
+	 * thread of the journal reads the new records back and hands them over,
+	 * so a slow follower delays neither appends nor commits.
+	 * @param follower null to stop following
+	 */
+	public void follow(Consumer<JournalRecord> follower) {
+		lock.lock();
+		try {
+			this.follower = follower;
+			if (follower != null && followerThread == null) {
+				long from = durableLsn;
+				followerThread = new Thread(() -> deliver(from), "journal-follower");
+				followerThread.setDaemon(true);
+				followerThread.start();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Follower thread: waits for durable batch ends, coalescing those that
+	 * queued up meanwhile, and reads the records up to the latest one.
+	 */
+	private void deliver(long from) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(BATCH_BYTES);
+		long delivered = from;
+		try {
+			while (true) {
+				long end = durableEnds.take();
+				boolean stop = end == STOP_FOLLOWING;
+				for (Long next = durableEnds.poll(); next != null; next = durableEnds.poll()) {
+					stop |= next == STOP_FOLLOWING;
+					end = Math.max(end, next);
+				}
+				Consumer<JournalRecord> follower = this.follower;
+				if (end > delivered) {
+					delivered = follower == null ? end : read(channel, delivered, end, buffer, follower);
+				}
+				if (stop) {
+					return;
+				}
+			}
+		} catch (InterruptedException | IOException e) {
+			// records left undelivered are for the follower to read itself
+		}
+	}
+
+	public long durableLsn() {
+		lock.lock();
+		try {
+			return durableLsn;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Called by the leader with the lock held; writes and forces the current
+	 * batch with the lock released so appends can continue.
+	 */
+	private void flushBatch() {
+		checkFailure();
+		flushing = true;
+		ByteBuffer batch = active;
+		active = standby;
+		standby = batch;
+		long target = appendedLsn;
+		lock.unlock();
+		IOException error = null;
+		try {
+			batch.flip();
+			while (batch.hasRemaining()) {
+				channel.write(batch);
+			}
+			channel.force(false);
+		} catch (IOException e) {
+			error = e;
+		} finally {
+			batch.clear();
+			lock.lock();
+			flushing = false;
+			if (error != null) {
+				failure = error;
+			} else {
+				durableLsn = target;
+				if (followerThread != null) {
+					durableEnds.add(target);
+				}
+			}
+			flushed.signalAll();
+		}
+		checkFailure();
+	}
+
+	private void checkFailure() {
+		if (failure != null) {
+			throw new UncheckedIOException("Journal write failed", failure);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		Thread following;
+		lock.lock();
+		try {
+			while (flushing) {
+				flushed.awaitUninterruptibly();
+			}
+			if (failure == null && durableLsn < appendedLsn) {
+				flushBatch();
+			}
+		} finally {
+			following = followerThread;
+			if (following != null) {
+				durableEnds.add(STOP_FOLLOWING);
+			}
+			lock.unlock();
+			try {
+				if (following != null) {
+					following.join();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+}
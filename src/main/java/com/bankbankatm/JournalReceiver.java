@@ -0,0 +1,279 @@
+package com.bankbankatm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Backup side of journal replication: keeps a copy of a primary's journal
+ * in a local file, fed by its {@link JournalShipper}. Received records are
+ * checked, written and forced before they are acknowledged, so an
+ * acknowledged record survives a crash of the backup. The copy is an
+ * ordinary journal that a {@link DatabaseProxy} can open on promotion.
+ *
+ * With an {@link EpochFile}, the backup promises the epoch of every
+ * primary it follows before taking its records, and no longer follows a
+ * primary of an earlier epoch. It also refuses to drop the records it
+ * committed itself as primary of the last epoch it led: a primary that
+ * lacks them fails {@link #follow}, since following it would lose
+ * committed records.
+ */
+public class JournalReceiver implements Closeable {
+
+	private final FileChannel channel;
+	private final EpochFile epochs;
+	private final long committed;
+	private final CRC32C crc = new CRC32C();
+	private final JournalRecord record = new JournalRecord();
+	private volatile long length;
+	private int promised;
+	private volatile Socket socket;
+
+	/**
+	 * Opens the local copy, cutting off a torn tail left by a crash.
+	 * @param journalFile
+	 */
+	public JournalReceiver(Path journalFile) throws IOException {
+		this(journalFile, null);
+	}
+
+	/**
+	 * Opens the local copy, cutting off a torn tail left by a crash.
+	 * @param journalFile
+	 * @param epochs the member's epochs, null to follow any primary
+	 */
+	public JournalReceiver(Path journalFile, EpochFile epochs) throws IOException {
+		this.channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		this.epochs = epochs;
+		try {
+			int led = epochs == null ? 0 : epochs.led();
+			long[] end = new long[1];
+			this.length = Journal.read(channel, 0, Long.MAX_VALUE, record -> {
+				if (led != 0 && record.epoch() == led) {
+					end[0] = record.lsn();
+				}
+			});
+			this.committed = end[0];
+			this.promised = epochs == null ? 0 : epochs.promised();
+			truncate(length);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Length of the durable copy, the sequence number of its last record.
+	 */
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * End of the records this member committed as primary, which it never
+	 * drops; 0 for none.
+	 */
+	public long committedLength() {
+		return committed;
+	}
+
+	/**
+	 * Connects to a primary and copies its journal until the connection is
+	 * lost. Returns false when no primary accepted the connection, or the
+	 * one that did is of an earlier epoch than this member has promised,
+	 * and true once a connection to a current primary is lost; fails only
+	 * when the local copy cannot be written or the primary lacks records
+	 * this member committed.
+	 * @param primary
+	 * @param connectTimeoutMillis
+	 * @param readTimeoutMillis how long the primary may stay silent
+	 */
+	public boolean follow(InetSocketAddress primary, int connectTimeoutMillis, int readTimeoutMillis)
+			throws IOException {
+		try (Socket connection = new Socket()) {
+			try {
+				connection.connect(primary, connectTimeoutMillis);
+			} catch (IOException e) {
+				return false;
+			}
+			socket = connection;
+			try {
+				connection.setTcpNoDelay(true);
+				connection.setSoTimeout(readTimeoutMillis);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream(),
+						JournalShipper.FRAME_BYTES + Integer.BYTES));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+				long start = handshake(in, out);
+				if (start == JournalShipper.FENCED) {
+					return false;
+				}
+				truncate(start);
+				receive(in, out);
+			} catch (LocalFailure e) {
+				throw e.getCause();
+			} catch (IOException e) {
+				// connection lost
+			}
+			return true;
+		} finally {
+			socket = null;
+		}
+	}
+
+	/**
+	 * Stops following; the copy stays open.
+	 */
+	public void disconnect() {
+		Socket connection = socket;
+		if (connection != null) {
+			try {
+				connection.close();
+			} catch (IOException e) {
+				// already gone
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		disconnect();
+		channel.close();
+	}
+
+	/**
+	 * Offers the end of the copy, stepping back in growing steps until the
+	 * primary agrees, and returns the offset the primary streams from, or
+	 * {@link JournalShipper#FENCED} for a primary of an earlier epoch than
+	 * this member has promised. Promises the primary's epoch first.
+	 */
+	private long handshake(DataInputStream in, DataOutputStream out) throws IOException {
+		long position = length;
+		long step = JournalRecord.SIZE;
+		while (true) {
+			out.writeLong(position);
+			out.writeInt(checksumAt(position));
+			out.writeInt(promised);
+			out.flush();
+			long start = in.readLong();
+			int epoch = in.readInt();
+			if (start == JournalShipper.FENCED || epoch < promised) {
+				return JournalShipper.FENCED;
+			}
+			promise(epoch);
+			if (start >= 0 && start < committed) {
+				throw new LocalFailure(new IOException("Primary of epoch " + epoch + " lacks the records from "
+						+ start + " to " + committed + " committed by this member as primary of epoch "
+						+ epochs.led()));
+			}
+			if (start >= 0) {
+				return start;
+			}
+			if (position == 0) {
+				throw new IOException("Primary rejected an empty journal");
+			}
+			position = Math.max(0, position - step);
+			step *= 2;
+		}
+	}
+
+	private void receive(DataInputStream in, DataOutputStream out) throws IOException {
+		byte[] frame = new byte[JournalShipper.FRAME_BYTES];
+		ByteBuffer buffer = ByteBuffer.wrap(frame);
+		while (true) {
+			int size = in.readInt();
+			if (size < 0 || size > frame.length || size % JournalRecord.SIZE != 0) {
+				throw new IOException("Invalid frame of " + size + " bytes");
+			}
+			in.readFully(frame, 0, size);
+			buffer.clear().limit(size);
+			for (int offset = 0; offset < size; offset += JournalRecord.SIZE) {
+				if (!record.wrap(buffer, offset, length + offset + JournalRecord.SIZE).isValid(crc)) {
+					throw new IOException("Corrupt record at " + (length + offset + JournalRecord.SIZE));
+				}
+				if (record.epoch() > promised) {
+					throw new IOException("Record at " + record.lsn() + " is of epoch " + record.epoch()
+							+ ", after the primary's epoch " + promised);
+				}
+			}
+			if (size > 0) {
+				try {
+					while (buffer.hasRemaining()) {
+						channel.write(buffer, length + buffer.position());
+					}
+					channel.force(false);
+				} catch (IOException e) {
+					throw new LocalFailure(e);
+				}
+				length += size;
+			}
+			out.writeLong(length);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Promises the epoch, durably when the member keeps its epochs.
+	 */
+	private void promise(int epoch) throws IOException {
+		if (epoch <= promised) {
+			return;
+		}
+		if (epochs != null) {
+			try {
+				epochs.promise(epoch);
+			} catch (IOException e) {
+				throw new LocalFailure(e);
+			}
+		}
+		promised = epoch;
+	}
+
+	private int checksumAt(long position) throws IOException {
+		if (position == 0) {
+			return 0;
+		}
+		int[] checksum = new int[1];
+		Journal.read(channel, position - JournalRecord.SIZE, position, record -> checksum[0] = record.checksum());
+		return checksum[0];
+	}
+
+	private void truncate(long end) throws IOException {
+		if (end > length) {
+			throw new IOException("Primary streams from " + end + ", past the end of the copy at " + length);
+		}
+		length = end;
+		if (end < channel.size()) {
+			channel.truncate(end);
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * A failure of the local copy, as opposed to the connection.
+	 */
+	private static final class LocalFailure extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		LocalFailure(IOException cause) {
+			super(cause);
+		}
+
+		@Override
+		public synchronized IOException getCause() {
+			return (IOException) super.getCause();
+		}
+	}
+
+}
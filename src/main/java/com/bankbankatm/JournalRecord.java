@@ -0,0 +1,183 @@
+package com.bankbankatm;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * Fixed-size journal record. Instances are flyweights over a buffer: the
+ * same object is re-pointed at each record while a journal is read, so
+ * reading allocates nothing per record.
+ *
+ * Layout (big-endian, {@value #SIZE} bytes):
+ * kind, account, amount, aux, timestamp, arg0, arg1, epoch, prev0,
+ * prev1, checksum.
+ *
+ * prev0 and prev1 are the sequence numbers of the previous records of the
+ * account and of the arg0 account, 0 for none, which chains each account's
+ * records backwards through the journal.
+ */
+public final class JournalRecord {
+
+	public static final int SIZE = 64;
+
+	public static final int CREATE = 1;
+	public static final int DEBIT = 2;
+	public static final int CREDIT = 3;
+	public static final int TRANSFER = 4;
+	public static final int WITHDRAWAL = 5;
+	public static final int PASSWORD = 6;
+	/** Moves the amount of an earlier record back; aux and arg1 hold its sequence number and kind. */
+	public static final int REVERSAL = 7;
+	/** Marks the cross-branch transfer whose debit is at aux as credited; moves no money. */
+	public static final int SETTLED = 8;
+	/** Credits back a withdrawal whose cash was not dispensed and takes it off that day's withdrawal total. */
+	public static final int REFUND = 9;
+
+	private static final int KIND = 0;
+	private static final int ACCOUNT = 4;
+	private static final int AMOUNT = 8;
+	private static final int AUX = 16;
+	private static final int TIMESTAMP = 24;
+	private static final int ARG0 = 32;
+	private static final int ARG1 = 36;
+	private static final int EPOCH = 40;
+	private static final int PREV0 = 44;
+	private static final int PREV1 = 52;
+	private static final int CHECKSUM = 60;
+
+	private ByteBuffer buffer;
+	private int offset;
+	private long lsn;
+
+	/**
+	 *
+	 * @param buffer
+	 * @param offset
+	 * @param lsn sequence number of the record, the journal offset just past it
+	 */
+	public JournalRecord wrap(ByteBuffer buffer, int offset, long lsn) {
+		this.buffer = buffer;
+		this.offset = offset;
+		this.lsn = lsn;
+		return this;
+	}
+
+	public long lsn() {
+		return lsn;
+	}
+
+	public int kind() {
+		return buffer.getInt(offset + KIND);
+	}
+
+	public int account() {
+		return buffer.getInt(offset + ACCOUNT);
+	}
+
+	/**
+	 * Amount in minor units, opening balance for CREATE records, salt word
+	 * of the new password for PASSWORD records.
+	 */
+	public long amount() {
+		return buffer.getLong(offset + AMOUNT);
+	}
+
+	/**
+	 * Password hash for PASSWORD records and for CREATE records written
+	 * before passwords were salted, reversed sequence number for REVERSAL
+	 * records, sequence number of the debit in the sending branch for the
+	 * CREDIT of a cross-branch transfer, settled debit for SETTLED records.
+	 */
+	public long aux() {
+		return buffer.getLong(offset + AUX);
+	}
+
+	public long timestamp() {
+		return buffer.getLong(offset + TIMESTAMP);
+	}
+
+	/**
+	 * Account type for CREATE records, receiving account for TRANSFER records
+	 * and for the REVERSAL of a transfer.
+	 */
+	public int arg0() {
+		return buffer.getInt(offset + ARG0);
+	}
+
+	/**
+	 * Owning customer for CREATE records, 0 when there is none; reversed
+	 * kind for REVERSAL records; the account in the other branch for the
+	 * DEBIT and CREDIT legs of a cross-branch transfer, 0 for other debits
+	 * and credits.
+	 */
+	public int arg1() {
+		return buffer.getInt(offset + ARG1);
+	}
+
+	/**
+	 * Replication epoch of the primary that wrote the record, 0 for records
+	 * written before the journal was first replicated.
+	 */
+	public int epoch() {
+		return buffer.getInt(offset + EPOCH);
+	}
+
+	/**
+	 * Previous record of the account, 0 for none.
+	 */
+	public long prev0() {
+		return buffer.getLong(offset + PREV0);
+	}
+
+	/**
+	 * Previous record of the arg0 account of a transfer, 0 for none.
+	 */
+	public long prev1() {
+		return buffer.getLong(offset + PREV1);
+	}
+
+	public int checksum() {
+		return buffer.getInt(offset + CHECKSUM);
+	}
+
+	/**
+	 *
+	 * @param crc scratch checksum, reset before use
+	 */
+	public boolean isValid(CRC32C crc) {
+		return kind() != 0 && buffer.getInt(offset + CHECKSUM) == checksum(buffer, offset, crc);
+	}
+
+	/**
+	 * Writes a record at the buffer's position and advances it.
+	 * @param buffer
+	 * @param crc scratch checksum, reset before use
+	 */
+	static void write(ByteBuffer buffer, CRC32C crc, int kind, int account, long amount, long aux,
+			long timestamp, int arg0, int arg1, int epoch, long prev0, long prev1) {
+		int offset = buffer.position();
+		buffer.putInt(offset + KIND, kind)
+				.putInt(offset + ACCOUNT, account)
+				.putLong(offset + AMOUNT, amount)
+				.putLong(offset + AUX, aux)
+				.putLong(offset + TIMESTAMP, timestamp)
+				.putInt(offset + ARG0, arg0)
+				.putInt(offset + ARG1, arg1)
+				.putInt(offset + EPOCH, epoch)
+				.putLong(offset + PREV0, prev0)
+				.putLong(offset + PREV1, prev1);
+		buffer.putInt(offset + CHECKSUM, checksum(buffer, offset, crc));
+		buffer.position(offset + SIZE);
+	}
+
+	private static int checksum(ByteBuffer buffer, int offset, CRC32C crc) {
+		int position = buffer.position();
+		int limit = buffer.limit();
+		crc.reset();
+		buffer.limit(offset + CHECKSUM).position(offset);
+		crc.update(buffer);
+		buffer.limit(limit).position(position);
+		return (int) crc.getValue();
+	}
+
+}
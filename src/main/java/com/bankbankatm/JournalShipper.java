@@ -0,0 +1,384 @@
+package com.bankbankatm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Primary side of journal replication. Backups, each a
+ * {@link JournalReceiver}, connect to a socket of the primary, and the
+ * shipper streams them the durable part of the journal, byte for byte,
+ * from where their copy agrees with it.
+ *
+ * The shipper serves one replication epoch, which every record it writes
+ * carries. A backup opens with the length of its copy, the checksum of its
+ * last record and the latest epoch it has promised to follow. A backup
+ * that has promised a later epoch fences the journal: a newer primary
+ * exists, so this one takes no more writes. Otherwise, if the primary's
+ * record at that offset differs, as on an old primary that wrote records
+ * no backup received, the shipper asks for an earlier offset, and the
+ * backup steps back in growing steps until the two agree; it then drops
+ * its copy after that offset, unless that would drop records it committed
+ * as a primary itself.
+ *
+ * The stream is a series of frames, an int length followed by that many
+ * bytes of whole records, and a frame of length 0 is a heartbeat sent when
+ * the journal is idle. The backup answers every frame with the length of
+ * its durable copy. In SYNC and SEMI_SYNC modes a commit waits until
+ * every backup that has caught up has acknowledged it; a backup that does
+ * not within the acknowledgement timeout is disconnected, so a stalled
+ * backup cannot stall the primary. A SYNC commit fails unless at least
+ * one backup acknowledged it; a SEMI_SYNC commit goes ahead, and is
+ * counted in {@link #getDegradedCommitCount()}.
+ */
+public class JournalShipper implements Closeable {
+
+	static final int HEARTBEAT_MILLIS = 100;
+	static final int FRAME_BYTES = JournalRecord.SIZE * 1024;
+	/** Handshake answer to a backup that has promised a later epoch. */
+	static final long FENCED = -2;
+
+	private final Journal journal;
+	private final ReplicationMode mode;
+	private final int epoch;
+	private final long ackTimeoutNanos;
+	private final int readTimeoutMillis;
+	private final ServerSocket server;
+	private final List<Backup> backups = new CopyOnWriteArrayList<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition acknowledged = lock.newCondition();
+	private final AtomicInteger connections = new AtomicInteger();
+	private final LongAdder degradedCommits = new LongAdder();
+	private volatile boolean closed;
+	private volatile Exception lastFailure;
+
+	/**
+	 * Ships the journal in the epoch after that of its last record.
+	 * @param journal
+	 * @param address where backups connect
+	 * @param mode
+	 * @param ackTimeoutMillis how long a SYNC commit waits for a backup
+	 */
+	public JournalShipper(Journal journal, InetSocketAddress address, ReplicationMode mode, long ackTimeoutMillis)
+			throws IOException {
+		this(journal, address, mode, ackTimeoutMillis, journal.epoch() + 1);
+	}
+
+	/**
+	 *
+	 * @param journal
+	 * @param address where backups connect
+	 * @param mode
+	 * @param ackTimeoutMillis how long a SYNC commit waits for a backup
+	 * @param epoch later than that of every record in the journal
+	 */
+	public JournalShipper(Journal journal, InetSocketAddress address, ReplicationMode mode, long ackTimeoutMillis,
+			int epoch) throws IOException {
+		if (ackTimeoutMillis <= 0) {
+			throw new IllegalArgumentException("ackTimeoutMillis must be positive: " + ackTimeoutMillis);
+		}
+		journal.beginEpoch(epoch);
+		this.journal = journal;
+		this.mode = mode;
+		this.epoch = epoch;
+		this.ackTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(ackTimeoutMillis);
+		this.readTimeoutMillis = (int) Math.max(ackTimeoutMillis, 10L * HEARTBEAT_MILLIS);
+		this.server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(address);
+		daemon(this::accept, "journal-shipper").start();
+	}
+
+	public ReplicationMode getMode() {
+		return mode;
+	}
+
+	public int getEpoch() {
+		return epoch;
+	}
+
+	public int getBackupCount() {
+		return backups.size();
+	}
+
+	/**
+	 * Number of commits that went ahead without the acknowledgement of
+	 * every backup caught up when they started, in SYNC and SEMI_SYNC modes.
+	 */
+	public long getDegradedCommitCount() {
+		return degradedCommits.sum();
+	}
+
+	/**
+	 * Whether no connected backup has caught up, so commits are durable on
+	 * the primary only.
+	 */
+	public boolean isDegraded() {
+		for (Backup backup : backups) {
+			if (backup.caughtUp) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The error that last ended the shipping to a backup, or null if none did.
+	 */
+	public Exception getLastFailure() {
+		return lastFailure;
+	}
+
+	/**
+	 * Lowest sequence number acknowledged by a connected backup, or -1 when
+	 * none is connected.
+	 */
+	public long acknowledgedLsn() {
+		long lowest = -1;
+		for (Backup backup : backups) {
+			if (lowest < 0 || backup.acked < lowest) {
+				lowest = backup.acked;
+			}
+		}
+		return lowest;
+	}
+
+	/**
+	 * In SYNC and SEMI_SYNC modes, waits until every caught-up backup has
+	 * acknowledged the sequence number, dropping those that do not in time;
+	 * returns at once in ASYNC mode. In SYNC mode fails when no backup
+	 * acknowledged it; the record is durable on the primary regardless.
+	 * @param lsn
+	 */
+	public void awaitReplicated(long lsn) {
+		if (mode == ReplicationMode.ASYNC) {
+			return;
+		}
+		long deadline = System.nanoTime() + ackTimeoutNanos;
+		lock.lock();
+		try {
+			while (true) {
+				boolean lagging = false;
+				boolean replicated = false;
+				for (Backup backup : backups) {
+					lagging |= backup.caughtUp && backup.acked < lsn;
+					replicated |= backup.caughtUp && backup.acked >= lsn;
+				}
+				long left = deadline - System.nanoTime();
+				if (!lagging && replicated) {
+					return;
+				}
+				if (!lagging && mode == ReplicationMode.SEMI_SYNC || left <= 0) {
+					for (Backup backup : backups) {
+						if (backup.caughtUp && backup.acked < lsn) {
+							lastFailure = new IOException("Backup at " + backup.socket.getRemoteSocketAddress()
+									+ " did not acknowledge journal record " + lsn + " in time");
+							drop(backup);
+						}
+					}
+					if (!replicated && mode == ReplicationMode.SYNC) {
+						throw new IllegalStateException("Journal record at " + lsn
+								+ " was not acknowledged by any backup within "
+								+ TimeUnit.NANOSECONDS.toMillis(ackTimeoutNanos) + " ms");
+					}
+					degradedCommits.increment();
+					return;
+				}
+				acknowledged.awaitNanos(left);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for backups", e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		server.close();
+		for (Backup backup : backups) {
+			drop(backup);
+		}
+	}
+
+	private void accept() {
+		while (!closed) {
+			try {
+				Socket socket = server.accept();
+				daemon(() -> serve(socket), "journal-shipper-" + connections.incrementAndGet()).start();
+			} catch (IOException e) {
+				if (!closed) {
+					lastFailure = e;
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Runs the handshake with a backup, then sends it the journal until it
+	 * disconnects or is dropped.
+	 */
+	private void serve(Socket socket) {
+		Backup backup = null;
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(readTimeoutMillis);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),
+					FRAME_BYTES + Integer.BYTES));
+			long start = handshake(in, out);
+			backup = new Backup(socket, start);
+			backups.add(backup);
+			Backup acks = backup;
+			daemon(() -> receiveAcks(acks, in), Thread.currentThread().getName() + "-acks").start();
+			send(backup, out, start);
+		} catch (IOException | RuntimeException e) {
+			if (!closed) {
+				lastFailure = e;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (backup != null) {
+				drop(backup);
+			} else {
+				closeQuietly(socket);
+			}
+		}
+	}
+
+	private long handshake(DataInputStream in, DataOutputStream out) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(JournalRecord.SIZE);
+		CRC32C crc = new CRC32C();
+		JournalRecord record = new JournalRecord();
+		while (true) {
+			long position = in.readLong();
+			int checksum = in.readInt();
+			int promised = in.readInt();
+			if (position < 0 || position % JournalRecord.SIZE != 0) {
+				throw new IOException("Backup sent an invalid offset: " + position);
+			}
+			if (promised > epoch) {
+				journal.fence(promised);
+				out.writeLong(FENCED);
+				out.writeInt(epoch);
+				out.flush();
+				throw new IOException("Epoch " + epoch + " is fenced by a backup that follows epoch " + promised);
+			}
+			boolean agrees = position == 0;
+			if (!agrees && position <= journal.durableLsn()) {
+				journal.readDurable(position, buffer, crc, record);
+				agrees = record.checksum() == checksum;
+			}
+			out.writeLong(agrees ? position : -1);
+			out.writeInt(epoch);
+			out.flush();
+			if (agrees) {
+				return position;
+			}
+		}
+	}
+
+	private void send(Backup backup, DataOutputStream out, long start) throws IOException, InterruptedException {
+		ByteBuffer buffer = ByteBuffer.allocate(FRAME_BYTES);
+		long sent = start;
+		while (!closed && !backup.dropped) {
+			long durable = journal.awaitDurableBeyond(sent, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+			if (durable <= sent) {
+				out.writeInt(0);
+			}
+			while (sent < durable) {
+				buffer.clear().limit((int) Math.min(FRAME_BYTES, durable - sent));
+				journal.readDurableBytes(sent, buffer);
+				out.writeInt(buffer.limit());
+				out.write(buffer.array(), 0, buffer.limit());
+				sent += buffer.limit();
+			}
+			out.flush();
+		}
+	}
+
+	private void receiveAcks(Backup backup, DataInputStream in) {
+		try {
+			while (!backup.dropped) {
+				long acked = in.readLong();
+				long durable = journal.durableLsn();
+				lock.lock();
+				try {
+					backup.acked = acked;
+					backup.caughtUp |= acked >= durable;
+					acknowledged.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+		} catch (IOException e) {
+			if (!closed && !backup.dropped) {
+				lastFailure = e;
+			}
+		} finally {
+			drop(backup);
+		}
+	}
+
+	private void drop(Backup backup) {
+		lock.lock();
+		try {
+			backup.dropped = true;
+			backups.remove(backup);
+			acknowledged.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		closeQuietly(backup.socket);
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// already gone
+		}
+	}
+
+	private static Thread daemon(Runnable task, String name) {
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/**
+	 * A connected backup. Acknowledgements are written under the lock.
+	 */
+	private static final class Backup {
+
+		final Socket socket;
+		volatile long acked;
+		volatile boolean caughtUp;
+		volatile boolean dropped;
+
+		Backup(Socket socket, long acked) {
+			this.socket = socket;
+			this.acked = acked;
+		}
+	}
+
+}
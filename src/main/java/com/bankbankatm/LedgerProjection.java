@@ -0,0 +1,207 @@
+package com.bankbankatm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+
+/**
+ * Account balances materialized from the journal, which is the ledger of
+ * record: every deposit, withdrawal, transfer and reversal is an event in
+ * it, and the account table is only a projection of those events. A
+ * projection starts from the latest checkpoint, the periodic snapshot, and
+ * replays the events after it.
+ *
+ * Rebuilding runs one worker per partition of the accounts. The journal
+ * range is read and checksummed once, a chunk at a time, by the calling
+ * thread, and each chunk is handed to every worker, which applies only the
+ * legs of events that touch its own accounts. A worker takes its chunks in
+ * order, so every account still sees its events in journal order, while
+ * the workers never write the same slot. The next chunks are read while
+ * the workers apply the earlier ones. The checkpoint is loaded one slot
+ * range per worker.
+ */
+public final class LedgerProjection {
+
+	private static final int CHUNKS_IN_FLIGHT = 3;
+
+	private final AccountTable accounts;
+	private final long lsn;
+
+	private LedgerProjection(AccountTable accounts, long lsn) {
+		this.accounts = accounts;
+		this.lsn = lsn;
+	}
+
+	/**
+	 * Rebuilds the projection from the checkpoint and the whole journal after it.
+	 * @param journalFile
+	 * @param checkpointFile may be null to replay the whole journal
+	 * @param expectedAccounts
+	 * @param threads
+	 */
+	public static LedgerProjection rebuild(Path journalFile, Path checkpointFile, int expectedAccounts, int threads)
+			throws IOException {
+		return rebuild(journalFile, checkpointFile, expectedAccounts, threads, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Rebuilds the projection from the checkpoint and the journal after it,
+	 * up to the given sequence number.
+	 * @param journalFile
+	 * @param checkpointFile may be null to replay the whole journal
+	 * @param expectedAccounts
+	 * @param threads
+	 * @param to
+	 */
+	public static LedgerProjection rebuild(Path journalFile, Path checkpointFile, int expectedAccounts, int threads,
+			long to) throws IOException {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("threads must be positive: " + threads);
+		}
+		AccountTable accounts = new AccountTable(expectedAccounts);
+		ExecutorService[] workers = new ExecutorService[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = Executors.newSingleThreadExecutor(r -> {
+				Thread thread = new Thread(r, "ledger-rebuild");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		try (FileChannel journal = FileChannel.open(journalFile, StandardOpenOption.READ)) {
+			long from = 0;
+			if (checkpointFile != null && Files.exists(checkpointFile)) {
+				MappedSnapshot snapshot = MappedSnapshot.open(checkpointFile);
+				from = snapshot.lsn();
+				int chunk = (snapshot.capacity() + threads - 1) / threads;
+				List<Future<?>> loads = new ArrayList<>();
+				for (int i = 0; i < threads; i++) {
+					int first = i * chunk;
+					int last = Math.min(snapshot.capacity(), first + chunk);
+					loads.add(workers[i].submit(() -> load(snapshot, accounts, first, last)));
+				}
+				join(loads);
+			}
+			if (from > to) {
+				throw new IllegalArgumentException("Checkpoint at " + from + " is past " + to);
+			}
+			return new LedgerProjection(accounts, replay(journal, from, to, accounts, workers));
+		} finally {
+			for (ExecutorService worker : workers) {
+				worker.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * Reads the journal range in chunks and has every worker apply its
+	 * partition of each chunk; a buffer is refilled only once every worker
+	 * is done with it. Returns the offset just past the last intact record.
+	 */
+	private static long replay(FileChannel journal, long from, long to, AccountTable accounts,
+			ExecutorService[] workers) throws IOException {
+		ByteBuffer[] buffers = new ByteBuffer[CHUNKS_IN_FLIGHT];
+		List<List<Future<?>>> applying = new ArrayList<>();
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = ByteBuffer.allocateDirect(Journal.READ_BYTES);
+			applying.add(new ArrayList<>());
+		}
+		CRC32C crc = new CRC32C();
+		JournalRecord scratch = new JournalRecord();
+		long position = from;
+		for (int next = 0; position < to; next = (next + 1) % buffers.length) {
+			join(applying.get(next));
+			applying.get(next).clear();
+			ByteBuffer chunk = buffers[next];
+			int requested = (int) Math.min(chunk.capacity(), to - position);
+			int valid = Journal.readChunk(journal, position, requested, chunk, crc, scratch);
+			long base = position;
+			for (int partition = 0; partition < workers.length; partition++) {
+				int owned = partition;
+				applying.get(next).add(workers[partition].submit(() -> {
+					JournalRecord record = new JournalRecord();
+					for (int offset = 0; offset < valid; offset += JournalRecord.SIZE) {
+						record.wrap(chunk, offset, base + offset + JournalRecord.SIZE);
+						DatabaseProxy.apply(accounts, record, workers.length, owned);
+					}
+				}));
+			}
+			position += valid;
+			if (valid < requested) {
+				break;
+			}
+		}
+		for (List<Future<?>> futures : applying) {
+			join(futures);
+		}
+		return position;
+	}
+
+	public AccountTable accounts() {
+		return accounts;
+	}
+
+	/**
+	 * Journal sequence number the projection reflects.
+	 */
+	public long lsn() {
+		return lsn;
+	}
+
+	/**
+	 *
+	 * @param accountNum
+	 */
+	public long balanceOf(int accountNum) {
+		int slot = accounts.slotOf(accountNum);
+		if (slot < 0) {
+			throw new IllegalArgumentException("Unknown account: " + accountNum);
+		}
+		return accounts.balanceAt(slot);
+	}
+
+	private static void load(MappedSnapshot snapshot, AccountTable accounts, int first, int last) {
+		for (int slot = first; slot < last; slot++) {
+			int accountNum = snapshot.accountNumAt(slot);
+			if (accountNum != AccountTable.EMPTY) {
+				accounts.insert(accountNum, snapshot.customerIdAt(slot), snapshot.balanceAt(slot),
+						snapshot.passwordHashAt(slot), snapshot.passwordSaltAt(slot), snapshot.accountTypeAt(slot),
+						snapshot.dailyWithdrawalsAt(slot), snapshot.lastLsnAt(slot));
+			}
+		}
+	}
+
+	private static void join(List<Future<?>> futures) throws IOException {
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while rebuilding the ledger", e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				if (cause instanceof UncheckedIOException) {
+					throw ((UncheckedIOException) cause).getCause();
+				}
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw new IllegalStateException("Ledger rebuild failed", cause);
+			}
+		}
+	}
+
+}
@@ -1,28 +1,67 @@
 package com.bankbankatm;
 
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Record of what the ATM sent, received and dispensed, kept as a fixed ring
+ * of the most recent {@link #DEFAULT_CAPACITY} entries. An entry is a kind,
+ * a time and a value in parallel primitive arrays, so logging on the
+ * dispense path allocates nothing.
+ */
 public class Log {
 
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	public static final int SEND = 1;
+	public static final int RESPONSE = 2;
+	public static final int CASH_DISPENSED = 3;
+	public static final int ENVELOPE_ACCEPTED = 4;
+	public static final int UNAVAILABLE = 5;
+
+	/** Value of an UNAVAILABLE entry when the bank did not answer in time. */
+	public static final long TIMED_OUT = 1;
+	/** Value of an UNAVAILABLE entry when the bank could not be reached. */
+	public static final long UNREACHABLE = 2;
+
+	private final int[] kinds;
+	private final long[] times;
+	private final long[] values;
+	private long count;
+
 	public Log() {
-		// TODO - implement Log.Log
-		throw new UnsupportedOperationException();
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 *
+	 * @param capacity most recent entries kept
+	 */
+	public Log(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		}
+		this.kinds = new int[capacity];
+		this.times = new long[capacity];
+		this.values = new long[capacity];
 	}
 
 	/**
 	 * 
-	 * @param message
+	 * @param message logged by type, 0 when null
 	 */
 	public void logSend(Message message) {
-		// TODO - implement Log.logSend
-		throw new UnsupportedOperationException();
+		record(SEND, message == null ? 0 : message.getType());
 	}
 
 	/**
 	 * 
-	 * @param status
+	 * @param status logged by ordinal, -1 when null
 	 */
 	public void logResponse(Status status) {
-		// TODO - implement Log.logResponse
-		throw new UnsupportedOperationException();
+		record(RESPONSE, status == null ? -1 : status.ordinal());
 	}
 
 	/**
@@ -30,13 +69,65 @@ public class Log {
 	 * @param amount
 	 */
 	public void logCashDispensed(Money amount) {
-		// TODO - implement Log.logCashDispensed
-		throw new UnsupportedOperationException();
+		logCashDispensed(amount == null ? 0 : amount.getMinorUnits());
+	}
+
+	/**
+	 *
+	 * @param amount amount in minor units
+	 */
+	public void logCashDispensed(long amount) {
+		record(CASH_DISPENSED, amount);
 	}
 
 	public void logEnvelopeAccepted() {
-		// TODO - implement Log.logEnvelopeAccepted
-		throw new UnsupportedOperationException();
+		record(ENVELOPE_ACCEPTED, 0);
+	}
+
+	/**
+	 * 
+	 * @param cause logged as TIMED_OUT, UNREACHABLE or 0 for any other cause
+	 */
+	public void logUnavailable(Throwable cause) {
+		while ((cause instanceof CompletionException || cause instanceof ExecutionException)
+				&& cause.getCause() != null) {
+			cause = cause.getCause();
+		}
+		record(UNAVAILABLE, cause instanceof TimeoutException ? TIMED_OUT
+				: cause instanceof IOException ? UNREACHABLE : 0);
+	}
+
+	/**
+	 * Number of entries logged, including those the ring has dropped.
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * Copies the most recent entries, newest first, and returns how many
+	 * were copied.
+	 * @param kinds
+	 * @param times
+	 * @param values
+	 */
+	public synchronized int recent(int[] kinds, long[] times, long[] values) {
+		int n = (int) Math.min(Math.min(count, this.kinds.length),
+				Math.min(kinds.length, Math.min(times.length, values.length)));
+		for (int i = 0; i < n; i++) {
+			int index = (int) ((count - 1 - i) % this.kinds.length);
+			kinds[i] = this.kinds[index];
+			times[i] = this.times[index];
+			values[i] = this.values[index];
+		}
+		return n;
+	}
+
+	private synchronized void record(int kind, long value) {
+		int index = (int) (count++ % kinds.length);
+		kinds[index] = kind;
+		times[index] = System.currentTimeMillis();
+		values[index] = value;
 	}
 
 }
\ No newline at end of file
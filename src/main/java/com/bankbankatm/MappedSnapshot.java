@@ -0,0 +1,161 @@
+package com.bankbankatm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only view of a checkpoint file mapped into memory. The file is laid
+ * out as an open-addressing table with the same hashing and probing as
+ * {@link AccountTable}, so an account is found by probing the mapped pages
+ * directly. Nothing is deserialized up front; the operating system faults
+ * pages in as accounts are touched.
+ *
+ * Layout (big-endian): a {@value #HEADER_BYTES}-byte header (magic, journal
+ * sequence number, capacity, size, highest account number) followed by
+ * capacity slots of {@value #SLOT_BYTES} bytes (account, type, balance,
+ * password hash, packed daily withdrawals, customer ID, padding, sequence
+ * number of the last journal record, password salt word). Empty slots hold
+ * account 0.
+ */
+public final class MappedSnapshot {
+
+	static final long MAGIC = 0x42424154_4D534E32L;
+	static final int HEADER_BYTES = 32;
+	static final int SLOT_BYTES = 56;
+
+	private static final int CHUNK_SHIFT = 24;
+	private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+	private final MappedByteBuffer[] chunks;
+	private final long lsn;
+	private final int mask;
+	private final int size;
+	private final int maxAccountNum;
+
+	private MappedSnapshot(MappedByteBuffer[] chunks, long lsn, int capacity, int size, int maxAccountNum) {
+		this.chunks = chunks;
+		this.lsn = lsn;
+		this.mask = capacity - 1;
+		this.size = size;
+		this.maxAccountNum = maxAccountNum;
+	}
+
+	/**
+	 *
+	 * @param file
+	 */
+	public static MappedSnapshot open(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			while (header.hasRemaining() && channel.read(header) >= 0) {
+				// keep reading
+			}
+			header.flip();
+			if (header.remaining() < HEADER_BYTES || header.getLong() != MAGIC) {
+				throw new IOException("Not a snapshot file: " + file);
+			}
+			long lsn = header.getLong();
+			int capacity = header.getInt();
+			int size = header.getInt();
+			int maxAccountNum = header.getInt();
+			if (Integer.bitCount(capacity) != 1
+					|| channel.size() < HEADER_BYTES + (long) capacity * SLOT_BYTES) {
+				throw new IOException("Snapshot file is truncated or corrupt: " + file);
+			}
+			int chunkCount = (int) (((long) capacity + CHUNK_MASK) >>> CHUNK_SHIFT);
+			MappedByteBuffer[] chunks = new MappedByteBuffer[chunkCount];
+			for (int i = 0; i < chunkCount; i++) {
+				long firstSlot = (long) i << CHUNK_SHIFT;
+				long slots = Math.min(capacity - firstSlot, 1L << CHUNK_SHIFT);
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + firstSlot * SLOT_BYTES,
+						slots * SLOT_BYTES);
+			}
+			return new MappedSnapshot(chunks, lsn, capacity, size, maxAccountNum);
+		}
+	}
+
+	/**
+	 * Returns the slot holding the account, or -1 when it is not in the snapshot.
+	 * @param accountNum
+	 */
+	public int slotOf(int accountNum) {
+		if (accountNum == AccountTable.EMPTY) {
+			return -1;
+		}
+		int slot = AccountTable.mix(accountNum) & mask;
+		while (true) {
+			int key = accountNumAt(slot);
+			if (key == accountNum) {
+				return slot;
+			}
+			if (key == AccountTable.EMPTY) {
+				return -1;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	public int accountNumAt(int slot) {
+		return chunk(slot).getInt(offset(slot));
+	}
+
+	public int accountTypeAt(int slot) {
+		return chunk(slot).getInt(offset(slot) + 4);
+	}
+
+	public long balanceAt(int slot) {
+		return chunk(slot).getLong(offset(slot) + 8);
+	}
+
+	public long passwordHashAt(int slot) {
+		return chunk(slot).getLong(offset(slot) + 16);
+	}
+
+	public long dailyWithdrawalsAt(int slot) {
+		return chunk(slot).getLong(offset(slot) + 24);
+	}
+
+	public int customerIdAt(int slot) {
+		return chunk(slot).getInt(offset(slot) + 32);
+	}
+
+	public long lastLsnAt(int slot) {
+		return chunk(slot).getLong(offset(slot) + 40);
+	}
+
+	public long passwordSaltAt(int slot) {
+		return chunk(slot).getLong(offset(slot) + 48);
+	}
+
+	/**
+	 * Journal sequence number the snapshot reflects.
+	 */
+	public long lsn() {
+		return lsn;
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int maxAccountNum() {
+		return maxAccountNum;
+	}
+
+	private MappedByteBuffer chunk(int slot) {
+		return chunks[slot >>> CHUNK_SHIFT];
+	}
+
+	private static int offset(int slot) {
+		return (slot & CHUNK_MASK) * SLOT_BYTES;
+	}
+
+}
@@ -1,4 +1,114 @@
 package com.bankbankatm;
 
+import java.nio.ByteBuffer;
+
+/**
+ * A request from the ATM to the bank about one account. Amounts are in
+ * minor units. On the wire a message is a {@link WireMessage}, which hot
+ * paths write and read directly instead of going through this class.
+ */
 public class Message {
-}
\ No newline at end of file
+
+	public static final int SIZE = WireMessage.SIZE;
+
+	/** Reports the account's balances. */
+	public static final int BALANCE = 1;
+	/** Takes a withdrawal from the account before the cash is dispensed. */
+	public static final int AUTHORIZE = 2;
+	public static final int DEBIT = 3;
+	public static final int CREDIT = 4;
+	/** Confirms that the cash of an authorized withdrawal was dispensed. */
+	public static final int DISPENSED = 5;
+	/** Reports that an authorized withdrawal was not dispensed, so the bank returns it. */
+	public static final int DISPENSE_FAILED = 6;
+	/** Moves the amount from the account to the target account in one step. */
+	public static final int TRANSFER = 7;
+
+	private final int type;
+	private final int accountNum;
+	private final long amount;
+	private final long reference;
+	private final int target;
+
+	/**
+	 *
+	 * @param type
+	 * @param accountNum
+	 * @param amount
+	 */
+	public Message(int type, int accountNum, long amount) {
+		this(type, accountNum, amount, 0);
+	}
+
+	/**
+	 *
+	 * @param type
+	 * @param accountNum
+	 * @param amount
+	 * @param reference ID of the authorization a dispense result refers to, or of a transfer
+	 */
+	public Message(int type, int accountNum, long amount, long reference) {
+		this(type, accountNum, amount, reference, 0);
+	}
+
+	/**
+	 *
+	 * @param type
+	 * @param accountNum
+	 * @param amount
+	 * @param reference
+	 * @param target account a transfer credits
+	 */
+	public Message(int type, int accountNum, long amount, long reference, int target) {
+		if (type < BALANCE || type > TRANSFER) {
+			throw new IllegalArgumentException("Unknown message type: " + type);
+		}
+		this.type = type;
+		this.accountNum = accountNum;
+		this.amount = amount;
+		this.reference = reference;
+		this.target = target;
+	}
+
+	public int getType() {
+		return type;
+	}
+
+	public int getAccountNum() {
+		return accountNum;
+	}
+
+	public long getAmount() {
+		return amount;
+	}
+
+	public long getReference() {
+		return reference;
+	}
+
+	public int getTarget() {
+		return target;
+	}
+
+	/**
+	 *
+	 * @param buffer
+	 */
+	public void encode(ByteBuffer buffer) {
+		WireMessage.write(buffer, type, accountNum, amount, reference, target);
+	}
+
+	/**
+	 *
+	 * @param buffer
+	 */
+	public static Message decode(ByteBuffer buffer) {
+		WireMessage wire = new WireMessage().wrap(buffer, buffer.position());
+		if (!wire.isValid()) {
+			throw new IllegalArgumentException("Not a version " + WireMessage.VERSION + " message");
+		}
+		buffer.position(buffer.position() + SIZE);
+		return wire.toMessage();
+	}
+
+}
@@ -1,6 +1,128 @@
 package com.bankbankatm;
 
-public class Money {
-    public Money() {
-    }
+/**
+ * Fixed-point amount of money held as a count of minor units (cents).
+ * Instances never change; the hot paths that need a reusable accumulator
+ * use {@link MutableMoney}. The static arithmetic works directly on minor
+ * units and never allocates.
+ */
+public final class Money implements Comparable<Money> {
+
+	public static final int MINOR_PER_MAJOR = 100;
+	public static final Money ZERO = new Money();
+
+	private final long minorUnits;
+
+	public Money() {
+		this(0);
+	}
+
+	/**
+	 *
+	 * @param minorUnits
+	 */
+	public Money(long minorUnits) {
+		this.minorUnits = minorUnits;
+	}
+
+	/**
+	 *
+	 * @param minorUnits
+	 */
+	public static Money of(long minorUnits) {
+		return minorUnits == 0 ? ZERO : new Money(minorUnits);
+	}
+
+	/**
+	 *
+	 * @param majorUnits
+	 */
+	public static Money ofMajor(long majorUnits) {
+		return of(Math.multiplyExact(majorUnits, MINOR_PER_MAJOR));
+	}
+
+	public long getMinorUnits() {
+		return minorUnits;
+	}
+
+	/**
+	 *
+	 * @param other
+	 */
+	public Money plus(Money other) {
+		return of(add(minorUnits, other.getMinorUnits()));
+	}
+
+	/**
+	 *
+	 * @param other
+	 */
+	public Money minus(Money other) {
+		return of(subtract(minorUnits, other.getMinorUnits()));
+	}
+
+	public boolean isNegative() {
+		return minorUnits < 0;
+	}
+
+	/**
+	 *
+	 * @param other
+	 */
+	public boolean isLessThan(Money other) {
+		return minorUnits < other.getMinorUnits();
+	}
+
+	@Override
+	public int compareTo(Money other) {
+		return Long.compare(minorUnits, other.getMinorUnits());
+	}
+
+	/**
+	 *
+	 * @param a
+	 * @param b
+	 */
+	public static long add(long a, long b) {
+		return Math.addExact(a, b);
+	}
+
+	/**
+	 *
+	 * @param a
+	 * @param b
+	 */
+	public static long subtract(long a, long b) {
+		return Math.subtractExact(a, b);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		return o instanceof Money && minorUnits == ((Money) o).minorUnits;
+	}
+
+	@Override
+	public int hashCode() {
+		return Long.hashCode(minorUnits);
+	}
+
+	@Override
+	public String toString() {
+		return format(minorUnits);
+	}
+
+	/**
+	 * Formats minor units as major units with two decimals.
+	 * @param minorUnits
+	 */
+	static String format(long minorUnits) {
+		long major = minorUnits / MINOR_PER_MAJOR;
+		long minor = Math.abs(minorUnits % MINOR_PER_MAJOR);
+		String sign = minorUnits < 0 && major == 0 ? "-" : "";
+		return sign + major + (minor < 10 ? ".0" : ".") + minor;
+	}
+
 }
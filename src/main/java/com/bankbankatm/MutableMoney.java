@@ -0,0 +1,101 @@
+package com.bankbankatm;
+
+/**
+ * Reusable amount accumulator for the transaction and dispenser paths.
+ * Every operation updates this instance in place, so a flow can carry its
+ * amount from input to dispensing without creating new amount objects. It
+ * is not a {@link Money} and never equals one; {@link #toMoney()} takes an
+ * immutable copy. Not thread-safe.
+ */
+public final class MutableMoney {
+
+	private long minorUnits;
+
+	public MutableMoney() {
+		this(0);
+	}
+
+	/**
+	 *
+	 * @param minorUnits
+	 */
+	public MutableMoney(long minorUnits) {
+		this.minorUnits = minorUnits;
+	}
+
+	public long getMinorUnits() {
+		return minorUnits;
+	}
+
+	/**
+	 *
+	 * @param minorUnits
+	 */
+	public MutableMoney set(long minorUnits) {
+		this.minorUnits = minorUnits;
+		return this;
+	}
+
+	/**
+	 *
+	 * @param amount
+	 */
+	public MutableMoney set(Money amount) {
+		return set(amount.getMinorUnits());
+	}
+
+	/**
+	 *
+	 * @param minorUnits
+	 */
+	public MutableMoney add(long minorUnits) {
+		this.minorUnits = Money.add(this.minorUnits, minorUnits);
+		return this;
+	}
+
+	/**
+	 *
+	 * @param amount
+	 */
+	public MutableMoney add(Money amount) {
+		return add(amount.getMinorUnits());
+	}
+
+	/**
+	 *
+	 * @param minorUnits
+	 */
+	public MutableMoney subtract(long minorUnits) {
+		this.minorUnits = Money.subtract(this.minorUnits, minorUnits);
+		return this;
+	}
+
+	/**
+	 *
+	 * @param amount
+	 */
+	public MutableMoney subtract(Money amount) {
+		return subtract(amount.getMinorUnits());
+	}
+
+	/**
+	 *
+	 * @param minorUnits
+	 */
+	public boolean isLessThan(long minorUnits) {
+		return this.minorUnits < minorUnits;
+	}
+
+	/**
+	 * Returns an immutable copy of the current value.
+	 */
+	public Money toMoney() {
+		return Money.of(minorUnits);
+	}
+
+	@Override
+	public String toString() {
+		return Money.format(minorUnits);
+	}
+
+}
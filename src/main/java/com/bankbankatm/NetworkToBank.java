@@ -1,40 +1,522 @@
 package com.bankbankatm;
 
+import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * The ATM's link to the bank: one persistent connection, driven by a
+ * selector on a single I/O thread, that carries any number of requests at
+ * once. Every request frame carries a correlation ID that the bank echoes
+ * in its response, so responses may arrive in any order and each is
+ * matched to the request waiting for it.
+ *
+ * Request frame: int length, long correlation ID, {@link WireMessage}.
+ * Response frame: int length, long correlation ID, byte status (0 for
+ * SUCCESS, 1 for FAILURE, 2 for a withdrawal refused over the daily limit),
+ * long total balance, long available balance.
+ * A batch frame carries from two up to {@value #MAX_BATCH} dispense
+ * confirmations after the correlation ID instead of one message, and is
+ * answered with one status byte per confirmation after the correlation ID. The length
+ * counts the bytes after it.
+ *
+ * The connection is opened on first use and again after it is lost;
+ * requests in flight on a lost connection fail. Every message sent and
+ * every status answered is recorded in the log, when there is one.
+ */
 public class NetworkToBank {
 
-	private Log log;
+	public static final int DEFAULT_PORT = 7070;
+	public static final long BANK_TIMEOUT_SECONDS = 120;
+
+	static final int REQUEST_BYTES = Integer.BYTES + Long.BYTES + Message.SIZE;
+	static final int RESPONSE_BYTES = Integer.BYTES + Long.BYTES + 1 + 2 * Long.BYTES;
+	static final byte SUCCESS = 0;
+	static final byte FAILURE = 1;
+	static final byte DAILY_LIMIT_EXCEEDED = 2;
+	static final int MAX_BATCH = 1024;
+
+	private static final int BUFFER_BYTES = 1 << 16;
+	private static final int GATHER_FRAMES = 256;
+	private static final DirectBufferPool FRAMES = new DirectBufferPool(REQUEST_BYTES, 4096);
+	private static final DirectBufferPool BATCHES = new DirectBufferPool(
+			Integer.BYTES + Long.BYTES + MAX_BATCH * Message.SIZE, 16);
+	private static final TimerWheel TIMEOUTS = TimerWheel.shared();
+
+	private final Log log;
 	private InetAddress bankAddress;
+	private final int port;
+	private final AtomicLong correlationIds = new AtomicLong();
+	private Connection connection;
+	private volatile ConfirmationBatcher confirmations;
 
 	/**
-	 * 
-	 * @param log
+	 *
+	 * @param log may be null
 	 * @param bankAddress
 	 */
 	public NetworkToBank(Log log, InetAddress bankAddress) {
-		// TODO - implement NetworkToBank.NetworkToBank
-		throw new UnsupportedOperationException();
+		this(log, bankAddress, DEFAULT_PORT);
+	}
+
+	/**
+	 *
+	 * @param log may be null
+	 * @param bankAddress
+	 * @param port
+	 */
+	public NetworkToBank(Log log, InetAddress bankAddress, int port) {
+		this.log = log;
+		this.bankAddress = bankAddress;
+		this.port = port;
+	}
+
+	/**
+	 * The log of messages sent and answers received, or null.
+	 */
+	public Log getLog() {
+		return log;
 	}
 
-	public void openConnection() {
-		// TODO - implement NetworkToBank.openConnection
-		throw new UnsupportedOperationException();
+	/**
+	 * Starts connecting to the bank unless a connection is open already.
+	 * Returns false when no bank address is configured or the attempt
+	 * failed at once; requests then fail until a later attempt succeeds.
+	 */
+	public boolean openConnection() {
+		try {
+			connection();
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
 	}
 
+	/**
+	 * Closes the connection; requests still in flight fail.
+	 */
 	public void closeConnection() {
-		// TODO - implement NetworkToBank.closeConnection
-		throw new UnsupportedOperationException();
+		Connection current;
+		synchronized (this) {
+			current = connection;
+			connection = null;
+		}
+		if (current != null) {
+			current.close(new IOException("Connection closed"));
+		}
 	}
 
 	/**
-	 * 
+	 * Sends the message and waits for the bank's answer, filling in the
+	 * balances it reports. Returns FAILURE when the bank refuses, cannot be
+	 * reached or does not answer within {@value #BANK_TIMEOUT_SECONDS}
+	 * seconds, and DAILY_LIMIT_EXCEEDED when it refuses a withdrawal over
+	 * the daily limit.
 	 * @param message
-	 * @param balances
+	 * @param balances may be null
 	 */
 	public Status sendMessage(Message message, Balances balances) {
-		// TODO - implement NetworkToBank.sendMessage
-		throw new UnsupportedOperationException();
+		CompletableFuture<Status> status = sendMessageAsync(message, balances);
+		try {
+			return status.get();
+		} catch (InterruptedException e) {
+			status.cancel(false);
+			Thread.currentThread().interrupt();
+			return Status.FAILURE;
+		} catch (ExecutionException | CancellationException e) {
+			return Status.FAILURE;
+		}
+	}
+
+	/**
+	 * Sends the message without waiting. The future completes with the
+	 * bank's answer, after the balances it reports are filled in, or fails
+	 * with an IOException when the bank cannot be reached and with a
+	 * TimeoutException when it does not answer within
+	 * {@value #BANK_TIMEOUT_SECONDS} seconds. Cancelling the future
+	 * abandons the request; a late answer is then dropped. The timeout is
+	 * kept on the shared {@link TimerWheel}, so it may fire up to a tick
+	 * late. The future completes on the connection's I/O thread or the
+	 * wheel thread, so stages that block should run on an executor of their
+	 * own.
+	 * @param message
+	 * @param balances may be null
+	 */
+	public CompletableFuture<Status> sendMessageAsync(Message message, Balances balances) {
+		return sendMessageAsync(message, balances, BANK_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * 
+	 * @param message
+	 * @param balances may be null
+	 * @param timeout how long the bank may take to answer
+	 * @param unit
+	 */
+	public CompletableFuture<Status> sendMessageAsync(Message message, Balances balances, long timeout,
+			TimeUnit unit) {
+		if (message == null) {
+			throw new IllegalArgumentException("message is required");
+		}
+		return expireAfter(send(message, balances), timeout, unit);
+	}
+
+	/**
+	 * Sends a dispense confirmation or failure. Once confirmations are
+	 * batched it joins the next batch and is sent until the bank
+	 * acknowledges it; until then it is sent on its own, once.
+	 * @param message a DISPENSED or DISPENSE_FAILED message
+	 */
+	public CompletableFuture<Status> sendConfirmation(Message message) {
+		ConfirmationBatcher batcher = confirmations;
+		if (batcher == null) {
+			return sendMessageAsync(message, null);
+		}
+		return batcher.add(message);
+	}
+
+	/**
+	 * Sends dispense confirmations in batches from now on, keeping those
+	 * not yet acknowledged in the outbox file, and resends what the outbox
+	 * holds from an earlier run.
+	 * @param outboxFile
+	 * @param maxBatch most confirmations in one frame, at most {@value #MAX_BATCH}
+	 * @param window how long a confirmation may wait for others
+	 * @param unit
+	 */
+	public synchronized void batchConfirmations(Path outboxFile, int maxBatch, long window, TimeUnit unit)
+			throws IOException {
+		if (confirmations != null) {
+			throw new IllegalStateException("Confirmations are batched already");
+		}
+		confirmations = new ConfirmationBatcher(this, outboxFile, maxBatch, window, unit);
+	}
+
+	/**
+	 * The batcher of dispense confirmations, or null when they are not batched.
+	 */
+	public ConfirmationBatcher getConfirmationBatcher() {
+		return confirmations;
+	}
+
+	/**
+	 * Number of requests waiting for a response.
+	 */
+	public int getInFlightCount() {
+		Connection current;
+		synchronized (this) {
+			current = connection;
+		}
+		return current == null ? 0 : current.inFlight.size();
+	}
+
+	private CompletableFuture<Status> send(Message message, Balances balances) {
+		if (log != null) {
+			log.logSend(message);
+		}
+		long id = correlationIds.incrementAndGet();
+		ByteBuffer frame = FRAMES.acquire();
+		frame.putInt(REQUEST_BYTES - Integer.BYTES).putLong(id);
+		message.encode(frame);
+		frame.flip();
+		try {
+			return connection().send(id, frame, new Pending(balances, null));
+		} catch (IOException e) {
+			FRAMES.release(frame);
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	/**
+	 * Sends dispense confirmations in one batch frame, or a single one in a
+	 * request frame. The future completes with the bank's status byte for
+	 * each, in order.
+	 * @param messages
+	 */
+	CompletableFuture<byte[]> sendBatch(List<Message> messages) {
+		if (messages.isEmpty() || messages.size() > MAX_BATCH) {
+			throw new IllegalArgumentException("Batch of " + messages.size() + " confirmations");
+		}
+		if (messages.size() == 1) {
+			return sendMessageAsync(messages.get(0), null)
+					.thenApply(status -> new byte[] { status == Status.SUCCESS ? SUCCESS : FAILURE });
+		}
+		long id = correlationIds.incrementAndGet();
+		ByteBuffer frame = BATCHES.acquire();
+		frame.putInt(Long.BYTES + messages.size() * Message.SIZE).putLong(id);
+		for (Message message : messages) {
+			if (log != null) {
+				log.logSend(message);
+			}
+			message.encode(frame);
+		}
+		frame.flip();
+		byte[] statuses = new byte[messages.size()];
+		CompletableFuture<Status> answered;
+		try {
+			answered = connection().send(id, frame, new Pending(null, statuses));
+		} catch (IOException e) {
+			BATCHES.release(frame);
+			return CompletableFuture.failedFuture(e);
+		}
+		return expireAfter(answered, BANK_TIMEOUT_SECONDS, TimeUnit.SECONDS).thenApply(answer -> statuses);
+	}
+
+	/**
+	 * Fails the request with a TimeoutException unless it completes within
+	 * the timeout, and drops the timer once it does.
+	 */
+	private static CompletableFuture<Status> expireAfter(CompletableFuture<Status> request, long timeout,
+			TimeUnit unit) {
+		if (!request.isDone()) {
+			TimerWheel.Timeout expiry = TIMEOUTS.schedule(
+					() -> request.completeExceptionally(new TimeoutException("No answer from the bank")), timeout, unit);
+			request.whenComplete((answer, error) -> expiry.cancel());
+		}
+		return request;
+	}
+
+	private synchronized Connection connection() throws IOException {
+		if (connection == null || !connection.open) {
+			if (bankAddress == null) {
+				throw new IOException("No bank address configured");
+			}
+			connection = new Connection(new InetSocketAddress(bankAddress, port), log);
+		}
+		return connection;
+	}
+
+	/**
+	 * A request waiting for its response. A batch receives one status per
+	 * confirmation and completes with SUCCESS once they are in.
+	 */
+	private static final class Pending extends CompletableFuture<Status> {
+
+		final Balances balances;
+		final byte[] statuses;
+
+		Pending(Balances balances, byte[] statuses) {
+			this.balances = balances;
+			this.statuses = statuses;
+		}
+	}
+
+	/**
+	 * Hands a written frame back to the pool it came from.
+	 */
+	private static void recycle(ByteBuffer frame) {
+		(frame.capacity() == REQUEST_BYTES ? FRAMES : BATCHES).release(frame);
+	}
+
+	/**
+	 * One connection and the I/O thread that drives it. Senders encode
+	 * their request straight into a pooled direct buffer, queue it and wake
+	 * the selector; the I/O thread hands the queued frames to the socket
+	 * in one gathering write, so many small requests go out in one system
+	 * call without being copied, and returns each frame to the pool once it
+	 * is written.
+	 */
+	private static final class Connection implements Runnable {
+
+		final Map<Long, Pending> inFlight = new ConcurrentHashMap<>();
+		final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+		final AtomicBoolean wakeupPending = new AtomicBoolean();
+		final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+		final ByteBuffer[] gathered = new ByteBuffer[GATHER_FRAMES];
+		int gatheredCount;
+		final Selector selector;
+		final SocketChannel channel;
+		final Log log;
+		volatile boolean open = true;
+		private IOException failure;
+
+		Connection(InetSocketAddress address, Log log) throws IOException {
+			this.log = log;
+			this.selector = Selector.open();
+			this.channel = SocketChannel.open();
+			try {
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				channel.connect(address);
+				channel.register(selector, SelectionKey.OP_CONNECT);
+			} catch (IOException e) {
+				selector.close();
+				channel.close();
+				throw e;
+			}
+			Thread thread = new Thread(this, "network-to-bank");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		CompletableFuture<Status> send(long id, ByteBuffer frame, Pending pending) {
+			inFlight.put(id, pending);
+			pending.whenComplete((status, error) -> inFlight.remove(id));
+			outbound.add(frame);
+			if (!open) {
+				pending.completeExceptionally(new IOException("Connection closed"));
+			} else if (wakeupPending.compareAndSet(false, true)) {
+				selector.wakeup();
+			}
+			return pending;
+		}
+
+		@Override
+		public void run() {
+			try {
+				SelectionKey key = channel.keyFor(selector);
+				while (open) {
+					selector.select();
+					selector.selectedKeys().clear();
+					wakeupPending.set(false);
+					if (key.isValid() && key.isConnectable() && channel.finishConnect()) {
+						key.interestOps(SelectionKey.OP_READ);
+					}
+					if (!channel.isConnected()) {
+						continue;
+					}
+					if (key.isValid() && key.isReadable()) {
+						read();
+					}
+					boolean pendingWrite = write();
+					key.interestOps(SelectionKey.OP_READ | (pendingWrite ? SelectionKey.OP_WRITE : 0));
+				}
+			} catch (IOException | RuntimeException e) {
+				close(e instanceof IOException ? (IOException) e : new IOException(e));
+			} finally {
+				shutdown();
+			}
+		}
+
+		void close(IOException cause) {
+			synchronized (this) {
+				if (failure == null) {
+					failure = cause;
+				}
+			}
+			open = false;
+			selector.wakeup();
+		}
+
+		/**
+		 * Writes queued frames as long as the socket takes them; returns
+		 * whether frames are left over.
+		 */
+		private boolean write() throws IOException {
+			while (true) {
+				ByteBuffer frame;
+				while (gatheredCount < gathered.length && (frame = outbound.poll()) != null) {
+					gathered[gatheredCount++] = frame;
+				}
+				if (gatheredCount == 0) {
+					return false;
+				}
+				channel.write(gathered, 0, gatheredCount);
+				int written = 0;
+				while (written < gatheredCount && !gathered[written].hasRemaining()) {
+					recycle(gathered[written++]);
+				}
+				System.arraycopy(gathered, written, gathered, 0, gatheredCount - written);
+				Arrays.fill(gathered, gatheredCount - written, gatheredCount, null);
+				gatheredCount -= written;
+				if (gatheredCount > 0) {
+					return true;
+				}
+			}
+		}
+
+		private void read() throws IOException {
+			if (channel.read(readBuffer) < 0) {
+				throw new IOException("Bank closed the connection");
+			}
+			readBuffer.flip();
+			while (readBuffer.remaining() >= Integer.BYTES) {
+				int length = readBuffer.getInt(readBuffer.position());
+				if (length < Long.BYTES || length > readBuffer.capacity() - Integer.BYTES) {
+					throw new IOException("Invalid response frame of " + length + " bytes");
+				}
+				if (readBuffer.remaining() < Integer.BYTES + length) {
+					break;
+				}
+				readBuffer.getInt();
+				int end = readBuffer.position() + length;
+				long id = readBuffer.getLong();
+				Pending pending = inFlight.get(id);
+				if (pending != null && pending.statuses != null) {
+					if (length != Long.BYTES + pending.statuses.length) {
+						throw new IOException("Invalid batch response of " + length + " bytes");
+					}
+					readBuffer.get(pending.statuses);
+					if (log != null) {
+						for (byte status : pending.statuses) {
+							log.logResponse(status == SUCCESS ? Status.SUCCESS : Status.FAILURE);
+						}
+					}
+					pending.complete(Status.SUCCESS);
+				} else if (pending != null) {
+					if (length != RESPONSE_BYTES - Integer.BYTES) {
+						throw new IOException("Invalid response frame of " + length + " bytes");
+					}
+					byte status = readBuffer.get();
+					long total = readBuffer.getLong();
+					long available = readBuffer.getLong();
+					if (pending.balances != null) {
+						pending.balances.set(total, available);
+					}
+					Status answer = status == SUCCESS ? Status.SUCCESS
+							: status == DAILY_LIMIT_EXCEEDED ? Status.DAILY_LIMIT_EXCEEDED : Status.FAILURE;
+					if (log != null) {
+						log.logResponse(answer);
+					}
+					pending.complete(answer);
+				}
+				readBuffer.position(end);
+			}
+			readBuffer.compact();
+		}
+
+		private void shutdown() {
+			open = false;
+			try {
+				selector.close();
+				channel.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+			IOException cause;
+			synchronized (this) {
+				cause = failure == null ? new IOException("Connection closed") : failure;
+			}
+			for (Pending pending : inFlight.values()) {
+				pending.completeExceptionally(cause);
+			}
+			for (int i = 0; i < gatheredCount; i++) {
+				recycle(gathered[i]);
+			}
+			ByteBuffer frame;
+			while ((frame = outbound.poll()) != null) {
+				recycle(frame);
+			}
+		}
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,158 @@
+package com.bankbankatm;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Password hashing with PBKDF2-HMAC-SHA256. A stored credential is two
+ * longs: a salt word and the 64-bit derived key. The salt word holds the
+ * base-2 logarithm of the iteration count in its top byte and 56 random
+ * bits below it, so every credential carries its own salt and work factor
+ * and the work factor can be raised without invalidating stored ones.
+ *
+ * A salt word of 0 marks a credential written before salting, whose key is
+ * the first 64 bits of the unsalted SHA-256 of the password; such
+ * credentials still verify, and are replaced by the next password change.
+ */
+public final class PasswordHash {
+
+	/** Iteration count of new credentials, as a power of two. */
+	static final int DEFAULT_COST = 15;
+
+	private static final int MIN_COST = 1;
+	private static final int MAX_COST = 30;
+	private static final int COST_SHIFT = 56;
+	private static final long SALT_MASK = (1L << COST_SHIFT) - 1;
+	private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+	private static final char SEPARATOR = '$';
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private PasswordHash() {
+	}
+
+	/**
+	 * A fresh random salt word for the default work factor.
+	 */
+	public static long newSalt() {
+		return newSalt(DEFAULT_COST);
+	}
+
+	/**
+	 *
+	 * @param cost base-2 logarithm of the iteration count
+	 */
+	public static long newSalt(int cost) {
+		if (cost < MIN_COST || cost > MAX_COST) {
+			throw new IllegalArgumentException("cost out of range: " + cost);
+		}
+		long random;
+		do {
+			random = RANDOM.nextLong() & SALT_MASK;
+		} while (random == 0);
+		return (long) cost << COST_SHIFT | random;
+	}
+
+	/**
+	 * Number of PBKDF2 iterations the salt word asks for, 0 for an unsalted
+	 * credential.
+	 * @param salt
+	 */
+	public static int iterationsOf(long salt) {
+		return salt == 0 ? 0 : 1 << (int) (salt >>> COST_SHIFT);
+	}
+
+	/**
+	 * Derives the key of the password with the salt word's salt and
+	 * iteration count.
+	 * @param password
+	 * @param salt
+	 */
+	public static long hash(String password, long salt) {
+		if (salt == 0) {
+			return unsaltedHash(password);
+		}
+		int cost = (int) (salt >>> COST_SHIFT);
+		if (cost < MIN_COST || cost > MAX_COST) {
+			throw new IllegalArgumentException("Invalid salt: " + Long.toHexString(salt));
+		}
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), toBytes(salt), 1 << cost, Long.SIZE);
+		try {
+			return toLong(SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded());
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(ALGORITHM + " is not available", e);
+		} finally {
+			spec.clearPassword();
+		}
+	}
+
+	/**
+	 * Whether the password is the one the credential was made from.
+	 * @param password
+	 * @param salt
+	 * @param hash
+	 */
+	public static boolean matches(String password, long salt, long hash) {
+		if (salt == 0 && hash == 0) {
+			return false;
+		}
+		return MessageDigest.isEqual(toBytes(hash(password, salt)), toBytes(hash));
+	}
+
+	/**
+	 * Whether the password is the one the encoded credential was made from.
+	 * @param password
+	 * @param stored as returned by {@link #encode}
+	 */
+	public static boolean matches(String password, String stored) {
+		int separator = stored.indexOf(SEPARATOR);
+		if (separator < 0) {
+			return matches(password, 0, Long.parseUnsignedLong(stored, 16));
+		}
+		return matches(password, Long.parseUnsignedLong(stored.substring(0, separator), 16),
+				Long.parseUnsignedLong(stored.substring(separator + 1), 16));
+	}
+
+	/**
+	 * Text form of a credential: the salt word and the key in hex, or the
+	 * key alone for an unsalted credential.
+	 * @param salt
+	 * @param hash
+	 */
+	public static String encode(long salt, long hash) {
+		if (salt == 0) {
+			return Long.toHexString(hash);
+		}
+		return Long.toHexString(salt) + SEPARATOR + Long.toHexString(hash);
+	}
+
+	private static long unsaltedHash(String password) {
+		try {
+			return toLong(MessageDigest.getInstance("SHA-256").digest(password.getBytes(StandardCharsets.UTF_8)));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	private static long toLong(byte[] bytes) {
+		long value = 0;
+		for (int i = 0; i < Long.BYTES; i++) {
+			value = (value << 8) | (bytes[i] & 0xFF);
+		}
+		return value;
+	}
+
+	private static byte[] toBytes(long value) {
+		byte[] bytes = new byte[Long.BYTES];
+		for (int i = Long.BYTES - 1; i >= 0; i--) {
+			bytes[i] = (byte) value;
+			value >>>= 8;
+		}
+		return bytes;
+	}
+
+}
@@ -0,0 +1,131 @@
+package com.bankbankatm;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs PIN verifications on a dedicated, bounded pool, so hashing does not
+ * run on session threads. The pool has a fixed number of threads and a
+ * queue of fixed depth; a verification submitted while both are full is
+ * rejected at once with a future that fails with
+ * RejectedExecutionException, rather than queueing without bound.
+ *
+ * Completed verifications and their latency, from submission to result,
+ * are recorded in a histogram of power-of-two microsecond buckets, which
+ * is enough to report throughput and the p99 for a given pool size.
+ */
+public class PinVerifier implements Closeable {
+
+	private static final int LATENCY_BUCKETS = 40;
+
+	private final CredentialCache credentials;
+	private final ThreadPoolExecutor executor;
+	private final LongAdder verified = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final AtomicLongArray latencies = new AtomicLongArray(LATENCY_BUCKETS);
+
+	/**
+	 *
+	 * @param credentials
+	 * @param threads
+	 * @param queueDepth verifications that may wait for a thread
+	 */
+	public PinVerifier(CredentialCache credentials, int threads, int queueDepth) {
+		if (threads <= 0 || queueDepth <= 0) {
+			throw new IllegalArgumentException("threads and queueDepth must be positive");
+		}
+		this.credentials = credentials;
+		AtomicInteger count = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueDepth), r -> {
+					Thread thread = new Thread(r, "pin-verifier-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}, new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * Checks the password of the account on the pool. The future completes
+	 * with whether the password matches, or fails with
+	 * RejectedExecutionException when the pool is saturated.
+	 * @param accountNum
+	 * @param password
+	 */
+	public CompletableFuture<Boolean> verify(int accountNum, String password) {
+		long submitted = System.nanoTime();
+		CompletableFuture<Boolean> result = new CompletableFuture<>();
+		try {
+			executor.execute(() -> {
+				try {
+					String stored = credentials.selectPasswordByAccountNum(accountNum);
+					boolean matches = PasswordHash.matches(password, stored);
+					record(System.nanoTime() - submitted);
+					result.complete(matches);
+				} catch (RuntimeException e) {
+					result.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rejected.increment();
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+	public int getThreads() {
+		return executor.getMaximumPoolSize();
+	}
+
+	public int getQueueDepth() {
+		return executor.getQueue().size() + executor.getQueue().remainingCapacity();
+	}
+
+	public long getVerifiedCount() {
+		return verified.sum();
+	}
+
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	/**
+	 * Upper bound, in microseconds, of the latency under which the given
+	 * fraction of verifications completed; 0 before the first one.
+	 * @param fraction for example 0.99
+	 */
+	public long getLatencyPercentileMicros(double fraction) {
+		long total = verified.sum();
+		if (total == 0) {
+			return 0;
+		}
+		long target = (long) Math.ceil(total * fraction);
+		long seen = 0;
+		for (int bucket = 0; bucket < LATENCY_BUCKETS; bucket++) {
+			seen += latencies.get(bucket);
+			if (seen >= target) {
+				return 1L << bucket;
+			}
+		}
+		return 1L << (LATENCY_BUCKETS - 1);
+	}
+
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+
+	private void record(long nanos) {
+		long micros = Math.max(1, nanos / 1000);
+		int bucket = Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros - 1));
+		latencies.incrementAndGet(bucket);
+		verified.increment();
+	}
+
+}
@@ -1,4 +1,73 @@
 package com.bankbankatm;
 
 public class Receipt {
-}
\ No newline at end of file
+
+	private static final int NO_ACCOUNT = Integer.MIN_VALUE;
+
+	private final Status status;
+	private final String[] lines;
+	private final String title;
+	private final int from;
+	private final int to;
+	private final long amount;
+
+	/**
+	 * 
+	 * @param status
+	 * @param lines
+	 */
+	public Receipt(Status status, String... lines) {
+		this.status = status;
+		this.lines = lines;
+		this.title = null;
+		this.from = NO_ACCOUNT;
+		this.to = NO_ACCOUNT;
+		this.amount = 0;
+	}
+
+	private Receipt(String title, int from, int to, long amount) {
+		this.status = Status.SUCCESS;
+		this.lines = null;
+		this.title = title;
+		this.from = from;
+		this.to = to;
+		this.amount = amount;
+	}
+
+	/**
+	 * Receipt for an amount taken from or paid into one account. Its lines
+	 * are formatted when they are read, so completing the transaction
+	 * builds no strings.
+	 * @param title
+	 * @param account
+	 * @param amount amount in minor units
+	 */
+	static Receipt of(String title, int account, long amount) {
+		return new Receipt(title, account, NO_ACCOUNT, amount);
+	}
+
+	/**
+	 * Receipt for a transfer, formatted when its lines are read.
+	 * @param from
+	 * @param to
+	 * @param amount amount in minor units
+	 */
+	static Receipt ofTransfer(int from, int to, long amount) {
+		return new Receipt("Transfer", from, to, amount);
+	}
+
+	public Status getStatus() {
+		return this.status;
+	}
+
+	public String[] getLines() {
+		if (lines != null) {
+			return this.lines.clone();
+		}
+		if (to == NO_ACCOUNT) {
+			return new String[] { title, "Account " + from, "Amount " + Money.format(amount) };
+		}
+		return new String[] { title, "From account " + from, "To account " + to, "Amount " + Money.format(amount) };
+	}
+
+}
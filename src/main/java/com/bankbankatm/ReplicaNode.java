@@ -0,0 +1,299 @@
+package com.bankbankatm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One member of a primary-backup group of bank nodes on known local
+ * addresses, listed in the same order by every member. The primary opens
+ * a {@link DatabaseProxy} on its journal and ships the journal from its
+ * own address; every other member follows it as a backup.
+ *
+ * A member that is not primary looks for one by trying the other
+ * addresses in turn, since only a primary accepts connections. When it
+ * has found none for the promotion timeout times one more than its
+ * position in the list, it promotes itself: members earlier in the list
+ * promote first, and the others find and follow them in the meantime. A
+ * restarted member, including a former primary, therefore rejoins as a
+ * backup of whoever is primary now, and drops any records of its own that
+ * the new primary never received, except those it committed as primary:
+ * a primary that lacks them stops the member with an error instead.
+ *
+ * Each promotion starts a new replication epoch, kept with the member's
+ * other epochs in an {@link EpochFile} next to its journal. Epochs are
+ * numbered so that each member has its own (equal to its position modulo
+ * the member count), and a promotion takes the first of its own after
+ * every epoch the member has followed. Before taking writes the new
+ * primary fences any member still accepting connections as primary of an
+ * earlier epoch, and backups refuse such a primary from then on. This
+ * assumes the members run on one box, where a member that cannot be
+ * reached is down.
+ */
+public class ReplicaNode implements Closeable {
+
+	public static final String PROMOTION_PROPERTY = "bankbankatm.promotionMillis";
+	public static final String ACCOUNTS_PROPERTY = "bankbankatm.accounts";
+
+	private static final int CONNECT_TIMEOUT_MILLIS = 200;
+	private static final long RETRY_MILLIS = 50;
+
+	private final List<InetSocketAddress> members;
+	private final int self;
+	private final Path journalFile;
+	private final Path checkpointFile;
+	private final int expectedAccounts;
+	private final ConcurrencyMode concurrency;
+	private final ReplicationMode replication;
+	private final long promotionTimeoutMillis;
+	private final CompletableFuture<DatabaseProxy> promotion = new CompletableFuture<>();
+	private final Thread thread;
+	private volatile JournalReceiver receiver;
+	private volatile boolean closed;
+
+	/**
+	 *
+	 * @param members addresses of all members, in the same order everywhere
+	 * @param self position of this member in the list
+	 * @param journalFile
+	 * @param checkpointFile may be null; dropped while the member is a backup
+	 * @param expectedAccounts
+	 * @param concurrency
+	 * @param replication
+	 * @param promotionTimeoutMillis also how long a SYNC commit waits for a backup
+	 */
+	public ReplicaNode(List<InetSocketAddress> members, int self, Path journalFile, Path checkpointFile,
+			int expectedAccounts, ConcurrencyMode concurrency, ReplicationMode replication,
+			long promotionTimeoutMillis) {
+		if (self < 0 || self >= members.size()) {
+			throw new IllegalArgumentException("No member " + self + " among " + members.size());
+		}
+		if (promotionTimeoutMillis <= 0) {
+			throw new IllegalArgumentException("promotionTimeoutMillis must be positive: " + promotionTimeoutMillis);
+		}
+		this.members = new ArrayList<>(members);
+		this.self = self;
+		this.journalFile = journalFile;
+		this.checkpointFile = checkpointFile;
+		this.expectedAccounts = expectedAccounts;
+		this.concurrency = concurrency;
+		this.replication = replication;
+		this.promotionTimeoutMillis = promotionTimeoutMillis;
+		this.thread = new Thread(this::run, "replica-" + self);
+		thread.setDaemon(true);
+	}
+
+	/**
+	 * Runs a member in a process of its own until the process is killed:
+	 *
+	 * <pre>
+	 * ReplicaNode self directory bankPort host:port...
+	 * </pre>
+	 *
+	 * The member keeps its journal, epochs and checkpoint in the directory
+	 * and the host:port list gives every member's replication address. Once
+	 * promoted it serves ATMs as a {@link BankServer} on the bank port and
+	 * prints a line saying so. The modes are read from the
+	 * {@value ConcurrencyMode#PROPERTY} and {@value ReplicationMode#PROPERTY}
+	 * system properties, the promotion timeout in milliseconds from
+	 * {@value #PROMOTION_PROPERTY} (1000 by default) and the expected number
+	 * of accounts from {@value #ACCOUNTS_PROPERTY} (1024 by default).
+	 * @param args
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 4) {
+			System.err.println("Usage: ReplicaNode self directory bankPort host:port...");
+			System.exit(2);
+		}
+		int self = Integer.parseInt(args[0]);
+		Path directory = Paths.get(args[1]);
+		int bankPort = Integer.parseInt(args[2]);
+		List<InetSocketAddress> members = new ArrayList<>();
+		for (int i = 3; i < args.length; i++) {
+			int colon = args[i].lastIndexOf(':');
+			members.add(new InetSocketAddress(args[i].substring(0, colon),
+					Integer.parseInt(args[i].substring(colon + 1))));
+		}
+		Files.createDirectories(directory);
+		ReplicaNode node = new ReplicaNode(members, self, directory.resolve("journal"), directory.resolve("checkpoint"),
+				Integer.getInteger(ACCOUNTS_PROPERTY, 1024), ConcurrencyMode.fromSystemProperty(),
+				ReplicationMode.fromSystemProperty(), Long.getLong(PROMOTION_PROPERTY, 1000));
+		node.start();
+		DatabaseProxy proxy = node.promotion().join();
+		BankServer server = new BankServer(proxy, new InetSocketAddress(members.get(self).getAddress(), bankPort));
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				server.close();
+				node.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}));
+		System.out.println("Member " + self + " is primary, serving on port " + server.getPort());
+		Thread.currentThread().join();
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	public boolean isPrimary() {
+		return promotion.isDone() && !promotion.isCompletedExceptionally();
+	}
+
+	/**
+	 * Completes with the member's proxy once it is promoted to primary.
+	 */
+	public CompletableFuture<DatabaseProxy> promotion() {
+		return promotion;
+	}
+
+	/**
+	 * Length of the journal copy while this member is a backup, -1 otherwise.
+	 */
+	public long replicatedLsn() {
+		JournalReceiver copy = receiver;
+		return copy == null ? -1 : copy.length();
+	}
+
+	/**
+	 * Stops following, or closes the proxy if this member is primary.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		JournalReceiver copy = receiver;
+		if (copy != null) {
+			copy.disconnect();
+		}
+		try {
+			thread.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (isPrimary()) {
+			promotion.join().close();
+		}
+	}
+
+	private void run() {
+		try {
+			EpochFile epochs = new EpochFile(EpochFile.fileFor(journalFile));
+			while (follow(epochs)) {
+				if (promote(epochs)) {
+					return;
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			promotion.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Follows whichever member is primary until none has been found for
+	 * this member's promotion delay; returns false when closed first.
+	 */
+	private boolean follow(EpochFile epochs) throws IOException {
+		long delay = TimeUnit.MILLISECONDS.toNanos(promotionTimeoutMillis * (self + 1));
+		dropCheckpoint();
+		try (JournalReceiver copy = new JournalReceiver(journalFile, epochs)) {
+			receiver = copy;
+			long lastSeen = System.nanoTime();
+			while (!closed) {
+				for (int i = 0; i < members.size() && !closed; i++) {
+					if (i != self && copy.follow(members.get(i), CONNECT_TIMEOUT_MILLIS, readTimeout())) {
+						lastSeen = System.nanoTime();
+					}
+				}
+				if (System.nanoTime() - lastSeen >= delay) {
+					return !closed;
+				}
+				try {
+					Thread.sleep(RETRY_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return false;
+		} finally {
+			receiver = null;
+		}
+	}
+
+	/**
+	 * A primary may make this member drop records its checkpoint covers, so
+	 * a backup does without one; the proxy writes a new one on promotion.
+	 */
+	private void dropCheckpoint() throws IOException {
+		if (checkpointFile != null) {
+			Files.deleteIfExists(checkpointFile);
+		}
+	}
+
+	/**
+	 * Fences the other members, then leads a new epoch; returns false,
+	 * leading nothing, when another member is primary of a later epoch.
+	 */
+	private boolean promote(EpochFile epochs) throws IOException {
+		int epoch = epochs.promised() + 1;
+		epoch += Math.floorMod(self - epoch, members.size());
+		for (int i = 0; i < members.size(); i++) {
+			if (i != self && !fence(members.get(i), epoch)) {
+				return false;
+			}
+		}
+		epochs.lead(epoch);
+		DatabaseProxy proxy = new DatabaseProxy(expectedAccounts, concurrency, journalFile, checkpointFile);
+		try {
+			proxy.replicate(members.get(self), replication, promotionTimeoutMillis, epoch);
+		} catch (IOException | RuntimeException e) {
+			proxy.close();
+			throw e;
+		}
+		promotion.complete(proxy);
+		return true;
+	}
+
+	/**
+	 * Opens a backup's handshake with a member, promising the epoch, so
+	 * that a primary of an earlier epoch there stops taking writes. Returns
+	 * false when a primary of the same or a later epoch answers.
+	 */
+	private boolean fence(InetSocketAddress member, int epoch) {
+		try (Socket connection = new Socket()) {
+			try {
+				connection.connect(member, CONNECT_TIMEOUT_MILLIS);
+			} catch (IOException e) {
+				return true;
+			}
+			connection.setSoTimeout(readTimeout());
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+			out.writeLong(0);
+			out.writeInt(0);
+			out.writeInt(epoch);
+			out.flush();
+			return in.readLong() == JournalShipper.FENCED;
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	private int readTimeout() {
+		return (int) Math.max(promotionTimeoutMillis, 10L * JournalShipper.HEARTBEAT_MILLIS);
+	}
+
+}
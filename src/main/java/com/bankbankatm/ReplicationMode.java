@@ -0,0 +1,33 @@
+package com.bankbankatm;
+
+/**
+ * When a journaled mutation on a primary counts as committed.
+ */
+public enum ReplicationMode {
+	/** Once it is durable on the primary; backups follow behind. */
+	ASYNC,
+	/**
+	 * Once it is also durable on every backup that has caught up, and on at
+	 * least one; a commit that no backup acknowledges in time fails.
+	 */
+	SYNC,
+	/**
+	 * Like SYNC, but a backup that does not acknowledge in time is dropped
+	 * and the commit goes ahead, counted as degraded, as does a commit with
+	 * no backup caught up.
+	 */
+	SEMI_SYNC;
+
+	public static final String PROPERTY = "bankbankatm.replication";
+
+	/**
+	 * Reads the mode from the {@value #PROPERTY} system property, defaulting to ASYNC.
+	 */
+	public static ReplicationMode fromSystemProperty() {
+		String value = System.getProperty(PROPERTY);
+		if (value == null || value.isEmpty()) {
+			return ASYNC;
+		}
+		return valueOf(value.trim().toUpperCase());
+	}
+}
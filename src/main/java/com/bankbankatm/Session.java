@@ -1,5 +1,91 @@
 package com.bankbankatm;
 
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One customer's visit to an ATM. Each step the customer takes must be
+ * finished within {@value #STEP_TIMEOUT_SECONDS} seconds; a step that runs
+ * over ends the session and runs its timeout action, once, on the thread
+ * of the {@link TimerWheel} that keeps the step timeouts.
+ */
 public class Session {
-    // Stub for Session
+
+    public static final long STEP_TIMEOUT_SECONDS = 60;
+
+    private final TimerWheel timers;
+    private final Runnable onTimeout;
+    private TimerWheel.Timeout step;
+    private long steps;
+    private boolean ended;
+    private volatile boolean timedOut;
+
+    public Session() {
+        this(null);
+    }
+
+    /**
+     *
+     * @param onTimeout may be null
+     */
+    public Session(Runnable onTimeout) {
+        this(TimerWheel.shared(), onTimeout);
+    }
+
+    /**
+     *
+     * @param timers
+     * @param onTimeout may be null
+     */
+    public Session(TimerWheel timers, Runnable onTimeout) {
+        this.timers = timers;
+        this.onTimeout = onTimeout;
+    }
+
+    /**
+     * Starts the clock on the next step, stopping it on the current one.
+     */
+    public synchronized void beginStep() {
+        if (ended) {
+            throw new IllegalStateException(timedOut ? "Session timed out" : "Session has ended");
+        }
+        if (step != null) {
+            step.cancel();
+        }
+        long current = ++steps;
+        step = timers.schedule(() -> timeOut(current), STEP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Ends the session, stopping the clock on the current step.
+     */
+    public synchronized void end() {
+        ended = true;
+        if (step != null) {
+            step.cancel();
+            step = null;
+        }
+    }
+
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * Ends the session unless the step has been finished since its timeout
+     * fired.
+     */
+    private void timeOut(long expired) {
+        synchronized (this) {
+            if (ended || expired != steps) {
+                return;
+            }
+            ended = true;
+            step = null;
+            timedOut = true;
+        }
+        if (onTimeout != null) {
+            onTimeout.run();
+        }
+    }
+
 }
@@ -3,5 +3,6 @@ package com.bankbankatm;
 public enum Status {
     SUCCESS,
     FAILURE,
-    PENDING
+    PENDING,
+    DAILY_LIMIT_EXCEEDED
 }
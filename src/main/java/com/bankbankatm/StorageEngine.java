@@ -0,0 +1,107 @@
+package com.bankbankatm;
+
+import java.io.Closeable;
+
+/**
+ * Backing store of the bank's accounts. Amounts are in minor units and
+ * unknown accounts are reported with IllegalArgumentException.
+ */
+public interface StorageEngine extends Closeable {
+
+	/** The withdrawal was debited. */
+	int WITHDRAWN = 0;
+	/** The balance does not cover the withdrawal. */
+	int INSUFFICIENT_FUNDS = 1;
+	/** The withdrawal does not fit in what is left of today's limit. */
+	int DAILY_LIMIT_EXCEEDED = 2;
+
+	/**
+	 * Returns the stored password hash of the account as a hex string.
+	 * @param accountNum
+	 */
+	String selectPasswordByAccountNum(int accountNum);
+
+	/**
+	 * Debits the account if the balance covers the amount.
+	 * @param accountNum
+	 * @param amount
+	 */
+	boolean minusBalance(int accountNum, long amount);
+
+	/**
+	 * Cash withdrawal: debits the account if the balance covers the amount
+	 * and the amount fits in what is left of today's withdrawal limit.
+	 * @param accountNum
+	 * @param amount
+	 */
+	boolean withdraw(int accountNum, long amount);
+
+	/**
+	 * Like {@link #withdraw}, telling apart why a withdrawal was refused.
+	 * @param accountNum
+	 * @param amount
+	 * @return WITHDRAWN, INSUFFICIENT_FUNDS or DAILY_LIMIT_EXCEEDED
+	 */
+	int tryWithdraw(int accountNum, long amount);
+
+	/**
+	 * Credits back a withdrawal whose cash was not dispensed and returns the
+	 * amount to today's withdrawal allowance.
+	 * @param accountNum
+	 * @param amount
+	 */
+	void returnWithdrawal(int accountNum, long amount);
+
+	/**
+	 * Sets the per-account daily withdrawal limit.
+	 * @param limit
+	 */
+	void setDailyWithdrawalLimit(long limit);
+
+	/**
+	 *
+	 * @param accountNum
+	 * @param amount
+	 */
+	void plusBalance(int accountNum, long amount);
+
+	/**
+	 * Moves the amount between two accounts if the sending balance covers
+	 * it, debiting and crediting together or not at all.
+	 * @param from
+	 * @param to
+	 * @param amount
+	 */
+	boolean transfer(int from, int to, long amount);
+
+	/**
+	 *
+	 * @param accountNum
+	 */
+	long checkTheBalance(int accountNum);
+
+	/**
+	 * Opens an account and returns its number.
+	 * @param password
+	 * @param accountType
+	 * @param openingBalance
+	 */
+	int createNewAccount(String password, int accountType, long openingBalance);
+
+	/**
+	 * Replaces the account's password if the old one matches.
+	 * @param accountNum
+	 * @param oldPassword
+	 * @param newPassword
+	 */
+	boolean changePassword(int accountNum, String oldPassword, String newPassword);
+
+	/**
+	 * The cache of password hashes in front of this engine. There is one
+	 * per engine, and the engine drops an account's hash from it whenever
+	 * the account's password changes, so every reader of the cache sees
+	 * the change.
+	 */
+	CredentialCache getCredentials();
+
+}
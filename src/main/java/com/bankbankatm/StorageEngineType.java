@@ -0,0 +1,84 @@
+package com.bankbankatm;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Storage engines a deployment can choose from.
+ */
+public enum StorageEngineType {
+	/** Account table in memory, nothing survives a restart. */
+	MEMORY,
+	/** Account table in memory, every mutation journaled to a file and checkpointed. */
+	JOURNAL,
+	/** Accounts in a database reached through JDBC, typically an embedded one. */
+	JDBC;
+
+	public static final String PROPERTY = "bankbankatm.storage";
+	public static final String EXPECTED_ACCOUNTS_PROPERTY = "bankbankatm.storage.expectedAccounts";
+	public static final String JOURNAL_PROPERTY = "bankbankatm.storage.journal";
+	public static final String CHECKPOINT_PROPERTY = "bankbankatm.storage.checkpoint";
+	public static final String JDBC_URL_PROPERTY = "bankbankatm.storage.jdbc.url";
+	public static final String JDBC_CONNECTIONS_PROPERTY = "bankbankatm.storage.jdbc.connections";
+
+	private static final int DEFAULT_EXPECTED_ACCOUNTS = 1 << 16;
+
+	/**
+	 * Reads the type from the {@value #PROPERTY} system property, defaulting to MEMORY.
+	 */
+	public static StorageEngineType fromSystemProperty() {
+		return fromProperties(System.getProperties());
+	}
+
+	/**
+	 *
+	 * @param config
+	 */
+	public static StorageEngineType fromProperties(Properties config) {
+		String value = config.getProperty(PROPERTY);
+		if (value == null || value.isEmpty()) {
+			return MEMORY;
+		}
+		return valueOf(value.trim().toUpperCase());
+	}
+
+	/**
+	 * Opens the engine selected by {@value #PROPERTY} and configured by the
+	 * other {@code bankbankatm.storage.*} properties.
+	 * @param config
+	 */
+	public static StorageEngine open(Properties config) throws IOException {
+		return fromProperties(config).create(config);
+	}
+
+	/**
+	 *
+	 * @param config
+	 */
+	public StorageEngine create(Properties config) throws IOException {
+		int expectedAccounts = Integer.parseInt(config.getProperty(EXPECTED_ACCOUNTS_PROPERTY,
+				Integer.toString(DEFAULT_EXPECTED_ACCOUNTS)));
+		switch (this) {
+		case MEMORY:
+			return new DatabaseProxy(expectedAccounts, ConcurrencyMode.fromSystemProperty());
+		case JOURNAL:
+			String checkpoint = config.getProperty(CHECKPOINT_PROPERTY);
+			return new DatabaseProxy(expectedAccounts, ConcurrencyMode.fromSystemProperty(),
+					Path.of(required(config, JOURNAL_PROPERTY)), checkpoint == null ? null : Path.of(checkpoint));
+		case JDBC:
+			return new JdbcStorageEngine(required(config, JDBC_URL_PROPERTY), Integer.parseInt(config.getProperty(
+					JDBC_CONNECTIONS_PROPERTY, Integer.toString(Runtime.getRuntime().availableProcessors()))));
+		default:
+			throw new IllegalStateException("Unknown storage engine " + this);
+		}
+	}
+
+	private static String required(Properties config, String key) {
+		String value = config.getProperty(key);
+		if (value == null || value.isEmpty()) {
+			throw new IllegalArgumentException(key + " is not set");
+		}
+		return value;
+	}
+}
@@ -0,0 +1,285 @@
+package com.bankbankatm;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel for the many long, mostly cancelled timeouts of ATM
+ * sessions and bank requests. A ring of buckets turns one bucket per tick
+ * on a single daemon thread; a timeout lands in the bucket its deadline
+ * falls in, with the number of whole turns still to wait. Scheduling and
+ * cancelling are O(1): both only queue the timeout, and the wheel thread
+ * links it into or out of its bucket on the next tick, so callers never
+ * contend on the wheel itself. A timeout cancelled before it is linked,
+ * as most bank timeouts are, is just skipped. A timeout fires up to one tick late, and
+ * its task runs on the wheel thread, so it must not block.
+ */
+public class TimerWheel implements Closeable {
+
+	private static final int TRANSFERS_PER_TICK = 100_000;
+	private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater
+			.newUpdater(Timeout.class, "state");
+
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+	private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pending = new AtomicInteger();
+	private final long start = System.nanoTime();
+	private final Thread thread;
+	private long tick;
+	private volatile boolean closed;
+	private volatile RuntimeException lastFailure;
+
+	/**
+	 *
+	 * @param tick how far apart the buckets are, and so how late a timeout may fire
+	 * @param unit
+	 * @param buckets rounded up to a power of two
+	 * @param name of the wheel thread
+	 */
+	public TimerWheel(long tick, TimeUnit unit, int buckets, String name) {
+		if (tick <= 0) {
+			throw new IllegalArgumentException("tick must be positive: " + tick);
+		}
+		if (buckets <= 0 || buckets > 1 << 30) {
+			throw new IllegalArgumentException("buckets out of range: " + buckets);
+		}
+		this.tickNanos = unit.toNanos(tick);
+		int size = 1;
+		while (size < buckets) {
+			size <<= 1;
+		}
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < wheel.length; i++) {
+			wheel[i] = new Bucket();
+		}
+		this.mask = wheel.length - 1;
+		this.thread = new Thread(this::run, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * The wheel shared by the bank link and the sessions of this process,
+	 * ticking every 100 milliseconds.
+	 */
+	static TimerWheel shared() {
+		return Shared.WHEEL;
+	}
+
+	/**
+	 * Runs the task on the wheel thread once the delay has passed, unless
+	 * the timeout is cancelled first.
+	 * @param task
+	 * @param delay
+	 * @param unit
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		if (closed) {
+			throw new IllegalStateException("Timer wheel is closed");
+		}
+		Timeout timeout = new Timeout(task, System.nanoTime() - start + Math.max(0, unit.toNanos(delay)));
+		pending.incrementAndGet();
+		scheduled.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Number of timeouts that have neither fired nor been cancelled.
+	 */
+	public int getPendingCount() {
+		return pending.get();
+	}
+
+	/**
+	 * The error a task last threw, or null if none did.
+	 */
+	public RuntimeException getLastFailure() {
+		return lastFailure;
+	}
+
+	/**
+	 * Stops the wheel; timeouts still pending never fire.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		LockSupport.unpark(thread);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run() {
+		while (!closed) {
+			long deadline = tickNanos * (tick + 1);
+			long now;
+			while ((now = System.nanoTime() - start) < deadline && !closed) {
+				LockSupport.parkNanos(this, deadline - now);
+			}
+			if (closed) {
+				return;
+			}
+			unlinkCancelled();
+			transferScheduled();
+			expire(wheel[(int) (tick & mask)], now);
+			tick++;
+		}
+	}
+
+	private void unlinkCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelled.poll()) != null) {
+			if (timeout.bucket != null) {
+				timeout.bucket.remove(timeout);
+			}
+		}
+	}
+
+	/**
+	 * Links newly scheduled timeouts into their buckets; one that is due
+	 * already goes into the current bucket.
+	 */
+	private void transferScheduled() {
+		Timeout timeout;
+		for (int i = 0; i < TRANSFERS_PER_TICK && (timeout = scheduled.poll()) != null; i++) {
+			timeout.linked = true;
+			if (timeout.state != Timeout.WAITING) {
+				continue;
+			}
+			long due = Math.max(tick, timeout.deadline / tickNanos);
+			timeout.rounds = (due - tick) / wheel.length;
+			wheel[(int) (due & mask)].add(timeout);
+		}
+	}
+
+	private void expire(Bucket bucket, long now) {
+		Timeout timeout = bucket.head;
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.state == Timeout.CANCELLED) {
+				bucket.remove(timeout);
+			} else if (timeout.rounds > 0) {
+				timeout.rounds--;
+			} else if (timeout.deadline <= now) {
+				bucket.remove(timeout);
+				timeout.expire();
+			}
+			timeout = next;
+		}
+	}
+
+	/**
+	 * A scheduled task. Only the wheel thread touches the links. The wheel
+	 * thread marks a timeout linked before it checks the state, and cancel
+	 * changes the state before it checks the mark, so a timeout that is
+	 * cancelled while it is being linked is either skipped or queued for
+	 * unlinking.
+	 */
+	public final class Timeout {
+
+		static final int WAITING = 0;
+		static final int CANCELLED = 1;
+		static final int EXPIRED = 2;
+
+		private final Runnable task;
+		final long deadline;
+		long rounds;
+		Bucket bucket;
+		Timeout prev;
+		Timeout next;
+		volatile boolean linked;
+		volatile int state;
+
+		Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Keeps the task from running; returns false when it ran or was
+		 * cancelled already.
+		 */
+		public boolean cancel() {
+			if (!STATE.compareAndSet(this, WAITING, CANCELLED)) {
+				return false;
+			}
+			pending.decrementAndGet();
+			if (linked) {
+				cancelled.add(this);
+			}
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return state == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state == EXPIRED;
+		}
+
+		void expire() {
+			if (!STATE.compareAndSet(this, WAITING, EXPIRED)) {
+				return;
+			}
+			pending.decrementAndGet();
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				lastFailure = e;
+			}
+		}
+	}
+
+	/**
+	 * Doubly linked list of the timeouts due in one slot of the wheel.
+	 */
+	private static final class Bucket {
+
+		Timeout head;
+		Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			timeout.prev = tail;
+			if (tail == null) {
+				head = timeout;
+			} else {
+				tail.next = timeout;
+			}
+			tail = timeout;
+		}
+
+		void remove(Timeout timeout) {
+			if (timeout.prev == null) {
+				head = timeout.next;
+			} else {
+				timeout.prev.next = timeout.next;
+			}
+			if (timeout.next == null) {
+				tail = timeout.prev;
+			} else {
+				timeout.next.prev = timeout.prev;
+			}
+			timeout.bucket = null;
+			timeout.prev = null;
+			timeout.next = null;
+		}
+	}
+
+	private static final class Shared {
+
+		static final TimerWheel WHEEL = new TimerWheel(100, TimeUnit.MILLISECONDS, 1024, "timer-wheel");
+	}
+
+}
@@ -2,9 +2,39 @@ package com.bankbankatm;
 
 public class Transaction {
 
+	static final String UNAVAILABLE = "System unavailable, please try again later";
+
 	protected ATM atm;
 	protected Session session;
 	protected Card card;
 	protected int pin;
 
-}
\ No newline at end of file
+	/**
+	 * 
+	 * @param atm
+	 * @param session
+	 * @param card
+	 * @param pin
+	 */
+	protected Transaction(ATM atm, Session session, Card card, int pin) {
+		this.atm = atm;
+		this.session = session;
+		this.card = card;
+		this.pin = pin;
+	}
+
+	/**
+	 * Receipt for a request the bank did not answer. The cause is recorded
+	 * in the network log, when there is one.
+	 * @param error
+	 */
+	Receipt unavailable(Throwable error) {
+		NetworkToBank network = atm.getNetworkToBank();
+		Log log = network == null ? null : network.getLog();
+		if (log != null) {
+			log.logUnavailable(error);
+		}
+		return new Receipt(Status.FAILURE, UNAVAILABLE);
+	}
+
+}
@@ -0,0 +1,135 @@
+package com.bankbankatm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Recent transactions of every account, kept as a fixed-size ring per
+ * account slot. Entries are packed into long arrays (a stamp, the time and
+ * the signed amount), never into per-transaction objects. The arrays are
+ * allocated in pages of {@value #PAGE_SLOTS} slots on first use, so accounts
+ * that never transact cost nothing.
+ *
+ * Reads are lock-free. Each entry carries a stamp holding its sequence
+ * number and kind, written last by the writer and checked before and after
+ * the reader copies the entry; an entry that is being rewritten is skipped.
+ * Writers to one account are expected to be serialized by the caller.
+ */
+public class TransactionHistory {
+
+	public static final int DEPTH = 10;
+	/** Words per entry copied out by {@link #recent}: kind, time, amount. */
+	public static final int ENTRY_WORDS = 3;
+
+	private static final int PAGE_SHIFT = 10;
+	private static final int PAGE_SLOTS = 1 << PAGE_SHIFT;
+	private static final int STRIDE = 1 + DEPTH * ENTRY_WORDS;
+	private static final int KIND_BITS = 8;
+	private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+	private static final VarHandle PAGES = MethodHandles.arrayElementVarHandle(long[][].class);
+
+	private final long[][] pages;
+
+	/**
+	 *
+	 * @param capacity number of account slots
+	 */
+	public TransactionHistory(int capacity) {
+		this.pages = new long[(capacity + PAGE_SLOTS - 1) >>> PAGE_SHIFT][];
+	}
+
+	/**
+	 *
+	 * @param slot
+	 * @param kind a {@link JournalRecord} kind
+	 * @param timestamp epoch milliseconds
+	 * @param amount signed amount in minor units
+	 */
+	public void record(int slot, int kind, long timestamp, long amount) {
+		long[] page = page(slot);
+		int base = (slot & (PAGE_SLOTS - 1)) * STRIDE;
+		long seq = (long) LONGS.getAndAdd(page, base, 1L);
+		int entry = base + 1 + (int) (seq % DEPTH) * ENTRY_WORDS;
+		LONGS.setOpaque(page, entry, 0L);
+		VarHandle.storeStoreFence();
+		LONGS.setOpaque(page, entry + 1, timestamp);
+		LONGS.setOpaque(page, entry + 2, amount);
+		LONGS.setRelease(page, entry, ((seq + 1) << KIND_BITS) | kind);
+	}
+
+	/**
+	 * Copies up to {@code out.length / ENTRY_WORDS} most recent entries of
+	 * the slot into {@code out}, newest first, and returns how many it copied.
+	 * @param slot
+	 * @param out
+	 */
+	public int recent(int slot, long[] out) {
+		long[] page = (long[]) PAGES.getAcquire(pages, slot >>> PAGE_SHIFT);
+		if (page == null) {
+			return 0;
+		}
+		int base = (slot & (PAGE_SLOTS - 1)) * STRIDE;
+		long head = (long) LONGS.getAcquire(page, base);
+		int max = Math.min(out.length / ENTRY_WORDS, DEPTH);
+		int count = 0;
+		for (long seq = head - 1; seq >= 0 && seq >= head - DEPTH && count < max; seq--) {
+			int entry = base + 1 + (int) (seq % DEPTH) * ENTRY_WORDS;
+			long stamp = (long) LONGS.getAcquire(page, entry);
+			long timestamp = (long) LONGS.getOpaque(page, entry + 1);
+			long amount = (long) LONGS.getOpaque(page, entry + 2);
+			VarHandle.loadLoadFence();
+			if (stamp != (long) LONGS.getOpaque(page, entry)) {
+				continue;
+			}
+			long stampSeq = stamp >>> KIND_BITS;
+			if (stampSeq > seq + 1) {
+				break;
+			}
+			if (stampSeq != seq + 1) {
+				continue;
+			}
+			int out0 = count * ENTRY_WORDS;
+			out[out0] = stamp & ((1 << KIND_BITS) - 1);
+			out[out0 + 1] = timestamp;
+			out[out0 + 2] = amount;
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 *
+	 * @param kind
+	 * @param amount
+	 */
+	public static String describe(int kind, long amount) {
+		switch (kind) {
+		case JournalRecord.WITHDRAWAL:
+			return "Withdrawal";
+		case JournalRecord.CREDIT:
+			return "Deposit";
+		case JournalRecord.REFUND:
+			return "Refund";
+		case JournalRecord.TRANSFER:
+			return amount < 0 ? "Transfer out" : "Transfer in";
+		case JournalRecord.REVERSAL:
+			return "Reversal";
+		default:
+			return amount < 0 ? "Debit" : "Credit";
+		}
+	}
+
+	private long[] page(int slot) {
+		int index = slot >>> PAGE_SHIFT;
+		long[] page = (long[]) PAGES.getAcquire(pages, index);
+		if (page == null) {
+			long[] created = new long[PAGE_SLOTS * STRIDE];
+			page = (long[]) PAGES.compareAndExchangeRelease(pages, index, null, created);
+			if (page == null) {
+				page = created;
+			}
+		}
+		return page;
+	}
+
+}
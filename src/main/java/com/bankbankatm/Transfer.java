@@ -1,10 +1,12 @@
 package com.bankbankatm;
 
+import java.util.concurrent.CompletableFuture;
+
 public class Transfer extends Transaction {
 
 	private int from;
 	private int to;
-	private Money amount;
+	private final MutableMoney amount = new MutableMoney();
 
 	/**
 	 * 
@@ -14,8 +16,24 @@ public class Transfer extends Transaction {
 	 * @param pin
 	 */
 	public Transfer(ATM atm, Session session, Card card, int pin) {
-		// TODO - implement Transfer.Transfer
-		throw new UnsupportedOperationException();
+		super(atm, session, card, pin);
+		this.from = card.getNumber();
+	}
+
+	/**
+	 * 
+	 * @param to
+	 */
+	public void setTo(int to) {
+		this.to = to;
+	}
+
+	/**
+	 * 
+	 * @param amount
+	 */
+	public void setAmount(Money amount) {
+		this.amount.set(amount);
 	}
 
 	public Message getSpecificsFromCustomer() {
@@ -24,8 +42,30 @@ public class Transfer extends Transaction {
 	}
 
 	public Receipt completeTransaction() {
-		// TODO - implement Transfer.completeTransaction
-		throw new UnsupportedOperationException();
+		if (!atm.getDatabase().transfer(from, to, amount.getMinorUnits())) {
+			return new Receipt(Status.FAILURE, "Insufficient funds");
+		}
+		return Receipt.ofTransfer(from, to, amount.getMinorUnits());
+	}
+
+	/**
+	 * Has the bank move the amount in one TRANSFER request, without holding
+	 * a thread while the bank answers, so the bank debits and credits
+	 * together or not at all. The request carries a reference unique among
+	 * the bank's ATMs, so the bank can tell a request it has seen. Without a
+	 * bank link the local database transfers.
+	 */
+	public CompletableFuture<Receipt> completeTransactionAsync() {
+		NetworkToBank network = atm.getNetworkToBank();
+		if (network == null) {
+			return CompletableFuture.completedFuture(completeTransaction());
+		}
+		Message transfer = new Message(Message.TRANSFER, from, amount.getMinorUnits(), atm.nextReference(), to);
+		return network.sendMessageAsync(transfer, null)
+				.thenApply(transferred -> transferred == Status.SUCCESS
+						? Receipt.ofTransfer(from, to, transfer.getAmount())
+						: new Receipt(Status.FAILURE, "Insufficient funds"))
+				.exceptionally(this::unavailable);
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,103 @@
+package com.bankbankatm;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-field binary form of a {@link Message}. Instances are flyweights
+ * over a buffer: the same object is re-pointed at each message as a
+ * stream is decoded, so decoding allocates nothing per message, and
+ * encoding writes the fields straight into the caller's buffer.
+ *
+ * Layout (big-endian, {@value #SIZE} bytes, the same for every type):
+ * version, type, reserved (2 bytes), account, amount, reference, target
+ * account, reserved (4 bytes).
+ *
+ * The reference ties a dispense confirmation or failure to the request
+ * that authorized the withdrawal, and names a transfer, 0 when there is
+ * none. The target is the account a transfer credits, 0 for other types.
+ */
+public final class WireMessage {
+
+	public static final int SIZE = 32;
+	public static final int VERSION = 2;
+
+	private static final int VERSION_OFFSET = 0;
+	private static final int TYPE = 1;
+	private static final int RESERVED = 2;
+	private static final int ACCOUNT = 4;
+	private static final int AMOUNT = 8;
+	private static final int REFERENCE = 16;
+	private static final int TARGET = 24;
+	private static final int PADDING = 28;
+
+	private ByteBuffer buffer;
+	private int offset;
+
+	/**
+	 *
+	 * @param buffer
+	 * @param offset
+	 */
+	public WireMessage wrap(ByteBuffer buffer, int offset) {
+		this.buffer = buffer;
+		this.offset = offset;
+		return this;
+	}
+
+	public int version() {
+		return buffer.get(offset + VERSION_OFFSET);
+	}
+
+	public int type() {
+		return buffer.get(offset + TYPE);
+	}
+
+	public int account() {
+		return buffer.getInt(offset + ACCOUNT);
+	}
+
+	public long amount() {
+		return buffer.getLong(offset + AMOUNT);
+	}
+
+	public long reference() {
+		return buffer.getLong(offset + REFERENCE);
+	}
+
+	public int target() {
+		return buffer.getInt(offset + TARGET);
+	}
+
+	/**
+	 * Whether the message has this version and a known type.
+	 */
+	public boolean isValid() {
+		int type = type();
+		return version() == VERSION && type >= Message.BALANCE && type <= Message.TRANSFER;
+	}
+
+	/**
+	 * Copies the message out of the buffer.
+	 */
+	public Message toMessage() {
+		return new Message(type(), account(), amount(), reference(), target());
+	}
+
+	/**
+	 * Writes a message at the buffer's position and advances it.
+	 * @param buffer
+	 */
+	public static void write(ByteBuffer buffer, int type, int account, long amount, long reference, int target) {
+		int offset = buffer.position();
+		buffer.put(offset + VERSION_OFFSET, (byte) VERSION)
+				.put(offset + TYPE, (byte) type)
+				.putShort(offset + RESERVED, (short) 0)
+				.putInt(offset + ACCOUNT, account)
+				.putLong(offset + AMOUNT, amount)
+				.putLong(offset + REFERENCE, reference)
+				.putInt(offset + TARGET, target)
+				.putInt(offset + PADDING, 0);
+		buffer.position(offset + SIZE);
+	}
+
+}
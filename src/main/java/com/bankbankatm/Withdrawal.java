@@ -1,9 +1,11 @@
 package com.bankbankatm;
 
+import java.util.concurrent.CompletableFuture;
+
 public class Withdrawal extends Transaction {
 
 	private int from;
-	private Money amount;
+	private final MutableMoney amount = new MutableMoney();
 
 	/**
 	 * 
@@ -13,8 +15,16 @@ public class Withdrawal extends Transaction {
 	 * @param pin
 	 */
 	public Withdrawal(ATM atm, Session session, Card card, int pin) {
-		// TODO - implement Withdrawal.Withdrawal
-		throw new UnsupportedOperationException();
+		super(atm, session, card, pin);
+		this.from = card.getNumber();
+	}
+
+	/**
+	 * 
+	 * @param amount
+	 */
+	public void setAmount(Money amount) {
+		this.amount.set(amount);
 	}
 
 	public Message getSpecificsFromCustomer() {
@@ -23,8 +33,79 @@ public class Withdrawal extends Transaction {
 	}
 
 	public Receipt completeTransaction() {
-		// TODO - implement Withdrawal.completeTransaction
-		throw new UnsupportedOperationException();
+		CashDispenser dispenser = atm.getCashDispenser();
+		if (!dispenser.checkCashOnHand(amount.getMinorUnits())) {
+			return new Receipt(Status.FAILURE, "Insufficient cash in ATM");
+		}
+		DatabaseProxy database = atm.getDatabase();
+		int withdrawal = database.tryWithdraw(from, amount.getMinorUnits());
+		if (withdrawal != StorageEngine.WITHDRAWN) {
+			return withdrawal == StorageEngine.DAILY_LIMIT_EXCEEDED ? dailyLimitExceeded() : insufficientFunds();
+		}
+		try {
+			dispenser.dispenseCash(amount.getMinorUnits());
+		} catch (RuntimeException e) {
+			database.returnWithdrawal(from, amount.getMinorUnits());
+			return new Receipt(Status.FAILURE, "Unable to dispense cash");
+		}
+		return Receipt.of("Withdrawal", from, amount.getMinorUnits());
+	}
+
+	/**
+	 * Has the bank authorize the withdrawal, dispenses the cash and
+	 * confirms the dispense to the bank, without holding a thread while the
+	 * bank answers; the cash is dispensed on the ATM's executor. The
+	 * confirmation carries the authorization's reference, which is unique
+	 * among the bank's ATMs and across restarts so the bank can tell a
+	 * resent confirmation; a failed dispense is reported so the bank
+	 * credits the amount back. When the authorization gets no answer, the
+	 * bank may still have taken it, so nothing is dispensed and a dispense
+	 * failure is queued for it all the same.
+	 * Without a bank link the local database decides.
+	 */
+	public CompletableFuture<Receipt> completeTransactionAsync() {
+		NetworkToBank network = atm.getNetworkToBank();
+		if (network == null) {
+			return CompletableFuture.completedFuture(completeTransaction());
+		}
+		CashDispenser dispenser = atm.getCashDispenser();
+		if (!dispenser.checkCashOnHand(amount.getMinorUnits())) {
+			return CompletableFuture.completedFuture(new Receipt(Status.FAILURE, "Insufficient cash in ATM"));
+		}
+		long minorUnits = amount.getMinorUnits();
+		long reference = atm.nextReference();
+		return network.sendMessageAsync(new Message(Message.AUTHORIZE, from, minorUnits, reference), null)
+				.whenComplete((authorized, error) -> {
+					if (error != null) {
+						network.sendConfirmation(new Message(Message.DISPENSE_FAILED, from, minorUnits, reference));
+					}
+				})
+				.thenApplyAsync(authorized -> {
+					if (authorized != Status.SUCCESS) {
+						return authorized == Status.DAILY_LIMIT_EXCEEDED ? dailyLimitExceeded() : insufficientFunds();
+					}
+					Receipt receipt;
+					int confirmation;
+					try {
+						dispenser.dispenseCash(minorUnits);
+						receipt = Receipt.of("Withdrawal", from, minorUnits);
+						confirmation = Message.DISPENSED;
+					} catch (RuntimeException e) {
+						receipt = new Receipt(Status.FAILURE, "Unable to dispense cash");
+						confirmation = Message.DISPENSE_FAILED;
+					}
+					network.sendConfirmation(new Message(confirmation, from, minorUnits, reference));
+					return receipt;
+				}, atm.getExecutor())
+				.exceptionally(this::unavailable);
+	}
+
+	private static Receipt dailyLimitExceeded() {
+		return new Receipt(Status.FAILURE, "Daily withdrawal limit exceeded");
+	}
+
+	private static Receipt insufficientFunds() {
+		return new Receipt(Status.FAILURE, "Insufficient funds");
 	}
 
 }
\ No newline at end of file
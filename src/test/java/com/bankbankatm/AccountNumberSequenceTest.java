@@ -0,0 +1,68 @@
+package com.bankbankatm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AccountNumberSequenceTest {
+
+    private static final int PER_THREAD = 10_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void concurrentThreadsNeverGetTheSameNumber() throws InterruptedException {
+        AccountNumberSequence sequence = new AccountNumberSequence(1000);
+        Set<Integer> issued = ConcurrentHashMap.newKeySet();
+        ConcurrencyModeTest.runOnThreads(4, () -> {
+            for (int i = 0; i < PER_THREAD; i++) {
+                int number = sequence.next();
+                assertTrue(number >= 1000);
+                assertTrue("issued twice: " + number, issued.add(number));
+            }
+        });
+        assertEquals(4 * PER_THREAD, issued.size());
+    }
+
+    @Test
+    public void stridedSequencesIssueDisjointNumbers() {
+        AccountNumberSequence even = new AccountNumberSequence(10, 2, 0);
+        AccountNumberSequence odd = new AccountNumberSequence(10, 2, 1);
+        for (int i = 0; i < 1000; i++) {
+            int a = even.next();
+            int b = odd.next();
+            assertEquals(0, a % 2);
+            assertEquals(1, b % 2);
+            assertTrue(a >= 10 && b >= 10);
+        }
+        assertThrows(IllegalArgumentException.class, () -> new AccountNumberSequence(0, 2, 2));
+        assertThrows(IllegalArgumentException.class, () -> new AccountNumberSequence(0, 0, 0));
+    }
+
+    @Test
+    public void aRestartedSequenceStartsAboveEveryIssuedNumber() throws IOException {
+        Path mark = folder.getRoot().toPath().resolve("mark");
+        int highest = 0;
+        AccountNumberSequence first = new AccountNumberSequence(mark, 1);
+        for (int i = 0; i < PER_THREAD; i++) {
+            highest = Math.max(highest, first.next());
+        }
+        AccountNumberSequence restarted = new AccountNumberSequence(mark, 1);
+        assertTrue(restarted.next() > highest);
+    }
+
+    @Test
+    public void theSequenceEndsBeforeNumbersOverflow() {
+        AccountNumberSequence sequence = new AccountNumberSequence(Integer.MAX_VALUE - 10);
+        assertThrows(IllegalStateException.class, sequence::next);
+    }
+
+}
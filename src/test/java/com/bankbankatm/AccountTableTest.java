@@ -0,0 +1,73 @@
+package com.bankbankatm;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class AccountTableTest {
+
+    @Test
+    public void insertedAccountsAreFoundInTheirSlots() {
+        AccountTable table = new AccountTable(1000);
+        for (int account = 1; account <= 1000; account++) {
+            int slot = table.insert(account, account * 100L, account * 7L, account % 3);
+            assertEquals(slot, table.slotOf(account));
+        }
+        assertEquals(1000, table.size());
+        for (int account = 1; account <= 1000; account++) {
+            int slot = table.slotOf(account);
+            assertEquals(account, table.accountNumAt(slot));
+            assertEquals(account * 100L, table.balanceAt(slot));
+            assertEquals(account * 7L, table.passwordHashAt(slot));
+            assertEquals(account % 3, table.accountTypeAt(slot));
+        }
+        assertEquals(-1, table.slotOf(1001));
+        assertEquals(-1, table.slotOf(AccountTable.EMPTY));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateAccountIsRejected() {
+        AccountTable table = new AccountTable(4);
+        table.insert(42, 0, 0, 0);
+        table.insert(42, 0, 0, 0);
+    }
+
+    @Test
+    public void fullTableIsRejectedAndKeepsItsSize() {
+        AccountTable table = new AccountTable(3);
+        int account = 1;
+        while (table.hasRoom()) {
+            table.insert(account++, 0, 0, 0);
+        }
+        try {
+            table.insert(account, 0, 0, 0);
+            fail("Insert into a full table succeeded");
+        } catch (IllegalStateException expected) {
+            assertFalse(table.hasRoom());
+        }
+        assertEquals(account - 1, table.size());
+    }
+
+    @Test
+    public void concurrentInsertsOfDistinctAccountsAllLand() throws InterruptedException {
+        AccountTable table = new AccountTable(40_000);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int first = t * 10_000 + 1;
+            threads[t] = new Thread(() -> {
+                for (int account = first; account < first + 10_000; account++) {
+                    table.insert(account, account, 0, 0);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40_000, table.size());
+        for (int account = 1; account <= 40_000; account++) {
+            assertEquals(account, table.balanceAt(table.slotOf(account)));
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+package com.bankbankatm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AuthorizationsTest {
+
+    private static final InetSocketAddress ANY_PORT = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path file;
+
+    @Before
+    public void file() {
+        file = folder.getRoot().toPath().resolve("authorizations");
+    }
+
+    @Test
+    public void entriesSurviveAReopenAndATornRecordIsCutOff() throws IOException {
+        try (Authorizations authorizations = new Authorizations(file, 16)) {
+            authorizations.open(1, 10, 400);
+            authorizations.open(2, 11, 500);
+            authorizations.settle(1, 10, 400);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.allocate(Authorizations.RECORD_BYTES / 2));
+        }
+        try (Authorizations authorizations = new Authorizations(file, 16)) {
+            assertEquals(2, authorizations.size());
+            assertFalse(authorizations.find(1).isOpen());
+            assertTrue(authorizations.find(2).isOpen());
+            assertEquals(11, authorizations.find(2).getAccountNum());
+            assertEquals(500, authorizations.find(2).getAmount());
+        }
+        assertEquals(3L * Authorizations.RECORD_BYTES, Files.size(file));
+    }
+
+    @Test
+    public void theTableIsBoundedAndRefusesReferenceZero() {
+        Authorizations authorizations = new Authorizations(2);
+        assertFalse(authorizations.canOpen(0));
+        authorizations.open(1, 10, 100);
+        assertFalse(authorizations.canOpen(1));
+        authorizations.open(2, 10, 100);
+        assertFalse(authorizations.canOpen(3));
+        assertThrows(IllegalStateException.class, () -> authorizations.open(3, 10, 100));
+        assertThrows(IllegalArgumentException.class, () -> authorizations.settle(0, 10, 100));
+        authorizations.settle(3, 10, 100);
+        assertNull(authorizations.find(3));
+    }
+
+    @Test
+    public void aDispenseFailureIsCreditedOnceAndOnlyAgainstItsAuthorization() throws IOException {
+        DatabaseProxy database = new DatabaseProxy(16);
+        int account = database.createNewAccount("0000", 0, 10_000);
+        database.setDailyWithdrawalLimit(5000);
+        try (BankServer server = new BankServer(database, ANY_PORT, file)) {
+            NetworkToBank network = connect(server);
+            try {
+                assertEquals(Status.SUCCESS, network.sendMessage(new Message(Message.AUTHORIZE, account, 4000, 7), null));
+                assertEquals(Status.FAILURE, network.sendMessage(new Message(Message.AUTHORIZE, account, 100, 0), null));
+                assertEquals(Status.FAILURE, network.sendMessage(new Message(Message.AUTHORIZE, account, 100, 7), null));
+                assertEquals(Status.SUCCESS, network.sendMessage(new Message(Message.DISPENSE_FAILED, account, 9000, 8), null));
+                assertEquals(6000, database.checkTheBalance(account));
+                assertEquals(Status.FAILURE, network.sendMessage(new Message(Message.AUTHORIZE, account, 100, 8), null));
+            } finally {
+                network.closeConnection();
+            }
+        }
+        try (BankServer server = new BankServer(database, ANY_PORT, file)) {
+            NetworkToBank network = connect(server);
+            try {
+                for (int i = 0; i < 2; i++) {
+                    assertEquals(Status.SUCCESS,
+                            network.sendMessage(new Message(Message.DISPENSE_FAILED, account, 4000, 7), null));
+                }
+            } finally {
+                network.closeConnection();
+            }
+        }
+        assertEquals(10_000, database.checkTheBalance(account));
+        assertEquals(5000, database.remainingDailyAllowance(account));
+    }
+
+    @Test
+    public void aRefusedConfirmationStaysInTheOutbox() throws Exception {
+        DatabaseProxy database = new DatabaseProxy(16);
+        int account = database.createNewAccount("0000", 0, 10_000);
+        try (BankServer server = new BankServer(database, ANY_PORT)) {
+            NetworkToBank network = connect(server);
+            network.batchConfirmations(folder.getRoot().toPath().resolve("outbox"), 16, 1, TimeUnit.MILLISECONDS);
+            try (ConfirmationBatcher batcher = network.getConfirmationBatcher()) {
+                assertEquals(Status.SUCCESS, batcher.add(new Message(Message.DISPENSED, account, 0, 9))
+                        .get(5, TimeUnit.SECONDS));
+                CompletableFuture<Status> refused = batcher.add(new Message(Message.DISPENSED, account, 0, 0));
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+                while (batcher.getBatchCount() < 3) {
+                    assertTrue("refused confirmation was not sent again", System.nanoTime() < deadline);
+                    Thread.sleep(10);
+                }
+                assertFalse(refused.isDone());
+                assertEquals(1, batcher.getPendingCount());
+            } finally {
+                network.closeConnection();
+            }
+        }
+    }
+
+    private static NetworkToBank connect(BankServer server) {
+        NetworkToBank network = new NetworkToBank(null, InetAddress.getLoopbackAddress(), server.getPort());
+        assertTrue(network.openConnection());
+        return network;
+    }
+
+}
@@ -0,0 +1,145 @@
+package com.bankbankatm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BalanceIndexTest {
+
+    private static final int PHASES = 5;
+    private static final int CREDITS = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path journal;
+    private Path checkpoint;
+
+    @Before
+    public void files() {
+        journal = folder.getRoot().toPath().resolve("journal");
+        checkpoint = folder.getRoot().toPath().resolve("checkpoint");
+    }
+
+    @Test
+    public void balancesAtPastTimesMatchTheBalancesThen() throws IOException, InterruptedException {
+        try (DatabaseProxy database = open()) {
+            int account = database.createNewAccount("0000", 0, 10);
+            int other = database.createNewAccount("0000", 0, 0);
+            long[] times = new long[PHASES];
+            long[] balances = new long[PHASES];
+            run(database, account, other, times, balances);
+            assertThrows(IllegalArgumentException.class, () -> database.checkTheBalanceAt(account, times[0] - 10_000));
+            for (int phase = 0; phase < PHASES; phase++) {
+                assertEquals(balances[phase], database.checkTheBalanceAt(account, times[phase]));
+            }
+            assertEquals(database.checkTheBalance(account), database.checkTheBalanceAt(account, Long.MAX_VALUE));
+            assertEquals(database.checkTheBalance(other), database.checkTheBalanceAt(other, Long.MAX_VALUE));
+        }
+    }
+
+    @Test
+    public void theIndexIsSavedWithTheCheckpointAndReloaded() throws IOException, InterruptedException {
+        long[] times = new long[PHASES];
+        long[] balances = new long[PHASES];
+        int account;
+        int other;
+        long indexed;
+        try (DatabaseProxy database = open()) {
+            account = database.createNewAccount("0000", 0, 10);
+            other = database.createNewAccount("0000", 0, 0);
+            run(database, account, other, times, balances);
+            database.checkpoint();
+        }
+        Path index = BalanceIndex.fileFor(checkpoint);
+        assertTrue(Files.exists(index));
+        BalanceIndex loaded = BalanceIndex.load(index, 64);
+        indexed = loaded.indexedLsn();
+        assertEquals(Files.size(journal), indexed);
+        assertEquals(2, loaded.indexedAccounts());
+        assertEquals(0, BalanceIndex.load(index, 32).indexedLsn());
+        try (DatabaseProxy database = open()) {
+            for (int phase = 0; phase < PHASES; phase++) {
+                assertEquals(balances[phase], database.checkTheBalanceAt(account, times[phase]));
+            }
+            database.plusBalance(account, 7);
+            assertEquals(database.checkTheBalance(account), database.checkTheBalanceAt(account, Long.MAX_VALUE));
+        }
+    }
+
+    @Test
+    public void aDamagedIndexIsRebuiltFromTheJournal() throws IOException, InterruptedException {
+        long[] times = new long[PHASES];
+        long[] balances = new long[PHASES];
+        int account;
+        try (DatabaseProxy database = open()) {
+            account = database.createNewAccount("0000", 0, 10);
+            int other = database.createNewAccount("0000", 0, 0);
+            run(database, account, other, times, balances);
+            database.checkpoint();
+        }
+        Path index = BalanceIndex.fileFor(checkpoint);
+        byte[] bytes = Files.readAllBytes(index);
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(index, bytes);
+        assertEquals(0, BalanceIndex.load(index, 64).indexedLsn());
+        try (DatabaseProxy database = open()) {
+            for (int phase = 0; phase < PHASES; phase++) {
+                assertEquals(balances[phase], database.checkTheBalanceAt(account, times[phase]));
+            }
+        }
+    }
+
+    @Test
+    public void theIndexGrowsToHoldEveryAccount() throws IOException {
+        int[] accounts = new int[100];
+        try (DatabaseProxy database = new DatabaseProxy(accounts.length, ConcurrencyMode.STRIPED_LOCK, journal,
+                checkpoint)) {
+            for (int i = 0; i < accounts.length; i++) {
+                accounts[i] = database.createNewAccount("0000", 0, i + 1);
+            }
+            database.checkpoint();
+        }
+        assertEquals(accounts.length, BalanceIndex.load(BalanceIndex.fileFor(checkpoint), 64).indexedAccounts());
+        try (DatabaseProxy database = new DatabaseProxy(accounts.length, ConcurrencyMode.STRIPED_LOCK, journal,
+                checkpoint)) {
+            for (int i = 0; i < accounts.length; i++) {
+                assertEquals(i + 1, database.checkTheBalanceAt(accounts[i], Long.MAX_VALUE));
+            }
+        }
+    }
+
+    /**
+     * Runs phases of credits, debits and transfers, noting a time after
+     * each phase and the balance then; records of later phases are made
+     * after that time.
+     */
+    private static void run(DatabaseProxy database, int account, int other, long[] times, long[] balances)
+            throws InterruptedException {
+        for (int phase = 0; phase < PHASES; phase++) {
+            for (int i = 0; i < CREDITS; i++) {
+                database.plusBalance(account, 3);
+                if (i % 10 == 0) {
+                    assertTrue(database.minusBalance(account, 2));
+                    assertTrue(database.transfer(account, other, 1));
+                }
+            }
+            Thread.sleep(2);
+            times[phase] = System.currentTimeMillis();
+            balances[phase] = database.checkTheBalance(account);
+            Thread.sleep(2);
+        }
+    }
+
+    private DatabaseProxy open() throws IOException {
+        return new DatabaseProxy(16, ConcurrencyMode.STRIPED_LOCK, journal, checkpoint);
+    }
+
+}
@@ -0,0 +1,146 @@
+package com.bankbankatm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BankTest {
+
+    private static final int BRANCHES = 2;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+
+    @Before
+    public void directory() {
+        directory = folder.getRoot().toPath();
+    }
+
+    @Test
+    public void aDirectoryOpensOnlyWithItsBranchCount() throws IOException {
+        open().close();
+        assertTrue(Files.exists(directory.resolve(Bank.BRANCH_COUNT_FILE)));
+        assertThrows(IllegalStateException.class, () -> new Bank(3, 64, ConcurrencyMode.STRIPED_LOCK, directory));
+        assertThrows(IllegalStateException.class, () -> new Bank(1, 64, ConcurrencyMode.STRIPED_LOCK, directory));
+        open().close();
+    }
+
+    @Test
+    public void aDirectoryWithoutTheCountIsCheckedAgainstItsJournals() throws IOException {
+        open().close();
+        Files.delete(directory.resolve(Bank.BRANCH_COUNT_FILE));
+        assertThrows(IllegalStateException.class, () -> new Bank(4, 64, ConcurrencyMode.STRIPED_LOCK, directory));
+        open().close();
+        assertTrue(Files.exists(directory.resolve(Bank.BRANCH_COUNT_FILE)));
+    }
+
+    @Test
+    public void crossBranchTransfersSurviveARestart() throws IOException {
+        int from;
+        int to;
+        try (Bank bank = open()) {
+            from = bank.createNewAccount("0000", 0, 100);
+            to = bank.createNewAccount("0000", 0, 0);
+            assertNotSame(bank.branchOf(from), bank.branchOf(to));
+            assertTrue(bank.transfer(from, to, 40));
+            assertFalse(bank.transfer(from, to, 61));
+        }
+        try (Bank bank = open()) {
+            assertEquals(60, bank.checkTheBalance(from));
+            assertEquals(40, bank.checkTheBalance(to));
+            assertEquals(0, bank.branchOf(from).call(DatabaseProxy::openTransfers).length);
+        }
+    }
+
+    @Test
+    public void aTransferCutOffBeforeItsCreditIsFinishedOnOpening() throws IOException {
+        int[] accounts = accounts();
+        long checkpointed;
+        long debit;
+        try (DatabaseProxy source = branch(0)) {
+            debit = source.transferOut(accounts[0], accounts[1], 30);
+            checkpointed = source.checkpoint();
+        }
+        assertTrue(checkpointed < debit);
+        for (int run = 0; run < 2; run++) {
+            try (Bank bank = open()) {
+                assertEquals(70, bank.checkTheBalance(accounts[0]));
+                assertEquals(30, bank.checkTheBalance(accounts[1]));
+            }
+        }
+    }
+
+    @Test
+    public void aTransferCutOffAfterItsCreditIsNotCreditedAgain() throws IOException {
+        int[] accounts = accounts();
+        try (DatabaseProxy source = branch(0); DatabaseProxy target = branch(1)) {
+            long debit = source.transferOut(accounts[0], accounts[1], 30);
+            target.transferIn(accounts[0], accounts[1], 30, debit);
+        }
+        try (Bank bank = open()) {
+            assertEquals(70, bank.checkTheBalance(accounts[0]));
+            assertEquals(30, bank.checkTheBalance(accounts[1]));
+            assertEquals(0, bank.branchOf(accounts[0]).call(DatabaseProxy::openTransfers).length);
+        }
+    }
+
+    @Test
+    public void concurrentCrossBranchTransfersConserveMoney() throws IOException, InterruptedException {
+        int[] accounts = new int[8];
+        try (Bank bank = new Bank(BRANCHES, 64, ConcurrencyMode.STRIPED_LOCK)) {
+            for (int i = 0; i < accounts.length; i++) {
+                accounts[i] = bank.createNewAccount("0000", 0, 1000);
+            }
+            ConcurrencyModeTest.runOnThreads(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 5_000; i++) {
+                    int from = accounts[random.nextInt(accounts.length)];
+                    int to = accounts[random.nextInt(accounts.length)];
+                    if (from != to) {
+                        bank.transfer(from, to, 1 + random.nextInt(50));
+                    }
+                }
+            });
+            long total = 0;
+            for (int account : accounts) {
+                long balance = bank.checkTheBalance(account);
+                assertTrue(balance >= 0);
+                total += balance;
+            }
+            assertEquals(accounts.length * 1000L, total);
+        }
+    }
+
+    /**
+     * Opens one account in each branch, the first with 100 and the second
+     * with nothing.
+     */
+    private int[] accounts() throws IOException {
+        try (Bank bank = open()) {
+            int from = bank.createNewAccount("0000", 0, 100);
+            int to = bank.createNewAccount("0000", 0, 0);
+            assertEquals(0, bank.branchOf(from).getId());
+            return new int[] { from, to };
+        }
+    }
+
+    private Bank open() throws IOException {
+        return new Bank(BRANCHES, 64, ConcurrencyMode.STRIPED_LOCK, directory);
+    }
+
+    private DatabaseProxy branch(int id) throws IOException {
+        return new DatabaseProxy(64, ConcurrencyMode.STRIPED_LOCK, directory.resolve("branch-" + id + ".journal"),
+                directory.resolve("branch-" + id + ".checkpoint"), BRANCHES, id);
+    }
+
+}
@@ -0,0 +1,563 @@
+package com.bankbankatm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Minimal benchmark harness; not a test. After {@code mvn test-compile} run
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes com.bankbankatm.Benchmark [name...]
+ * </pre>
+ *
+ * Each benchmark runs a warm-up round and then a measured round on the
+ * given number of threads, timing every operation, and prints throughput
+ * and latency percentiles. With no names every benchmark runs. The
+ * balance-at benchmark journals {@code -Dbalance.events} events first
+ * (1.2M by default). The bank-shards benchmark runs
+ * {@code -Dshards.threads} clients (64) over {@code -Dshards.accounts}
+ * accounts (10k) in banks of each of the {@code -Dshards.counts} branch
+ * counts (1,4,16,64). The lookup benchmarks look up random balances
+ * among {@code -Dlookup.accounts} accounts (10M, which needs a heap of a
+ * few GB), in an {@link AccountTable} and in a {@code HashMap} of boxed
+ * account numbers to account objects. The withdraw-scaling benchmark
+ * spreads striped-lock withdrawals over {@code -Dscaling.accounts}
+ * accounts (1000) on each of the {@code -Dscaling.threads} thread counts
+ * (powers of two up to the number of cores). The withdraw-hot
+ * benchmarks put every withdrawal of {@code -Dhot.threads} threads (the
+ * number of cores) on {@code -Dhot.accounts} accounts (1). The
+ * journal-commits benchmark makes {@code -Djournal.commits} durable
+ * credits (1000) per writer over {@code -Djournal.accounts} accounts (10k)
+ * with each of the {@code -Djournal.writers} writer counts (1,8,64).
+ * The recovery benchmark checkpoints {@code -Drecovery.accounts} accounts
+ * (10M), journals a tail of {@code -Drecovery.tailMegabytes} of credits
+ * after the checkpoint (1024) and times reopening the proxy. The
+ * first-transaction benchmark times opening {@code -Dstartup.accounts}
+ * accounts (1M) and reading one balance, from a mapped checkpoint and by
+ * replaying the whole journal. The transfer-stress benchmark runs
+ * {@code -Dstress.transfers} random journaled transfers (5000) on each of
+ * {@code -Dstress.threads} threads (64) among {@code -Dstress.accounts}
+ * accounts (1M), one in 16 of them between the same two accounts in
+ * both directions, then checks that the total balance has not changed.
+ * The mixed-read benchmark times balance reads on {@code -Dmixed.readers}
+ * threads (4) while each of the {@code -Dmixed.writers} numbers of
+ * threads (0,1,4,16) withdraw and deposit on the same 1000 accounts.
+ * The create-accounts benchmark opens {@code -Dcreate.accounts} accounts
+ * (100) on each of {@code -Dcreate.threads} threads (32), password hashing
+ * included; the account-numbers benchmark draws 1M numbers per thread from
+ * a persistent sequence on as many threads. The customer-lookup
+ * benchmark looks up the accounts of random customers in a
+ * {@link CustomerIndex} of {@code -Dcustomers.count} customers (10M),
+ * every fourth of them with two accounts.
+ */
+public class Benchmark {
+
+    private static final int ROUNDS = 2;
+
+    /**
+     * One operation of a benchmark, called with the thread and the
+     * operation number within the thread.
+     */
+    interface Operation {
+        void run(int thread, int op) throws Exception;
+    }
+
+    /**
+     * What a {@code HashMap<Integer, Account>} store keeps per account, for
+     * the lookup baseline.
+     */
+    private static final class BoxedAccount {
+        final long balance;
+        final long passwordHash;
+        final int accountType;
+
+        BoxedAccount(long balance, long passwordHash, int accountType) {
+            this.balance = balance;
+            this.passwordHash = passwordHash;
+            this.accountType = accountType;
+        }
+    }
+
+    private static final Map<String, Runnable> BENCHMARKS = new LinkedHashMap<>();
+
+    static {
+        BENCHMARKS.put("withdraw-striped", () -> withdrawals("withdraw-striped", ConcurrencyMode.STRIPED_LOCK));
+        BENCHMARKS.put("withdraw-optimistic", () -> withdrawals("withdraw-optimistic", ConcurrencyMode.OPTIMISTIC));
+        BENCHMARKS.put("withdraw-scaling", Benchmark::withdrawalScaling);
+        BENCHMARKS.put("withdraw-hot-striped",
+                () -> hotWithdrawals("withdraw-hot-striped", ConcurrencyMode.STRIPED_LOCK));
+        BENCHMARKS.put("withdraw-hot-optimistic",
+                () -> hotWithdrawals("withdraw-hot-optimistic", ConcurrencyMode.OPTIMISTIC));
+        BENCHMARKS.put("transfer", Benchmark::transfers);
+        BENCHMARKS.put("transfer-stress", Benchmark::transferStress);
+        BENCHMARKS.put("snapshot-read", Benchmark::snapshotReads);
+        BENCHMARKS.put("mixed-read", Benchmark::mixedReads);
+        BENCHMARKS.put("balance-at", Benchmark::balancesAt);
+        BENCHMARKS.put("create-accounts", Benchmark::accountCreations);
+        BENCHMARKS.put("account-numbers", Benchmark::accountNumbers);
+        BENCHMARKS.put("journal-commits", Benchmark::journalCommits);
+        BENCHMARKS.put("recovery", Benchmark::recovery);
+        BENCHMARKS.put("first-transaction", Benchmark::firstTransaction);
+        BENCHMARKS.put("bank-shards", Benchmark::bankShards);
+        BENCHMARKS.put("lookup-table", Benchmark::tableLookups);
+        BENCHMARKS.put("lookup-hashmap", Benchmark::hashMapLookups);
+        BENCHMARKS.put("customer-lookup", Benchmark::customerLookups);
+    }
+
+    public static void main(String[] args) {
+        List<String> names = args.length == 0 ? new ArrayList<>(BENCHMARKS.keySet()) : Arrays.asList(args);
+        for (String name : names) {
+            Runnable benchmark = BENCHMARKS.get(name);
+            if (benchmark == null) {
+                throw new IllegalArgumentException("Unknown benchmark " + name + ", one of " + BENCHMARKS.keySet());
+            }
+            benchmark.run();
+        }
+    }
+
+    /**
+     * Runs the operation on each thread, once to warm up and once measured,
+     * and prints the result of the measured round.
+     * @param name
+     * @param threads
+     * @param opsPerThread
+     * @param operation
+     */
+    static void measure(String name, int threads, int opsPerThread, Operation operation) {
+        long[][] latencies = new long[threads][opsPerThread];
+        long elapsed = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            CountDownLatch start = new CountDownLatch(1);
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                workers[t] = new Thread(() -> {
+                    try {
+                        start.await();
+                        for (int op = 0; op < opsPerThread; op++) {
+                            long begin = System.nanoTime();
+                            operation.run(thread, op);
+                            latencies[thread][op] = System.nanoTime() - begin;
+                        }
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                workers[t].start();
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Thread worker : workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            elapsed = System.nanoTime() - begin;
+        }
+        long[] all = new long[threads * opsPerThread];
+        for (int t = 0; t < threads; t++) {
+            System.arraycopy(latencies[t], 0, all, t * opsPerThread, opsPerThread);
+        }
+        Arrays.sort(all);
+        System.out.printf("%-24s %3d threads %12.0f ops/s  p50 %8d ns  p99 %8d ns  p99.9 %8d ns%n", name, threads,
+                all.length * 1e9 / elapsed, percentile(all, 0.50), percentile(all, 0.99), percentile(all, 0.999));
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+    private static int threads() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    private static DatabaseProxy openAccounts(ConcurrencyMode mode, int accounts, long balance) {
+        DatabaseProxy database = new DatabaseProxy(accounts, mode);
+        for (int i = 0; i < accounts; i++) {
+            database.createNewAccount("0000", 0, balance);
+        }
+        return database;
+    }
+
+    private static void withdrawals(String name, ConcurrencyMode mode) {
+        DatabaseProxy database = openAccounts(mode, 1000, Long.MAX_VALUE / 4);
+        measure(name, threads(), 200_000,
+                (thread, op) -> database.minusBalance(1 + (op * 31 + thread) % 1000, 1));
+    }
+
+    private static void hotWithdrawals(String name, ConcurrencyMode mode) {
+        int accounts = Integer.getInteger("hot.accounts", 1);
+        DatabaseProxy database = openAccounts(mode, accounts, Long.MAX_VALUE / 4);
+        measure(name, Integer.getInteger("hot.threads", threads()), 200_000,
+                (thread, op) -> database.minusBalance(1 + (op + thread) % accounts, 1));
+    }
+
+    private static void withdrawalScaling() {
+        int accounts = Integer.getInteger("scaling.accounts", 1000);
+        DatabaseProxy database = openAccounts(ConcurrencyMode.STRIPED_LOCK, accounts, Long.MAX_VALUE / 4);
+        StringBuilder defaults = new StringBuilder("1");
+        for (int threads = 2; threads <= threads(); threads *= 2) {
+            defaults.append(',').append(threads);
+        }
+        for (String count : System.getProperty("scaling.threads", defaults.toString()).split(",")) {
+            measure("withdraw-scaling", Integer.parseInt(count.trim()), 200_000,
+                    (thread, op) -> database.minusBalance(1 + (op * 31 + thread) % accounts, 1));
+        }
+    }
+
+    private static void transfers() {
+        DatabaseProxy database = openAccounts(ConcurrencyMode.STRIPED_LOCK, 1000, Long.MAX_VALUE / 4);
+        measure("transfer", threads(), 200_000, (thread, op) -> {
+            int from = 1 + (op * 31 + thread) % 1000;
+            database.transfer(from, from % 1000 + 1, 1);
+        });
+    }
+
+    private static void transferStress() {
+        int accounts = Integer.getInteger("stress.accounts", 1_000_000);
+        long opening = 1000;
+        try {
+            Path directory = Files.createTempDirectory("transfer-stress");
+            try {
+                Path journal = directory.resolve("journal");
+                seedJournal(journal, accounts, opening);
+                try (DatabaseProxy database = new DatabaseProxy(accounts, ConcurrencyMode.STRIPED_LOCK, journal)) {
+                    measure("transfer-stress " + accounts, Integer.getInteger("stress.threads", 64),
+                            Integer.getInteger("stress.transfers", 5000), (thread, op) -> {
+                                int from = randomAccount(thread, op, accounts);
+                                int to = randomAccount(thread, ~op, accounts);
+                                if (op % 16 == 0) {
+                                    // opposite directions between one pair of accounts at once
+                                    from = 1 + thread % 2;
+                                    to = 2 - thread % 2;
+                                }
+                                if (from != to) {
+                                    database.transfer(from, to, 1 + (op & 0xff));
+                                }
+                            });
+                    long total = 0;
+                    for (int account = 1; account <= accounts; account++) {
+                        total += database.checkTheBalance(account);
+                    }
+                    if (total != accounts * opening) {
+                        throw new IllegalStateException("Total balance is " + total + ", not " + accounts * opening);
+                    }
+                    System.out.printf("%-24s total balance unchanged at %d%n", "transfer-stress", total);
+                }
+            } finally {
+                delete(directory);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void snapshotReads() {
+        DatabaseProxy database = openAccounts(ConcurrencyMode.STRIPED_LOCK, 1000, 1_000_000);
+        AccountSnapshot[] snapshots = new AccountSnapshot[threads()];
+        for (int i = 0; i < snapshots.length; i++) {
+            snapshots[i] = new AccountSnapshot();
+        }
+        measure("snapshot-read", threads(), 500_000,
+                (thread, op) -> database.readSnapshot(1 + (op * 31 + thread) % 1000, snapshots[thread]));
+    }
+
+    private static void tableLookups() {
+        int accounts = lookupAccounts();
+        AccountTable table = new AccountTable(accounts);
+        for (int i = 1; i <= accounts; i++) {
+            table.insert(i, i, i, 0);
+        }
+        long[] sums = new long[threads()];
+        measure("lookup-table " + accounts, threads(), 1_000_000,
+                (thread, op) -> sums[thread] += table.balanceAt(table.slotOf(randomAccount(thread, op, accounts))));
+        check(sums);
+    }
+
+    private static void hashMapLookups() {
+        int accounts = lookupAccounts();
+        Map<Integer, BoxedAccount> map = new HashMap<>();
+        for (int i = 1; i <= accounts; i++) {
+            map.put(i, new BoxedAccount(i, i, 0));
+        }
+        long[] sums = new long[threads()];
+        measure("lookup-hashmap " + accounts, threads(), 1_000_000,
+                (thread, op) -> sums[thread] += map.get(randomAccount(thread, op, accounts)).balance);
+        check(sums);
+    }
+
+    private static void customerLookups() {
+        int customers = Integer.getInteger("customers.count", 10_000_000);
+        CustomerIndex index = new CustomerIndex(customers + customers / 4);
+        int accountNum = 0;
+        for (int customer = 1; customer <= customers; customer++) {
+            index.add(customer, ++accountNum);
+            if (customer % 4 == 0) {
+                index.add(customer, ++accountNum);
+            }
+        }
+        int[][] out = new int[threads()][4];
+        long[] found = new long[threads()];
+        measure("customer-lookup " + customers, threads(), 1_000_000,
+                (thread, op) -> found[thread] += index.accountsOf(randomAccount(thread, op, customers), out[thread]));
+        check(found);
+    }
+
+    private static int lookupAccounts() {
+        return Integer.getInteger("lookup.accounts", 10_000_000);
+    }
+
+    /**
+     * Account number from 1 to accounts, scattered so that consecutive
+     * operations do not share cache lines.
+     */
+    private static int randomAccount(int thread, int op, int accounts) {
+        return 1 + Math.floorMod(AccountTable.mix(op * 64 + thread), accounts);
+    }
+
+    /**
+     * Uses the results of the lookups, so that they are not optimised away.
+     */
+    private static void check(long[] sums) {
+        if (Arrays.stream(sums).sum() == 0) {
+            throw new IllegalStateException("Lookups found nothing");
+        }
+    }
+
+    private static void bankShards() {
+        int threads = Integer.getInteger("shards.threads", 64);
+        int accounts = Integer.getInteger("shards.accounts", 10_000);
+        for (String count : System.getProperty("shards.counts", "1,4,16,64").split(",")) {
+            int branches = Integer.parseInt(count.trim());
+            Bank bank = new Bank(branches, accounts / branches + 1, ConcurrencyMode.STRIPED_LOCK);
+            int[] numbers = new int[accounts];
+            for (int i = 0; i < accounts; i++) {
+                numbers[i] = bank.createNewAccount("0000", 0, 1_000_000);
+            }
+            measure("bank-shards " + branches, threads, 50_000, (thread, op) -> {
+                int account = numbers[(int) ((op * 7919L + thread * 104_729L) % accounts)];
+                if (op % 2 == 0) {
+                    bank.minusBalance(account, 1);
+                } else {
+                    bank.plusBalance(account, 1);
+                }
+            });
+        }
+    }
+
+    private static void accountCreations() {
+        int threads = Integer.getInteger("create.threads", 32);
+        int perThread = Integer.getInteger("create.accounts", 100);
+        DatabaseProxy database = new DatabaseProxy(ROUNDS * threads * perThread, ConcurrencyMode.STRIPED_LOCK);
+        measure("create-accounts", threads, perThread,
+                (thread, op) -> database.createNewAccount("0000", 0, 0));
+    }
+
+    private static void accountNumbers() {
+        int threads = Integer.getInteger("create.threads", 32);
+        try {
+            Path directory = Files.createTempDirectory("account-numbers");
+            try {
+                AccountNumberSequence sequence = new AccountNumberSequence(directory.resolve("mark"), 1);
+                measure("account-numbers", threads, 1_000_000, (thread, op) -> sequence.next());
+            } finally {
+                delete(directory);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void journalCommits() {
+        int accounts = Integer.getInteger("journal.accounts", 10_000);
+        int commits = Integer.getInteger("journal.commits", 1000);
+        try {
+            Path directory = Files.createTempDirectory("journal-commits");
+            Path journal = directory.resolve("journal");
+            seedJournal(journal, accounts, 0);
+            try (DatabaseProxy database = new DatabaseProxy(accounts, ConcurrencyMode.STRIPED_LOCK, journal)) {
+                for (String count : System.getProperty("journal.writers", "1,8,64").split(",")) {
+                    measure("journal-commits", Integer.parseInt(count.trim()), commits,
+                            (thread, op) -> database.plusBalance(randomAccount(thread, op, accounts), 1));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void recovery() {
+        int accounts = Integer.getInteger("recovery.accounts", 10_000_000);
+        long tail = Long.getLong("recovery.tailMegabytes", 1024) * 1024 * 1024 / JournalRecord.SIZE;
+        try {
+            Path directory = Files.createTempDirectory("recovery");
+            try {
+                Path journalFile = directory.resolve("journal");
+                Path checkpointFile = directory.resolve("checkpoint");
+                seedJournal(journalFile, accounts, 0);
+                try (DatabaseProxy database = new DatabaseProxy(accounts, ConcurrencyMode.STRIPED_LOCK, journalFile,
+                        checkpointFile)) {
+                    database.checkpoint();
+                }
+                try (Journal journal = Journal.open(journalFile, record -> {
+                })) {
+                    long lsn = 0;
+                    for (int i = 0; i < tail; i++) {
+                        lsn = journal.append(JournalRecord.CREDIT, randomAccount(0, i, accounts), 1, 0, 0, 0);
+                    }
+                    journal.awaitDurable(lsn);
+                }
+                long begin = System.nanoTime();
+                try (DatabaseProxy database = new DatabaseProxy(accounts, ConcurrencyMode.STRIPED_LOCK, journalFile,
+                        checkpointFile)) {
+                    long elapsed = System.nanoTime() - begin;
+                    System.out.printf("%-24s %d accounts, %d MB tail: recovered in %d ms%n", "recovery", accounts,
+                            tail * JournalRecord.SIZE / (1024 * 1024), elapsed / 1_000_000);
+                }
+            } finally {
+                delete(directory);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void firstTransaction() {
+        int accounts = Integer.getInteger("startup.accounts", 1_000_000);
+        try {
+            Path directory = Files.createTempDirectory("first-transaction");
+            try {
+                Path journalFile = directory.resolve("journal");
+                Path checkpointFile = directory.resolve("checkpoint");
+                seedJournal(journalFile, accounts, 1);
+                try (DatabaseProxy database = new DatabaseProxy(accounts, ConcurrencyMode.STRIPED_LOCK, journalFile,
+                        checkpointFile)) {
+                    database.checkpoint();
+                }
+                timeFirstTransaction("mapped checkpoint", accounts, journalFile, checkpointFile);
+                timeFirstTransaction("full journal replay", accounts, journalFile, null);
+            } finally {
+                delete(directory);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void timeFirstTransaction(String from, int accounts, Path journalFile, Path checkpointFile)
+            throws IOException {
+        long begin = System.nanoTime();
+        try (DatabaseProxy database = new DatabaseProxy(accounts, ConcurrencyMode.STRIPED_LOCK, journalFile,
+                checkpointFile)) {
+            if (database.checkTheBalance(randomAccount(0, 0, accounts)) != 1) {
+                throw new IllegalStateException("Wrong balance after opening from " + from);
+            }
+            long elapsed = System.nanoTime() - begin;
+            System.out.printf("%-24s %d accounts, %s: first balance after %d ms%n", "first-transaction", accounts,
+                    from, elapsed / 1_000_000);
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toArray(Path[]::new)) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Journals accounts 1 to accounts with the balance, durably, without
+     * hashing a password for each one.
+     */
+    private static void seedJournal(Path file, int accounts, long balance) throws IOException {
+        try (Journal journal = Journal.open(file, record -> {
+        })) {
+            long lsn = 0;
+            for (int i = 1; i <= accounts; i++) {
+                lsn = journal.append(JournalRecord.CREATE, i, balance, 0, 0, 0);
+            }
+            journal.awaitDurable(lsn);
+        }
+    }
+
+    private static void mixedReads() {
+        int readers = Integer.getInteger("mixed.readers", 4);
+        DatabaseProxy database = openAccounts(ConcurrencyMode.STRIPED_LOCK, 1000, Long.MAX_VALUE / 4);
+        for (String count : System.getProperty("mixed.writers", "0,1,4,16").split(",")) {
+            int writers = Integer.parseInt(count.trim());
+            AtomicBoolean stop = new AtomicBoolean();
+            Thread[] threads = new Thread[writers];
+            for (int w = 0; w < writers; w++) {
+                int writer = w;
+                threads[w] = new Thread(() -> {
+                    for (int op = 0; !stop.get(); op++) {
+                        int account = 1 + (op * 31 + writer) % 1000;
+                        if (op % 2 == 0) {
+                            database.minusBalance(account, 1);
+                        } else {
+                            database.plusBalance(account, 1);
+                        }
+                    }
+                });
+                threads[w].start();
+            }
+            measure("mixed-read " + writers + " writers", readers, 500_000,
+                    (thread, op) -> database.checkTheBalance(1 + (op * 31 + thread) % 1000));
+            stop.set(true);
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+
+    private static void balancesAt() {
+        int events = Integer.getInteger("balance.events", 1_200_000);
+        int accounts = 1000;
+        try {
+            Path directory = Files.createTempDirectory("balance-at");
+            try (DatabaseProxy database = new DatabaseProxy(accounts, ConcurrencyMode.STRIPED_LOCK,
+                    directory.resolve("journal"), directory.resolve("checkpoint"))) {
+                for (int i = 0; i < accounts; i++) {
+                    database.createNewAccount("0000", 0, 0);
+                }
+                long first = System.currentTimeMillis();
+                int threads = threads();
+                AtomicInteger next = new AtomicInteger();
+                ConcurrencyModeTest.runOnThreads(threads, () -> {
+                    for (int op = next.getAndIncrement(); op < events; op = next.getAndIncrement()) {
+                        database.plusBalance(1 + op % accounts, 1);
+                    }
+                });
+                long last = System.currentTimeMillis();
+                database.checkpoint();
+                measure("balance-at " + events, threads, 10_000, (thread, op) -> database.checkTheBalanceAt(
+                        1 + (op * 31 + thread) % accounts, first + (op * 7919L + thread) % (last - first + 1)));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.bankbankatm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CheckpointTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path journal;
+    private Path checkpoint;
+
+    @Before
+    public void setUp() {
+        journal = folder.getRoot().toPath().resolve("journal");
+        checkpoint = folder.getRoot().toPath().resolve("checkpoint");
+    }
+
+    @Test
+    public void recoveryCombinesTheCheckpointWithTheJournalTail() throws IOException {
+        int[] accounts = new int[100];
+        try (DatabaseProxy database = open()) {
+            for (int i = 0; i < accounts.length; i++) {
+                accounts[i] = database.createNewAccount("0000", 0, 1000);
+            }
+            database.plusBalance(accounts[0], 1);
+            long lsn = database.checkpoint();
+            assertEquals((2 * 100 + 1) * JournalRecord.SIZE, lsn);
+            assertTrue(Files.size(checkpoint) > 0);
+            database.plusBalance(accounts[1], 2);
+            assertTrue(database.transfer(accounts[2], accounts[3], 300));
+        }
+        try (DatabaseProxy database = open()) {
+            assertEquals(1001, database.checkTheBalance(accounts[0]));
+            assertEquals(1002, database.checkTheBalance(accounts[1]));
+            assertEquals(700, database.checkTheBalance(accounts[2]));
+            assertEquals(1300, database.checkTheBalance(accounts[3]));
+            assertEquals(1000, database.checkTheBalance(accounts[99]));
+            int next = database.createNewAccount("0000", 0, 0);
+            for (int account : accounts) {
+                assertNotEquals(account, next);
+            }
+        }
+    }
+
+    @Test
+    public void checkpointOfAnUnchangedJournalIsStable() throws IOException {
+        try (DatabaseProxy database = open()) {
+            database.createNewAccount("0000", 0, 1000);
+            long first = database.checkpoint();
+            assertEquals(first, database.checkpoint());
+        }
+    }
+
+    private DatabaseProxy open() throws IOException {
+        return new DatabaseProxy(1024, ConcurrencyMode.STRIPED_LOCK, journal, checkpoint);
+    }
+
+}
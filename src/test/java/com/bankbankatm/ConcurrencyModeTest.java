@@ -0,0 +1,80 @@
+package com.bankbankatm;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ConcurrencyModeTest {
+
+    private static final int THREADS = 8;
+
+    @Test
+    public void stripedLockDebitsNeverOverdraw() throws InterruptedException {
+        assertDebitsNeverOverdraw(ConcurrencyMode.STRIPED_LOCK);
+    }
+
+    @Test
+    public void stripedLockUpdatesAreNotLost() throws InterruptedException {
+        assertUpdatesAreNotLost(ConcurrencyMode.STRIPED_LOCK);
+    }
+
+    @Test
+    public void optimisticDebitsNeverOverdraw() throws InterruptedException {
+        assertDebitsNeverOverdraw(ConcurrencyMode.OPTIMISTIC);
+    }
+
+    @Test
+    public void optimisticUpdatesAreNotLost() throws InterruptedException {
+        assertUpdatesAreNotLost(ConcurrencyMode.OPTIMISTIC);
+    }
+
+    static void assertDebitsNeverOverdraw(ConcurrencyMode mode) throws InterruptedException {
+        DatabaseProxy database = new DatabaseProxy(16, mode);
+        int account = database.createNewAccount("0000", 0, 10_000);
+        AtomicInteger succeeded = new AtomicInteger();
+        runOnThreads(() -> {
+            for (int i = 0; i < 5_000; i++) {
+                if (database.minusBalance(account, 1)) {
+                    succeeded.incrementAndGet();
+                }
+            }
+        });
+        assertEquals(10_000, succeeded.get());
+        assertEquals(0, database.checkTheBalance(account));
+    }
+
+    static void assertUpdatesAreNotLost(ConcurrencyMode mode) throws InterruptedException {
+        DatabaseProxy database = new DatabaseProxy(16, mode);
+        int account = database.createNewAccount("0000", 0, 1_000_000);
+        runOnThreads(() -> {
+            for (int i = 0; i < 10_000; i++) {
+                database.plusBalance(account, 3);
+                assertTrue(database.minusBalance(account, 2));
+            }
+        });
+        assertEquals(1_000_000 + THREADS * 10_000L, database.checkTheBalance(account));
+    }
+
+    static void runOnThreads(Runnable task) throws InterruptedException {
+        runOnThreads(THREADS, task);
+    }
+
+    static void runOnThreads(int count, Runnable task) throws InterruptedException {
+        Thread[] threads = new Thread[count];
+        Throwable[] failure = new Throwable[1];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(task);
+            threads[t].setUncaughtExceptionHandler((thread, e) -> failure[0] = e);
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure[0] != null) {
+            throw new AssertionError(failure[0]);
+        }
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.bankbankatm;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CredentialCacheTest {
+
+    @Test
+    public void atmsOfOneDatabaseShareTheCache() {
+        DatabaseProxy database = new DatabaseProxy(16);
+        int account = database.createNewAccount("1234", 0, 0);
+        ATM first = new ATM(database, null);
+        ATM second = new ATM(database, null);
+        first.readAccountNum(account);
+        second.readAccountNum(account);
+        assertSame(first.getCredentials(), second.getCredentials());
+
+        assertEquals("Login Successful", second.verify("1234"));
+        assertEquals("Password Changed Successfully", first.changePassword("1234", "4321", "4321"));
+        assertEquals("Invalid PIN, please try again", second.verify("1234"));
+        assertEquals("Login Successful", second.verify("4321"));
+    }
+
+    @Test
+    public void changesMadeBehindTheAtmAreSeen() {
+        DatabaseProxy database = new DatabaseProxy(16);
+        int account = database.createNewAccount("1234", 0, 0);
+        ATM atm = new ATM(database, null);
+        atm.readAccountNum(account);
+        assertEquals("Login Successful", atm.verify("1234"));
+        assertTrue(database.changePassword(account, "1234", "4321"));
+        assertEquals("Login Successful", atm.verify("4321"));
+    }
+
+    @Test
+    public void fullSetEvictsTheOldestEntry() {
+        DatabaseProxy database = new DatabaseProxy(64);
+        CredentialCache cache = new CredentialCache(database, 4, 1, TimeUnit.HOURS);
+        for (int i = 0; i < 5; i++) {
+            cache.selectPasswordByAccountNum(database.createNewAccount("0000", 0, 0));
+        }
+        assertEquals(5, cache.getMissCount());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+}
@@ -0,0 +1,92 @@
+package com.bankbankatm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CustomerIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void accountsAreListedNewestFirst() {
+        CustomerIndex index = new CustomerIndex(16);
+        index.add(7, 100);
+        index.add(8, 200);
+        index.add(7, 101);
+        int[] out = new int[4];
+        assertEquals(2, index.accountsOf(7, out));
+        assertArrayEquals(new int[] { 101, 100 }, Arrays.copyOf(out, 2));
+        assertEquals(1, index.accountsOf(7, new int[1]));
+        assertEquals(2, index.countOf(7));
+        assertEquals(1, index.countOf(8));
+        assertEquals(0, index.countOf(9));
+        assertEquals(0, index.accountsOf(0, out));
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    public void invalidCustomersAndAFullIndexAreRefused() {
+        CustomerIndex index = new CustomerIndex(2);
+        assertThrows(IllegalArgumentException.class, () -> index.add(0, 1));
+        assertThrows(IllegalArgumentException.class, () -> index.add(-1, 1));
+        int added = 0;
+        try {
+            while (true) {
+                index.add(1 + added % 3, added);
+                added++;
+            }
+        } catch (IllegalStateException e) {
+            // full
+        }
+        assertEquals(added, index.size());
+        assertEquals(added, index.countOf(1) + index.countOf(2) + index.countOf(3));
+    }
+
+    @Test
+    public void concurrentAddsAreAllIndexed() throws InterruptedException {
+        int customers = 64;
+        int perThread = 2_048;
+        CustomerIndex index = new CustomerIndex(4 * perThread);
+        ConcurrencyModeTest.runOnThreads(4, () -> {
+            for (int i = 0; i < perThread; i++) {
+                index.add(1 + i % customers, i);
+            }
+        });
+        int total = 0;
+        for (int customer = 1; customer <= customers; customer++) {
+            assertEquals(4 * perThread / customers, index.countOf(customer));
+            total += index.countOf(customer);
+        }
+        assertEquals(4 * perThread, total);
+    }
+
+    @Test
+    public void customersKeepTheirAccountsAcrossARestart() throws IOException {
+        Path journal = folder.getRoot().toPath().resolve("journal");
+        int[] opened = new int[3];
+        try (DatabaseProxy database = new DatabaseProxy(16, ConcurrencyMode.STRIPED_LOCK, journal)) {
+            for (int i = 0; i < opened.length; i++) {
+                opened[i] = database.createNewAccount(42, "0000", 0, 0);
+            }
+            database.createNewAccount(43, "0000", 0, 0);
+        }
+        try (DatabaseProxy database = new DatabaseProxy(16, ConcurrencyMode.STRIPED_LOCK, journal)) {
+            int[] out = new int[8];
+            int count = database.accountsOfCustomer(42, out);
+            int[] found = Arrays.copyOf(out, count);
+            Arrays.sort(found);
+            Arrays.sort(opened);
+            assertArrayEquals(opened, found);
+            assertEquals(1, database.accountCountOfCustomer(43));
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+package com.bankbankatm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DailyWithdrawalsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void withdrawalsStopAtTheDailyLimit() {
+        DatabaseProxy database = new DatabaseProxy(16);
+        int account = database.createNewAccount("0000", 0, 10_000);
+        database.setDailyWithdrawalLimit(5000);
+        assertTrue(database.withdraw(account, 3000));
+        assertFalse(database.withdraw(account, 2001));
+        assertTrue(database.withdraw(account, 2000));
+        assertEquals(0, database.remainingDailyAllowance(account));
+        assertEquals(5000, database.checkTheBalance(account));
+    }
+
+    @Test
+    public void refusedDebitDoesNotUseTheAllowance() {
+        DatabaseProxy database = new DatabaseProxy(16);
+        int account = database.createNewAccount("0000", 0, 100);
+        database.setDailyWithdrawalLimit(5000);
+        assertFalse(database.withdraw(account, 200));
+        assertEquals(5000, database.remainingDailyAllowance(account));
+    }
+
+    @Test
+    public void hugeAmountIsRefusedRatherThanOverflowing() {
+        DatabaseProxy database = new DatabaseProxy(16);
+        int account = database.createNewAccount("0000", 0, Long.MAX_VALUE / 2);
+        assertFalse(database.withdraw(account, DailyWithdrawals.MAX_TOTAL + 1));
+        assertTrue(database.withdraw(account, 1));
+        assertFalse(database.withdraw(account, Long.MAX_VALUE / 4));
+        assertEquals(Long.MAX_VALUE / 2 - 1, database.checkTheBalance(account));
+    }
+
+    @Test
+    public void aRefundStillFreesTheAllowanceAfterARestart() throws IOException {
+        Path journal = folder.getRoot().toPath().resolve("journal");
+        Path checkpoint = folder.getRoot().toPath().resolve("checkpoint");
+        int account;
+        try (DatabaseProxy database = new DatabaseProxy(16, ConcurrencyMode.STRIPED_LOCK, journal)) {
+            database.setDailyWithdrawalLimit(500);
+            account = database.createNewAccount("0000", 0, 10_000);
+            assertTrue(database.withdraw(account, 400));
+            database.returnWithdrawal(account, 400);
+            assertEquals(500, database.remainingDailyAllowance(account));
+        }
+        try (DatabaseProxy database = new DatabaseProxy(16, ConcurrencyMode.STRIPED_LOCK, journal, checkpoint)) {
+            database.setDailyWithdrawalLimit(500);
+            assertEquals(500, database.remainingDailyAllowance(account));
+            long[] recent = new long[TransactionHistory.DEPTH * TransactionHistory.ENTRY_WORDS];
+            assertEquals(2, database.recentTransactions(account, recent));
+            assertEquals("Refund", TransactionHistory.describe((int) recent[0], recent[2]));
+            assertTrue(database.withdraw(account, 300));
+            database.returnWithdrawal(account, 300);
+            database.checkpoint();
+        }
+        int today = DailyWithdrawals.dayOf(System.currentTimeMillis());
+        LedgerProjection ledger = LedgerProjection.rebuild(journal, null, 16, 2);
+        AccountTable rebuilt = ledger.accounts();
+        assertEquals(0, DailyWithdrawals.totalOn(rebuilt.dailyWithdrawalsAt(rebuilt.slotOf(account)), today));
+        try (DatabaseProxy database = new DatabaseProxy(16, ConcurrencyMode.STRIPED_LOCK, journal, checkpoint)) {
+            database.setDailyWithdrawalLimit(500);
+            assertEquals(500, database.remainingDailyAllowance(account));
+            assertTrue(database.withdraw(account, 300));
+            assertEquals(9_700, database.checkTheBalance(account));
+        }
+    }
+
+    @Test
+    public void fitsNeverOverflows() {
+        assertTrue(DailyWithdrawals.fits(0, 10, 10));
+        assertFalse(DailyWithdrawals.fits(1, 10, 10));
+        assertFalse(DailyWithdrawals.fits(DailyWithdrawals.MAX_TOTAL, Long.MAX_VALUE, Long.MAX_VALUE));
+        assertFalse(DailyWithdrawals.fits(0, DailyWithdrawals.MAX_TOTAL + 1, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void bankAuthorizationsAreLimitChecked() throws IOException {
+        DatabaseProxy database = new DatabaseProxy(16);
+        int account = database.createNewAccount("0000", 0, 10_000);
+        database.setDailyWithdrawalLimit(5000);
+        try (BankServer server = new BankServer(database, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            NetworkToBank network = new NetworkToBank(null, InetAddress.getLoopbackAddress(), server.getPort());
+            assertTrue(network.openConnection());
+            try {
+                assertEquals(Status.SUCCESS, network.sendMessage(new Message(Message.AUTHORIZE, account, 4000, 1), null));
+                assertEquals(Status.DAILY_LIMIT_EXCEEDED,
+                        network.sendMessage(new Message(Message.AUTHORIZE, account, 4000, 2), null));
+                assertEquals(Status.FAILURE, network.sendMessage(new Message(Message.AUTHORIZE, account, 7000, 3), null));
+                assertEquals(Status.SUCCESS, network.sendMessage(new Message(Message.DEBIT, account, 4000), null));
+            } finally {
+                network.closeConnection();
+            }
+        }
+        assertEquals(2000, database.checkTheBalance(account));
+    }
+
+}
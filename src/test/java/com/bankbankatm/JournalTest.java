@@ -0,0 +1,137 @@
+package com.bankbankatm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void durableRecordsAreReplayedInOrderWithTheirLinks() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("journal");
+        AccountTable links = new AccountTable(4);
+        int slot = links.insert(7, 0, 0, 0);
+        long last;
+        try (Journal journal = Journal.open(file, record -> fail("Empty journal replayed a record"))) {
+            journal.append(JournalRecord.CREATE, 7, 100, 0, 0, 0, links, slot, -1);
+            journal.append(JournalRecord.CREDIT, 7, 50, 0, 0, 0, links, slot, -1);
+            last = journal.append(JournalRecord.DEBIT, 7, 30, 0, 0, 0, links, slot, -1);
+            journal.awaitDurable(last);
+            assertEquals(JournalRecord.CREDIT, journal.recordAt(2 * JournalRecord.SIZE).kind());
+        }
+        List<long[]> replayed = new ArrayList<>();
+        try (Journal journal = Journal.open(file,
+                record -> replayed.add(new long[] { record.kind(), record.amount(), record.lsn(), record.prev0() }))) {
+            assertEquals(last, journal.durableLsn());
+        }
+        assertEquals(3, replayed.size());
+        assertArrayEquals(new long[] { JournalRecord.CREATE, 100, JournalRecord.SIZE, 0 }, replayed.get(0));
+        assertArrayEquals(new long[] { JournalRecord.CREDIT, 50, 2 * JournalRecord.SIZE, JournalRecord.SIZE },
+                replayed.get(1));
+        assertArrayEquals(new long[] { JournalRecord.DEBIT, 30, last, 2 * JournalRecord.SIZE }, replayed.get(2));
+    }
+
+    @Test
+    public void tornTailIsCutOff() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("journal");
+        try (Journal journal = Journal.open(file, record -> {
+        })) {
+            journal.awaitDurable(journal.append(JournalRecord.CREDIT, 1, 10, 0, 0, 0));
+            journal.awaitDurable(journal.append(JournalRecord.CREDIT, 1, 20, 0, 0, 0));
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ByteBuffer torn = ByteBuffer.allocate(JournalRecord.SIZE + 10);
+            torn.putInt(0, JournalRecord.CREDIT).putLong(8, 999);
+            channel.write(torn, 2 * JournalRecord.SIZE);
+        }
+        List<Long> amounts = new ArrayList<>();
+        try (Journal journal = Journal.open(file, record -> amounts.add(record.amount()))) {
+            assertEquals(2 * JournalRecord.SIZE, journal.durableLsn());
+            long lsn = journal.append(JournalRecord.CREDIT, 1, 30, 0, 0, 0);
+            assertEquals(3 * JournalRecord.SIZE, lsn);
+            journal.awaitDurable(lsn);
+        }
+        assertEquals(List.of(10L, 20L), amounts);
+    }
+
+    @Test
+    public void concurrentWritersAreAllDurable() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("journal");
+        int threads = 8;
+        int perThread = 2_000;
+        try (Journal journal = Journal.open(file, record -> {
+        })) {
+            ConcurrencyModeTest.runOnThreads(threads, () -> {
+                for (int i = 0; i < perThread; i++) {
+                    journal.awaitDurable(journal.append(JournalRecord.CREDIT, 1, 1, 0, 0, 0));
+                }
+            });
+            assertEquals((long) threads * perThread * JournalRecord.SIZE, journal.durableLsn());
+        }
+        long[] total = new long[1];
+        try (Journal journal = Journal.open(file, record -> total[0] += record.amount())) {
+            assertEquals((long) threads * perThread, total[0]);
+        }
+    }
+
+    @Test
+    public void aStalledFollowerHoldsUpNoCommitAndGetsEveryRecord() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("journal");
+        CountDownLatch stalled = new CountDownLatch(1);
+        List<Long> followed = new ArrayList<>();
+        try (Journal journal = Journal.open(file, record -> {
+        })) {
+            journal.follow(record -> {
+                try {
+                    stalled.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                followed.add(record.amount());
+            });
+            for (int i = 1; i <= 100; i++) {
+                journal.awaitDurable(journal.append(JournalRecord.CREDIT, 1, i, 0, 0, 0));
+            }
+            assertTrue(followed.isEmpty());
+            stalled.countDown();
+        }
+        assertEquals(100, followed.size());
+        for (int i = 0; i < followed.size(); i++) {
+            assertEquals(i + 1, (long) followed.get(i));
+        }
+    }
+
+    @Test
+    public void proxyBalancesSurviveAReopen() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("journal");
+        int from;
+        int to;
+        try (DatabaseProxy database = new DatabaseProxy(16, ConcurrencyMode.STRIPED_LOCK, file)) {
+            from = database.createNewAccount("1111", 0, 1000);
+            to = database.createNewAccount("2222", 0, 0);
+            assertTrue(database.withdraw(from, 100));
+            assertTrue(database.transfer(from, to, 250));
+            database.plusBalance(to, 5);
+        }
+        try (DatabaseProxy database = new DatabaseProxy(16, ConcurrencyMode.STRIPED_LOCK, file)) {
+            assertEquals(650, database.checkTheBalance(from));
+            assertEquals(255, database.checkTheBalance(to));
+            assertTrue(PasswordHash.matches("2222", database.selectPasswordByAccountNum(to)));
+        }
+    }
+
+}
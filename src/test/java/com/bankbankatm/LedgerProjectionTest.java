@@ -0,0 +1,76 @@
+package com.bankbankatm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LedgerProjectionTest {
+
+    private static final int ACCOUNTS = 100;
+    private static final int TRANSFERS = 3 * Journal.READ_BYTES / JournalRecord.SIZE / 2;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void parallelRebuildMatchesTheJournalAcrossChunks() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("journal");
+        long[] expected = writeJournal(file);
+        for (int threads : new int[] { 1, 4 }) {
+            LedgerProjection projection = LedgerProjection.rebuild(file, null, ACCOUNTS, threads);
+            assertEquals((ACCOUNTS + TRANSFERS) * (long) JournalRecord.SIZE, projection.lsn());
+            for (int account = 1; account <= ACCOUNTS; account++) {
+                assertEquals(threads + " threads, account " + account, expected[account],
+                        projection.balanceOf(account));
+            }
+        }
+    }
+
+    @Test
+    public void rebuildStopsAtATornRecord() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("journal");
+        long[] expected = writeJournal(file);
+        long end = (ACCOUNTS + TRANSFERS) * (long) JournalRecord.SIZE;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ByteBuffer torn = ByteBuffer.allocate(JournalRecord.SIZE);
+            torn.putInt(0, JournalRecord.CREDIT).putInt(4, 1).putLong(8, 1_000_000);
+            channel.write(torn, end);
+        }
+        LedgerProjection projection = LedgerProjection.rebuild(file, null, ACCOUNTS, 3);
+        assertEquals(end, projection.lsn());
+        assertEquals(expected[1], projection.balanceOf(1));
+    }
+
+    private static long[] writeJournal(Path file) throws IOException {
+        long[] balances = new long[ACCOUNTS + 1];
+        Random random = new Random(42);
+        try (Journal journal = Journal.open(file, record -> {
+        })) {
+            for (int account = 1; account <= ACCOUNTS; account++) {
+                balances[account] = 1_000_000;
+                journal.append(JournalRecord.CREATE, account, balances[account], 0, 0, 0);
+            }
+            long lsn = 0;
+            for (int i = 0; i < TRANSFERS; i++) {
+                int from = 1 + random.nextInt(ACCOUNTS);
+                int to = from % ACCOUNTS + 1;
+                long amount = 1 + random.nextInt(10);
+                balances[from] -= amount;
+                balances[to] += amount;
+                lsn = journal.append(JournalRecord.TRANSFER, from, amount, 0, to, 0);
+            }
+            journal.awaitDurable(lsn);
+        }
+        return balances;
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.bankbankatm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void checkpointIsReadableInPlace() throws IOException {
+        Path journal = folder.getRoot().toPath().resolve("journal");
+        Path checkpoint = folder.getRoot().toPath().resolve("checkpoint");
+        int first;
+        int last = 0;
+        long lsn;
+        try (DatabaseProxy database = new DatabaseProxy(256, ConcurrencyMode.STRIPED_LOCK, journal, checkpoint)) {
+            first = database.createNewAccount(42, "1234", 2, 500);
+            for (int i = 0; i < 50; i++) {
+                last = database.createNewAccount("0000", 0, i);
+            }
+            lsn = database.checkpoint();
+        }
+        MappedSnapshot snapshot = MappedSnapshot.open(checkpoint);
+        assertEquals(lsn, snapshot.lsn());
+        assertEquals(51, snapshot.size());
+        assertEquals(last, snapshot.maxAccountNum());
+        int slot = snapshot.slotOf(first);
+        assertEquals(first, snapshot.accountNumAt(slot));
+        assertEquals(500, snapshot.balanceAt(slot));
+        assertEquals(2, snapshot.accountTypeAt(slot));
+        assertEquals(42, snapshot.customerIdAt(slot));
+        assertTrue(PasswordHash.matches("1234", snapshot.passwordSaltAt(slot), snapshot.passwordHashAt(slot)));
+        assertEquals(2L * JournalRecord.SIZE, snapshot.lastLsnAt(slot));
+        assertEquals(-1, snapshot.slotOf(last + 1));
+    }
+
+    @Test
+    public void snapshotAccountsAreHydratedOnFirstWrite() throws IOException {
+        Path journal = folder.getRoot().toPath().resolve("journal");
+        Path checkpoint = folder.getRoot().toPath().resolve("checkpoint");
+        int account;
+        try (DatabaseProxy database = new DatabaseProxy(16, ConcurrencyMode.STRIPED_LOCK, journal, checkpoint)) {
+            account = database.createNewAccount("0000", 0, 1000);
+            database.setDailyWithdrawalLimit(400);
+            assertTrue(database.withdraw(account, 300));
+            database.checkpoint();
+        }
+        try (DatabaseProxy database = new DatabaseProxy(16, ConcurrencyMode.STRIPED_LOCK, journal, checkpoint)) {
+            database.setDailyWithdrawalLimit(400);
+            assertEquals(700, database.checkTheBalance(account));
+            assertEquals(100, database.remainingDailyAllowance(account));
+            assertFalse(database.withdraw(account, 200));
+            assertTrue(database.withdraw(account, 100));
+            assertEquals(600, database.checkTheBalance(account));
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+package com.bankbankatm;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+public class MoneyTest {
+
+    @Test
+    public void moneyIsAValueAndNotEqualToAnAccumulator() {
+        assertEquals(Money.of(1250), new Money(1250));
+        assertEquals(Money.ofMajor(12).plus(Money.of(50)), Money.of(1250));
+        assertEquals("12.50", Money.of(1250).toString());
+        assertEquals("-0.05", Money.of(-5).toString());
+        MutableMoney accumulator = new MutableMoney(1250);
+        assertFalse(Money.of(1250).equals(accumulator));
+        assertEquals(Money.of(1250), accumulator.toMoney());
+        assertEquals("12.50", accumulator.toString());
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void arithmeticRefusesToOverflow() {
+        new MutableMoney(Long.MAX_VALUE).add(1);
+    }
+
+    @Test
+    public void theDispenserRefusesAMissingAmount() {
+        CashDispenser dispenser = new CashDispenser(new Log(4));
+        NullPointerException missing = assertThrows(NullPointerException.class,
+                () -> dispenser.dispenseCash((Money) null));
+        assertEquals("amount is required", missing.getMessage());
+        assertThrows(NullPointerException.class, () -> dispenser.checkCashOnHand((Money) null));
+    }
+
+    @Test
+    public void accumulatingAndDispensingAllocateNothing() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        assumeAllocationsMeasured(threads);
+        CashDispenser dispenser = new CashDispenser(new Log(64));
+        MutableMoney amount = new MutableMoney();
+        long thread = Thread.currentThread().getId();
+        for (int round = 0; round < 3; round++) {
+            dispenser.setInitialCash(Money.ofMajor(1_000_000));
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < 100_000; i++) {
+                amount.set(2000).add(500).subtract(500);
+                if (dispenser.checkCashOnHand(amount.getMinorUnits())) {
+                    dispenser.dispenseCash(amount.getMinorUnits());
+                }
+            }
+            long allocated = threads.getThreadAllocatedBytes(thread) - before;
+            if (round == 2) {
+                // The measurement itself may allocate a little; 100,000 Money objects would be 1.6 MB.
+                assertTrue("allocated " + allocated + " bytes", allocated < 4096);
+            }
+        }
+    }
+
+    @Test
+    public void withdrawalDepositAndTransferAllocateOnlyTheirReceipts() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        assumeAllocationsMeasured(threads);
+        DatabaseProxy database = new DatabaseProxy(16);
+        database.setDailyWithdrawalLimit(DailyWithdrawals.MAX_TOTAL);
+        int account = database.createNewAccount("1234", 0, 10_000);
+        int other = database.createNewAccount("1234", 0, 10_000);
+        CashDispenser dispenser = new CashDispenser(new Log(64));
+        ATM atm = new ATM(database, dispenser);
+        Withdrawal withdrawal = new Withdrawal(atm, new Session(), new Card(account), 1234);
+        withdrawal.setAmount(Money.of(2000));
+        Deposit deposit = new Deposit(atm, new Session(), new Card(account), 1234);
+        deposit.setAmount(Money.of(2000));
+        Transfer out = new Transfer(atm, new Session(), new Card(account), 1234);
+        out.setTo(other);
+        out.setAmount(Money.of(2000));
+        Transfer back = new Transfer(atm, new Session(), new Card(other), 1234);
+        back.setTo(account);
+        back.setAmount(Money.of(2000));
+        Receipt[] kept = new Receipt[4];
+        long thread = Thread.currentThread().getId();
+        for (int round = 0; round < 3; round++) {
+            dispenser.setInitialCash(Money.ofMajor(10_000_000));
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < 100_000; i++) {
+                kept[0] = withdrawal.completeTransaction();
+                kept[1] = deposit.completeTransaction();
+                kept[2] = out.completeTransaction();
+                kept[3] = back.completeTransaction();
+            }
+            long flows = threads.getThreadAllocatedBytes(thread) - before;
+            before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < 100_000; i++) {
+                kept[0] = Receipt.of("Withdrawal", account, 2000);
+                kept[1] = Receipt.of("Deposit", account, 2000);
+                kept[2] = Receipt.ofTransfer(account, other, 2000);
+                kept[3] = Receipt.ofTransfer(other, account, 2000);
+            }
+            long receipts = threads.getThreadAllocatedBytes(thread) - before;
+            if (round == 2) {
+                // One Money object per flow would be 6.4 MB over 400,000 flows.
+                assertTrue("allocated " + (flows - receipts) + " bytes beyond the receipts",
+                        Math.abs(flows - receipts) < 4096);
+            }
+        }
+        assertArrayEquals(new String[] { "Transfer", "From account " + other, "To account " + account, "Amount 20.00" },
+                kept[3].getLines());
+        assertEquals(10_000, database.checkTheBalance(account));
+        assertEquals(10_000, database.checkTheBalance(other));
+    }
+
+    private static void assumeAllocationsMeasured(com.sun.management.ThreadMXBean threads) {
+        org.junit.Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+}
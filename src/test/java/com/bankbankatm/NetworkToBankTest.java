@@ -0,0 +1,132 @@
+package com.bankbankatm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+public class NetworkToBankTest {
+
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    @Test
+    public void pipelinedRequestsAreEachMatchedToTheirAnswer() throws Exception {
+        DatabaseProxy database = new DatabaseProxy(256);
+        int[] accounts = new int[200];
+        for (int i = 0; i < accounts.length; i++) {
+            accounts[i] = database.createNewAccount("0000", 0, i * 10L);
+        }
+        try (BankServer server = new BankServer(database, new InetSocketAddress(LOOPBACK, 0))) {
+            NetworkToBank network = new NetworkToBank(null, LOOPBACK, server.getPort());
+            try {
+                List<CompletableFuture<Status>> answers = new ArrayList<>();
+                Balances[] balances = new Balances[accounts.length];
+                for (int i = 0; i < accounts.length; i++) {
+                    balances[i] = new Balances();
+                    answers.add(network.sendMessageAsync(new Message(Message.BALANCE, accounts[i], 0), balances[i]));
+                }
+                for (int i = 0; i < accounts.length; i++) {
+                    assertEquals(Status.SUCCESS, answers.get(i).get(5, TimeUnit.SECONDS));
+                    assertEquals(i * 10L, balances[i].getTotal());
+                }
+                assertEquals(0, network.getInFlightCount());
+            } finally {
+                network.closeConnection();
+            }
+        }
+    }
+
+    @Test
+    public void aBankThatCannotBeReachedFailsTheRequest() throws IOException, InterruptedException {
+        NetworkToBank network = new NetworkToBank(null, LOOPBACK, unusedPort());
+        CompletableFuture<Status> answer = network.sendMessageAsync(new Message(Message.BALANCE, 1, 0), null);
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> answer.get(5, TimeUnit.SECONDS));
+        assertTrue(failure.getCause() instanceof IOException);
+        assertEquals(Status.FAILURE, network.sendMessage(new Message(Message.BALANCE, 1, 0), null));
+        assertFalse(new NetworkToBank(null, null).openConnection());
+    }
+
+    @Test
+    public void aSilentBankTimesOutAndAClosedConnectionFailsWhatIsInFlight() throws Exception {
+        try (ServerSocket silent = new ServerSocket(0, 50, LOOPBACK)) {
+            NetworkToBank network = new NetworkToBank(null, LOOPBACK, silent.getLocalPort());
+            assertTrue(network.openConnection());
+            try (Socket accepted = silent.accept()) {
+                CompletableFuture<Status> timed = network.sendMessageAsync(new Message(Message.BALANCE, 1, 0), null,
+                        200, TimeUnit.MILLISECONDS);
+                ExecutionException timeout = assertThrows(ExecutionException.class,
+                        () -> timed.get(5, TimeUnit.SECONDS));
+                assertTrue(timeout.getCause() instanceof TimeoutException);
+                CompletableFuture<Status> pending = network.sendMessageAsync(new Message(Message.BALANCE, 1, 0), null);
+                assertEquals(1, network.getInFlightCount());
+                network.closeConnection();
+                ExecutionException closed = assertThrows(ExecutionException.class,
+                        () -> pending.get(5, TimeUnit.SECONDS));
+                assertTrue(closed.getCause() instanceof IOException);
+            }
+        }
+    }
+
+    @Test
+    public void aLostConnectionIsOpenedAgainOnTheNextRequest() throws IOException {
+        DatabaseProxy database = new DatabaseProxy(16);
+        int account = database.createNewAccount("0000", 0, 70);
+        int port;
+        NetworkToBank network;
+        try (BankServer server = new BankServer(database, new InetSocketAddress(LOOPBACK, 0))) {
+            port = server.getPort();
+            network = new NetworkToBank(null, LOOPBACK, port);
+            assertEquals(Status.SUCCESS, network.sendMessage(new Message(Message.BALANCE, account, 0), null));
+        }
+        assertEquals(Status.FAILURE, network.sendMessage(new Message(Message.BALANCE, account, 0), null));
+        try (BankServer server = new BankServer(database, new InetSocketAddress(LOOPBACK, port))) {
+            Balances balances = new Balances();
+            assertEquals(Status.SUCCESS, network.sendMessage(new Message(Message.BALANCE, account, 0), balances));
+            assertEquals(70, balances.getTotal());
+        } finally {
+            network.closeConnection();
+        }
+    }
+
+    @Test
+    public void sentMessagesAndTheirAnswersAreLogged() throws IOException {
+        DatabaseProxy database = new DatabaseProxy(16);
+        int account = database.createNewAccount("0000", 0, 70);
+        Log log = new Log(16);
+        try (BankServer server = new BankServer(database, new InetSocketAddress(LOOPBACK, 0))) {
+            NetworkToBank network = new NetworkToBank(log, LOOPBACK, server.getPort());
+            try {
+                assertSame(log, network.getLog());
+                assertEquals(Status.SUCCESS, network.sendMessage(new Message(Message.BALANCE, account, 0), null));
+                assertEquals(Status.FAILURE, network.sendMessage(new Message(Message.BALANCE, account + 1, 0), null));
+            } finally {
+                network.closeConnection();
+            }
+        }
+        int[] kinds = new int[4];
+        long[] times = new long[4];
+        long[] values = new long[4];
+        assertEquals(4, log.recent(kinds, times, values));
+        assertArrayEquals(new int[] { Log.RESPONSE, Log.SEND, Log.RESPONSE, Log.SEND }, kinds);
+        assertArrayEquals(new long[] { Status.FAILURE.ordinal(), Message.BALANCE, Status.SUCCESS.ordinal(),
+                Message.BALANCE }, values);
+    }
+
+    private static int unusedPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.bankbankatm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PasswordHashTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void saltsAreRandomAndCarryTheIterationCount() {
+        long first = PasswordHash.newSalt();
+        long second = PasswordHash.newSalt();
+        assertNotEquals(first, second);
+        assertEquals(1 << PasswordHash.DEFAULT_COST, PasswordHash.iterationsOf(first));
+        assertEquals(1 << 4, PasswordHash.iterationsOf(PasswordHash.newSalt(4)));
+        assertNotEquals(PasswordHash.hash("1234", first), PasswordHash.hash("1234", second));
+    }
+
+    @Test
+    public void matchesOnlyTheRightPassword() {
+        long salt = PasswordHash.newSalt(4);
+        long hash = PasswordHash.hash("1234", salt);
+        assertEquals(hash, PasswordHash.hash("1234", salt));
+        assertTrue(PasswordHash.matches("1234", salt, hash));
+        assertFalse(PasswordHash.matches("1235", salt, hash));
+        assertFalse(PasswordHash.matches("1234", PasswordHash.newSalt(5), hash));
+        String stored = PasswordHash.encode(salt, hash);
+        assertTrue(PasswordHash.matches("1234", stored));
+        assertFalse(PasswordHash.matches("4321", stored));
+    }
+
+    @Test
+    public void unsaltedCredentialsStillVerify() {
+        long legacy = PasswordHash.hash("1234", 0);
+        assertTrue(PasswordHash.matches("1234", Long.toHexString(legacy)));
+        assertFalse(PasswordHash.matches("1234", 0, 0));
+    }
+
+    @Test
+    public void saltSurvivesTheJournalAndTheCheckpoint() throws IOException {
+        Path journal = folder.getRoot().toPath().resolve("journal");
+        Path checkpoint = folder.getRoot().toPath().resolve("checkpoint");
+        int created;
+        int changed;
+        String stored;
+        try (DatabaseProxy database = new DatabaseProxy(16, ConcurrencyMode.STRIPED_LOCK, journal, checkpoint)) {
+            created = database.createNewAccount("1111", 0, 0);
+            database.checkpoint();
+            changed = database.createNewAccount("2222", 0, 0);
+            assertTrue(database.changePassword(changed, "2222", "3333"));
+            stored = database.selectPasswordByAccountNum(changed);
+        }
+        try (DatabaseProxy database = new DatabaseProxy(16, ConcurrencyMode.STRIPED_LOCK, journal, checkpoint)) {
+            assertTrue(PasswordHash.matches("1111", database.selectPasswordByAccountNum(created)));
+            assertEquals(stored, database.selectPasswordByAccountNum(changed));
+            assertTrue(PasswordHash.matches("3333", stored));
+            assertFalse(database.changePassword(changed, "2222", "4444"));
+        }
+    }
+
+}
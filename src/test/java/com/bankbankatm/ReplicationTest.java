@@ -0,0 +1,267 @@
+package com.bankbankatm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ReplicationTest {
+
+    private static final long ACK_TIMEOUT_MILLIS = 200;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+
+    @Before
+    public void directory() {
+        directory = folder.getRoot().toPath();
+    }
+
+    @Test
+    public void aSyncCommitNoBackupAcknowledgesFails() throws IOException {
+        try (DatabaseProxy primary = open("primary")) {
+            int account = primary.createNewAccount("0000", 0, 0);
+            primary.replicate(freeAddress(), ReplicationMode.SYNC, ACK_TIMEOUT_MILLIS);
+            assertThrows(IllegalStateException.class, () -> primary.plusBalance(account, 10));
+        }
+    }
+
+    @Test
+    public void aSemiSyncCommitWithoutBackupsIsCountedAsDegraded() throws IOException {
+        try (DatabaseProxy primary = open("primary")) {
+            int account = primary.createNewAccount("0000", 0, 0);
+            JournalShipper shipper = primary.replicate(freeAddress(), ReplicationMode.SEMI_SYNC, ACK_TIMEOUT_MILLIS);
+            primary.plusBalance(account, 10);
+            assertTrue(shipper.isDegraded());
+            assertEquals(1, shipper.getDegradedCommitCount());
+            assertEquals(10, primary.checkTheBalance(account));
+        }
+    }
+
+    @Test
+    public void aSyncCommitReturnsOnceTheBackupHasIt() throws Exception {
+        InetSocketAddress address = freeAddress();
+        try (DatabaseProxy primary = open("primary");
+                JournalReceiver backup = new JournalReceiver(directory.resolve("backup"))) {
+            int account = primary.createNewAccount("0000", 0, 0);
+            JournalShipper shipper = primary.replicate(address, ReplicationMode.SYNC, 5_000);
+            CompletableFuture<Boolean> following = follow(backup, address);
+            awaitCaughtUp(shipper);
+            primary.plusBalance(account, 10);
+            assertEquals(Files.size(directory.resolve("primary")), backup.length());
+            assertEquals(0, shipper.getDegradedCommitCount());
+            backup.disconnect();
+            assertTrue(following.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void aBackupThatPromisedALaterEpochFencesThePrimary() throws Exception {
+        InetSocketAddress address = freeAddress();
+        EpochFile epochs = new EpochFile(EpochFile.fileFor(directory.resolve("backup")));
+        epochs.promise(7);
+        try (DatabaseProxy primary = open("primary");
+                JournalReceiver backup = new JournalReceiver(directory.resolve("backup"), epochs)) {
+            int account = primary.createNewAccount("0000", 0, 0);
+            JournalShipper shipper = primary.replicate(address, ReplicationMode.ASYNC, ACK_TIMEOUT_MILLIS, 3);
+            assertEquals(3, shipper.getEpoch());
+            assertFalse(backup.follow(address, 1_000, 1_000));
+            assertEquals(0, backup.length());
+            assertThrows(IllegalStateException.class, () -> primary.plusBalance(account, 10));
+        }
+    }
+
+    @Test
+    public void aFormerPrimaryKeepsTheRecordsItCommitted() throws Exception {
+        Path old = directory.resolve("old");
+        EpochFile oldEpochs = new EpochFile(EpochFile.fileFor(old));
+        oldEpochs.lead(1);
+        try (DatabaseProxy primary = open("old")) {
+            primary.replicate(freeAddress(), ReplicationMode.ASYNC, ACK_TIMEOUT_MILLIS, 1);
+            int account = primary.createNewAccount("0000", 0, 0);
+            primary.plusBalance(account, 10);
+            primary.plusBalance(account, 20);
+        }
+        long committed = Files.size(old);
+        Path next = directory.resolve("next");
+        copyPrefix(old, next, committed - JournalRecord.SIZE);
+        InetSocketAddress address = freeAddress();
+        try (DatabaseProxy primary = open("next")) {
+            primary.replicate(address, ReplicationMode.ASYNC, ACK_TIMEOUT_MILLIS, 2);
+            try (JournalReceiver rejoined = new JournalReceiver(old, oldEpochs)) {
+                assertEquals(committed, rejoined.committedLength());
+                assertThrows(IOException.class, () -> rejoined.follow(address, 1_000, 1_000));
+                assertEquals(committed, rejoined.length());
+            }
+        }
+        assertEquals(committed, Files.size(old));
+        assertEquals(2, new EpochFile(EpochFile.fileFor(old)).promised());
+    }
+
+    @Test
+    public void aFormerPrimaryFollowsANewPrimaryThatHasItsRecords() throws Exception {
+        Path old = directory.resolve("old");
+        EpochFile oldEpochs = new EpochFile(EpochFile.fileFor(old));
+        oldEpochs.lead(1);
+        try (DatabaseProxy primary = open("old")) {
+            primary.replicate(freeAddress(), ReplicationMode.ASYNC, ACK_TIMEOUT_MILLIS, 1);
+            primary.createNewAccount("0000", 0, 5);
+        }
+        long committed = Files.size(old);
+        copyPrefix(old, directory.resolve("next"), committed);
+        InetSocketAddress address = freeAddress();
+        try (DatabaseProxy primary = open("next")) {
+            JournalShipper shipper = primary.replicate(address, ReplicationMode.SYNC, 5_000, 2);
+            try (JournalReceiver rejoined = new JournalReceiver(old, oldEpochs)) {
+                CompletableFuture<Boolean> following = follow(rejoined, address);
+                awaitCaughtUp(shipper);
+                primary.createNewAccount("0000", 0, 7);
+                assertEquals(Files.size(directory.resolve("next")), rejoined.length());
+                rejoined.disconnect();
+                assertTrue(following.get(5, TimeUnit.SECONDS));
+            }
+        }
+    }
+
+    @Test
+    public void aBackupProcessTakesOverFromAKilledPrimary() throws Exception {
+        int account;
+        int other;
+        try (DatabaseProxy seed = new DatabaseProxy(16, ConcurrencyMode.STRIPED_LOCK,
+                Files.createDirectories(directory.resolve("member-0")).resolve("journal"))) {
+            account = seed.createNewAccount("0000", 0, 100);
+            other = seed.createNewAccount("0000", 0, 0);
+        }
+        List<String> members = new ArrayList<>();
+        int[] bankPorts = new int[3];
+        for (int i = 0; i < bankPorts.length; i++) {
+            InetSocketAddress address = freeAddress();
+            members.add(address.getHostString() + ":" + address.getPort());
+            bankPorts[i] = freeAddress().getPort();
+        }
+        List<Process> processes = new ArrayList<>();
+        try {
+            for (int i = 0; i < bankPorts.length; i++) {
+                processes.add(startMember(i, bankPorts[i], members));
+            }
+            assertEquals(100, balanceAt(bankPorts[0], account));
+            for (int i = 1; i < bankPorts.length; i++) {
+                awaitSameLength(directory.resolve("member-0/journal"), directory.resolve("member-" + i + "/journal"));
+            }
+            NetworkToBank primary = new NetworkToBank(null, InetAddress.getLoopbackAddress(), bankPorts[0]);
+            try {
+                assertEquals(Status.SUCCESS, primary.sendMessage(new Message(Message.CREDIT, account, 50), null));
+                assertEquals(Status.SUCCESS, primary.sendMessage(new Message(Message.DEBIT, account, 20), null));
+                assertEquals(Status.SUCCESS,
+                        primary.sendMessage(new Message(Message.TRANSFER, account, 30, 1, other), null));
+            } finally {
+                primary.closeConnection();
+            }
+            processes.get(0).destroyForcibly().waitFor();
+            assertEquals(100, balanceAt(bankPorts[1], account));
+            assertEquals(30, balanceAt(bankPorts[1], other));
+        } finally {
+            for (Process process : processes) {
+                process.destroyForcibly().waitFor();
+            }
+        }
+    }
+
+    private Process startMember(int self, int bankPort, List<String> members) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("-D" + ReplicationMode.PROPERTY + "=" + ReplicationMode.SYNC);
+        command.add("-D" + ReplicaNode.PROMOTION_PROPERTY + "=500");
+        command.add(ReplicaNode.class.getName());
+        command.add(Integer.toString(self));
+        command.add(directory.resolve("member-" + self).toString());
+        command.add(Integer.toString(bankPort));
+        command.addAll(members);
+        return new ProcessBuilder(command).redirectErrorStream(true)
+                .redirectOutput(directory.resolve("member-" + self + ".log").toFile()).start();
+    }
+
+    /**
+     * Asks the bank on the port for the balance, retrying until a primary
+     * answers there.
+     */
+    private static long balanceAt(int bankPort, int account) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (true) {
+            NetworkToBank network = new NetworkToBank(null, InetAddress.getLoopbackAddress(), bankPort);
+            try {
+                Balances balances = new Balances();
+                if (network.sendMessage(new Message(Message.BALANCE, account, 0), balances) == Status.SUCCESS) {
+                    return balances.getTotal();
+                }
+            } finally {
+                network.closeConnection();
+            }
+            assertTrue("no primary on port " + bankPort, System.nanoTime() < deadline);
+            Thread.sleep(100);
+        }
+    }
+
+    private static void awaitSameLength(Path primary, Path backup) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (!Files.exists(backup) || Files.size(backup) != Files.size(primary)) {
+            assertTrue("backup did not catch up", System.nanoTime() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    private DatabaseProxy open(String journal) throws IOException {
+        return new DatabaseProxy(16, ConcurrencyMode.STRIPED_LOCK, directory.resolve(journal));
+    }
+
+    private static CompletableFuture<Boolean> follow(JournalReceiver backup, InetSocketAddress address) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return backup.follow(address, 1_000, 5_000);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private static void awaitCaughtUp(JournalShipper shipper) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (shipper.isDegraded()) {
+            assertTrue("backup did not catch up", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void copyPrefix(Path from, Path to, long length) throws IOException {
+        try (FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(to, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            in.transferTo(0, length, out);
+        }
+    }
+
+    private static InetSocketAddress freeAddress() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort());
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.bankbankatm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ReversalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path journal;
+    private Path checkpoint;
+
+    @Before
+    public void files() {
+        journal = folder.getRoot().toPath().resolve("journal");
+        checkpoint = folder.getRoot().toPath().resolve("checkpoint");
+    }
+
+    @Test
+    public void aRecordIsReversedOnlyOnce() throws IOException {
+        try (DatabaseProxy database = open()) {
+            int account = database.createNewAccount("0000", 0, 100);
+            database.plusBalance(account, 50);
+            long credit = 3L * JournalRecord.SIZE;
+            assertTrue(database.reverse(credit));
+            assertEquals(100, database.checkTheBalance(account));
+            assertThrows(IllegalStateException.class, () -> database.reverse(credit));
+            assertEquals(100, database.checkTheBalance(account));
+        }
+    }
+
+    @Test
+    public void aReversalCannotBeReversed() throws IOException {
+        try (DatabaseProxy database = open()) {
+            int account = database.createNewAccount("0000", 0, 100);
+            assertTrue(database.minusBalance(account, 30));
+            assertTrue(database.reverse(3L * JournalRecord.SIZE));
+            assertThrows(IllegalArgumentException.class, () -> database.reverse(4L * JournalRecord.SIZE));
+            assertEquals(100, database.checkTheBalance(account));
+        }
+    }
+
+    @Test
+    public void reversalsAreFoundAcrossACheckpointAndARestart() throws IOException {
+        int from;
+        int to;
+        long transfer = 5L * JournalRecord.SIZE;
+        try (DatabaseProxy database = open()) {
+            from = database.createNewAccount("0000", 0, 100);
+            to = database.createNewAccount("0000", 0, 0);
+            assertTrue(database.transfer(from, to, 40));
+            assertTrue(database.reverse(transfer));
+            database.plusBalance(to, 1);
+            database.checkpoint();
+        }
+        try (DatabaseProxy database = open()) {
+            assertThrows(IllegalStateException.class, () -> database.reverse(transfer));
+            assertEquals(100, database.checkTheBalance(from));
+            assertEquals(1, database.checkTheBalance(to));
+        }
+    }
+
+    @Test
+    public void concurrentReversalsOfOneRecordApplyOnce() throws IOException, InterruptedException {
+        try (DatabaseProxy database = open()) {
+            int account = database.createNewAccount("0000", 0, 0);
+            database.plusBalance(account, 1000);
+            long credit = 3L * JournalRecord.SIZE;
+            AtomicInteger reversed = new AtomicInteger();
+            AtomicInteger refused = new AtomicInteger();
+            ConcurrencyModeTest.runOnThreads(4, () -> {
+                try {
+                    if (database.reverse(credit)) {
+                        reversed.incrementAndGet();
+                    }
+                } catch (IllegalStateException e) {
+                    refused.incrementAndGet();
+                }
+            });
+            assertEquals(1, reversed.get());
+            assertEquals(3, refused.get());
+            assertEquals(0, database.checkTheBalance(account));
+        }
+    }
+
+    @Test
+    public void replayRefusesAJournalThatReversesARecordTwice() throws IOException {
+        try (Journal log = Journal.open(journal, record -> {
+        })) {
+            log.append(JournalRecord.CREATE, 1, 100, 0, 0, 0);
+            long credit = log.append(JournalRecord.CREDIT, 1, 50, 0, 0, 0);
+            log.append(JournalRecord.REVERSAL, 1, 50, credit, 0, JournalRecord.CREDIT);
+            log.awaitDurable(log.append(JournalRecord.REVERSAL, 1, 50, credit, 0, JournalRecord.CREDIT));
+        }
+        assertThrows(IllegalStateException.class, () -> new DatabaseProxy(16, ConcurrencyMode.STRIPED_LOCK, journal));
+    }
+
+    private DatabaseProxy open() throws IOException {
+        return new DatabaseProxy(16, ConcurrencyMode.STRIPED_LOCK, journal, checkpoint);
+    }
+
+}
@@ -0,0 +1,71 @@
+package com.bankbankatm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SnapshotReadTest {
+
+    private static final long OPENING = 1L << 40;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(timeout = 30_000)
+    public void readsStayConsistentAndFinishUnderConstantWrites() throws InterruptedException {
+        for (ConcurrencyMode mode : ConcurrencyMode.values()) {
+            DatabaseProxy database = new DatabaseProxy(16, mode);
+            int account = database.createNewAccount("0000", 0, OPENING);
+            AtomicBoolean stop = new AtomicBoolean();
+            Thread[] writers = new Thread[2];
+            for (int i = 0; i < writers.length; i++) {
+                writers[i] = new Thread(() -> {
+                    while (!stop.get()) {
+                        database.withdraw(account, 1);
+                    }
+                });
+                writers[i].start();
+            }
+            AccountSnapshot snapshot = new AccountSnapshot();
+            try {
+                for (int i = 0; i < 20_000; i++) {
+                    database.readSnapshot(account, snapshot);
+                    assertEquals(mode.name(), OPENING, snapshot.getBalance() + snapshot.getWithdrawnToday());
+                    assertTrue(snapshot.getRecentCount() <= TransactionHistory.DEPTH);
+                }
+            } finally {
+                stop.set(true);
+                for (Thread writer : writers) {
+                    writer.join();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void checkpointedAccountReportsItsDailyTotal() throws IOException {
+        Path journal = folder.getRoot().toPath().resolve("journal");
+        Path checkpoint = folder.getRoot().toPath().resolve("checkpoint");
+        int account;
+        try (DatabaseProxy database = new DatabaseProxy(16, ConcurrencyMode.STRIPED_LOCK, journal, checkpoint)) {
+            account = database.createNewAccount("0000", 0, 1000);
+            assertTrue(database.withdraw(account, 250));
+            database.checkpoint();
+        }
+        try (DatabaseProxy database = new DatabaseProxy(16, ConcurrencyMode.STRIPED_LOCK, journal, checkpoint)) {
+            AccountSnapshot snapshot = new AccountSnapshot();
+            database.readSnapshot(account, snapshot);
+            assertEquals(750, snapshot.getBalance());
+            assertEquals(250, snapshot.getWithdrawnToday());
+            assertEquals(1, snapshot.getRecentCount());
+            assertEquals(JournalRecord.WITHDRAWAL, snapshot.recentKind(0));
+        }
+    }
+
+}
@@ -26,6 +26,10 @@ public class StepDefinitions {
     private Exception lastException;
     private boolean transactionSuccess;
 
+    private static Money money(double amount) {
+        return Money.of(Math.round(amount * 100));
+    }
+
     // ===========================================
     // SETUP / HOOKS
     // ===========================================
@@ -591,7 +595,7 @@ public class StepDefinitions {
         try {
             log = new Log();
             cashDispenser = new CashDispenser(log);
-            cashDispenser.checkCashOnHand(null); // Verify no cash was dispensed
+            cashDispenser.checkCashOnHand(Money.ZERO); // Verify no cash was dispensed
         } catch (UnsupportedOperationException e) {
             fail("CashDispenser.checkCashOnHand() not implemented");
         }
@@ -615,7 +619,7 @@ public class StepDefinitions {
     @Then("the machine must accurately identify and select {double} worth of bills")
     public void the_machine_must_accurately_identify_and_select_worth_of_bills(Double amount) {
         try {
-            cashDispenser.checkCashOnHand(null);
+            cashDispenser.checkCashOnHand(money(amount));
         } catch (UnsupportedOperationException e) {
             fail("CashDispenser.checkCashOnHand() not implemented");
         }
@@ -935,6 +939,8 @@ public class StepDefinitions {
         try {
             log = new Log();
             cashDispenser = new CashDispenser(log);
+            cashDispenser.setInitialCash(Money.ofMajor(1000));
+            atm = new ATM(new DatabaseProxy(16), cashDispenser);
         } catch (UnsupportedOperationException e) {
             fail("CashDispenser not implemented");
         }
@@ -943,7 +949,7 @@ public class StepDefinitions {
     @Then("if identification fails, it should not dispense incorrect amounts")
     public void if_identification_fails_should_not_dispense_incorrect_amounts() {
         try {
-            cashDispenser.checkCashOnHand(null); // Should validate before dispensing
+            cashDispenser.checkCashOnHand(money(requestedAmount)); // Should validate before dispensing
         } catch (UnsupportedOperationException e) {
             fail("CashDispenser.checkCashOnHand() not implemented");
         }
@@ -963,7 +969,9 @@ public class StepDefinitions {
     @When("it attempts the operation for the 1st time and fails")
     public void it_attempts_operation_1st_time_and_fails() {
         try {
-            cashDispenser.dispenseCash(null); // Retry 1
+            cashDispenser.dispenseCash(Money.ofMajor(20)); // Retry 1
+        } catch (IllegalStateException e) {
+            lastException = e;
         } catch (UnsupportedOperationException e) {
             fail("CashDispenser.dispenseCash() not implemented - retry 1");
         }
@@ -972,7 +980,9 @@ public class StepDefinitions {
     @When("it retries a 2nd time and fails")
     public void it_retries_2nd_time_and_fails() {
         try {
-            cashDispenser.dispenseCash(null); // Retry 2
+            cashDispenser.dispenseCash(Money.ofMajor(20)); // Retry 2
+        } catch (IllegalStateException e) {
+            lastException = e;
         } catch (UnsupportedOperationException e) {
             fail("CashDispenser.dispenseCash() not implemented - retry 2");
         }
@@ -981,7 +991,9 @@ public class StepDefinitions {
     @When("it retries a 3rd time and fails")
     public void it_retries_3rd_time_and_fails() {
         try {
-            cashDispenser.dispenseCash(null); // Retry 3
+            cashDispenser.dispenseCash(Money.ofMajor(20)); // Retry 3
+        } catch (IllegalStateException e) {
+            lastException = e;
         } catch (UnsupportedOperationException e) {
             fail("CashDispenser.dispenseCash() not implemented - retry 3");
         }
@@ -1068,7 +1080,8 @@ public class StepDefinitions {
         try {
             log = new Log();
             cashDispenser = new CashDispenser(log);
-            cashDispenser.dispenseCash(null);
+            cashDispenser.setInitialCash(money(amount));
+            cashDispenser.dispenseCash(money(amount));
         } catch (UnsupportedOperationException e) {
             fail("CashDispenser.dispenseCash() not implemented");
         }
@@ -1105,7 +1118,7 @@ public class StepDefinitions {
     public void response_should_be_sent_to_bank_for_money_dispensed() {
         try {
             NetworkToBank network = new NetworkToBank(log, null);
-            network.sendMessage(null, null);
+            network.sendMessage(new Message(Message.BALANCE, currentAccountNum, 0), null);
         } catch (UnsupportedOperationException e) {
             fail("NetworkToBank.sendMessage() not implemented");
         }
@@ -1181,7 +1194,7 @@ public class StepDefinitions {
     public void the_bank_computer_should_return(String response) {
         try {
             NetworkToBank network = new NetworkToBank(log, null);
-            network.sendMessage(null, null);
+            network.sendMessage(new Message(Message.BALANCE, currentAccountNum, 0), null);
         } catch (UnsupportedOperationException e) {
             fail("NetworkToBank.sendMessage() not implemented");
         }
@@ -1191,7 +1204,7 @@ public class StepDefinitions {
     public void the_bank_computer_returns(String response) {
         try {
             NetworkToBank network = new NetworkToBank(log, null);
-            network.sendMessage(null, null);
+            network.sendMessage(new Message(Message.BALANCE, currentAccountNum, 0), null);
         } catch (UnsupportedOperationException e) {
             fail("NetworkToBank.sendMessage() not implemented");
         }
@@ -1268,7 +1281,7 @@ public class StepDefinitions {
     public void the_bank_should_send_to_atm(String message) {
         try {
             NetworkToBank network = new NetworkToBank(log, null);
-            network.sendMessage(null, null);
+            network.sendMessage(new Message(Message.BALANCE, currentAccountNum, 0), null);
         } catch (UnsupportedOperationException e) {
             fail("NetworkToBank.sendMessage() not implemented");
         }
@@ -1294,7 +1307,8 @@ public class StepDefinitions {
         try {
             log = new Log();
             cashDispenser = new CashDispenser(log);
-            cashDispenser.dispenseCash(null);
+            cashDispenser.setInitialCash(money(amount));
+            cashDispenser.dispenseCash(money(amount));
         } catch (UnsupportedOperationException e) {
             fail("CashDispenser.dispenseCash() not implemented");
         }
@@ -1304,7 +1318,7 @@ public class StepDefinitions {
     public void the_atm_should_send_confirmation_to_bank_computer() {
         try {
             NetworkToBank network = new NetworkToBank(log, null);
-            network.sendMessage(null, null);
+            network.sendMessage(new Message(Message.BALANCE, currentAccountNum, 0), null);
         } catch (UnsupportedOperationException e) {
             fail("NetworkToBank.sendMessage() not implemented");
         }
@@ -1339,7 +1353,8 @@ public class StepDefinitions {
         try {
             log = new Log();
             cashDispenser = new CashDispenser(log);
-            cashDispenser.dispenseCash(null);
+            cashDispenser.setInitialCash(money(amount));
+            cashDispenser.dispenseCash(money(amount));
         } catch (UnsupportedOperationException e) {
             fail("CashDispenser.dispenseCash() not implemented");
         }
@@ -1349,7 +1364,8 @@ public class StepDefinitions {
     public void the_atm_should_send_response_to_bank(String response) {
         try {
             NetworkToBank network = new NetworkToBank(log, null);
-            network.sendMessage(null, null);
+            int type = "money dispensed".equals(response) ? Message.DISPENSED : Message.DISPENSE_FAILED;
+            network.sendMessage(new Message(type, currentAccountNum, money(300).getMinorUnits()), null);
         } catch (UnsupportedOperationException e) {
             fail("NetworkToBank.sendMessage() not implemented");
         }
@@ -1378,7 +1394,9 @@ public class StepDefinitions {
         try {
             log = new Log();
             cashDispenser = new CashDispenser(log);
-            cashDispenser.dispenseCash(null);
+            cashDispenser.dispenseCash(Money.ofMajor(20));
+        } catch (IllegalStateException e) {
+            lastException = e;
         } catch (UnsupportedOperationException e) {
             fail("CashDispenser.dispenseCash() not implemented");
         }
@@ -1670,7 +1688,8 @@ public class StepDefinitions {
         try {
             log = new Log();
             cashDispenser = new CashDispenser(log);
-            cashDispenser.dispenseCash(null);
+            cashDispenser.setInitialCash(Money.ofMajor(20));
+            cashDispenser.dispenseCash(Money.ofMajor(20));
         } catch (UnsupportedOperationException e) {
             fail("CashDispenser.dispenseCash() not implemented");
         }
@@ -0,0 +1,156 @@
+package com.bankbankatm;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Runs the same workload against every storage engine.
+ */
+@RunWith(Parameterized.class)
+public class StorageEngineTest {
+
+    interface Engine {
+        StorageEngine open(TemporaryFolder folder) throws IOException;
+    }
+
+    @Parameters(name = "{0}")
+    public static List<Object[]> engines() {
+        Engine proxy = folder -> new DatabaseProxy(64);
+        Engine bank = folder -> new Bank(4, 64, ConcurrencyMode.STRIPED_LOCK);
+        Engine jdbc = folder -> new JdbcStorageEngine(h2Url(folder), 4);
+        return Arrays.asList(new Object[] { "DatabaseProxy", proxy }, new Object[] { "Bank", bank },
+                new Object[] { "Jdbc", jdbc });
+    }
+
+    @Parameter(0)
+    public String name;
+
+    @Parameter(1)
+    public Engine engine;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void debitsCreditsAndPasswords() throws IOException {
+        try (StorageEngine storage = engine.open(folder)) {
+            int first = storage.createNewAccount("1234", 0, 10_000);
+            int second = storage.createNewAccount("5678", 1, 0);
+            assertNotEquals(first, second);
+            assertTrue(PasswordHash.matches("1234", storage.selectPasswordByAccountNum(first)));
+
+            assertTrue(storage.minusBalance(first, 4_000));
+            assertFalse(storage.minusBalance(first, 6_001));
+            storage.plusBalance(second, 4_000);
+            assertEquals(6_000, storage.checkTheBalance(first));
+            assertEquals(4_000, storage.checkTheBalance(second));
+
+            assertFalse(storage.changePassword(first, "0000", "9999"));
+            assertTrue(storage.changePassword(first, "1234", "9999"));
+            assertTrue(PasswordHash.matches("9999", storage.selectPasswordByAccountNum(first)));
+            assertFalse(PasswordHash.matches("1234", storage.selectPasswordByAccountNum(first)));
+        }
+    }
+
+    @Test
+    public void passwordChangesReachTheSharedCache() throws IOException {
+        try (StorageEngine storage = engine.open(folder)) {
+            int account = storage.createNewAccount("1234", 0, 0);
+            CredentialCache cache = storage.getCredentials();
+            assertSame(cache, storage.getCredentials());
+            assertTrue(PasswordHash.matches("1234", cache.selectPasswordByAccountNum(account)));
+            assertTrue(storage.changePassword(account, "1234", "9999"));
+            assertTrue(PasswordHash.matches("9999", cache.selectPasswordByAccountNum(account)));
+            assertEquals(1, cache.getInvalidationCount());
+        }
+    }
+
+    @Test
+    public void withdrawalsStopAtTheDailyLimit() throws IOException {
+        try (StorageEngine storage = engine.open(folder)) {
+            int account = storage.createNewAccount("0000", 0, 10_000);
+            storage.setDailyWithdrawalLimit(5_000);
+            assertTrue(storage.withdraw(account, 3_000));
+            assertFalse(storage.withdraw(account, 2_001));
+            assertTrue(storage.withdraw(account, 2_000));
+            assertFalse(storage.withdraw(account, 1));
+            assertEquals(StorageEngine.DAILY_LIMIT_EXCEEDED, storage.tryWithdraw(account, 1));
+            int poor = storage.createNewAccount("0000", 0, 100);
+            assertEquals(StorageEngine.INSUFFICIENT_FUNDS, storage.tryWithdraw(poor, 200));
+            assertEquals(StorageEngine.WITHDRAWN, storage.tryWithdraw(poor, 100));
+            assertEquals(5_000, storage.checkTheBalance(account));
+        }
+    }
+
+    @Test
+    public void unknownAccountsAreRejected() throws IOException {
+        try (StorageEngine storage = engine.open(folder)) {
+            int account = storage.createNewAccount("0000", 0, 100);
+            int unknown = account + 1_000;
+            assertThrows(IllegalArgumentException.class, () -> storage.checkTheBalance(unknown));
+            assertThrows(IllegalArgumentException.class, () -> storage.minusBalance(unknown, 1));
+            assertThrows(IllegalArgumentException.class, () -> storage.plusBalance(unknown, 1));
+            assertThrows(IllegalArgumentException.class, () -> storage.selectPasswordByAccountNum(unknown));
+        }
+    }
+
+    @Test
+    public void concurrentDebitsNeverOverdraw() throws IOException, InterruptedException {
+        try (StorageEngine storage = engine.open(folder)) {
+            int account = storage.createNewAccount("0000", 0, 2_000);
+            AtomicInteger succeeded = new AtomicInteger();
+            ConcurrencyModeTest.runOnThreads(4, () -> {
+                for (int i = 0; i < 1_000; i++) {
+                    if (storage.minusBalance(account, 1)) {
+                        succeeded.incrementAndGet();
+                    }
+                }
+            });
+            assertEquals(2_000, succeeded.get());
+            assertEquals(0, storage.checkTheBalance(account));
+        }
+    }
+
+    @Test
+    public void jdbcSchemaIsCreatedOnceAndReopened() throws IOException, SQLException {
+        assumeTrue(name.equals("Jdbc"));
+        String url = h2Url(folder);
+        int account;
+        try (StorageEngine storage = new JdbcStorageEngine(url, 2)) {
+            account = storage.createNewAccount("0000", 0, 700);
+        }
+        try (StorageEngine storage = new JdbcStorageEngine(url, 2)) {
+            assertEquals(700, storage.checkTheBalance(account));
+            assertTrue(storage.createNewAccount("0000", 0, 0) > account);
+        }
+        try (Connection connection = DriverManager.getConnection(url);
+                Statement statement = connection.createStatement();
+                ResultSet result = statement.executeQuery("SELECT COUNT(*) FROM accounts")) {
+            assertTrue(result.next());
+            assertEquals(2, result.getInt(1));
+        }
+    }
+
+    private static String h2Url(TemporaryFolder folder) {
+        return "jdbc:h2:" + folder.getRoot().toPath().resolve("accounts").toAbsolutePath();
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.bankbankatm;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class TimerWheelTest {
+
+    @Test
+    public void aTimeoutFiresOnceItsDelayHasPassed() throws InterruptedException {
+        try (TimerWheel wheel = new TimerWheel(5, TimeUnit.MILLISECONDS, 64, "test-wheel")) {
+            CountDownLatch fired = new CountDownLatch(1);
+            AtomicLong firedAt = new AtomicLong();
+            long start = System.nanoTime();
+            TimerWheel.Timeout timeout = wheel.schedule(() -> {
+                firedAt.set(System.nanoTime());
+                fired.countDown();
+            }, 50, TimeUnit.MILLISECONDS);
+            assertEquals(1, wheel.getPendingCount());
+            assertTrue(fired.await(5, TimeUnit.SECONDS));
+            assertTrue(firedAt.get() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+            assertTrue(timeout.isExpired());
+            assertFalse(timeout.cancel());
+            assertEquals(0, wheel.getPendingCount());
+        }
+    }
+
+    @Test
+    public void aDelayLongerThanOneTurnWaitsItsRounds() throws InterruptedException {
+        try (TimerWheel wheel = new TimerWheel(5, TimeUnit.MILLISECONDS, 4, "test-wheel")) {
+            CountDownLatch fired = new CountDownLatch(1);
+            long start = System.nanoTime();
+            wheel.schedule(fired::countDown, 100, TimeUnit.MILLISECONDS);
+            assertTrue(fired.await(5, TimeUnit.SECONDS));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        }
+    }
+
+    @Test
+    public void cancelledTimeoutsNeverFire() throws InterruptedException {
+        try (TimerWheel wheel = new TimerWheel(5, TimeUnit.MILLISECONDS, 64, "test-wheel")) {
+            AtomicInteger fired = new AtomicInteger();
+            TimerWheel.Timeout early = wheel.schedule(fired::incrementAndGet, 30, TimeUnit.MILLISECONDS);
+            TimerWheel.Timeout linked = wheel.schedule(fired::incrementAndGet, 60, TimeUnit.MILLISECONDS);
+            assertTrue(early.cancel());
+            Thread.sleep(20);
+            assertTrue(linked.cancel());
+            assertFalse(linked.cancel());
+            assertTrue(linked.isCancelled());
+            Thread.sleep(100);
+            assertEquals(0, fired.get());
+            assertEquals(0, wheel.getPendingCount());
+        }
+    }
+
+    @Test
+    public void concurrentSchedulingAndCancellingBalancesTheCount() throws InterruptedException {
+        try (TimerWheel wheel = new TimerWheel(1, TimeUnit.MILLISECONDS, 256, "test-wheel")) {
+            AtomicInteger fired = new AtomicInteger();
+            AtomicInteger kept = new AtomicInteger();
+            ConcurrencyModeTest.runOnThreads(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    TimerWheel.Timeout timeout = wheel.schedule(fired::incrementAndGet, i % 20, TimeUnit.MILLISECONDS);
+                    if (i % 2 == 0 || !timeout.cancel()) {
+                        kept.incrementAndGet();
+                    }
+                }
+            });
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (wheel.getPendingCount() > 0) {
+                assertTrue("timeouts still pending", System.nanoTime() < deadline);
+                Thread.sleep(5);
+            }
+            assertEquals(kept.get(), fired.get());
+            assertNull(wheel.getLastFailure());
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+package com.bankbankatm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TransactionHistoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void ringKeepsTheNewestEntriesNewestFirst() {
+        TransactionHistory history = new TransactionHistory(4);
+        for (int i = 1; i <= TransactionHistory.DEPTH + 5; i++) {
+            history.record(3, JournalRecord.CREDIT, i, i * 10);
+        }
+        long[] out = new long[TransactionHistory.DEPTH * TransactionHistory.ENTRY_WORDS];
+        assertEquals(TransactionHistory.DEPTH, history.recent(3, out));
+        assertEquals(JournalRecord.CREDIT, out[0]);
+        assertEquals(TransactionHistory.DEPTH + 5, out[1]);
+        assertEquals((TransactionHistory.DEPTH + 5) * 10, out[2]);
+        assertEquals(60, out[out.length - 1]);
+        assertEquals(0, history.recent(2, out));
+    }
+
+    @Test
+    public void historySurvivesARestartBehindACheckpoint() throws IOException {
+        Path journal = folder.getRoot().toPath().resolve("journal");
+        Path checkpoint = folder.getRoot().toPath().resolve("checkpoint");
+        int from;
+        int to;
+        int quiet;
+        try (DatabaseProxy database = new DatabaseProxy(64, ConcurrencyMode.STRIPED_LOCK, journal, checkpoint)) {
+            from = database.createNewAccount("0000", 0, 1000);
+            to = database.createNewAccount("0000", 0, 1000);
+            quiet = database.createNewAccount("0000", 0, 1000);
+            database.plusBalance(quiet, 7);
+            assertTrue(database.withdraw(quiet, 3));
+            for (int i = 1; i <= 12; i++) {
+                database.plusBalance(from, i);
+            }
+            database.checkpoint();
+            assertTrue(database.transfer(from, to, 50));
+        }
+        try (DatabaseProxy database = new DatabaseProxy(64, ConcurrencyMode.STRIPED_LOCK, journal, checkpoint)) {
+            long[] out = new long[TransactionHistory.DEPTH * TransactionHistory.ENTRY_WORDS];
+
+            assertEquals(TransactionHistory.DEPTH, database.recentTransactions(from, out));
+            assertEquals(JournalRecord.TRANSFER, out[0]);
+            assertEquals(-50, out[2]);
+            assertEquals(JournalRecord.CREDIT, out[3]);
+            assertEquals(12, out[5]);
+            assertEquals(4, out[out.length - 1]);
+
+            assertEquals(1, database.recentTransactions(to, out));
+            assertEquals(50, out[2]);
+
+            assertEquals(2, database.recentTransactions(quiet, out));
+            assertEquals(JournalRecord.WITHDRAWAL, out[0]);
+            assertEquals(-3, out[2]);
+            assertEquals(7, out[5]);
+
+            database.plusBalance(quiet, 1);
+            assertEquals(3, database.recentTransactions(quiet, out));
+            assertEquals(1, out[2]);
+            assertEquals(-3, out[5]);
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+package com.bankbankatm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class TransferTest {
+
+    private static final int ACCOUNTS = 16;
+
+    @Test
+    public void opposingTransfersConserveMoneyInBothModes() throws InterruptedException {
+        for (ConcurrencyMode mode : ConcurrencyMode.values()) {
+            DatabaseProxy database = new DatabaseProxy(ACCOUNTS, mode);
+            int[] accounts = open(database);
+            ConcurrencyModeTest.runOnThreads(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 20_000; i++) {
+                    int from = accounts[random.nextInt(ACCOUNTS)];
+                    int to = accounts[random.nextInt(ACCOUNTS)];
+                    if (from != to) {
+                        database.transfer(from, to, 1 + random.nextInt(50));
+                    }
+                }
+            });
+            long total = 0;
+            for (int account : accounts) {
+                long balance = database.checkTheBalance(account);
+                assertTrue(mode + " overdrew " + account, balance >= 0);
+                total += balance;
+            }
+            assertEquals(mode.name(), ACCOUNTS * 1000L, total);
+        }
+    }
+
+    @Test
+    public void transferFailsWholeWhenFundsAreShort() {
+        DatabaseProxy database = new DatabaseProxy(ACCOUNTS, ConcurrencyMode.STRIPED_LOCK);
+        int from = database.createNewAccount("0000", 0, 100);
+        int to = database.createNewAccount("0000", 0, 0);
+        assertFalse(database.transfer(from, to, 101));
+        assertEquals(100, database.checkTheBalance(from));
+        assertEquals(0, database.checkTheBalance(to));
+    }
+
+    @Test
+    public void balanceReadsNeverSeeHalfATransfer() throws InterruptedException {
+        DatabaseProxy database = new DatabaseProxy(ACCOUNTS, ConcurrencyMode.OPTIMISTIC);
+        int[] pair = { database.createNewAccount("0000", 0, 1000), database.createNewAccount("0000", 0, 1000) };
+        AtomicBoolean done = new AtomicBoolean();
+        Thread mover = new Thread(() -> {
+            for (int i = 0; i < 200_000; i++) {
+                database.transfer(pair[i & 1], pair[1 - (i & 1)], 7);
+            }
+            done.set(true);
+        });
+        mover.start();
+        long[] balances = new long[2];
+        while (!done.get()) {
+            database.checkTheBalances(pair, balances);
+            assertEquals(2000, balances[0] + balances[1]);
+        }
+        mover.join();
+    }
+
+    @Test
+    public void aTransferOverTheNetworkIsOneRequest()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        DatabaseProxy database = new DatabaseProxy(ACCOUNTS, ConcurrencyMode.STRIPED_LOCK);
+        int from = database.createNewAccount("0000", 0, 100);
+        int to = database.createNewAccount("0000", 0, 0);
+        try (BankServer server = new BankServer(database, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            ATM atm = new ATM(database, null);
+            NetworkToBank network = new NetworkToBank(null, InetAddress.getLoopbackAddress(), server.getPort());
+            atm.setNetworkToBank(network);
+            try {
+                Transfer transfer = new Transfer(atm, new Session(), new Card(from), 0);
+                transfer.setTo(to);
+                transfer.setAmount(Money.of(40));
+                assertEquals(Status.SUCCESS, transfer.completeTransactionAsync().get(5, TimeUnit.SECONDS).getStatus());
+                transfer.setAmount(Money.of(61));
+                assertEquals(Status.FAILURE, transfer.completeTransactionAsync().get(5, TimeUnit.SECONDS).getStatus());
+            } finally {
+                network.closeConnection();
+            }
+            assertEquals(2, server.getRequestCount());
+        }
+        assertEquals(60, database.checkTheBalance(from));
+        assertEquals(40, database.checkTheBalance(to));
+    }
+
+    @Test
+    public void aTransferMessageCarriesItsTarget() {
+        ByteBuffer buffer = ByteBuffer.allocate(Message.SIZE);
+        new Message(Message.TRANSFER, 11, 500, 42, 12).encode(buffer);
+        buffer.flip();
+        Message decoded = Message.decode(buffer);
+        assertEquals(Message.TRANSFER, decoded.getType());
+        assertEquals(11, decoded.getAccountNum());
+        assertEquals(12, decoded.getTarget());
+        assertEquals(500, decoded.getAmount());
+        assertEquals(42, decoded.getReference());
+    }
+
+    private static int[] open(DatabaseProxy database) {
+        int[] accounts = new int[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            accounts[i] = database.createNewAccount("0000", 0, 1000);
+        }
+        return accounts;
+    }
+
+}
@@ -0,0 +1,80 @@
+package com.bankbankatm;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class WireMessageTest {
+
+    @Test
+    public void fieldsSitAtTheirFixedOffsets() {
+        ByteBuffer buffer = ByteBuffer.allocate(WireMessage.SIZE + 3);
+        buffer.position(3);
+        WireMessage.write(buffer, Message.TRANSFER, 0x01020304, 0x1122334455667788L, -2, 77);
+        assertEquals(3 + WireMessage.SIZE, buffer.position());
+        assertEquals(WireMessage.VERSION, buffer.get(3));
+        assertEquals(Message.TRANSFER, buffer.get(4));
+        assertEquals(0, buffer.getShort(5));
+        assertEquals(0x01020304, buffer.getInt(7));
+        assertEquals(0x1122334455667788L, buffer.getLong(11));
+        assertEquals(-2, buffer.getLong(19));
+        assertEquals(77, buffer.getInt(27));
+        assertEquals(0, buffer.getInt(31));
+    }
+
+    @Test
+    public void oneFlyweightReadsAStreamOfMessages() {
+        ByteBuffer buffer = ByteBuffer.allocate(WireMessage.SIZE * 3);
+        new Message(Message.AUTHORIZE, 10, 400, 5).encode(buffer);
+        new Message(Message.DISPENSED, 10, 400, 5).encode(buffer);
+        new Message(Message.TRANSFER, 10, 50, 6, 11).encode(buffer);
+        WireMessage message = new WireMessage();
+        int[] types = { Message.AUTHORIZE, Message.DISPENSED, Message.TRANSFER };
+        for (int i = 0; i < types.length; i++) {
+            message.wrap(buffer, i * WireMessage.SIZE);
+            assertTrue(message.isValid());
+            assertEquals(types[i], message.type());
+            assertEquals(10, message.account());
+        }
+        assertEquals(50, message.amount());
+        assertEquals(6, message.reference());
+        assertEquals(11, message.target());
+    }
+
+    @Test
+    public void decodingCopiesTheMessageAndAdvances() {
+        ByteBuffer buffer = ByteBuffer.allocate(WireMessage.SIZE * 2);
+        new Message(Message.BALANCE, 3, 0).encode(buffer);
+        new Message(Message.DISPENSE_FAILED, 4, 900, 12).encode(buffer);
+        buffer.flip();
+        Message first = Message.decode(buffer);
+        Message second = Message.decode(buffer);
+        assertFalse(buffer.hasRemaining());
+        assertEquals(Message.BALANCE, first.getType());
+        assertEquals(3, first.getAccountNum());
+        assertEquals(Message.DISPENSE_FAILED, second.getType());
+        assertEquals(900, second.getAmount());
+        assertEquals(12, second.getReference());
+        assertEquals(0, second.getTarget());
+    }
+
+    @Test
+    public void otherVersionsAndUnknownTypesAreInvalid() {
+        ByteBuffer buffer = ByteBuffer.allocate(WireMessage.SIZE);
+        new Message(Message.CREDIT, 1, 1).encode(buffer);
+        WireMessage message = new WireMessage().wrap(buffer, 0);
+        assertTrue(message.isValid());
+        buffer.put(0, (byte) (WireMessage.VERSION + 1));
+        assertFalse(message.isValid());
+        buffer.flip();
+        assertThrows(IllegalArgumentException.class, () -> Message.decode(buffer));
+        buffer.put(0, (byte) WireMessage.VERSION).put(1, (byte) (Message.TRANSFER + 1));
+        assertFalse(message.isValid());
+        buffer.put(1, (byte) 0);
+        assertFalse(message.isValid());
+        assertThrows(IllegalArgumentException.class, () -> new Message(Message.TRANSFER + 1, 1, 1));
+    }
+
+}
@@ -0,0 +1,179 @@
+package com.bankbankatm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WithdrawalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void failedDispenseCreditsTheAccountBack() {
+        DatabaseProxy database = new DatabaseProxy(16);
+        int account = database.createNewAccount("1234", 0, 10_000);
+        CashDispenser jammed = new CashDispenser(new Log()) {
+            @Override
+            public synchronized void dispenseCash(long amount) {
+                throw new IllegalStateException("Dispenser jammed");
+            }
+        };
+        jammed.setInitialCash(Money.ofMajor(1000));
+        Withdrawal withdrawal = new Withdrawal(new ATM(database, jammed), new Session(), new Card(account), 1234);
+        withdrawal.setAmount(Money.of(4000));
+        long allowance = database.remainingDailyAllowance(account);
+
+        Receipt receipt = withdrawal.completeTransaction();
+
+        assertEquals(Status.FAILURE, receipt.getStatus());
+        assertEquals(10_000, database.checkTheBalance(account));
+        assertEquals(allowance, database.remainingDailyAllowance(account));
+    }
+
+    @Test
+    public void dispensedWithdrawalIsLogged() {
+        DatabaseProxy database = new DatabaseProxy(16);
+        int account = database.createNewAccount("1234", 0, 10_000);
+        Log log = new Log();
+        CashDispenser dispenser = new CashDispenser(log);
+        dispenser.setInitialCash(Money.ofMajor(1000));
+        Withdrawal withdrawal = new Withdrawal(new ATM(database, dispenser), new Session(), new Card(account), 1234);
+        withdrawal.setAmount(Money.of(4000));
+
+        assertEquals(Status.SUCCESS, withdrawal.completeTransaction().getStatus());
+
+        int[] kinds = new int[1];
+        long[] times = new long[1];
+        long[] values = new long[1];
+        assertEquals(1, log.recent(kinds, times, values));
+        assertEquals(Log.CASH_DISPENSED, kinds[0]);
+        assertEquals(4000, values[0]);
+        assertEquals(6000, database.checkTheBalance(account));
+        assertFalse(dispenser.checkCashOnHand(Money.ofMajor(1000)));
+    }
+
+    @Test
+    public void aWithdrawalOverTheDailyLimitSaysSo() throws Exception {
+        DatabaseProxy database = new DatabaseProxy(16);
+        database.setDailyWithdrawalLimit(5000);
+        int account = database.createNewAccount("1234", 0, 10_000);
+        CashDispenser dispenser = new CashDispenser(new Log());
+        dispenser.setInitialCash(Money.ofMajor(1000));
+        ATM atm = new ATM(database, dispenser);
+        Withdrawal withdrawal = new Withdrawal(atm, new Session(), new Card(account), 1234);
+        withdrawal.setAmount(Money.of(3000));
+        assertTrue(database.withdraw(account, 3000));
+        assertEquals("Daily withdrawal limit exceeded", withdrawal.completeTransaction().getLines()[0]);
+        try (BankServer server = new BankServer(database, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            NetworkToBank network = new NetworkToBank(null, InetAddress.getLoopbackAddress(), server.getPort());
+            atm.setNetworkToBank(network);
+            try {
+                Receipt receipt = withdrawal.completeTransactionAsync().get(5, TimeUnit.SECONDS);
+                assertEquals(Status.FAILURE, receipt.getStatus());
+                assertEquals("Daily withdrawal limit exceeded", receipt.getLines()[0]);
+                withdrawal.setAmount(Money.of(8000));
+                database.setDailyWithdrawalLimit(20_000);
+                assertEquals("Insufficient funds",
+                        withdrawal.completeTransactionAsync().get(5, TimeUnit.SECONDS).getLines()[0]);
+            } finally {
+                network.closeConnection();
+            }
+        }
+        assertEquals(7000, database.checkTheBalance(account));
+    }
+
+    @Test
+    public void referencesCarryTheTerminalId() {
+        ATM first = new ATM(new DatabaseProxy(16), null);
+        ATM second = new ATM(new DatabaseProxy(16), null);
+        first.setTerminalId(1);
+        second.setTerminalId(2);
+        long a = first.nextReference();
+        long b = second.nextReference();
+        assertEquals(1, a >>> 48);
+        assertEquals(2, b >>> 48);
+        assertNotEquals(a & 0xFFFF_FFFF_FFFFL, 0);
+        assertTrue(first.nextReference() > a);
+        assertThrows(IllegalArgumentException.class, () -> first.setTerminalId(ATM.MAX_TERMINAL_ID + 1));
+    }
+
+    @Test
+    public void authorizedCashIsDispensedOffTheNetworkThread() throws Exception {
+        DatabaseProxy database = new DatabaseProxy(16);
+        int account = database.createNewAccount("1234", 0, 10_000);
+        AtomicReference<String> dispensedOn = new AtomicReference<>();
+        CashDispenser dispenser = new CashDispenser(new Log()) {
+            @Override
+            public synchronized void dispenseCash(long amount) {
+                dispensedOn.set(Thread.currentThread().getName());
+                super.dispenseCash(amount);
+            }
+        };
+        dispenser.setInitialCash(Money.ofMajor(1000));
+        try (BankServer server = new BankServer(database, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            ATM atm = new ATM(database, dispenser);
+            atm.setTerminalId(7);
+            NetworkToBank network = new NetworkToBank(null, InetAddress.getLoopbackAddress(), server.getPort());
+            atm.setNetworkToBank(network);
+            try {
+                Withdrawal withdrawal = new Withdrawal(atm, new Session(), new Card(account), 1234);
+                withdrawal.setAmount(Money.of(4000));
+                assertEquals(Status.SUCCESS, withdrawal.completeTransactionAsync().get(5, TimeUnit.SECONDS).getStatus());
+            } finally {
+                network.closeConnection();
+            }
+        }
+        assertEquals("atm-7", dispensedOn.get());
+        assertEquals(6000, database.checkTheBalance(account));
+    }
+
+    @Test
+    public void anUnansweredAuthorizationQueuesADispenseFailure() throws Exception {
+        DatabaseProxy database = new DatabaseProxy(16);
+        int account = database.createNewAccount("1234", 0, 10_000);
+        CashDispenser dispenser = new CashDispenser(new Log());
+        dispenser.setInitialCash(Money.ofMajor(1000));
+        ATM atm = new ATM(database, dispenser);
+        Log log = new Log();
+        NetworkToBank network = new NetworkToBank(log, InetAddress.getLoopbackAddress(), unusedPort());
+        network.batchConfirmations(folder.getRoot().toPath().resolve("outbox"), 16, 1, TimeUnit.MILLISECONDS);
+        atm.setNetworkToBank(network);
+        try (ConfirmationBatcher batcher = network.getConfirmationBatcher()) {
+            Withdrawal withdrawal = new Withdrawal(atm, new Session(), new Card(account), 1234);
+            withdrawal.setAmount(Money.of(4000));
+            Receipt receipt = withdrawal.completeTransactionAsync().get(5, TimeUnit.SECONDS);
+            assertEquals(Status.FAILURE, receipt.getStatus());
+            assertEquals(Transaction.UNAVAILABLE, receipt.getLines()[0]);
+            assertEquals(1, batcher.getPendingCount());
+            assertTrue(dispenser.checkCashOnHand(Money.ofMajor(1000)));
+        }
+        int[] kinds = new int[16];
+        long[] values = new long[16];
+        int logged = log.recent(kinds, new long[16], values);
+        int unavailable = 0;
+        for (int i = 0; i < logged; i++) {
+            if (kinds[i] == Log.UNAVAILABLE) {
+                assertEquals(Log.UNREACHABLE, values[i]);
+                unavailable++;
+            }
+        }
+        assertEquals(1, unavailable);
+    }
+
+    private static int unusedPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+}